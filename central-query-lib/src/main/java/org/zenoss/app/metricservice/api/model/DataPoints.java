@@ -0,0 +1,515 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.model;
+
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * The data points of a series: values keyed by timestamp in ascending order, held in a
+ * {@code LongBuffer} and a {@code DoubleBuffer} rather than a tree of boxed entries. The buffers
+ * wrap arrays on the heap unless the points were copied elsewhere, such as into direct memory,
+ * with {@link #copyInto}; a series that outgrows such buffers moves back onto the heap.
+ * <p>
+ * Points are read and written by index with {@link #timestampAt}, {@link #valueAt} and
+ * {@link #setValueAt}, and appended with {@link #append}, which takes amortized constant time
+ * when the timestamp is after the last. It is also a {@code SortedMap<Long, Double>}, so it
+ * serializes as the maps it replaces did; putting or removing a point elsewhere than at the end
+ * shifts the points after it.
+ * <p>
+ * The range views returned by {@link #subMap}, {@link #headMap} and {@link #tailMap} are found by
+ * binary search and share the arrays of this series. They are read-only and should not be kept
+ * across changes to the series.
+ */
+public class DataPoints extends AbstractMap<Long, Double> implements SortedMap<Long, Double> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private LongBuffer timestamps;
+    private DoubleBuffer values;
+    private final int offset;
+    private int size;
+    private final boolean view;
+    private int modCount = 0;
+
+    public DataPoints() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DataPoints(int capacity) {
+        this(LongBuffer.allocate(capacity), DoubleBuffer.allocate(capacity), 0, 0, false);
+    }
+
+    private DataPoints(LongBuffer timestamps, DoubleBuffer values, int offset, int size, boolean view) {
+        this.timestamps = timestamps;
+        this.values = values;
+        this.offset = offset;
+        this.size = size;
+        this.view = view;
+    }
+
+    /**
+     * Take the first {@code count} entries of parallel timestamp and value arrays as a series,
+     * without copying them if the timestamps are in strictly ascending order. Otherwise the points
+     * are sorted, the last of equal timestamps winning.
+     */
+    public static DataPoints wrap(long[] timestamps, double[] values, int count) {
+        for (int i = 1; i < count; i++) {
+            if (timestamps[i] <= timestamps[i - 1]) {
+                DataPoints sorted = new DataPoints(count);
+                for (int j = 0; j < count; j++) {
+                    sorted.put(timestamps[j], values[j]);
+                }
+                return sorted;
+            }
+        }
+        return new DataPoints(LongBuffer.wrap(timestamps), DoubleBuffer.wrap(values), 0, count, false);
+    }
+
+    /**
+     * @return a modifiable copy of the points
+     */
+    public static DataPoints copyOf(Map<Long, Double> points) {
+        if (points instanceof DataPoints) {
+            DataPoints source = (DataPoints) points;
+            return wrap(source.timestampArray(), source.valueArray(), source.size);
+        }
+        DataPoints copy = new DataPoints(Math.max(points.size(), 1));
+        copy.putAll(points);
+        return copy;
+    }
+
+    /**
+     * Copy the points to the start of the given buffers and return a series held in them, which
+     * stays there until it needs more room than the buffers have.
+     *
+     * @param timestamps buffer with room for at least size() timestamps
+     * @param values     buffer with room for at least size() values
+     * @return a modifiable series backed by the buffers
+     */
+    public DataPoints copyInto(LongBuffer timestamps, DoubleBuffer values) {
+        if (timestamps.capacity() < size || values.capacity() < size) {
+            throw new IllegalArgumentException("Buffers have no room for " + size + " data points");
+        }
+        LongBuffer timestampsTo = timestamps.duplicate();
+        timestampsTo.clear();
+        timestampsTo.put(range(this.timestamps, offset, offset + size));
+        DoubleBuffer valuesTo = values.duplicate();
+        valuesTo.clear();
+        valuesTo.put(range(this.values, offset, offset + size));
+        return new DataPoints(timestamps, values, 0, size, false);
+    }
+
+    /**
+     * @return true if the points are held outside the heap
+     */
+    public boolean isDirect() {
+        return timestamps.isDirect();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long timestampAt(int index) {
+        checkIndex(index);
+        return timestamps.get(offset + index);
+    }
+
+    public double valueAt(int index) {
+        checkIndex(index);
+        return values.get(offset + index);
+    }
+
+    public void setValueAt(int index, double value) {
+        checkModifiable();
+        checkIndex(index);
+        values.put(offset + index, value);
+    }
+
+    /**
+     * Add a point, or replace the value of the point with the same timestamp.
+     */
+    public void append(long timestamp, double value) {
+        checkModifiable();
+        if (size > 0 && timestamp <= timestamps.get(size - 1)) {
+            int index = indexOf(timestamp);
+            if (index >= 0) {
+                values.put(index, value);
+            } else {
+                insertAt(-(index + 1), timestamp, value);
+            }
+            return;
+        }
+        insertAt(size, timestamp, value);
+    }
+
+    /**
+     * @return the index of the point with the timestamp, or (-(insertion point) - 1) if there is
+     *         none, as {@link Arrays#binarySearch(long[], long)}
+     */
+    public int indexOf(long timestamp) {
+        int low = offset;
+        int high = offset + size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTimestamp = timestamps.get(mid);
+            if (midTimestamp < timestamp) {
+                low = mid + 1;
+            } else if (midTimestamp > timestamp) {
+                high = mid - 1;
+            } else {
+                return mid - offset;
+            }
+        }
+        return -(low - offset + 1);
+    }
+
+    /**
+     * @return the index of the last point at or before the timestamp, or -1 if there is none
+     */
+    public int floorIndex(long timestamp) {
+        int index = indexOf(timestamp);
+        return index >= 0 ? index : -(index + 1) - 1;
+    }
+
+    /**
+     * @return the index of the first point at or after the timestamp, or size() if there is none
+     */
+    public int ceilingIndex(long timestamp) {
+        int index = indexOf(timestamp);
+        return index >= 0 ? index : -(index + 1);
+    }
+
+    /**
+     * Remove the points before {@code first} and after {@code last}.
+     */
+    public void trimTo(long first, long last) {
+        checkModifiable();
+        int from = ceilingIndex(first);
+        int to = Math.max(from, floorIndex(last) + 1);
+        if (from > 0) {
+            move(from, 0, to - from);
+        }
+        size = to - from;
+        modCount++;
+    }
+
+    /**
+     * @return a new series holding the last point from {@code first} to {@code last}, inclusive,
+     *         or no points if there is none
+     */
+    public DataPoints lastIn(long first, long last) {
+        DataPoints result = new DataPoints(1);
+        int index = floorIndex(last);
+        if (index >= 0 && timestamps.get(offset + index) >= first) {
+            result.append(timestamps.get(offset + index), values.get(offset + index));
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the timestamps, in ascending order
+     */
+    public long[] timestampArray() {
+        long[] result = new long[size];
+        range(timestamps, offset, offset + size).get(result);
+        return result;
+    }
+
+    /**
+     * @return a copy of the values, in the order of their timestamps
+     */
+    public double[] valueArray() {
+        double[] result = new double[size];
+        range(values, offset, offset + size).get(result);
+        return result;
+    }
+
+    @Override
+    public Double get(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        int index = indexOf((Long) key);
+        return index >= 0 ? values.get(offset + index) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && indexOf((Long) key) >= 0;
+    }
+
+    @Override
+    public Double put(Long key, Double value) {
+        checkModifiable();
+        int index = size > 0 && key > timestamps.get(size - 1) ? -(size + 1) : indexOf(key);
+        if (index >= 0) {
+            Double previous = values.get(index);
+            values.put(index, value);
+            return previous;
+        }
+        insertAt(-(index + 1), key, value);
+        return null;
+    }
+
+    @Override
+    public Double remove(Object key) {
+        checkModifiable();
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        int index = indexOf((Long) key);
+        if (index < 0) {
+            return null;
+        }
+        Double previous = values.get(index);
+        removeAt(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        checkModifiable();
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Comparator<? super Long> comparator() {
+        return null;
+    }
+
+    @Override
+    public SortedMap<Long, Double> subMap(Long fromKey, Long toKey) {
+        if (fromKey > toKey) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return range(ceilingIndex(fromKey), ceilingIndex(toKey));
+    }
+
+    @Override
+    public SortedMap<Long, Double> headMap(Long toKey) {
+        return range(0, ceilingIndex(toKey));
+    }
+
+    @Override
+    public SortedMap<Long, Double> tailMap(Long fromKey) {
+        return range(ceilingIndex(fromKey), size);
+    }
+
+    @Override
+    public Long firstKey() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return timestamps.get(offset);
+    }
+
+    @Override
+    public Long lastKey() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return timestamps.get(offset + size - 1);
+    }
+
+    @Override
+    public Set<Entry<Long, Double>> entrySet() {
+        return new AbstractSet<Entry<Long, Double>>() {
+            @Override
+            public Iterator<Entry<Long, Double>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private DataPoints range(int from, int to) {
+        return new DataPoints(timestamps, values, offset + from, to - from, true);
+    }
+
+    private void insertAt(int index, long timestamp, double value) {
+        if (size == timestamps.capacity()) {
+            int capacity = Math.max(DEFAULT_CAPACITY, size + (size >> 1));
+            LongBuffer grownTimestamps = LongBuffer.allocate(capacity);
+            grownTimestamps.put(range(timestamps, 0, size));
+            DoubleBuffer grownValues = DoubleBuffer.allocate(capacity);
+            grownValues.put(range(values, 0, size));
+            timestamps = grownTimestamps;
+            values = grownValues;
+        }
+        if (index < size) {
+            move(index, index + 1, size - index);
+        }
+        timestamps.put(index, timestamp);
+        values.put(index, value);
+        size++;
+        modCount++;
+    }
+
+    private void removeAt(int index) {
+        move(index + 1, index, size - index - 1);
+        size--;
+        modCount++;
+    }
+
+    /*
+     * Move points within the buffers, which may overlap as with System.arraycopy.
+     */
+    private void move(int from, int to, int length) {
+        if (timestamps.hasArray() && values.hasArray()) {
+            System.arraycopy(timestamps.array(), timestamps.arrayOffset() + from,
+                    timestamps.array(), timestamps.arrayOffset() + to, length);
+            System.arraycopy(values.array(), values.arrayOffset() + from,
+                    values.array(), values.arrayOffset() + to, length);
+        } else if (to < from) {
+            for (int i = 0; i < length; i++) {
+                timestamps.put(to + i, timestamps.get(from + i));
+                values.put(to + i, values.get(from + i));
+            }
+        } else {
+            for (int i = length - 1; i >= 0; i--) {
+                timestamps.put(to + i, timestamps.get(from + i));
+                values.put(to + i, values.get(from + i));
+            }
+        }
+    }
+
+    private static LongBuffer range(LongBuffer buffer, int from, int to) {
+        LongBuffer range = buffer.duplicate();
+        range.limit(to);
+        range.position(from);
+        return range;
+    }
+
+    private static DoubleBuffer range(DoubleBuffer buffer, int from, int to) {
+        DoubleBuffer range = buffer.duplicate();
+        range.limit(to);
+        range.position(from);
+        return range;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private void checkModifiable() {
+        if (view) {
+            throw new UnsupportedOperationException("range views of data points are read-only");
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Entry<Long, Double>> {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<Long, Double> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Point(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            checkModifiable();
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class Point implements Entry<Long, Double> {
+        private final int index;
+
+        Point(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Long getKey() {
+            return timestamps.get(offset + index);
+        }
+
+        @Override
+        public Double getValue() {
+            return values.get(offset + index);
+        }
+
+        @Override
+        public Double setValue(Double value) {
+            checkModifiable();
+            Double previous = values.get(offset + index);
+            values.put(offset + index, value);
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> other = (Entry<?, ?>) o;
+            return getKey().equals(other.getKey()) && getValue().equals(other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ getValue().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -69,6 +69,9 @@ public class PerformanceQuery {
     @JsonProperty(value="returnset")
     private ReturnSet returnset = null;
 
+    @JsonProperty(required=false)
+    private Long maxLatencyMs = null;
+
 
     /**
      * @return the start
@@ -183,4 +186,18 @@ public class PerformanceQuery {
 	public void setReturnset(ReturnSet returnset) {
 		this.returnset = returnset;
 	}
+
+    /**
+     * @return how long, in milliseconds, to wait for series before answering with those that are ready
+     */
+    public Long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    /**
+     * @param maxLatencyMs the latency budget in milliseconds; null for none
+     */
+    public void setMaxLatencyMs(Long maxLatencyMs) {
+        this.maxLatencyMs = maxLatencyMs;
+    }
 }
@@ -15,20 +15,20 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonSerializer;
 import com.fasterxml.jackson.databind.SerializerProvider;
 
+import org.zenoss.app.metricservice.api.model.DataPoints;
+
 import java.io.IOException;
-import java.util.Map;
-import java.util.SortedMap;
 
-public class DatapointSerializer extends JsonSerializer<SortedMap<Long, Double>> {
+public class DatapointSerializer extends JsonSerializer<DataPoints> {
 
 
     @Override
-    public void serialize(SortedMap<Long, Double> value, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonGenerationException {
+    public void serialize(DataPoints value, JsonGenerator jgen, SerializerProvider provider) throws IOException, JsonGenerationException {
         jgen.writeStartArray();
-        for (Map.Entry<Long, Double> dp : value.entrySet()) {
+        for (int i = 0; i < value.size(); i++) {
             jgen.writeStartArray();
-            jgen.writeNumber(dp.getKey());
-            jgen.writeNumber(dp.getValue());
+            jgen.writeNumber(value.timestampAt(i));
+            jgen.writeNumber(value.valueAt(i));
             jgen.writeEndArray();
         }
         jgen.writeEndArray();
@@ -47,6 +47,9 @@ public class MetricRequest {
     @JsonProperty(value="returnset")
     private ReturnSet returnset = null;
 
+    @JsonProperty(required=false)
+    private Long maxLatencyMs = null;
+
 
     /**
      * @return the start
@@ -101,4 +104,18 @@ public class MetricRequest {
     public void setQuery(MetricQuery... metrics) {
         this.queries= Lists.newArrayList(metrics);
     }
+
+    /**
+     * @return how long, in milliseconds, to wait for series before answering with those that are ready
+     */
+    public Long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    /**
+     * @param maxLatencyMs the latency budget in milliseconds; null for none
+     */
+    public void setMaxLatencyMs(Long maxLatencyMs) {
+        this.maxLatencyMs = maxLatencyMs;
+    }
 }
@@ -11,6 +11,7 @@
 package org.zenoss.app.metricservice.api.model.v2;
 
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import org.zenoss.app.metricservice.api.model.DataPoints;
 import org.zenoss.app.metricservice.api.impl.QueryStatus;
 
 import java.util.List;
@@ -41,16 +42,17 @@ public class QueryResult {
 
     public static class Series {
         @JsonSerialize(using = DatapointSerializer.class)
-        public SortedMap<Long, Double> datapoints;
+        public DataPoints datapoints;
         private String metric;
         private Map<String, String> tags;
 
-        public SortedMap<Long, Double> getDatapoints() {
+        public DataPoints getDatapoints() {
             return datapoints;
         }
 
         public void setDatapoints(SortedMap<Long, Double> datapoints) {
-            this.datapoints = datapoints;
+            this.datapoints = null == datapoints || datapoints instanceof DataPoints
+                    ? (DataPoints) datapoints : DataPoints.copyOf(datapoints);
         }
 
         public String getMetric() {
@@ -0,0 +1,157 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.model.v2.QueryResult;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DataPointsTest {
+
+    private static TreeMap<Long, Double> sample() {
+        TreeMap<Long, Double> points = new TreeMap<>();
+        points.put(30L, 3.5);
+        points.put(10L, 1.0);
+        points.put(20L, Double.NaN);
+        points.put(40L, -4.25e-7);
+        return points;
+    }
+
+    @Test
+    public void testBehavesAsTheTreeMapItReplaces() {
+        TreeMap<Long, Double> expected = sample();
+        DataPoints points = new DataPoints(2);
+        for (Map.Entry<Long, Double> point : expected.entrySet()) {
+            points.put(point.getKey(), point.getValue());
+        }
+        points.put(25L, 2.5);
+        expected.put(25L, 2.5);
+        points.put(10L, 1.5);
+        expected.put(10L, 1.5);
+
+        assertEquals(expected, points);
+        assertEquals(points, expected);
+        assertEquals(expected.hashCode(), points.hashCode());
+        assertEquals(expected.toString(), points.toString());
+        assertEquals(Long.valueOf(10), points.firstKey());
+        assertEquals(Long.valueOf(40), points.lastKey());
+        assertEquals(expected.subMap(15L, 30L), points.subMap(15L, 30L));
+        assertEquals(expected.headMap(25L), points.headMap(25L));
+        assertEquals(expected.tailMap(26L), points.tailMap(26L));
+        assertEquals(expected.tailMap(26L).firstKey(), points.tailMap(26L).firstKey());
+        assertTrue(points.subMap(31L, 39L).isEmpty());
+    }
+
+    @Test
+    public void testRangeViewsAreReadOnly() {
+        DataPoints points = DataPoints.copyOf(sample());
+        SortedMap<Long, Double> tail = points.tailMap(20L);
+        try {
+            tail.put(50L, 5.0);
+            fail("views are read-only");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        assertEquals(4, points.size());
+    }
+
+    @Test
+    public void testIndexedAccess() {
+        DataPoints points = DataPoints.wrap(new long[]{10, 20, 30, 0}, new double[]{1, 2, 3, 0}, 3);
+        assertEquals(1, points.indexOf(20));
+        assertEquals(-2, points.indexOf(15));
+        assertEquals(0, points.floorIndex(19));
+        assertEquals(-1, points.floorIndex(9));
+        assertEquals(3, points.ceilingIndex(31));
+        points.setValueAt(2, 6.0);
+        assertEquals(6.0, points.valueAt(2), 0.0);
+        points.append(40, 4.0);
+        points.append(5, 0.5);
+        assertEquals(Arrays.asList(5L, 10L, 20L, 30L, 40L), Arrays.asList(points.keySet().toArray()));
+
+        points.trimTo(10, 30);
+        assertEquals(Arrays.asList(10L, 20L, 30L), Arrays.asList(points.keySet().toArray()));
+        assertEquals(Double.valueOf(6.0), points.lastIn(0, 35).get(30L));
+        assertEquals(Double.valueOf(2.0), points.lastIn(15, 25).get(20L));
+        assertTrue(points.lastIn(21, 29).isEmpty());
+    }
+
+    @Test
+    public void testUnsortedArraysAreSorted() {
+        DataPoints points = DataPoints.wrap(new long[]{30, 10, 20, 10}, new double[]{3, 1, 2, 1.5}, 4);
+        assertEquals(Arrays.asList(10L, 20L, 30L), Arrays.asList(points.keySet().toArray()));
+        assertEquals(1.5, points.get(10L), 0.0);
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        DataPoints points = DataPoints.copyOf(sample());
+        Iterator<Map.Entry<Long, Double>> iter = points.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getKey() % 20 == 0) {
+                iter.remove();
+            }
+        }
+        assertEquals(Arrays.asList(10L, 30L), Arrays.asList(points.keySet().toArray()));
+    }
+
+    @Test
+    public void testJsonIsUnchanged() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        TreeMap<Long, Double> tree = sample();
+        DataPoints points = DataPoints.copyOf(tree);
+        assertEquals(mapper.writeValueAsString(tree), mapper.writeValueAsString(points));
+
+        QueryResult.Series series = new QueryResult.Series();
+        series.setDatapoints(points);
+        String json = mapper.writeValueAsString(series);
+        assertTrue(json, json.contains("\"datapoints\":[[10,1.0],[20,\"NaN\"],[30,3.5],[40,-4.25E-7]]"));
+    }
+
+    @Test
+    public void testCopyIntoDirectBuffers() {
+        DataPoints heap = DataPoints.copyOf(sample());
+        LongBuffer timestamps = ByteBuffer.allocateDirect(5 * 8).asLongBuffer();
+        DoubleBuffer values = ByteBuffer.allocateDirect(5 * 8).asDoubleBuffer();
+        DataPoints points = heap.copyInto(timestamps, values);
+        assertTrue(points.isDirect());
+        assertFalse(heap.isDirect());
+        assertEquals(heap, points);
+
+        points.put(15L, 1.5);
+        points.remove(30L);
+        points.put(35L, 3.5);
+        assertTrue("still fits", points.isDirect());
+        assertEquals(Arrays.asList(10L, 15L, 20L, 35L, 40L), Arrays.asList(points.keySet().toArray()));
+        assertEquals(15L, timestamps.get(1));
+
+        points.append(50L, 5.0);
+        assertFalse("outgrew the buffers", points.isDirect());
+        assertEquals(Arrays.asList(10L, 15L, 20L, 35L, 40L, 50L), Arrays.asList(points.keySet().toArray()));
+        points.trimTo(20L, 40L);
+        assertEquals(Arrays.asList(20L, 35L, 40L), Arrays.asList(points.keySet().toArray()));
+        assertEquals(Double.valueOf(3.5), points.get(35L));
+    }
+}
@@ -33,6 +33,12 @@ package org.zenoss.app.metricservice.api.configs;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.zenoss.app.metricservice.api.model.ReturnSet;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author David Bainbridge <dbainbridge@zenoss.com>
  */
@@ -55,6 +61,15 @@ public class MetricServiceConfig {
     @JsonProperty
     private String openTsdbWriterUrl = "http://localhost:4243";
 
+    @JsonProperty
+    private List<String> openTsdbReaderUrls = new ArrayList<>();
+
+    @JsonProperty
+    private int readerFailureThreshold = 3;
+
+    @JsonProperty
+    private long readerEjectSeconds = 30;
+
     @JsonProperty
     private String defaultTsdTimeZone = "UTC";
 
@@ -92,6 +107,150 @@ public class MetricServiceConfig {
     @JsonProperty
     private long rateOptionCutoffTs = -1;
 
+    @JsonProperty
+    private boolean asyncHttpClient = false;
+
+    @JsonProperty
+    private int queryBatchSize = 20;
+
+    @JsonProperty
+    private boolean coalesceQueries = true;
+
+    @JsonProperty
+    private boolean segmentCacheEnabled = false;
+
+    @JsonProperty
+    private long segmentCacheSegmentSeconds = 3600;
+
+    @JsonProperty
+    private long segmentCacheMutableHorizonSeconds = 300;
+
+    @JsonProperty
+    private long segmentCacheMaxDataPoints = 5000000;
+
+    @JsonProperty
+    private boolean tailRefreshEnabled = false;
+
+    @JsonProperty
+    private long tailRefreshOverlapSeconds = 120;
+
+    @JsonProperty
+    private long tailRefreshMaxWindows = 10000;
+
+    @JsonProperty
+    private long tailRefreshIdleSeconds = 600;
+
+    @JsonProperty
+    private boolean hedgeRequests = false;
+
+    @JsonProperty
+    private double hedgePercentile = 95;
+
+    @JsonProperty
+    private double hedgeBudgetPercent = 5;
+
+    @JsonProperty
+    private long hedgeMinDelayMs = 20;
+
+    @JsonProperty
+    private boolean adaptiveConcurrencyLimit = false;
+
+    @JsonProperty
+    private int concurrencyLimitInitial = 20;
+
+    @JsonProperty
+    private int concurrencyLimitMin = 5;
+
+    @JsonProperty
+    private int concurrencyLimitMax = 200;
+
+    @JsonProperty
+    private boolean shardQueries = false;
+
+    @JsonProperty
+    private long shardChunkSeconds = 86400;
+
+    @JsonProperty
+    private int shardMaxParallelism = 8;
+
+    @JsonProperty
+    private boolean acceptCompressedResponses = true;
+
+    @JsonProperty
+    private boolean compressRequests = false;
+
+    @JsonProperty
+    private int compressRequestThresholdBytes = 4096;
+
+    @JsonProperty
+    private long defaultQueryTimeoutMs = 0;
+
+    @JsonProperty
+    private boolean perTaskExecutor = false;
+
+    @JsonProperty
+    private int perTaskMaxConcurrency = 0;
+
+    @JsonProperty
+    private boolean priorityScheduling = false;
+
+    @JsonProperty
+    private int interactiveReservedSlots = 5;
+
+    @JsonProperty
+    private int exportMaxSlots = 5;
+
+    @JsonProperty
+    private int exportMetricThreshold = 200;
+
+    @JsonProperty
+    private boolean tenantFairQueuing = false;
+
+    @JsonProperty
+    private TenantQuota tenantQuota = new TenantQuota();
+
+    @JsonProperty
+    private Map<String, TenantQuota> tenantQuotas = new HashMap<>();
+
+    @JsonProperty
+    private boolean renameBulkhead = false;
+
+    @JsonProperty
+    private int renameMaxConcurrency = 4;
+
+    @JsonProperty
+    private String renameJournalDir = "";
+
+    @JsonProperty
+    private int suggestPageSize = 0;
+
+    @JsonProperty
+    private List<String> dropCacheUrls = new ArrayList<>();
+
+    @JsonProperty
+    private long dropCacheBackoffMs = 100;
+
+    @JsonProperty
+    private boolean offHeapStorage = false;
+
+    @JsonProperty
+    private long offHeapMaxBytesPerQuery = 1024L * 1024 * 1024;
+
+    @JsonProperty
+    private long offHeapPoolMaxBytes = 256L * 1024 * 1024;
+
+    @JsonProperty
+    private boolean parallelBucketing = false;
+
+    @JsonProperty
+    private int parallelBucketingThreads = 0;
+
+    @JsonProperty
+    private long parallelBucketingMinDataPoints = 500000;
+
+    @JsonProperty
+    private boolean pipelinedResults = false;
+
     public int getMaxTotalPoolConnections() {
         return maxTotalPoolConnections;
     }
@@ -308,4 +467,617 @@ public class MetricServiceConfig {
         this.rateOptionCutoffTs = rateOptionCutoffTs;
     }
 
+    /**
+     * Send queries to OpenTSDB with a non-blocking HTTP client instead of
+     * holding an executor thread for every outstanding request.
+     */
+    public boolean isAsyncHttpClient() {
+        return asyncHttpClient;
+    }
+
+    public void setAsyncHttpClient(boolean asyncHttpClient) {
+        this.asyncHttpClient = asyncHttpClient;
+    }
+
+    /**
+     * Maximum number of metric specifications sent to OpenTSDB as the
+     * subqueries of one request. 1 sends every specification on its own.
+     */
+    public int getQueryBatchSize() {
+        return queryBatchSize;
+    }
+
+    public void setQueryBatchSize(int queryBatchSize) {
+        this.queryBatchSize = queryBatchSize;
+    }
+
+    /**
+     * Let identical OpenTSDB queries that are in flight at the same time
+     * share a single request.
+     */
+    public boolean isCoalesceQueries() {
+        return coalesceQueries;
+    }
+
+    public void setCoalesceQueries(boolean coalesceQueries) {
+        this.coalesceQueries = coalesceQueries;
+    }
+
+    /**
+     * Cache downsampled query results in aligned time segments and only
+     * fetch the parts of a query range that are not cached yet.
+     */
+    public boolean isSegmentCacheEnabled() {
+        return segmentCacheEnabled;
+    }
+
+    public void setSegmentCacheEnabled(boolean segmentCacheEnabled) {
+        this.segmentCacheEnabled = segmentCacheEnabled;
+    }
+
+    /**
+     * Length in seconds of a cached segment. Only downsample intervals that
+     * evenly divide it are cached.
+     */
+    public long getSegmentCacheSegmentSeconds() {
+        return segmentCacheSegmentSeconds;
+    }
+
+    public void setSegmentCacheSegmentSeconds(long segmentCacheSegmentSeconds) {
+        this.segmentCacheSegmentSeconds = segmentCacheSegmentSeconds;
+    }
+
+    /**
+     * Data newer than this many seconds before now is never cached.
+     */
+    public long getSegmentCacheMutableHorizonSeconds() {
+        return segmentCacheMutableHorizonSeconds;
+    }
+
+    public void setSegmentCacheMutableHorizonSeconds(long segmentCacheMutableHorizonSeconds) {
+        this.segmentCacheMutableHorizonSeconds = segmentCacheMutableHorizonSeconds;
+    }
+
+    /**
+     * Approximate number of data points the segment cache holds before the
+     * least recently used segments are evicted.
+     */
+    public long getSegmentCacheMaxDataPoints() {
+        return segmentCacheMaxDataPoints;
+    }
+
+    public void setSegmentCacheMaxDataPoints(long segmentCacheMaxDataPoints) {
+        this.segmentCacheMaxDataPoints = segmentCacheMaxDataPoints;
+    }
+
+    /**
+     * Refresh rolling "N-ago to now" queries by fetching only the data
+     * since the previous poll of the same subquery.
+     */
+    public boolean isTailRefreshEnabled() {
+        return tailRefreshEnabled;
+    }
+
+    public void setTailRefreshEnabled(boolean tailRefreshEnabled) {
+        this.tailRefreshEnabled = tailRefreshEnabled;
+    }
+
+    /**
+     * Seconds before the end of the previous poll that a refresh re-reads
+     * to pick up late data.
+     */
+    public long getTailRefreshOverlapSeconds() {
+        return tailRefreshOverlapSeconds;
+    }
+
+    public void setTailRefreshOverlapSeconds(long tailRefreshOverlapSeconds) {
+        this.tailRefreshOverlapSeconds = tailRefreshOverlapSeconds;
+    }
+
+    /**
+     * Number of subqueries whose last window is retained for refreshes.
+     */
+    public long getTailRefreshMaxWindows() {
+        return tailRefreshMaxWindows;
+    }
+
+    public void setTailRefreshMaxWindows(long tailRefreshMaxWindows) {
+        this.tailRefreshMaxWindows = tailRefreshMaxWindows;
+    }
+
+    /**
+     * Seconds after which a window that has not been polled is dropped.
+     */
+    public long getTailRefreshIdleSeconds() {
+        return tailRefreshIdleSeconds;
+    }
+
+    public void setTailRefreshIdleSeconds(long tailRefreshIdleSeconds) {
+        this.tailRefreshIdleSeconds = tailRefreshIdleSeconds;
+    }
+
+    /**
+     * OpenTSDB readers that queries are balanced over. When none are
+     * configured, all queries go to openTsdbUrl.
+     * @return the reader base URLs, without a trailing '/'
+     */
+    public List<String> getOpenTsdbReaderUrls() {
+        if (null == openTsdbReaderUrls || openTsdbReaderUrls.isEmpty()) {
+            return Collections.singletonList(openTsdbUrl);
+        }
+        List<String> urls = new ArrayList<>(openTsdbReaderUrls.size());
+        for (String url : openTsdbReaderUrls) {
+            urls.add(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        }
+        return urls;
+    }
+
+    public void setOpenTsdbReaderUrls(List<String> openTsdbReaderUrls) {
+        this.openTsdbReaderUrls = openTsdbReaderUrls;
+    }
+
+    /**
+     * Consecutive failed requests after which a reader is taken out of
+     * rotation.
+     */
+    public int getReaderFailureThreshold() {
+        return readerFailureThreshold;
+    }
+
+    public void setReaderFailureThreshold(int readerFailureThreshold) {
+        this.readerFailureThreshold = readerFailureThreshold;
+    }
+
+    /**
+     * Seconds a failing reader stays out of rotation before it is tried
+     * again.
+     */
+    public long getReaderEjectSeconds() {
+        return readerEjectSeconds;
+    }
+
+    public void setReaderEjectSeconds(long readerEjectSeconds) {
+        this.readerEjectSeconds = readerEjectSeconds;
+    }
+
+    /**
+     * Send a second copy of a query that has not answered within
+     * hedgePercentile of recent response times. Requires asyncHttpClient.
+     */
+    public boolean isHedgeRequests() {
+        return hedgeRequests;
+    }
+
+    public void setHedgeRequests(boolean hedgeRequests) {
+        this.hedgeRequests = hedgeRequests;
+    }
+
+    /**
+     * Percentile of recent response times after which a query is hedged.
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Maximum hedged requests, as a percentage of queries.
+     */
+    public double getHedgeBudgetPercent() {
+        return hedgeBudgetPercent;
+    }
+
+    public void setHedgeBudgetPercent(double hedgeBudgetPercent) {
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+    }
+
+    /**
+     * A query is never hedged sooner than this many milliseconds.
+     */
+    public long getHedgeMinDelayMs() {
+        return hedgeMinDelayMs;
+    }
+
+    public void setHedgeMinDelayMs(long hedgeMinDelayMs) {
+        this.hedgeMinDelayMs = hedgeMinDelayMs;
+    }
+
+    /**
+     * Limit the number of queries outstanding against OpenTSDB, adapting
+     * the limit to observed latency. Queries over the limit fail straight
+     * away instead of waiting.
+     */
+    public boolean isAdaptiveConcurrencyLimit() {
+        return adaptiveConcurrencyLimit;
+    }
+
+    public void setAdaptiveConcurrencyLimit(boolean adaptiveConcurrencyLimit) {
+        this.adaptiveConcurrencyLimit = adaptiveConcurrencyLimit;
+    }
+
+    /**
+     * Concurrent query limit to start from.
+     */
+    public int getConcurrencyLimitInitial() {
+        return concurrencyLimitInitial;
+    }
+
+    public void setConcurrencyLimitInitial(int concurrencyLimitInitial) {
+        this.concurrencyLimitInitial = concurrencyLimitInitial;
+    }
+
+    /**
+     * The concurrent query limit never drops below this.
+     */
+    public int getConcurrencyLimitMin() {
+        return concurrencyLimitMin;
+    }
+
+    public void setConcurrencyLimitMin(int concurrencyLimitMin) {
+        this.concurrencyLimitMin = concurrencyLimitMin;
+    }
+
+    /**
+     * The concurrent query limit never grows beyond this.
+     */
+    public int getConcurrencyLimitMax() {
+        return concurrencyLimitMax;
+    }
+
+    public void setConcurrencyLimitMax(int concurrencyLimitMax) {
+        this.concurrencyLimitMax = concurrencyLimitMax;
+    }
+
+    /**
+     * Split queries over long time ranges into chunks that are queried
+     * concurrently and merged.
+     */
+    public boolean isShardQueries() {
+        return shardQueries;
+    }
+
+    public void setShardQueries(boolean shardQueries) {
+        this.shardQueries = shardQueries;
+    }
+
+    /**
+     * Length in seconds of a query chunk. Only downsample intervals that
+     * evenly divide it are split.
+     */
+    public long getShardChunkSeconds() {
+        return shardChunkSeconds;
+    }
+
+    public void setShardChunkSeconds(long shardChunkSeconds) {
+        this.shardChunkSeconds = shardChunkSeconds;
+    }
+
+    /**
+     * Maximum number of chunks a single query is split into.
+     */
+    public int getShardMaxParallelism() {
+        return shardMaxParallelism;
+    }
+
+    public void setShardMaxParallelism(int shardMaxParallelism) {
+        this.shardMaxParallelism = shardMaxParallelism;
+    }
+
+    /**
+     * Ask OpenTSDB for gzip or deflate encoded responses.
+     */
+    public boolean isAcceptCompressedResponses() {
+        return acceptCompressedResponses;
+    }
+
+    public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+        this.acceptCompressedResponses = acceptCompressedResponses;
+    }
+
+    /**
+     * Gzip query, suggest and rename request bodies sent to OpenTSDB.
+     * OpenTSDB must be able to decode them.
+     */
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    public void setCompressRequests(boolean compressRequests) {
+        this.compressRequests = compressRequests;
+    }
+
+    /**
+     * Smallest request body, in bytes, that is compressed.
+     */
+    public int getCompressRequestThresholdBytes() {
+        return compressRequestThresholdBytes;
+    }
+
+    public void setCompressRequestThresholdBytes(int compressRequestThresholdBytes) {
+        this.compressRequestThresholdBytes = compressRequestThresholdBytes;
+    }
+
+    /**
+     * Time a query request may take when it does not set the
+     * X-Query-Timeout-Ms header; 0 for no limit.
+     */
+    public long getDefaultQueryTimeoutMs() {
+        return defaultQueryTimeoutMs;
+    }
+
+    public void setDefaultQueryTimeoutMs(long defaultQueryTimeoutMs) {
+        this.defaultQueryTimeoutMs = defaultQueryTimeoutMs;
+    }
+
+    /**
+     * Run OpenTSDB query and rename tasks on a thread each, capped at
+     * perTaskMaxConcurrency, instead of on the executor thread pool.
+     */
+    public boolean isPerTaskExecutor() {
+        return perTaskExecutor;
+    }
+
+    public void setPerTaskExecutor(boolean perTaskExecutor) {
+        this.perTaskExecutor = perTaskExecutor;
+    }
+
+    /**
+     * Most tasks run at once by the per-task executor; 0 for
+     * maxTotalPoolConnections.
+     */
+    public int getPerTaskMaxConcurrency() {
+        return perTaskMaxConcurrency;
+    }
+
+    public void setPerTaskMaxConcurrency(int perTaskMaxConcurrency) {
+        this.perTaskMaxConcurrency = perTaskMaxConcurrency;
+    }
+
+    /**
+     * Order query and rename tasks by priority class and deadline before they
+     * reach the executor.
+     */
+    public boolean isPriorityScheduling() {
+        return priorityScheduling;
+    }
+
+    public void setPriorityScheduling(boolean priorityScheduling) {
+        this.priorityScheduling = priorityScheduling;
+    }
+
+    /**
+     * Executor slots only interactive queries may use.
+     */
+    public int getInteractiveReservedSlots() {
+        return interactiveReservedSlots;
+    }
+
+    public void setInteractiveReservedSlots(int interactiveReservedSlots) {
+        this.interactiveReservedSlots = interactiveReservedSlots;
+    }
+
+    /**
+     * Most executor slots export queries may hold; 0 for no limit beyond the
+     * interactive reservation.
+     */
+    public int getExportMaxSlots() {
+        return exportMaxSlots;
+    }
+
+    public void setExportMaxSlots(int exportMaxSlots) {
+        this.exportMaxSlots = exportMaxSlots;
+    }
+
+    /**
+     * Queries of at least this many metrics that do not set the
+     * X-Query-Priority header are exports; 0 to classify none by size.
+     */
+    public int getExportMetricThreshold() {
+        return exportMetricThreshold;
+    }
+
+    public void setExportMetricThreshold(int exportMetricThreshold) {
+        this.exportMetricThreshold = exportMetricThreshold;
+    }
+
+    /**
+     * Share OpenTSDB between tenants by weighted fair queuing of their
+     * queries, within the quotas below. Requires asyncHttpClient.
+     */
+    public boolean isTenantFairQueuing() {
+        return tenantFairQueuing;
+    }
+
+    public void setTenantFairQueuing(boolean tenantFairQueuing) {
+        this.tenantFairQueuing = tenantFairQueuing;
+    }
+
+    /**
+     * Quota of tenants not listed in tenantQuotas.
+     */
+    public TenantQuota getTenantQuota() {
+        return tenantQuota;
+    }
+
+    public void setTenantQuota(TenantQuota tenantQuota) {
+        this.tenantQuota = tenantQuota;
+    }
+
+    /**
+     * Quotas by tenant id.
+     */
+    public Map<String, TenantQuota> getTenantQuotas() {
+        return tenantQuotas;
+    }
+
+    public void setTenantQuotas(Map<String, TenantQuota> tenantQuotas) {
+        this.tenantQuotas = tenantQuotas;
+    }
+
+    /**
+     * Run prefix renames on threads of their own, throttled by OpenTSDB
+     * latency, rather than on the query executor.
+     */
+    public boolean isRenameBulkhead() {
+        return renameBulkhead;
+    }
+
+    public void setRenameBulkhead(boolean renameBulkhead) {
+        this.renameBulkhead = renameBulkhead;
+    }
+
+    /**
+     * Most renames sent to OpenTSDB at once when renameBulkhead is set.
+     */
+    public int getRenameMaxConcurrency() {
+        return renameMaxConcurrency;
+    }
+
+    public void setRenameMaxConcurrency(int renameMaxConcurrency) {
+        this.renameMaxConcurrency = renameMaxConcurrency;
+    }
+
+    /**
+     * Directory to journal the progress of prefix renames in, so that an
+     * interrupted rename resumes; empty to keep no journal.
+     */
+    public String getRenameJournalDir() {
+        return renameJournalDir;
+    }
+
+    public void setRenameJournalDir(String renameJournalDir) {
+        this.renameJournalDir = renameJournalDir;
+    }
+
+    /**
+     * Most names a prefix rename asks OpenTSDB's suggest endpoint for at
+     * once, splitting the prefix when there are more; 0 to ask for all names
+     * in one request.
+     */
+    public int getSuggestPageSize() {
+        return suggestPageSize;
+    }
+
+    public void setSuggestPageSize(int suggestPageSize) {
+        this.suggestPageSize = suggestPageSize;
+    }
+
+    /**
+     * Base URLs of every OpenTSDB reader and writer whose caches a rename
+     * drops, each once and in parallel, retrying only those that fail, up to
+     * dropCacheTries attempts each. Empty to make dropCacheTries requests to
+     * the reader and writer URLs instead.
+     */
+    public List<String> getDropCacheUrls() {
+        if (null == dropCacheUrls) {
+            return Collections.emptyList();
+        }
+        List<String> urls = new ArrayList<>(dropCacheUrls.size());
+        for (String url : dropCacheUrls) {
+            urls.add(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+        }
+        return urls;
+    }
+
+    public void setDropCacheUrls(List<String> dropCacheUrls) {
+        this.dropCacheUrls = dropCacheUrls;
+    }
+
+    /**
+     * Wait before asking an instance in dropCacheUrls again, doubled with
+     * each further attempt.
+     */
+    public long getDropCacheBackoffMs() {
+        return dropCacheBackoffMs;
+    }
+
+    public void setDropCacheBackoffMs(long dropCacheBackoffMs) {
+        this.dropCacheBackoffMs = dropCacheBackoffMs;
+    }
+
+    /**
+     * Hold the decoded series and the buckets of performance queries in
+     * direct memory rather than on the heap.
+     */
+    public boolean isOffHeapStorage() {
+        return offHeapStorage;
+    }
+
+    public void setOffHeapStorage(boolean offHeapStorage) {
+        this.offHeapStorage = offHeapStorage;
+    }
+
+    /**
+     * Most direct memory one query may hold; a query that needs more fails.
+     * 0 for no limit.
+     */
+    public long getOffHeapMaxBytesPerQuery() {
+        return offHeapMaxBytesPerQuery;
+    }
+
+    public void setOffHeapMaxBytesPerQuery(long offHeapMaxBytesPerQuery) {
+        this.offHeapMaxBytesPerQuery = offHeapMaxBytesPerQuery;
+    }
+
+    /**
+     * Most direct memory kept for reuse once the queries holding it are done.
+     */
+    public long getOffHeapPoolMaxBytes() {
+        return offHeapPoolMaxBytes;
+    }
+
+    public void setOffHeapPoolMaxBytes(long offHeapPoolMaxBytes) {
+        this.offHeapPoolMaxBytes = offHeapPoolMaxBytes;
+    }
+
+    /**
+     * Bucket and interpolate the series of large performance queries on a
+     * fork/join pool instead of the request thread alone.
+     */
+    public boolean isParallelBucketing() {
+        return parallelBucketing;
+    }
+
+    public void setParallelBucketing(boolean parallelBucketing) {
+        this.parallelBucketing = parallelBucketing;
+    }
+
+    /**
+     * Threads of the bucketing pool; 0 for one per available processor.
+     */
+    public int getParallelBucketingThreads() {
+        return parallelBucketingThreads;
+    }
+
+    public void setParallelBucketingThreads(int parallelBucketingThreads) {
+        this.parallelBucketingThreads = parallelBucketingThreads;
+    }
+
+    /**
+     * Fewest data points in a query's results for them to be bucketed on the
+     * pool; smaller results stay on the request thread.
+     */
+    public long getParallelBucketingMinDataPoints() {
+        return parallelBucketingMinDataPoints;
+    }
+
+    public void setParallelBucketingMinDataPoints(long parallelBucketingMinDataPoints) {
+        this.parallelBucketingMinDataPoints = parallelBucketingMinDataPoints;
+    }
+
+    /**
+     * Bucket the series of performance queries as they come back from
+     * OpenTSDB instead of once they all have.
+     */
+    public boolean isPipelinedResults() {
+        return pipelinedResults;
+    }
+
+    public void setPipelinedResults(boolean pipelinedResults) {
+        this.pipelinedResults = pipelinedResults;
+    }
+
 }
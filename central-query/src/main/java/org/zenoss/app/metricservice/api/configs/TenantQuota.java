@@ -0,0 +1,70 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.configs;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A tenant's share of the OpenTSDB queries this service sends.
+ */
+public class TenantQuota {
+    @JsonProperty
+    private int weight = 1;
+
+    @JsonProperty
+    private int maxInFlight = 0;
+
+    @JsonProperty
+    private double maxQueriesPerSecond = 0;
+
+    public TenantQuota() {
+    }
+
+    public TenantQuota(int weight, int maxInFlight, double maxQueriesPerSecond) {
+        this.weight = weight;
+        this.maxInFlight = maxInFlight;
+        this.maxQueriesPerSecond = maxQueriesPerSecond;
+    }
+
+    /**
+     * The tenant's share of OpenTSDB relative to other tenants with queries waiting: a tenant with
+     * weight 2 gets twice the queries of a tenant with weight 1.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * Most queries the tenant may have in flight at once; 0 for no limit.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Most queries the tenant may start per second, averaged over a second; 0 for no limit.
+     */
+    public double getMaxQueriesPerSecond() {
+        return maxQueriesPerSecond;
+    }
+
+    public void setMaxQueriesPerSecond(double maxQueriesPerSecond) {
+        this.maxQueriesPerSecond = maxQueriesPerSecond;
+    }
+}
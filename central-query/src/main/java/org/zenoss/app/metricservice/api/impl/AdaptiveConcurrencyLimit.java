@@ -0,0 +1,106 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+/**
+ * A limit on concurrent requests that adapts to the round trip times it observes, after the
+ * gradient algorithm: the ratio of the long-term average RTT to the latest one says whether
+ * requests are queueing up somewhere. While latency stays flat the limit grows by roughly the square
+ * root of itself per sample; when latency rises the limit shrinks in proportion (by at most half).
+ * Requests that fail or time out shrink it multiplicatively.
+ * <p>
+ * The limit only grows while at least half of it is in use, so a quiet period does not leave it
+ * inflated for the next burst.
+ */
+public class AdaptiveConcurrencyLimit {
+    // how much slower than the long-term average a request may be before the limit shrinks
+    private static final double TOLERANCE = 1.5;
+    // number of samples the long-term average covers
+    private static final double LONG_WINDOW = 600;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private double longRttNanos;
+    private int inFlight;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * @return true if a request may start; it must then be finished with {@link #release}
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Wait until a request may start; it must then be finished with {@link #release}.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Finish a request started with {@link #tryAcquire} or {@link #acquire}.
+     *
+     * @param rttNanos how long the request took
+     * @param dropped  true if the request failed or timed out, rather than completed
+     */
+    public synchronized void release(long rttNanos, boolean dropped) {
+        int used = inFlight;
+        inFlight--;
+        notifyAll();
+        if (dropped) {
+            limit = Math.max(minLimit, limit * BACKOFF);
+            return;
+        }
+        if (rttNanos <= 0) {
+            return;
+        }
+        if (longRttNanos == 0) {
+            longRttNanos = rttNanos;
+        } else {
+            longRttNanos += (rttNanos - longRttNanos) / LONG_WINDOW;
+            // recover quickly once a slow period is over
+            if (longRttNanos > 2 * rttNanos) {
+                longRttNanos *= 0.95;
+            }
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRttNanos / rttNanos));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        if (newLimit > limit && used < limit / 2) {
+            return;
+        }
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
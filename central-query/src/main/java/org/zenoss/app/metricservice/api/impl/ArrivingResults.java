@@ -0,0 +1,168 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The series of a query in the order their batches come back from OpenTSDB rather than the order
+ * they were asked for, so that whoever reads them can get on with the first while the others are
+ * still on their way.
+ * <p>
+ * Batches still outstanding when the latency budget runs out are cancelled and answered with empty
+ * series whose status says they timed out. Those outstanding when the deadline passes, or that
+ * failed, are left out. The series are read once, on the thread serving the request.
+ */
+class ArrivingResults implements Iterable<OpenTSDBQueryResult> {
+    private static final Logger log = LoggerFactory.getLogger(ArrivingResults.class);
+
+    private final QueryDeadline deadline = QueryDeadline.current();
+    private final BlockingQueue<Future<List<OpenTSDBQueryResult>>> completed = new LinkedBlockingQueue<>();
+    // batches not read yet, in the order they were issued
+    private final Map<Future<List<OpenTSDBQueryResult>>, MetricSpecBatch> outstanding = new LinkedHashMap<>();
+    private boolean iterated = false;
+
+    private ArrivingResults() {
+    }
+
+    /**
+     * Issue every batch without tying up a thread to wait for it.
+     */
+    static ArrivingResults issue(List<MetricSpecBatch> batches) {
+        final ArrivingResults results = new ArrivingResults();
+        for (MetricSpecBatch batch : batches) {
+            final ListenableFuture<List<OpenTSDBQueryResult>> future = batch.callAsync();
+            results.add(future, batch);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    results.completed.add(future);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        return results;
+    }
+
+    /**
+     * Run every batch on the executor.
+     */
+    static ArrivingResults submit(ExecutorService executorService, List<MetricSpecBatch> batches) {
+        ArrivingResults results = new ArrivingResults();
+        ExecutorCompletionService<List<OpenTSDBQueryResult>> completionService =
+                new ExecutorCompletionService<>(executorService, results.completed);
+        for (MetricSpecBatch batch : batches) {
+            results.add(completionService.submit(batch), batch);
+        }
+        return results;
+    }
+
+    private synchronized void add(Future<List<OpenTSDBQueryResult>> future, MetricSpecBatch batch) {
+        outstanding.put(future, batch);
+    }
+
+    @Override
+    public Iterator<OpenTSDBQueryResult> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("The results of a query can only be read once");
+        }
+        iterated = true;
+        return new AbstractIterator<OpenTSDBQueryResult>() {
+            private Iterator<OpenTSDBQueryResult> batch = Collections.emptyIterator();
+
+            @Override
+            protected OpenTSDBQueryResult computeNext() {
+                while (!batch.hasNext()) {
+                    List<OpenTSDBQueryResult> next = nextBatch();
+                    if (null == next) {
+                        return endOfData();
+                    }
+                    batch = next.iterator();
+                }
+                return batch.next();
+            }
+        };
+    }
+
+    /*
+     * The series of the next batch to come back, those standing in for the batches given up on once
+     * the time runs out, or null once there are no more.
+     */
+    private List<OpenTSDBQueryResult> nextBatch() {
+        synchronized (this) {
+            if (outstanding.isEmpty()) {
+                return null;
+            }
+        }
+        Future<List<OpenTSDBQueryResult>> future;
+        try {
+            future = deadline.pollWithinBudget(completed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future = null;
+        }
+        if (null != future) {
+            return resultsOf(future);
+        }
+        // out of time: settle every batch still outstanding the way it would have been waited for
+        List<OpenTSDBQueryResult> results = new ArrayList<>();
+        for (Future<List<OpenTSDBQueryResult>> laggard : laggards()) {
+            results.addAll(resultsOf(laggard));
+        }
+        return results;
+    }
+
+    private synchronized List<Future<List<OpenTSDBQueryResult>>> laggards() {
+        return new ArrayList<>(outstanding.keySet());
+    }
+
+    private List<OpenTSDBQueryResult> resultsOf(Future<List<OpenTSDBQueryResult>> future) {
+        MetricSpecBatch batch;
+        synchronized (this) {
+            batch = outstanding.remove(future);
+        }
+        if (null == batch) {
+            // given up on already
+            return Collections.emptyList();
+        }
+        try {
+            return deadline.getWithinBudget(future); // Throws InterruptedException, ExecutionException, TimeoutException (checked); CancellationException (unchecked)
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            log.debug("Giving up on {} metric specifications over the latency budget.", batch.getMetricSpecifications().size());
+            return batch.overBudget(deadline);
+        } catch (InterruptedException | ExecutionException | CancellationException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.error("{} exception getting result from future: {}", e.getClass().getName(), e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends queries with a non-blocking HTTP client. No thread is held while a request is in flight; once
+ * the response has arrived it is decoded on the response executor so the client's I/O dispatch threads
+ * are never tied up parsing data points. Compressed responses are decoded as they are parsed.
+ * <p>
+ * Cancelling a returned future aborts the underlying request.
+ */
+public class AsyncOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(AsyncOpenTSDBTransport.class);
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final String queryURL;
+    private final Executor responseExecutor;
+    private final HttpCompression compression;
+
+    public AsyncOpenTSDBTransport(CloseableHttpAsyncClient httpClient, String queryURL, Executor responseExecutor) {
+        this(httpClient, queryURL, responseExecutor, HttpCompression.NONE);
+    }
+
+    public AsyncOpenTSDBTransport(CloseableHttpAsyncClient httpClient, String queryURL, Executor responseExecutor,
+                                  HttpCompression compression) {
+        this.httpClient = httpClient;
+        this.queryURL = queryURL;
+        this.responseExecutor = responseExecutor;
+        this.compression = compression;
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+        final SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        final HttpPost httpPost = new HttpPost(queryURL);
+        httpPost.setEntity(OpenTSDBClient.createQueryEntity(query, compression));
+        compression.acceptCompressed(httpPost);
+
+        final Future<HttpResponse> request = httpClient.execute(httpPost, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    responseExecutor.execute(new ResponseReader(response, result));
+                } catch (RejectedExecutionException e) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    result.set(OpenTSDBClient.queryFailure(e));
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.set(OpenTSDBClient.queryFailure(e));
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isCancelled()) {
+                    log.debug("Query cancelled, aborting request to {}.", queryURL);
+                    request.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    private static class ResponseReader implements Runnable {
+        private final HttpResponse response;
+        private final SettableFuture<OpenTSDBQueryReturn> result;
+
+        ResponseReader(HttpResponse response, SettableFuture<OpenTSDBQueryReturn> result) {
+            this.response = response;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result.set(OpenTSDBClient.readQueryResponse(response));
+            } catch (IOException | RuntimeException e) {
+                result.set(OpenTSDBClient.queryFailure(e));
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+        }
+    }
+}
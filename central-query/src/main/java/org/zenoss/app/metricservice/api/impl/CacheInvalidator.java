@@ -0,0 +1,163 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops the UID caches of a known set of OpenTSDB instances after a rename, all at once. Each
+ * instance is asked once; only an instance that fails is asked again, after a backoff that doubles
+ * with each attempt.
+ */
+public class CacheInvalidator {
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidator.class);
+
+    private final OpenTSDBClient client;
+    private final ExecutorService executor;
+    private final int maxAttempts;
+    private final long backoffMs;
+
+    /**
+     * @param client      makes the dropcaches requests
+     * @param executor    runs the requests to different instances in parallel
+     * @param maxAttempts most requests made to one instance
+     * @param backoffMs   wait before the second request to an instance
+     */
+    public CacheInvalidator(OpenTSDBClient client, ExecutorService executor, int maxAttempts, long backoffMs) {
+        this.client = client;
+        this.executor = executor;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMs = Math.max(0, backoffMs);
+    }
+
+    /**
+     * Drop the caches of the instances and wait until each has confirmed or run out of attempts.
+     *
+     * @param dropCacheUrls the dropcaches endpoint of each instance
+     */
+    public Result invalidate(List<String> dropCacheUrls) throws InterruptedException {
+        long started = System.nanoTime();
+        List<Callable<Instance>> drops = new ArrayList<>(dropCacheUrls.size());
+        for (final String url : dropCacheUrls) {
+            drops.add(new Callable<Instance>() {
+                @Override
+                public Instance call() throws InterruptedException {
+                    return drop(url);
+                }
+            });
+        }
+        List<Instance> instances = new ArrayList<>(dropCacheUrls.size());
+        List<Future<Instance>> futures = executor.invokeAll(drops);
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                instances.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                instances.add(new Instance(dropCacheUrls.get(i), 0, false, String.valueOf(e.getCause())));
+            }
+        }
+        return new Result(instances, System.nanoTime() - started);
+    }
+
+    private Instance drop(String url) throws InterruptedException {
+        String reason = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            if (attempt > 1) {
+                long wait = backoffMs << Math.min(attempt - 2, 16);
+                log.debug("Retrying dropcaches at {} in {} ms", url, wait);
+                TimeUnit.MILLISECONDS.sleep(wait);
+            }
+            DropResult result = client.dropCache(url);
+            if (null != result && result.statusCode >= 200 && result.statusCode <= 299) {
+                log.info("Dropped OpenTSDB caches at {} (attempt {})", url, attempt);
+                return new Instance(url, attempt, true, null);
+            }
+            reason = null == result ? "no response" : result.statusCode + " " + result.reasonPhrase;
+            log.warn("Could not drop OpenTSDB caches at {} (attempt {} of {}): {}", url, attempt, maxAttempts, reason);
+        }
+        return new Instance(url, maxAttempts, false, reason);
+    }
+
+    /**
+     * How one instance answered.
+     */
+    public static final class Instance {
+        private final String url;
+        private final int attempts;
+        private final boolean dropped;
+        private final String reason;
+
+        Instance(String url, int attempts, boolean dropped, String reason) {
+            this.url = url;
+            this.attempts = attempts;
+            this.dropped = dropped;
+            this.reason = reason;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return why the last attempt failed, or null if the caches were dropped
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    /**
+     * How every instance answered, and how long it took.
+     */
+    public static final class Result {
+        private final List<Instance> instances;
+        private final long elapsedNanos;
+
+        Result(List<Instance> instances, long elapsedNanos) {
+            this.instances = instances;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public List<Instance> getInstances() {
+            return instances;
+        }
+
+        public int getDroppedCount() {
+            int dropped = 0;
+            for (Instance instance : instances) {
+                if (instance.isDropped()) {
+                    dropped++;
+                }
+            }
+            return dropped;
+        }
+
+        public long getElapsedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Single-flight coalescing of identical queries. While a query is outstanding, any identical query
+ * (same canonical JSON, so tag order does not matter) waits for the same backend request instead of
+ * issuing its own. The first caller receives the decoded response; every other caller receives its
+ * own copy, since callers are free to modify the results they get back.
+ * <p>
+ * Only requests that are in flight at the same time are shared; nothing is kept once a response
+ * has been handed out. Each caller's future is cancelled with its own request's deadline, but the
+ * backend request is only stopped once every caller waiting on it has given up.
+ */
+public class CoalescingOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(CoalescingOpenTSDBTransport.class);
+
+    private static final ObjectMapper keyMapper = Utils.getObjectMapper().copy()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true)
+            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+
+    private final OpenTSDBTransport delegate;
+    private final ConcurrentMap<String, InFlightQuery> inFlight = new ConcurrentHashMap<>();
+    private final Counter hits = Metrics.newCounter(CoalescingOpenTSDBTransport.class, "coalesced-hits");
+    private final Counter misses = Metrics.newCounter(CoalescingOpenTSDBTransport.class, "coalesced-misses");
+
+    public CoalescingOpenTSDBTransport(OpenTSDBTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+        final String key = canonicalKey(query);
+        final QueryDeadline deadline = QueryDeadline.current();
+        final SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        final InFlightQuery leader = new InFlightQuery(key, result, deadline.share());
+        while (true) {
+            InFlightQuery existing = inFlight.putIfAbsent(key, leader);
+            if (null == existing) {
+                break;
+            }
+            SettableFuture<OpenTSDBQueryReturn> follower = SettableFuture.create();
+            if (existing.join(follower)) {
+                hits.inc();
+                log.debug("Joined in-flight query {}", key);
+                deadline.track(follower);
+                return follower;
+            }
+            // completed or given up on while we were looking at it
+            inFlight.remove(key, existing);
+        }
+
+        misses.inc();
+        deadline.track(result);
+        if (result.isCancelled()) {
+            return result;
+        }
+        ListenableFuture<OpenTSDBQueryReturn> response;
+        // the request belongs to every caller waiting on it, not only to the one issuing it
+        try (QueryDeadline.Scope scope = leader.shared.enter()) {
+            response = delegate.execute(query);
+        } catch (RuntimeException e) {
+            inFlight.remove(key, leader);
+            leader.fail(e);
+            throw e;
+        }
+        leader.started(response);
+        Futures.addCallback(response, new FutureCallback<OpenTSDBQueryReturn>() {
+            @Override
+            public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                // stop accepting followers before handing out the response
+                inFlight.remove(key, leader);
+                leader.complete(queryReturn);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                inFlight.remove(key, leader);
+                leader.fail(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    public long getHits() {
+        return hits.count();
+    }
+
+    public long getMisses() {
+        return misses.count();
+    }
+
+    /**
+     * @return JSON for a query or subquery with map entries and properties in sorted order
+     */
+    static String canonicalKey(Object query) {
+        try {
+            return keyMapper.writeValueAsString(query);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not serialize query.", e);
+        }
+    }
+
+    /**
+     * The callers waiting on a query: the one that issued it and those that joined it since. The
+     * backend request runs under a deadline of its own, so it outlives the deadline of any one
+     * caller; it is cancelled, and blocking HTTP requests made for it aborted, once every
+     * caller has cancelled the future it was given.
+     */
+    private class InFlightQuery {
+        private final String key;
+        private final SettableFuture<OpenTSDBQueryReturn> issuer;
+        private final QueryDeadline shared;
+        private List<SettableFuture<OpenTSDBQueryReturn>> followers = new ArrayList<>();
+        private int waiting = 1;
+        private ListenableFuture<OpenTSDBQueryReturn> response;
+
+        InFlightQuery(String key, SettableFuture<OpenTSDBQueryReturn> issuer, QueryDeadline shared) {
+            this.key = key;
+            this.issuer = issuer;
+            this.shared = shared;
+            leaveWhenCancelled(issuer);
+        }
+
+        boolean join(SettableFuture<OpenTSDBQueryReturn> follower) {
+            synchronized (this) {
+                if (null == followers) {
+                    return false;
+                }
+                followers.add(follower);
+                waiting++;
+            }
+            leaveWhenCancelled(follower);
+            return true;
+        }
+
+        void started(ListenableFuture<OpenTSDBQueryReturn> response) {
+            boolean abandoned;
+            synchronized (this) {
+                this.response = response;
+                abandoned = 0 == waiting;
+            }
+            if (abandoned) {
+                response.cancel(true);
+            }
+        }
+
+        private void leaveWhenCancelled(final SettableFuture<OpenTSDBQueryReturn> waiter) {
+            waiter.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (waiter.isCancelled()) {
+                        leave();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /*
+         * A caller gave up on the query; the last one to do so takes the backend request with it.
+         */
+        private void leave() {
+            ListenableFuture<OpenTSDBQueryReturn> abandoned;
+            synchronized (this) {
+                if (--waiting > 0 || null == followers) {
+                    return;
+                }
+                followers = null;
+                abandoned = response;
+            }
+            inFlight.remove(key, this);
+            log.debug("Every caller gave up on query {}, cancelling it", key);
+            shared.abandon();
+            if (null != abandoned) {
+                abandoned.cancel(true);
+            }
+        }
+
+        /*
+         * @return the followers still to be answered, none if the query was given up on
+         */
+        private synchronized List<SettableFuture<OpenTSDBQueryReturn>> close() {
+            List<SettableFuture<OpenTSDBQueryReturn>> waiting = followers;
+            followers = null;
+            return null == waiting ? Collections.<SettableFuture<OpenTSDBQueryReturn>>emptyList() : waiting;
+        }
+
+        void complete(OpenTSDBQueryReturn queryReturn) {
+            // copies are made before the issuing caller sees (and possibly modifies) the response
+            for (SettableFuture<OpenTSDBQueryReturn> follower : close()) {
+                if (!follower.isDone()) {
+                    follower.set(queryReturn.copy());
+                }
+            }
+            issuer.set(queryReturn);
+        }
+
+        void fail(Throwable t) {
+            for (SettableFuture<OpenTSDBQueryReturn> follower : close()) {
+                follower.setException(t);
+            }
+            issuer.setException(t);
+        }
+    }
+}
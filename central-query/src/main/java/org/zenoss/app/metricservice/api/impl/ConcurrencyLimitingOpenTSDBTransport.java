@@ -0,0 +1,89 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps the number of queries outstanding against OpenTSDB within an {@link AdaptiveConcurrencyLimit}.
+ * A query over the limit is not queued: it fails straight away with an ERROR status, so a struggling
+ * OpenTSDB sheds load instead of building up a backlog that will time out anyway.
+ */
+public class ConcurrencyLimitingOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyLimitingOpenTSDBTransport.class);
+
+    private final OpenTSDBTransport delegate;
+    private final AdaptiveConcurrencyLimit limit;
+    private final Counter rejected = Metrics.newCounter(ConcurrencyLimitingOpenTSDBTransport.class, "limit-rejections");
+
+    public ConcurrencyLimitingOpenTSDBTransport(OpenTSDBTransport delegate, final AdaptiveConcurrencyLimit limit) {
+        this.delegate = delegate;
+        this.limit = limit;
+        Metrics.newGauge(ConcurrencyLimitingOpenTSDBTransport.class, "concurrency-limit", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return limit.getLimit();
+            }
+        });
+        Metrics.newGauge(ConcurrencyLimitingOpenTSDBTransport.class, "in-flight", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return limit.getInFlight();
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+        if (!limit.tryAcquire()) {
+            rejected.inc();
+            log.debug("Rejecting query, {} queries in flight", limit.getInFlight());
+            return Futures.immediateFuture(OpenTSDBClient.queryFailure(new RejectedExecutionException(
+                    "Too many concurrent OpenTSDB queries, limit is " + limit.getLimit())));
+        }
+        final long started = System.nanoTime();
+        ListenableFuture<OpenTSDBQueryReturn> response;
+        try {
+            response = delegate.execute(query);
+        } catch (RuntimeException e) {
+            limit.release(System.nanoTime() - started, true);
+            throw e;
+        }
+        Futures.addCallback(response, new FutureCallback<OpenTSDBQueryReturn>() {
+            @Override
+            public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                limit.release(System.nanoTime() - started, queryReturn.isQueryFailure());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // a cancelled request (hedging, an impatient caller) has no useful round trip time
+                limit.release(0, !(t instanceof CancellationException));
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return response;
+    }
+
+    public long getRejected() {
+        return rejected.count();
+    }
+}
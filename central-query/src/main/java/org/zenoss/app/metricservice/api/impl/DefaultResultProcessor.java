@@ -37,6 +37,7 @@ import com.google.common.collect.Multimap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zenoss.app.metricservice.api.metric.impl.MetricService;
+import org.zenoss.app.metricservice.api.model.DataPoints;
 import org.zenoss.app.metricservice.api.model.InterpolatorType;
 import org.zenoss.app.metricservice.api.model.MetricSpecification;
 import org.zenoss.app.metricservice.buckets.Buckets;
@@ -52,12 +53,25 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Processes the output stream from the back end metric query storage into
  * buckets including the calculation of any RPN functions and references.
+ * <p>
+ * The series are bucketed one by one as they are read from the results, which
+ * may still be coming in. Given a fork/join pool with {@link #withParallelism},
+ * once a given number of data points has been read the rest of the series are
+ * bucketed on the pool, and the results interpolated there too: each task
+ * buckets some of the series into buckets of its own, which are then added to
+ * the result one after the other. Calculated values are still worked out on
+ * the calling thread.
  *
  * @author Zenoss
  */
@@ -65,18 +79,55 @@ public class DefaultResultProcessor implements ResultProcessor,
         ReferenceProvider {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultResultProcessor.class);
+
+    /**
+     * Fewest data points bucketed by a task of its own
+     */
+    private static final long MIN_POINTS_PER_TASK = 50000;
+
+    /**
+     * Tasks per thread of the pool, so that threads done early can take over
+     * work from the others
+     */
+    private static final int TASKS_PER_THREAD = 4;
     private final Multimap<InterpolatorType, IHasShortcut> interpolatorMap = ArrayListMultimap.create();
     private final Iterable<OpenTSDBQueryResult> results;
     private final List<MetricSpecification> queries;
     private final long bucketSize;
+    private final OffHeapPool.Arena arena;
+    private ForkJoinPool pool;
+    private long parallelThreshold = Long.MAX_VALUE;
     private Map<MetricKey, MetricCalculator> calculatorMap;
     private MetricKeyCache keyCache;
     private Buckets<IHasShortcut> buckets;
 
     public DefaultResultProcessor(Iterable<OpenTSDBQueryResult> results, List<MetricSpecification> queries, long bucketSize) {
+        this(results, queries, bucketSize, null);
+    }
+
+    /**
+     * @param arena where the buckets are allocated; null for the heap
+     */
+    public DefaultResultProcessor(Iterable<OpenTSDBQueryResult> results, List<MetricSpecification> queries, long bucketSize,
+                                  OffHeapPool.Arena arena) {
         this.results = results;
         this.queries = queries;
         this.bucketSize = bucketSize;
+        this.arena = arena;
+    }
+
+    /**
+     * Bucket the series read after the first minDataPoints data points on the
+     * pool, and interpolate such results there too.
+     *
+     * @param pool          runs the work; null to do it all on the calling thread
+     * @param minDataPoints data points read before the pool is worth using
+     * @return this processor
+     */
+    public DefaultResultProcessor withParallelism(ForkJoinPool pool, long minDataPoints) {
+        this.pool = pool;
+        this.parallelThreshold = Math.max(1, minDataPoints);
+        return this;
     }
 
 
@@ -103,6 +154,9 @@ public class DefaultResultProcessor implements ResultProcessor,
         /**
          * Check for metrics or values in the bucket
          */
+        if (closure instanceof BucketClosure) {
+            return ((BucketClosure) closure).getValue(name);
+        }
         Value v = closure.getValueByShortcut(name);
         if (v == null) {
             throw new UnknownReferenceException(name);
@@ -128,44 +182,85 @@ public class DefaultResultProcessor implements ResultProcessor,
         // Get a list of calculated values
         List<MetricSpecification> calculatedValues = MetricService.calculatedValueFilter(queries);
 
-        long dataPointTimeStamp = 0l;
         Tags curTags = null;
+        long dataPointCount = 0;
+        long pointsPerTask = null == pool ? 0 : Math.max(MIN_POINTS_PER_TASK, parallelThreshold / (pool.getParallelism() * TASKS_PER_THREAD));
+        // series for the next task, and the tasks bucketing the others on the pool
+        List<DataPoints> series = new ArrayList<>();
+        List<IHasShortcut> keys = new ArrayList<>();
+        long seriesPoints = 0;
+        List<ForkJoinTask<Buckets<IHasShortcut>>> tasks = new ArrayList<>();
 
         // iterate over results (a result is a data series - with metric name, collection of points, tags, etc.
+        // the results may still be coming in, so each series is bucketed as soon as it is read
         for (OpenTSDBQueryResult result : this.results) {
             curTags = Tags.fromOpenTsdbTags(result.tags);
             MetricKey key = keyCache.get(result.metric, result.metricSpecName, result.metricSpecId, curTags);
             QueryStatus status = result.getStatus();
             log.debug(String.format("Adding QueryStatus %s for key %s (hashcode: %d)", status.getMessage(), key.toString(), key.hashCode()));
             buckets.addQueryStatus(key, status);
+            Buckets<IHasShortcut>.Column column = buckets.getOrCreateColumn(key);
 
-            // iterate over data points for the current series
-            for (Map.Entry<Long, Double> dataPointEntry : result.dps.entrySet()) {
-                double dataPointValue = dataPointEntry.getValue();
-                dataPointTimeStamp = dataPointEntry.getKey();
-
-                buckets.add(key, dataPointTimeStamp, dataPointValue);
-            } // iterate over data points in this series
+            DataPoints dataPoints = result.getDataPoints();
+            dataPointCount += dataPoints.size();
+            if (null == pool || dataPointCount < parallelThreshold) {
+                addDataPoints(column, dataPoints);
+                continue;
+            }
+            // large results: the rest of the series go to the pool, pointsPerTask at a time
+            series.add(dataPoints);
+            keys.add(key);
+            seriesPoints += dataPoints.size();
+            if (seriesPoints >= pointsPerTask) {
+                tasks.add(pool.submit(new BucketingTask(series, keys)));
+                series = new ArrayList<>();
+                keys = new ArrayList<>();
+                seriesPoints = 0;
+            }
         } //iterate over all series in result set
-        interpolateValues(buckets);
+
+        if (!series.isEmpty()) {
+            tasks.add(pool.submit(new BucketingTask(series, keys)));
+        }
+        for (ForkJoinTask<Buckets<IHasShortcut>> task : tasks) {
+            Buckets<IHasShortcut> bucketed = task.join();
+            buckets.addAll(bucketed);
+            bucketed.release();
+        }
+        boolean parallel = null != pool && dataPointCount >= parallelThreshold;
+        interpolateValues(buckets, parallel);
         calculateValues(calculatedValues, buckets);
         return buckets;
     }
 
-    private void interpolateValues(Buckets<IHasShortcut> buckets) {
-        for (InterpolatorType interpolatorType : interpolatorMap.keys()) {
+    private static void addDataPoints(Buckets<IHasShortcut>.Column column, DataPoints dataPoints) {
+        // iterate over data points for the current series
+        for (int i = 0; i < dataPoints.size(); i++) {
+            column.add(dataPoints.timestampAt(i), dataPoints.valueAt(i));
+        }
+    }
+
+    private void interpolateValues(Buckets<IHasShortcut> buckets, boolean parallel) {
+        for (InterpolatorType interpolatorType : interpolatorMap.keySet()) {
             log.debug("Interpolating for type: [{}].", interpolatorType);
             Collection<IHasShortcut> foo = interpolatorMap.get(interpolatorType);
             for (IHasShortcut series : foo) {
                 log.debug("Series [{}] interpolated with [{}] interpolator.", series.getShortcut(), interpolatorType);
             }
             Interpolator interpolator = InterpolatorFactory.getInterpolator(interpolatorType);
-            interpolator.interpolate(buckets, interpolatorMap.get(interpolatorType));
+            if (parallel) {
+                // each series only fills in buckets that already exist, so different series can be done at once
+                List<IHasShortcut> keys = new ArrayList<>(new LinkedHashSet<>(interpolatorMap.get(interpolatorType)));
+                int keysPerTask = Math.max(1, keys.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+                pool.invoke(new InterpolatingTask(interpolator, buckets, keys, 0, keys.size(), keysPerTask));
+            } else {
+                interpolator.interpolate(buckets, interpolatorMap.get(interpolatorType));
+            }
         }
     }
 
     private void initialize() {
-        buckets = new Buckets<>(bucketSize);
+        buckets = new Buckets<>(bucketSize, arena);
         calculatorMap = new HashMap<>();
         keyCache = new MetricKeyCache();
     }
@@ -177,18 +272,14 @@ public class DefaultResultProcessor implements ResultProcessor,
             MetricKey key = keyCache.get(metricSpecification.getMetricOrName(), metricSpecification.getNameOrMetric(), metricSpecification.getId(), tags);
             MetricCalculator calculator = calculatorMap.get(key);
             if (null != calculator) {
-                for (Long timestamp : buckets.getTimestamps()) {
-                    Buckets<IHasShortcut>.Bucket bucket = buckets.getBucket(timestamp);
-                    if (null == bucket) {
-                        log.error("Null bucket at timestamp {}", timestamp);
-                        throw new NullPointerException("unexpected null bucket");
-                    }
-
-                    BucketClosure closure = new BucketClosure(timestamp, bucket);
+                Buckets<IHasShortcut>.Column column = buckets.getOrCreateColumn(key);
+                BucketClosure closure = new BucketClosure(buckets);
+                for (long timestamp : buckets.getBucketTimestamps()) {
+                    closure.ts = timestamp;
                     double val = 0.0;
                     try {
                         val = calculator.evaluate(closure);
-                        buckets.add(key, timestamp, val);
+                        column.add(timestamp, val);
                     } catch (UnknownReferenceException e) {
                         log.debug("UnknownReferenceException swallowed for calculation at timestamp {}: {}", timestamp, e);
                         /*
@@ -216,13 +307,76 @@ public class DefaultResultProcessor implements ResultProcessor,
         interpolatorMap.put(spec.getInterpolator(), key);
     }
 
+    /**
+     * Buckets some of the series into buckets of its own.
+     */
+    private class BucketingTask extends RecursiveTask<Buckets<IHasShortcut>> {
+        private static final long serialVersionUID = 6626662896304777529L;
+
+        private final List<DataPoints> series;
+        private final List<IHasShortcut> keys;
+
+        private BucketingTask(List<DataPoints> series, List<IHasShortcut> keys) {
+            this.series = series;
+            this.keys = keys;
+        }
+
+        @Override
+        protected Buckets<IHasShortcut> compute() {
+            Buckets<IHasShortcut> bucketed = new Buckets<>(bucketSize, arena);
+            for (int i = 0; i < series.size(); i++) {
+                addDataPoints(bucketed.getOrCreateColumn(keys.get(i)), series.get(i));
+            }
+            return bucketed;
+        }
+    }
+
+    /**
+     * Interpolates a range of the series, split in two while it has more than
+     * keysPerTask of them.
+     */
+    private static class InterpolatingTask extends RecursiveAction {
+        private static final long serialVersionUID = 1316750896949987567L;
+
+        private final Interpolator interpolator;
+        private final Buckets<IHasShortcut> buckets;
+        private final List<IHasShortcut> keys;
+        private final int from;
+        private final int to;
+        private final int keysPerTask;
+
+        private InterpolatingTask(Interpolator interpolator, Buckets<IHasShortcut> buckets, List<IHasShortcut> keys,
+                                  int from, int to, int keysPerTask) {
+            this.interpolator = interpolator;
+            this.buckets = buckets;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.keysPerTask = keysPerTask;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > keysPerTask) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new InterpolatingTask(interpolator, buckets, keys, from, mid, keysPerTask),
+                        new InterpolatingTask(interpolator, buckets, keys, mid, to, keysPerTask));
+            } else {
+                interpolator.interpolate(buckets, keys.subList(from, to));
+            }
+        }
+    }
+
+    /**
+     * Looks up values in the bucket at ts, which is moved along from one
+     * bucket to the next.
+     */
     private static class BucketClosure implements Closure {
         private long ts;
-        public Buckets<IHasShortcut>.Bucket bucket;
+        private final Buckets<IHasShortcut> buckets;
 
-        private BucketClosure(long timestamp, Buckets<IHasShortcut>.Bucket bucket) {
-            this.ts = timestamp;
-            this.bucket = bucket;
+        private BucketClosure(Buckets<IHasShortcut> buckets) {
+            this.buckets = buckets;
         }
 
         @Override
@@ -232,7 +386,12 @@ public class DefaultResultProcessor implements ResultProcessor,
 
         @Override
         public Value getValueByShortcut(String name) {
-            return bucket.getValueByShortcut(name);
+            return buckets.getBucket(ts).getValueByShortcut(name);
+        }
+
+        private double getValue(String name) {
+            Buckets<IHasShortcut>.Column column = buckets.getColumnByShortcut(name);
+            return null == column ? Double.NaN : column.getValue(ts);
         }
     }
 }
@@ -0,0 +1,225 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a second copy of a query when the first has not answered within a percentile of recent
+ * response times, and uses whichever answers first. The slower request is cancelled, which aborts
+ * it when the underlying transport is non-blocking. Behind a {@link LoadBalancingOpenTSDBTransport}
+ * the copy goes to a different reader, since the first request counts as outstanding on its own.
+ * <p>
+ * Hedges are limited by a budget: every query earns a fraction of a hedge and a hedge spends a
+ * whole one, so hedging adds at most that fraction of extra load. No hedges are sent until enough
+ * response times have been seen to estimate the percentile.
+ */
+public class HedgingOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(HedgingOpenTSDBTransport.class);
+
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int MIN_SAMPLES = 50;
+    // the hedge delay is recalculated after this many new samples
+    private static final int RECALCULATE_EVERY = 64;
+    // unused budget that can be saved up for a burst of slow queries
+    private static final double MAX_CREDIT = 10;
+
+    private final OpenTSDBTransport delegate;
+    private final ScheduledExecutorService scheduler;
+    private final double percentile;
+    private final double budget;
+    private final long minDelayMillis;
+
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int samples;
+    private int next;
+    private long delayMillis = -1;
+    private double credit;
+
+    private final Counter sent = Metrics.newCounter(HedgingOpenTSDBTransport.class, "hedges-sent");
+    private final Counter won = Metrics.newCounter(HedgingOpenTSDBTransport.class, "hedges-won");
+    private final Counter overBudget = Metrics.newCounter(HedgingOpenTSDBTransport.class, "hedges-over-budget");
+
+    /**
+     * @param delegate       transport both copies of a query are sent through
+     * @param scheduler      runs the timers that send hedges
+     * @param percentile     percentile of recent response times after which a hedge is sent, e.g. 95
+     * @param budgetPercent  hedges as a percentage of queries, e.g. 5
+     * @param minDelayMillis a hedge is never sent sooner than this
+     */
+    public HedgingOpenTSDBTransport(OpenTSDBTransport delegate, ScheduledExecutorService scheduler, double percentile,
+                                    double budgetPercent, long minDelayMillis) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        this.percentile = Math.min(100, Math.max(0, percentile));
+        this.budget = Math.max(0, budgetPercent) / 100;
+        this.minDelayMillis = Math.max(0, minDelayMillis);
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(final OpenTSDBQuery query) {
+        final long delay = hedgeDelay();
+        final long started = System.nanoTime();
+        final Race race = new Race();
+        race.primary = delegate.execute(query);
+        race.watch(race.primary, false, started);
+        if (delay < 0 || race.result.isDone()) {
+            return race.result;
+        }
+
+        try {
+            race.timer = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (race.result.isDone()) {
+                        return;
+                    }
+                    if (!spendCredit()) {
+                        overBudget.inc();
+                        return;
+                    }
+                    sent.inc();
+                    log.debug("Hedging query after {}ms", delay);
+                    ListenableFuture<OpenTSDBQueryReturn> hedge = delegate.execute(query);
+                    race.hedge(hedge);
+                    race.watch(hedge, true, started);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("Not hedging query, scheduler is shut down");
+        }
+        return race.result;
+    }
+
+    public long getHedgesSent() {
+        return sent.count();
+    }
+
+    public long getHedgesWon() {
+        return won.count();
+    }
+
+    /**
+     * @return milliseconds to wait before hedging a query, or -1 while too few response times are known
+     */
+    synchronized long hedgeDelay() {
+        credit = Math.min(MAX_CREDIT, credit + budget);
+        return delayMillis;
+    }
+
+    private synchronized boolean spendCredit() {
+        if (credit < 1) {
+            return false;
+        }
+        credit -= 1;
+        return true;
+    }
+
+    synchronized void record(long elapsedMillis) {
+        latencies[next] = elapsedMillis;
+        next = (next + 1) % LATENCY_SAMPLES;
+        samples++;
+        if (samples >= MIN_SAMPLES && (delayMillis < 0 || samples % RECALCULATE_EVERY == 0)) {
+            int size = Math.min(samples, LATENCY_SAMPLES);
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * size) - 1;
+            delayMillis = Math.max(minDelayMillis, sorted[Math.max(0, Math.min(size - 1, index))]);
+        }
+    }
+
+    /**
+     * A query and its hedge racing to complete the result.
+     */
+    private final class Race {
+        final SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        ListenableFuture<OpenTSDBQueryReturn> primary;
+        ListenableFuture<OpenTSDBQueryReturn> hedge;
+        ScheduledFuture<?> timer;
+        private int pending = 1;
+
+        Race() {
+            // abandon whatever is still running once the caller gives up
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isCancelled()) {
+                        cancelAll();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        synchronized void hedge(ListenableFuture<OpenTSDBQueryReturn> hedge) {
+            this.hedge = hedge;
+            pending++;
+            if (result.isDone()) {
+                hedge.cancel(true);
+            }
+        }
+
+        void watch(ListenableFuture<OpenTSDBQueryReturn> request, final boolean isHedge, final long started) {
+            Futures.addCallback(request, new FutureCallback<OpenTSDBQueryReturn>() {
+                @Override
+                public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                    // a failed request only completes the result if the other one is not still running
+                    if (queryReturn.isQueryFailure() && !isLast()) {
+                        return;
+                    }
+                    if (result.set(queryReturn)) {
+                        record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                        if (isHedge) {
+                            won.inc();
+                        }
+                        cancelAll();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (isLast() && result.setException(t)) {
+                        cancelAll();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        private synchronized boolean isLast() {
+            return --pending == 0;
+        }
+
+        private synchronized void cancelAll() {
+            if (null != timer) {
+                timer.cancel(false);
+            }
+            if (null != primary) {
+                primary.cancel(true);
+            }
+            if (null != hedge) {
+                hedge.cancel(true);
+            }
+        }
+    }
+}
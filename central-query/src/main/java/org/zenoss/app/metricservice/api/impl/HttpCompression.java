@@ -0,0 +1,211 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Negotiates compression of the JSON exchanged with OpenTSDB. Requests ask for gzip or deflate
+ * encoded responses, which are decompressed as they are read so the parser never waits for (or
+ * holds) the whole body. Request bodies of at least the threshold size are sent gzipped.
+ * <p>
+ * The bytes that did not have to cross the network are counted in both directions.
+ */
+public class HttpCompression {
+    /**
+     * Sends and accepts only plain bodies.
+     */
+    public static final HttpCompression NONE = new HttpCompression(false, -1);
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final Counter requestBytesSaved = Metrics.newCounter(HttpCompression.class, "request-bytes-saved");
+    private static final Counter responseBytesSaved = Metrics.newCounter(HttpCompression.class, "response-bytes-saved");
+    private static final Counter compressedResponses = Metrics.newCounter(HttpCompression.class, "compressed-responses");
+
+    private final boolean acceptCompressed;
+    private final int requestThresholdBytes;
+
+    /**
+     * @param acceptCompressed      ask for gzip or deflate encoded responses
+     * @param requestThresholdBytes gzip request bodies of at least this many bytes; negative never compresses
+     */
+    public HttpCompression(boolean acceptCompressed, int requestThresholdBytes) {
+        this.acceptCompressed = acceptCompressed;
+        this.requestThresholdBytes = requestThresholdBytes;
+    }
+
+    /**
+     * Ask for a compressed response, if enabled.
+     */
+    public void acceptCompressed(HttpRequest request) {
+        if (acceptCompressed) {
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, GZIP + ", " + DEFLATE);
+        }
+    }
+
+    /**
+     * @return an application/json entity holding json, gzipped if it is at least the threshold size
+     */
+    public HttpEntity jsonEntity(String json) {
+        AbstractHttpEntity entity;
+        // StringEntity has always encoded with ISO-8859-1 by default; keep the bytes on the wire the same
+        byte[] plain = json.getBytes(ISO_8859_1);
+        if (requestThresholdBytes >= 0 && plain.length >= requestThresholdBytes) {
+            byte[] compressed = gzip(plain);
+            requestBytesSaved.inc(plain.length - compressed.length);
+            entity = new ByteArrayEntity(compressed);
+            entity.setContentEncoding(GZIP);
+        } else {
+            entity = new StringEntity(json, ISO_8859_1);
+        }
+        entity.setContentType("application/json");
+        return entity;
+    }
+
+    /**
+     * @return the decoded content of a response entity
+     */
+    public static InputStream content(HttpEntity entity) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        String coding = null == encoding ? "" : encoding.getValue().trim().toLowerCase(Locale.ENGLISH);
+        switch (coding) {
+            case GZIP:
+            case "x-gzip": {
+                CountingInputStream raw = new CountingInputStream(entity.getContent());
+                return new SavingsInputStream(new GZIPInputStream(raw), raw);
+            }
+            case DEFLATE: {
+                CountingInputStream raw = new CountingInputStream(entity.getContent());
+                return new SavingsInputStream(inflate(raw), raw);
+            }
+            default:
+                return entity.getContent();
+        }
+    }
+
+    public static long getRequestBytesSaved() {
+        return requestBytesSaved.count();
+    }
+
+    public static long getResponseBytesSaved() {
+        return responseBytesSaved.count();
+    }
+
+    static byte[] gzip(byte[] plain) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(plain.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(plain);
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /*
+     * "deflate" is meant to be zlib wrapped, but some servers send a bare deflate stream; tell them
+     * apart by the zlib header.
+     */
+    private static InputStream inflate(InputStream raw) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(raw, 2);
+        int first = in.read();
+        int second = first < 0 ? -1 : in.read();
+        if (second >= 0) {
+            in.unread(second);
+        }
+        if (first >= 0) {
+            in.unread(first);
+        }
+        boolean zlib = second >= 0 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+        return new InflaterInputStream(in, new Inflater(!zlib));
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /*
+     * Counts the decoded bytes and, once the stream is closed, records how many more than the
+     * compressed ones they came to.
+     */
+    private static class SavingsInputStream extends CountingInputStream {
+        private final CountingInputStream raw;
+        private boolean recorded;
+
+        SavingsInputStream(InputStream decoded, CountingInputStream raw) {
+            super(decoded);
+            this.raw = raw;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!recorded) {
+                recorded = true;
+                compressedResponses.inc();
+                responseBytesSaved.inc(count - raw.count);
+            }
+            super.close();
+        }
+    }
+}
@@ -36,7 +36,6 @@ import org.slf4j.LoggerFactory;
 import org.zenoss.app.metricservice.api.model.MetricSpecification;
 import org.zenoss.app.metricservice.api.model.ReturnSet;
 import org.zenoss.app.metricservice.buckets.Buckets;
-import org.zenoss.app.metricservice.buckets.Value;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
@@ -45,7 +44,6 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.SortedSet;
 
 
 public class JacksonResultsWriter {
@@ -108,21 +106,16 @@ public class JacksonResultsWriter {
     private List<QueryResultDataPoint> makeDataPoints(Buckets<IHasShortcut> buckets, long startTs, long endTs,
                                                       ReturnSet returnset, String metricShortcut) {
         List<QueryResultDataPoint> dataPoints = new ArrayList<>();
-        SortedSet<Long> timestamps = buckets.getTimestamps();
-        for (long bts : timestamps) {
+        Buckets<IHasShortcut>.Column column = buckets.getColumnByShortcut(metricShortcut);
+        if (null == column) {
+            log.debug("No data points found for metric {}", metricShortcut);
+            return dataPoints;
+        }
+        for (long bts : buckets.getBucketTimestamps()) {
             if (returnset == ReturnSet.ALL || (bts >= startTs && bts <= endTs)) {
-                Buckets<IHasShortcut>.Bucket bucket = buckets.getBucket(bts);
-                if (null != bucket) {
-                    Value value = bucket.getValueByShortcut(metricShortcut);
-                    if (null != value) {
-                        if (!Double.isNaN(value.getValue())) {
-                            dataPoints.add(new QueryResultDataPoint(bts, value.getValue()));
-                        }
-                    } else {
-                        log.warn("No data point found for timestamp {}, metric {}", bts, metricShortcut);
-                    }
-                } else {
-                    log.warn("Unable to retrieve value for timestamp {}", bts);
+                double value = column.getValue(bts);
+                if (!Double.isNaN(value)) {
+                    dataPoints.add(new QueryResultDataPoint(bts, value));
                 }
             }
         }
@@ -0,0 +1,217 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads queries over several OpenTSDB readers. Each query goes to the healthy reader with the
+ * fewest outstanding requests; ties go to the reader with the lowest recent latency (an
+ * exponentially weighted moving average of response times).
+ * <p>
+ * Reader health is tracked passively from the responses: a reader that fails a number of requests
+ * in a row (connection errors and the like, not queries OpenTSDB rejected) is taken out of rotation
+ * for a while and then tried again. A slow reader drains on its own, since its requests stay
+ * outstanding longer. When every reader is out of rotation the one due back soonest is used.
+ */
+public class LoadBalancingOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(LoadBalancingOpenTSDBTransport.class);
+
+    // weight of the latest response time in the latency average
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final List<Reader> readers;
+    private final int failureThreshold;
+    private final long ejectNanos;
+    private final Counter ejections = Metrics.newCounter(LoadBalancingOpenTSDBTransport.class, "reader-ejections");
+
+    /**
+     * @param readers          reader URL and the transport that queries it, one entry per reader
+     * @param failureThreshold consecutive failures after which a reader is taken out of rotation
+     * @param ejectSeconds     how long a failing reader stays out of rotation
+     */
+    public LoadBalancingOpenTSDBTransport(List<Reader> readers, int failureThreshold, long ejectSeconds) {
+        if (readers.isEmpty()) {
+            throw new IllegalArgumentException("At least one reader is required");
+        }
+        this.readers = Collections.unmodifiableList(new ArrayList<>(readers));
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.ejectNanos = TimeUnit.SECONDS.toNanos(ejectSeconds);
+        for (final Reader reader : this.readers) {
+            Metrics.newGauge(LoadBalancingOpenTSDBTransport.class, "reader-outstanding", reader.url, new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return reader.outstanding.get();
+                }
+            });
+            Metrics.newGauge(LoadBalancingOpenTSDBTransport.class, "reader-latency-ms", reader.url, new Gauge<Double>() {
+                @Override
+                public Double value() {
+                    return reader.ewmaNanos / 1e6;
+                }
+            });
+        }
+        Metrics.newGauge(LoadBalancingOpenTSDBTransport.class, "healthy-readers", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return healthyReaders();
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+        final Reader reader = choose();
+        final long started = nanoTime();
+        reader.outstanding.incrementAndGet();
+        ListenableFuture<OpenTSDBQueryReturn> response;
+        try {
+            response = reader.transport.execute(query);
+        } catch (RuntimeException e) {
+            reader.outstanding.decrementAndGet();
+            failed(reader);
+            throw e;
+        }
+        Futures.addCallback(response, new FutureCallback<OpenTSDBQueryReturn>() {
+            @Override
+            public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                reader.outstanding.decrementAndGet();
+                if (queryReturn.isQueryFailure()) {
+                    failed(reader);
+                } else {
+                    succeeded(reader, nanoTime() - started);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                reader.outstanding.decrementAndGet();
+                // a cancelled request says nothing about the reader
+                if (!(t instanceof CancellationException)) {
+                    failed(reader);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return response;
+    }
+
+    /**
+     * @return the readers in configuration order
+     */
+    public List<Reader> getReaders() {
+        return readers;
+    }
+
+    /**
+     * @return the number of readers currently in rotation
+     */
+    public int healthyReaders() {
+        long now = nanoTime();
+        int healthy = 0;
+        for (Reader reader : readers) {
+            if (reader.isAvailable(now)) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    Reader choose() {
+        long now = nanoTime();
+        Reader best = null;
+        Reader soonest = null;
+        for (Reader reader : readers) {
+            if (!reader.isAvailable(now)) {
+                if (null == soonest || reader.ejectedUntil - soonest.ejectedUntil < 0) {
+                    soonest = reader;
+                }
+                continue;
+            }
+            if (null == best || reader.outstanding.get() < best.outstanding.get()
+                    || (reader.outstanding.get() == best.outstanding.get() && reader.ewmaNanos < best.ewmaNanos)) {
+                best = reader;
+            }
+        }
+        return null == best ? soonest : best;
+    }
+
+    private void succeeded(Reader reader, long elapsedNanos) {
+        synchronized (reader) {
+            reader.ewmaNanos = reader.ewmaNanos == 0
+                    ? elapsedNanos : EWMA_ALPHA * elapsedNanos + (1 - EWMA_ALPHA) * reader.ewmaNanos;
+            reader.consecutiveFailures = 0;
+            reader.ejected = false;
+        }
+    }
+
+    private void failed(Reader reader) {
+        synchronized (reader) {
+            reader.consecutiveFailures++;
+            if (reader.consecutiveFailures >= failureThreshold) {
+                reader.consecutiveFailures = 0;
+                reader.ejectedUntil = nanoTime() + ejectNanos;
+                reader.ejected = true;
+                ejections.inc();
+                log.warn("Taking OpenTSDB reader {} out of rotation for {}s after {} consecutive failures", reader.url,
+                        TimeUnit.NANOSECONDS.toSeconds(ejectNanos), failureThreshold);
+            }
+        }
+    }
+
+    /**
+     * One OpenTSDB reader and its load and health.
+     */
+    public static final class Reader {
+        private final String url;
+        private final OpenTSDBTransport transport;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double ewmaNanos;
+        private volatile boolean ejected;
+        private volatile long ejectedUntil;
+        private int consecutiveFailures;
+
+        public Reader(String url, OpenTSDBTransport transport) {
+            this.url = url;
+            this.transport = transport;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        boolean isAvailable(long now) {
+            return !ejected || now - ejectedUntil >= 0;
+        }
+    }
+}
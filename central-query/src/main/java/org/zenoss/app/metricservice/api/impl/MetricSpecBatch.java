@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016, Zenoss and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Zenoss or the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.metricservice.api.impl.QueryStatus.QueryStatusEnum;
+import org.zenoss.app.metricservice.api.model.MetricSpecification;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * A group of metric specifications sent to OpenTSDB as the subqueries of a single /api/query request.
+ * The query is sent with showQuery set so every series can be matched back to the specification it
+ * answers. Each specification still gets its own result and status: a specification with no series gets
+ * the same "no data" warning it would get on its own, and if OpenTSDB turns the batched request down as
+ * a whole (one unknown metric fails the entire request) every specification is re-queried on its own.
+ * A batch that got no answer at all, because it could not be sent, timed out or was turned away before
+ * reaching OpenTSDB, is not re-sent: every specification gets its error instead.
+ */
+class MetricSpecBatch implements Callable<List<OpenTSDBQueryResult>> {
+    private static final Logger log = LoggerFactory.getLogger(MetricSpecBatch.class);
+
+    private final OpenTSDBClient client;
+    private final String start;
+    private final String end;
+    private final List<MetricSpecification> mSpecs;
+    private final boolean ignoreRateOption;
+    private final long rateCutoffDate;
+    // the batch may be run on a worker thread; it keeps the deadline of the request that planned it
+    private final QueryDeadline deadline = QueryDeadline.current();
+
+    MetricSpecBatch(OpenTSDBClient client, String start, String end, List<MetricSpecification> mSpecs, boolean ignoreRateOption, long rateCutoffDate) {
+        this.client = client;
+        this.start = start;
+        this.end = end;
+        this.mSpecs = mSpecs;
+        this.ignoreRateOption = ignoreRateOption;
+        this.rateCutoffDate = rateCutoffDate;
+    }
+
+    /**
+     * Group the specifications into batches of at most batchSize, keeping their order. Rate
+     * specifications that will be split around the rate cutoff date need merging of their own and are
+     * always sent alone.
+     */
+    static List<MetricSpecBatch> plan(OpenTSDBClient client, String start, String end, List<MetricSpecification> mSpecs,
+                                      boolean ignoreRateOption, long rateCutoffDate, int batchSize) {
+        boolean splitRates = ignoreRateOption && OpenTSDBClient.splitsAroundRateCutoff(start, rateCutoffDate);
+        List<MetricSpecBatch> batches = new ArrayList<>();
+        List<MetricSpecification> current = new ArrayList<>();
+        for (MetricSpecification mSpec : mSpecs) {
+            if (splitRates && Boolean.TRUE.equals(mSpec.getRate())) {
+                batches.add(new MetricSpecBatch(client, start, end, Collections.singletonList(mSpec), ignoreRateOption, rateCutoffDate));
+                continue;
+            }
+            current.add(mSpec);
+            if (current.size() >= batchSize) {
+                batches.add(new MetricSpecBatch(client, start, end, current, ignoreRateOption, rateCutoffDate));
+                current = new ArrayList<>();
+            }
+        }
+        if (!current.isEmpty()) {
+            batches.add(new MetricSpecBatch(client, start, end, current, ignoreRateOption, rateCutoffDate));
+        }
+        return batches;
+    }
+
+    List<MetricSpecification> getMetricSpecifications() {
+        return mSpecs;
+    }
+
+    @Override
+    public List<OpenTSDBQueryResult> call() {
+        try (QueryDeadline.Scope scope = deadline.enter()) {
+            return deadline.getUnchecked(callAsync());
+        }
+    }
+
+    /**
+     * Issue the batch without waiting for it. The results are in the same order as the specifications.
+     */
+    public ListenableFuture<List<OpenTSDBQueryResult>> callAsync() {
+        if (mSpecs.size() == 1) {
+            return Futures.allAsList(Collections.singletonList(single(mSpecs.get(0))));
+        }
+
+        OpenTSDBQuery query = new OpenTSDBQuery();
+        query.start = this.start;
+        if (!Utils.NOW.equals(this.end)) {
+            query.end = this.end;
+        }
+        query.showQuery = true;
+        final List<OpenTSDBSubQuery> subQueries = new ArrayList<>(mSpecs.size());
+        for (MetricSpecification mSpec : mSpecs) {
+            OpenTSDBSubQuery subQuery = MetricSpecCallable.creatOTSDBSubQuery(mSpec);
+            subQueries.add(subQuery);
+            query.addSubQuery(subQuery);
+        }
+
+        final SettableFuture<List<OpenTSDBQueryResult>> results = SettableFuture.create();
+        ListenableFuture<OpenTSDBQueryReturn> batched = client.queryAsync(query, ignoreRateOption, rateCutoffDate);
+        cancelWith(results, batched);
+        Futures.addCallback(batched, new FutureCallback<OpenTSDBQueryReturn>() {
+            @Override
+            public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                List<OpenTSDBQueryResult> split = split(subQueries, queryReturn);
+                if (null != split) {
+                    results.set(split);
+                } else {
+                    log.debug("Batched query for {} metrics returned {}, querying them individually.", mSpecs.size(), queryReturn.getStatus().getStatus());
+                    List<ListenableFuture<OpenTSDBQueryResult>> singles = new ArrayList<>(mSpecs.size());
+                    for (MetricSpecification mSpec : mSpecs) {
+                        ListenableFuture<OpenTSDBQueryResult> single = single(mSpec);
+                        cancelWith(results, single);
+                        singles.add(single);
+                    }
+                    Futures.addCallback(Futures.allAsList(singles), new FutureCallback<List<OpenTSDBQueryResult>>() {
+                        @Override
+                        public void onSuccess(List<OpenTSDBQueryResult> singleResults) {
+                            results.set(singleResults);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            results.setException(t);
+                        }
+                    }, MoreExecutors.sameThreadExecutor());
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                results.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return results;
+    }
+
+    private ListenableFuture<OpenTSDBQueryResult> single(MetricSpecification mSpec) {
+        return new MetricSpecCallable(client, start, end, mSpec, ignoreRateOption, rateCutoffDate).callAsync();
+    }
+
+    /**
+     * Match the series of a batched response to their specifications, or null if the response cannot
+     * be split and the specifications must be queried on their own.
+     */
+    private List<OpenTSDBQueryResult> split(List<OpenTSDBSubQuery> subQueries, OpenTSDBQueryReturn queryReturn) {
+        QueryStatus status = queryReturn.getStatus();
+        if (status.getStatus() == QueryStatusEnum.ERROR && !queryReturn.isQueryFailure()) {
+            return null;
+        }
+        // a batch OpenTSDB never answered is not sent again one query at a time, adding to the load
+        // on whatever failed it; each specification stands in with the batch's error
+        OpenTSDBQueryResult[] bySpec = new OpenTSDBQueryResult[mSpecs.size()];
+        if (status.getStatus() == QueryStatusEnum.SUCCESS) {
+            for (OpenTSDBQueryResult series : queryReturn.getResults()) {
+                int index = series.queryIndex;
+                if (index < 0 || index >= bySpec.length) {
+                    // OpenTSDB before 2.2 does not echo the subquery
+                    return null;
+                }
+                // as for a single query, the first series answers the specification
+                if (null == bySpec[index]) {
+                    bySpec[index] = series;
+                }
+            }
+            status = new QueryStatus(QueryStatusEnum.WARNING, OpenTSDBClient.NO_DATA_MESSAGE);
+        }
+
+        List<OpenTSDBQueryResult> results = new ArrayList<>(bySpec.length);
+        for (int i = 0; i < bySpec.length; i++) {
+            OpenTSDBQueryResult result = bySpec[i];
+            if (null == result) {
+                result = placeholder(subQueries.get(i), status);
+            }
+            MetricSpecification mSpec = mSpecs.get(i);
+            result.metricSpecId = mSpec.getId();
+            result.metricSpecName = mSpec.getNameOrMetric();
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Series without data standing in for every specification of a batch that ran over the latency
+     * budget of the request, each with a status saying it timed out.
+     */
+    List<OpenTSDBQueryResult> overBudget(QueryDeadline deadline) {
+        List<OpenTSDBQueryResult> results = new ArrayList<>(mSpecs.size());
+        for (MetricSpecification mSpec : mSpecs) {
+            QueryStatus status = deadline.budgetExceededStatus(mSpec.getNameOrMetric());
+            OpenTSDBQueryResult result = placeholder(MetricSpecCallable.creatOTSDBSubQuery(mSpec), status);
+            result.metricSpecId = mSpec.getId();
+            result.metricSpecName = mSpec.getNameOrMetric();
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static OpenTSDBQueryResult placeholder(OpenTSDBSubQuery subQuery, QueryStatus status) {
+        OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+        result.metric = subQuery.metric;
+        result.tags = subQuery.tags;
+        result.setStatus(status);
+        return result;
+    }
+
+    /*
+     * Stop the query behind a batch nobody is waiting for any more.
+     */
+    private static void cancelWith(final ListenableFuture<?> results, final ListenableFuture<?> query) {
+        results.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (results.isCancelled()) {
+                    query.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+}
@@ -30,7 +30,10 @@
  */
 package org.zenoss.app.metricservice.api.impl;
 
-import org.apache.http.impl.client.DefaultHttpClient;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.zenoss.app.metricservice.api.impl.QueryStatus.QueryStatusEnum;
 import org.zenoss.app.metricservice.api.model.MetricSpecification;
 
@@ -46,17 +49,25 @@ class MetricSpecCallable implements Callable<OpenTSDBQueryResult> {
     private final boolean ignoreRateOption;
     private long rateCutoffDate;
 
-    public MetricSpecCallable(DefaultHttpClient httpClient, String start, String end, MetricSpecification mSpec, String queryURL, boolean ignoreRateOption, long rateCutoffDate) {
+    public MetricSpecCallable(OpenTSDBClient client, String start, String end, MetricSpecification mSpec, boolean ignoreRateOption, long rateCutoffDate) {
         this.start = start;
         this.end = end;
         this.ignoreRateOption = ignoreRateOption;
-        client = new OpenTSDBClient(httpClient, queryURL);
+        this.client = client;
         this.mSpec = mSpec;
         this.rateCutoffDate = rateCutoffDate;
     }
 
     @Override
     public OpenTSDBQueryResult call() {
+        return Futures.getUnchecked(callAsync());
+    }
+
+    /**
+     * Issue the query without waiting for it. With a non-blocking transport no thread is held
+     * while the query is outstanding.
+     */
+    public ListenableFuture<OpenTSDBQueryResult> callAsync() {
 
         //convert spec to otsdbquery
         OpenTSDBQuery query = new OpenTSDBQuery();
@@ -65,14 +76,25 @@ class MetricSpecCallable implements Callable<OpenTSDBQueryResult> {
             query.end = this.end;
         }
 
-        query.addSubQuery(creatOTSDBSubQuery(mSpec));
+        // keep a reference: the client may move rate queries out of the query when splitting it
+        final OpenTSDBSubQuery subQuery = creatOTSDBSubQuery(mSpec);
+        query.addSubQuery(subQuery);
+
+        return Futures.transform(this.client.queryAsync(query, this.ignoreRateOption, this.rateCutoffDate),
+                new Function<OpenTSDBQueryReturn, OpenTSDBQueryResult>() {
+                    @Override
+                    public OpenTSDBQueryResult apply(OpenTSDBQueryReturn queryResult) {
+                        return toResult(subQuery, queryResult);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+    }
 
-        OpenTSDBQueryReturn queryResult = this.client.query(query, this.ignoreRateOption, this.rateCutoffDate);
+    private OpenTSDBQueryResult toResult(OpenTSDBSubQuery subQuery, OpenTSDBQueryReturn queryResult) {
         OpenTSDBQueryResult result;
         if (queryResult.getStatus().getStatus() != QueryStatusEnum.SUCCESS) {
             result = new OpenTSDBQueryResult();
-            result.metric = query.queries.get(0).metric;
-            result.tags = query.queries.get(0).tags;
+            result.metric = subQuery.metric;
+            result.tags = subQuery.tags;
             result.setStatus(queryResult.getStatus());
         } else {
             result = queryResult.getResults().get(0);
@@ -85,7 +107,7 @@ class MetricSpecCallable implements Callable<OpenTSDBQueryResult> {
     }
 
 
-    private static OpenTSDBSubQuery creatOTSDBSubQuery(MetricSpecification metricSpecification) {
+    static OpenTSDBSubQuery creatOTSDBSubQuery(MetricSpecification metricSpecification) {
         OpenTSDBSubQuery result = null;
         if (null != metricSpecification) {
             result = new OpenTSDBSubQuery();
@@ -20,6 +20,16 @@ public interface MetricStorageAPI {
                                           Map<String, List<String>> tags, List<MetricSpecification> queries)
             throws IOException;
 
+    /**
+     * Like getResponse, with each series handed out as soon as it is back rather than once they all
+     * are; the series are in no particular order and can only be read once.
+     */
+    Iterable<OpenTSDBQueryResult> getResponseAsCompleted(MetricServiceAppConfiguration config,
+                                                         String id, String startTime, String endTime,
+                                                         ReturnSet returnset, String downsample, double downsampleMultiplier,
+                                                         Map<String, List<String>> tags, List<MetricSpecification> queries)
+            throws IOException;
+
     String getSourceId();
 
     void renamePrefix(RenameRequest renameRequest, Writer writer);
@@ -0,0 +1,288 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import org.zenoss.app.metricservice.api.model.DataPoints;
+
+import java.io.Closeable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct memory for the series and buckets of queries too large to hold on the heap. A query takes
+ * its buffers from an {@link Arena}, which stops it at its budget and, when closed once the response
+ * has been made, hands every buffer back. The pool keeps up to maxPooledBytes of them for later
+ * queries rather than leaving the memory to the garbage collector.
+ * <p>
+ * Buffers are a power of two of at least 4 KiB, in native byte order, and zeroed when handed out.
+ */
+public class OffHeapPool {
+
+    private static final int MIN_BUFFER_BYTES = 4096;
+
+    // larger buffers are made to measure and never pooled
+    private static final int MAX_POOLED_BUFFER_BYTES = 1 << 30;
+
+    private static final Counter budgetsExceeded = Metrics.newCounter(OffHeapPool.class, "off-heap-budgets-exceeded");
+    private static final Histogram bytesPerQuery = Metrics.newHistogram(OffHeapPool.class, "off-heap-bytes-per-query");
+
+    private final long maxPooledBytes;
+    private final Map<Integer, Deque<ByteBuffer>> pooled = new HashMap<>();
+    private long pooledBytes = 0;
+    private final AtomicLong bytesInUse = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes most memory kept for reuse while no query is using it
+     */
+    public OffHeapPool(long maxPooledBytes) {
+        this.maxPooledBytes = Math.max(0, maxPooledBytes);
+        Metrics.newGauge(OffHeapPool.class, "off-heap-bytes-in-use", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return getBytesInUse();
+            }
+        });
+        Metrics.newGauge(OffHeapPool.class, "off-heap-bytes-pooled", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return getPooledBytes();
+            }
+        });
+    }
+
+    /**
+     * @param budgetBytes most memory the query may hold at once; not positive for no limit
+     * @return the memory of a new query
+     */
+    public Arena newArena(long budgetBytes) {
+        return new Arena(budgetBytes > 0 ? budgetBytes : Long.MAX_VALUE);
+    }
+
+    /**
+     * @return bytes held by open arenas
+     */
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    /**
+     * @return bytes kept for reuse
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    private static int sizeClass(int bytes) {
+        if (bytes <= MIN_BUFFER_BYTES) {
+            return MIN_BUFFER_BYTES;
+        }
+        if (bytes > MAX_POOLED_BUFFER_BYTES) {
+            return bytes;
+        }
+        return Integer.highestOneBit(bytes - 1) << 1;
+    }
+
+    private ByteBuffer take(int capacity) {
+        ByteBuffer buffer = null;
+        synchronized (this) {
+            Deque<ByteBuffer> free = pooled.get(capacity);
+            if (null != free && !free.isEmpty()) {
+                buffer = free.pop();
+                pooledBytes -= capacity;
+            }
+        }
+        bytesInUse.addAndGet(capacity);
+        if (null == buffer) {
+            return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+        }
+        for (int i = 0; i < capacity; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+        return buffer;
+    }
+
+    private void give(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        bytesInUse.addAndGet(-capacity);
+        if (capacity > MAX_POOLED_BUFFER_BYTES) {
+            return;
+        }
+        synchronized (this) {
+            if (pooledBytes + capacity > maxPooledBytes) {
+                return;
+            }
+            Deque<ByteBuffer> free = pooled.get(capacity);
+            if (null == free) {
+                free = new ArrayDeque<>();
+                pooled.put(capacity, free);
+            }
+            free.push(buffer);
+            pooledBytes += capacity;
+        }
+    }
+
+    /**
+     * Thrown when a query would hold more direct memory than its budget allows.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+        private static final long serialVersionUID = -6134877162768528780L;
+
+        public BudgetExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The direct memory of one query. It may be used from several threads; closing it hands back
+     * every buffer still held, which must not be used after that.
+     */
+    public final class Arena implements Closeable {
+        private final long budgetBytes;
+        private final Map<Buffer, ByteBuffer> held = new IdentityHashMap<>();
+        private long heldBytes = 0;
+        private long peakBytes = 0;
+        private boolean closed = false;
+
+        private Arena(long budgetBytes) {
+            this.budgetBytes = budgetBytes;
+        }
+
+        /**
+         * @return zeroed buffer of count doubles
+         * @throws BudgetExceededException if the query would hold more than its budget
+         */
+        public DoubleBuffer allocateDoubles(int count) {
+            ByteBuffer bytes = reserve(count, 8);
+            return hold(slice(bytes, count * 8).asDoubleBuffer(), bytes);
+        }
+
+        /**
+         * @return zeroed buffer of count longs
+         * @throws BudgetExceededException if the query would hold more than its budget
+         */
+        public LongBuffer allocateLongs(int count) {
+            ByteBuffer bytes = reserve(count, 8);
+            return hold(slice(bytes, count * 8).asLongBuffer(), bytes);
+        }
+
+        /**
+         * @return zeroed buffer of count ints
+         * @throws BudgetExceededException if the query would hold more than its budget
+         */
+        public IntBuffer allocateInts(int count) {
+            ByteBuffer bytes = reserve(count, 4);
+            return hold(slice(bytes, count * 4).asIntBuffer(), bytes);
+        }
+
+        /**
+         * @return a copy of the points held in this arena
+         * @throws BudgetExceededException if the query would hold more than its budget
+         */
+        public DataPoints copyOf(DataPoints points) {
+            int count = Math.max(points.size(), 1);
+            return points.copyInto(allocateLongs(count), allocateDoubles(count));
+        }
+
+        /**
+         * Hand back a buffer allocated by this arena before the query is done with the others.
+         */
+        public void release(Buffer buffer) {
+            ByteBuffer bytes;
+            synchronized (this) {
+                bytes = held.remove(buffer);
+                if (null == bytes) {
+                    return;
+                }
+                heldBytes -= bytes.capacity();
+            }
+            give(bytes);
+        }
+
+        /**
+         * @return bytes held by this arena
+         */
+        public synchronized long getHeldBytes() {
+            return heldBytes;
+        }
+
+        @Override
+        public void close() {
+            Map<Buffer, ByteBuffer> released;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                released = new IdentityHashMap<>(held);
+                held.clear();
+                heldBytes = 0;
+            }
+            for (ByteBuffer bytes : released.values()) {
+                give(bytes);
+            }
+            bytesPerQuery.update(peakBytes);
+        }
+
+        /*
+         * A pooled buffer with room for count elements of the given size, charged to the budget.
+         */
+        private ByteBuffer reserve(int count, int elementBytes) {
+            if (count < 0 || count > Integer.MAX_VALUE / elementBytes) {
+                throw new IllegalArgumentException("Cannot allocate " + count + " elements of " + elementBytes + " bytes");
+            }
+            int capacity = sizeClass(Math.max(count, 1) * elementBytes);
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Off-heap memory of the query has been released");
+                }
+                if (heldBytes + capacity > budgetBytes) {
+                    budgetsExceeded.inc();
+                    throw new BudgetExceededException(String.format(
+                            "Query needs more than its budget of %d bytes of off-heap memory", budgetBytes));
+                }
+                heldBytes += capacity;
+                peakBytes = Math.max(peakBytes, heldBytes);
+            }
+            return take(capacity);
+        }
+
+        private <B extends Buffer> B hold(B buffer, ByteBuffer bytes) {
+            synchronized (this) {
+                if (!closed) {
+                    held.put(buffer, bytes);
+                    return buffer;
+                }
+            }
+            give(bytes);
+            throw new IllegalStateException("Off-heap memory of the query has been released");
+        }
+
+        private ByteBuffer slice(ByteBuffer bytes, int length) {
+            ByteBuffer view = bytes.duplicate();
+            view.limit(length);
+            return view.slice().order(ByteOrder.nativeOrder());
+        }
+    }
+}
@@ -10,15 +10,19 @@
  */
 package org.zenoss.app.metricservice.api.impl;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.util.EntityUtils;
@@ -26,44 +30,84 @@ import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.core.Response;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.io.InputStream;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class OpenTSDBClient {
+public class OpenTSDBClient implements OpenTSDBTransport {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(OpenTSDBClient.class);
 
     private final DefaultHttpClient httpClient;
     private final String providedURL;
+    private final OpenTSDBTransport transport;
+    private final HttpCompression compression;
+    private final Executor dispatcher;
 
     private static final ObjectMapper objectMapper = Utils.getObjectMapper();
 
+    static final String NO_DATA_MESSAGE = "OpenTSDB query was successful, but no data was returned.";
+
     public OpenTSDBClient(DefaultHttpClient httpClient, String url) {
+        this(httpClient, url, HttpCompression.NONE);
+    }
+
+    /**
+     * Create a client that makes blocking requests to url, compressing them as configured.
+     */
+    public OpenTSDBClient(DefaultHttpClient httpClient, String url, HttpCompression compression) {
         this.httpClient = httpClient;
         this.providedURL = url;
+        this.transport = this;
+        this.compression = compression;
+        this.dispatcher = null;
+    }
+
+    /**
+     * Create a client that sends its queries through the given transport instead of making blocking
+     * requests to url.
+     */
+    public OpenTSDBClient(DefaultHttpClient httpClient, String url, OpenTSDBTransport transport) {
+        this(httpClient, url, transport, null);
+    }
+
+    /**
+     * Create a client that sends its queries through the given transport, issuing the requests a
+     * split query is made of on the dispatcher so that they run concurrently even when the transport
+     * blocks.
+     *
+     * @param dispatcher runs the requests of a split query; null sends them from the calling thread
+     */
+    public OpenTSDBClient(DefaultHttpClient httpClient, String url, OpenTSDBTransport transport, Executor dispatcher) {
+        this.httpClient = httpClient;
+        this.providedURL = url;
+        this.transport = transport;
+        this.compression = HttpCompression.NONE;
+        this.dispatcher = dispatcher;
     }
 
     public SuggestResult suggest(OpenTSDBSuggest suggest) {
         final BasicHttpContext context = new BasicHttpContext();
         final HttpPost httpPost = new HttpPost(providedURL);
-        final String jsonQueryString = Utils.jsonStringFromObject(suggest);
-        StringEntity input;
-        try {
-            input = new StringEntity(jsonQueryString);
-        } catch (UnsupportedEncodingException e) {
-            log.error("UnsupportedEncodingException converting json string {} to StringEntity: {}", jsonQueryString, e.getMessage());
-            throw new IllegalArgumentException("Could not create StringEntity from query.", e);
-        }
-        input.setContentType("application/json");
-        httpPost.setEntity(input);
+        httpPost.setEntity(compression.jsonEntity(Utils.jsonStringFromObject(suggest)));
+        compression.acceptCompressed(httpPost);
         SuggestResult result = new SuggestResult();
         try {
             HttpResponse response = httpClient.execute(httpPost, context);
-            String json = EntityUtils.toString(response.getEntity());
-            result.suggestions = objectMapper.readValue(json, ArrayList.class);
+            result.statusCode = response.getStatusLine().getStatusCode();
+            result.reasonPhrase = response.getStatusLine().getReasonPhrase();
+            result.suggestions = objectMapper.readValue(HttpCompression.content(response.getEntity()), ArrayList.class);
         } catch (IOException e) {
             e.printStackTrace();
+            // an unreadable answer is no answer, whatever its status
+            result.statusCode = 0;
+            result.reasonPhrase = e.getMessage();
         } finally {
             httpPost.releaseConnection();
         }
@@ -94,22 +138,14 @@ public class OpenTSDBClient {
     public RenameResult rename(OpenTSDBRename rename) {
         final BasicHttpContext context = new BasicHttpContext();
         final HttpPost httpPost = new HttpPost(providedURL);
-        final String jsonQueryString = Utils.jsonStringFromObject(rename);
-        StringEntity input;
-        try {
-            input = new StringEntity(jsonQueryString);
-        } catch (UnsupportedEncodingException e) {
-            log.error("UnsupportedEncodingException converting json string {} to StringEntity: {}", jsonQueryString, e.getMessage());
-            throw new IllegalArgumentException("Could not create StringEntity from query.", e);
-        }
-        input.setContentType("application/json");
-        httpPost.setEntity(input);
+        httpPost.setEntity(compression.jsonEntity(Utils.jsonStringFromObject(rename)));
+        compression.acceptCompressed(httpPost);
         RenameResult result = new RenameResult();
         result.request = rename;
         try {
             HttpResponse response = httpClient.execute(httpPost, context);
             StatusLine status = response.getStatusLine();
-            InputStream in = response.getEntity().getContent();
+            InputStream in = HttpCompression.content(response.getEntity());
             OpenTSDBRenameResult content = objectMapper.readValue(in, OpenTSDBRenameResult.class);
             result.reason = content.getError();
             result.code = status.getStatusCode();
@@ -122,107 +158,285 @@ public class OpenTSDBClient {
         return result;
     }
 
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+        return Futures.immediateFuture(query(query));
+    }
+
+    /**
+     * Run a query and wait for it. If the request's latency budget runs out first the query is
+     * cancelled and answered with no series and a WARNING status saying it timed out.
+     */
     public OpenTSDBQueryReturn query(OpenTSDBQuery query, boolean ignoreRateOption, long rateCutoffDate) {
-        ArrayList<OpenTSDBQueryReturn> results = new ArrayList<>();
+        QueryDeadline deadline = QueryDeadline.current();
+        ListenableFuture<OpenTSDBQueryReturn> result = queryAsync(query, ignoreRateOption, rateCutoffDate);
+        try {
+            if (deadline.hasLatencyBudget()) {
+                return deadline.getWithinBudget(result);
+            }
+            return deadline.getUnchecked(result);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            log.debug("Query for {} subqueries ran over the latency budget, giving up on it.", query.queries.size());
+            return new OpenTSDBQueryReturn(new OpenTSDBQueryResult[0], deadline.budgetExceededStatus(metrics(query)));
+        } catch (ExecutionException e) {
+            // the future is done: fail the way getUnchecked does
+            return Futures.getUnchecked(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return queryFailure(new CancellationException("Interrupted waiting for query results"));
+        } catch (CancellationException e) {
+            return queryFailure(e);
+        }
+    }
+
+    private static String metrics(OpenTSDBQuery query) {
+        StringBuilder metrics = new StringBuilder();
+        for (OpenTSDBSubQuery subQuery : query.queries) {
+            if (metrics.length() > 0) {
+                metrics.append(", ");
+            }
+            metrics.append(subQuery.metric);
+        }
+        return metrics.toString();
+    }
+
+    /**
+     * Run a query through this client's transport, splitting rate queries around the rate cutoff date
+     * when ignoreRateOption is set. The requests making up a split query are issued together, on the
+     * client's dispatcher if it has one, and their responses joined in request order. The first one to
+     * come back with an ERROR status, in the order they complete rather than the order they were
+     * issued, completes the returned future with that status and cancels the rest.
+     * <p>
+     * The returned future is cancelled, along with the requests behind it, if the current
+     * {@link QueryDeadline} passes or is cancelled first.
+     */
+    public ListenableFuture<OpenTSDBQueryReturn> queryAsync(OpenTSDBQuery query, boolean ignoreRateOption, long rateCutoffDate) {
+        QueryDeadline deadline = QueryDeadline.current();
+        if (deadline.isCancelled()) {
+            return Futures.immediateFuture(queryFailure(new CancellationException(deadline.getCancelReason())));
+        }
+        List<OpenTSDBQuery> requests = new ArrayList<>();
         log.debug("ignoreRateOption is {}", ignoreRateOption);
-        log.debug("rateCutoffDate is {}", rateCutoffDate);
         if (ignoreRateOption) {
+            requests.addAll(splitRateQueries(query, rateCutoffDate));
+        }
+        int rateRequestCount = requests.size();
+        if (!query.queries.isEmpty()) {
+            requests.add(query);
+        }
+        SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        deadline.track(result);
+        executeConcurrently(requests, rateRequestCount, result);
+        return result;
+    }
+
+    /**
+     * Remove the rate queries that cannot be answered with rate=true from the query and return the pre/post
+     * cutoff requests that replace them. Rate queries entirely after the cutoff date have their rate option
+     * cleared and stay in the original query.
+     */
+    private List<OpenTSDBQuery> splitRateQueries(OpenTSDBQuery query, long rateCutoffDate) {
+        log.debug("rateCutoffDate is {}", rateCutoffDate);
 
-            //does query spans cutoff date
-            boolean spansCutoff = false;
-            //is query for time period before cutoff date
-            boolean preCutoff = false;
-            try {
-                long startTs = Utils.parseDate(query.start);
-                long endTs = Utils.parseDate(query.end);
-                log.debug("start timestamp is {} - {}", query.start, startTs);
-                log.debug("end timestamp is {} - {}", query.end, endTs);
-                long rateCutoffDateSeconds = Utils.parseDate(String.valueOf(rateCutoffDate));
-		if (rateCutoffDateSeconds > startTs && rateCutoffDateSeconds < endTs) {
-		    spansCutoff = true;
-		}else if (rateCutoffDateSeconds > startTs) {
-		    preCutoff = true;
-		}
-            } catch (ParseException e) {
-                e.printStackTrace();
+        //does query spans cutoff date
+        boolean spansCutoff = false;
+        //is query for time period before cutoff date
+        boolean preCutoff = false;
+        try {
+            long startTs = Utils.parseDate(query.start);
+            long endTs = Utils.parseDate(query.end);
+            log.debug("start timestamp is {} - {}", query.start, startTs);
+            log.debug("end timestamp is {} - {}", query.end, endTs);
+            long rateCutoffDateSeconds = Utils.parseDate(String.valueOf(rateCutoffDate));
+            if (rateCutoffDateSeconds > startTs && rateCutoffDateSeconds < endTs) {
+                spansCutoff = true;
+            } else if (rateCutoffDateSeconds > startTs) {
+                preCutoff = true;
             }
+        } catch (ParseException e) {
+            e.printStackTrace();
+        }
 
-            log.debug("spans is {} precutoff is {}", spansCutoff, preCutoff);
-
-            ArrayList<OpenTSDBSubQuery> cutoffQueries = new ArrayList<>();
-            Iterator<OpenTSDBSubQuery> iter = query.queries.iterator();
-            // find rate queries and remove if spanning cutoff otherwise just remove rate option
-            while (iter.hasNext()) {
-                OpenTSDBSubQuery q = iter.next();
-                if (q.rate) {
-                    if (spansCutoff || preCutoff) {
-                        cutoffQueries.add(q);
-                        iter.remove();
-                    } else {
-                        q.rate = false;
-                    }
+        log.debug("spans is {} precutoff is {}", spansCutoff, preCutoff);
+
+        ArrayList<OpenTSDBSubQuery> cutoffQueries = new ArrayList<>();
+        Iterator<OpenTSDBSubQuery> iter = query.queries.iterator();
+        // find rate queries and remove if spanning cutoff otherwise just remove rate option
+        while (iter.hasNext()) {
+            OpenTSDBSubQuery q = iter.next();
+            if (q.rate) {
+                if (spansCutoff || preCutoff) {
+                    cutoffQueries.add(q);
+                    iter.remove();
+                } else {
+                    q.rate = false;
                 }
             }
-            if (cutoffQueries.size() > 0) {
-                //we have rate queries and they span the cutoff date
-                //create a new query, one for pre cutoff and one for post cutoff
-                //if original query still has sub queries (gauges) make that request as well
-                ArrayList<OpenTSDBQueryReturn> responses = new ArrayList<>(2);
-                for (OpenTSDBSubQuery q : cutoffQueries) {
-                    OpenTSDBQuery preCutoffQ = new OpenTSDBQuery();
-                    preCutoffQ.start = query.start;
-                    //If query spans cutoff use cutoff as the end, otherwise query ends before cutoffdate
-                    if (spansCutoff) {
-                        preCutoffQ.end = String.valueOf(rateCutoffDate);
-                    } else {
-                        preCutoffQ.end = query.end;
-                    }
-                    preCutoffQ.addSubQuery(q);
-                    OpenTSDBQueryReturn preResult = this.query(preCutoffQ);
-                    if (preResult.getStatus().getStatus() == QueryStatus.QueryStatusEnum.ERROR) {
-                        return preResult;
-                    }
-                    results.add(preResult);
-                    if (spansCutoff) {
-                        OpenTSDBQueryReturn postResult = null;
-                        OpenTSDBQuery postCutoff = new OpenTSDBQuery();
-                        postCutoff.start = String.valueOf(rateCutoffDate);
-                        postCutoff.end = query.end;
-
-
-                        OpenTSDBSubQuery postQ = new OpenTSDBSubQuery();
-                        //post cutoff queries are stored as already calculated rates
-                        postQ.rate = false;
-                        postQ.rateOptions = q.rateOptions;
-                        postQ.aggregator = q.aggregator;
-                        postQ.metric = q.metric;
-                        postQ.downsample = q.downsample;
-                        postQ.tags = q.tags;
-                        postQ.filters = q.filters;
-                        postCutoff.addSubQuery(postQ);
-                        postResult = this.query(postCutoff);
-
-                        if (postResult.getStatus().getStatus() == QueryStatus.QueryStatusEnum.ERROR) {
-                            return postResult;
-                        }
-                        results.add(postResult);
+        }
+
+        //we have rate queries and they span the cutoff date
+        //create a new query, one for pre cutoff and one for post cutoff
+        List<OpenTSDBQuery> requests = new ArrayList<>(cutoffQueries.size() * 2);
+        for (OpenTSDBSubQuery q : cutoffQueries) {
+            OpenTSDBQuery preCutoffQ = new OpenTSDBQuery();
+            preCutoffQ.start = query.start;
+            //If query spans cutoff use cutoff as the end, otherwise query ends before cutoffdate
+            if (spansCutoff) {
+                preCutoffQ.end = String.valueOf(rateCutoffDate);
+            } else {
+                preCutoffQ.end = query.end;
+            }
+            preCutoffQ.addSubQuery(q);
+            requests.add(preCutoffQ);
+            if (spansCutoff) {
+                OpenTSDBQuery postCutoff = new OpenTSDBQuery();
+                postCutoff.start = String.valueOf(rateCutoffDate);
+                postCutoff.end = query.end;
+
+                OpenTSDBSubQuery postQ = new OpenTSDBSubQuery();
+                //post cutoff queries are stored as already calculated rates
+                postQ.rate = false;
+                postQ.rateOptions = q.rateOptions;
+                postQ.aggregator = q.aggregator;
+                postQ.metric = q.metric;
+                postQ.downsample = q.downsample;
+                postQ.tags = q.tags;
+                postQ.filters = q.filters;
+                postCutoff.addSubQuery(postQ);
+                requests.add(postCutoff);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Whether, with ignoreRateOption set, rate queries starting at start are split around the rate
+     * cutoff date because the query spans or precedes it.
+     */
+    static boolean splitsAroundRateCutoff(String start, long rateCutoffDate) {
+        try {
+            return Utils.parseDate(String.valueOf(rateCutoffDate)) > Utils.parseDate(start);
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private void executeConcurrently(final List<OpenTSDBQuery> requests, final int rateRequestCount,
+                                     final SettableFuture<OpenTSDBQueryReturn> result) {
+        if (requests.isEmpty()) {
+            result.set(assemble(Collections.<OpenTSDBQueryReturn>emptyList(), rateRequestCount));
+            return;
+        }
+        final OpenTSDBQueryReturn[] responses = new OpenTSDBQueryReturn[requests.size()];
+        final AtomicInteger remaining = new AtomicInteger(requests.size());
+        final List<ListenableFuture<OpenTSDBQueryReturn>> pending = new ArrayList<>(requests.size());
+        List<DispatchedQuery> dispatched = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size() && !result.isDone(); i++) {
+            final int index = i;
+            ListenableFuture<OpenTSDBQueryReturn> response;
+            if (null != dispatcher && requests.size() > 1) {
+                DispatchedQuery request = dispatch(requests.get(i));
+                dispatched.add(request);
+                response = request.response;
+            } else {
+                response = transport.execute(requests.get(i));
+            }
+            pending.add(response);
+            Futures.addCallback(response, new FutureCallback<OpenTSDBQueryReturn>() {
+                @Override
+                public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                    if (queryReturn.getStatus().getStatus() == QueryStatus.QueryStatusEnum.ERROR) {
+                        result.set(queryReturn);
+                        return;
                     }
-                    if (results.size()>1) {
-                        OpenTSDBQueryReturn merged = this.mergeResults(results.toArray(new OpenTSDBQueryReturn[2]));
-                        results.clear();
-                        results.add(merged);
+                    responses[index] = queryReturn;
+                    if (remaining.decrementAndGet() == 0) {
+                        result.set(assemble(Arrays.asList(responses), rateRequestCount));
                     }
-                    responses.clear();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    result.setException(t);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+        // once one request has failed (or the caller gave up) the others are of no use
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                for (ListenableFuture<OpenTSDBQueryReturn> response : pending) {
+                    response.cancel(true);
                 }
             }
+        }, MoreExecutors.sameThreadExecutor());
+        // send whatever the dispatcher has not got round to from here, so that a query run on the
+        // dispatcher never waits for requests queued behind it
+        for (DispatchedQuery request : dispatched) {
+            request.run();
         }
-        if (!query.queries.isEmpty()) {
-            OpenTSDBQueryReturn result = this.query(query);
-            if (result.getStatus().getStatus() == QueryStatus.QueryStatusEnum.ERROR) {
-                return result;
+    }
+
+    private DispatchedQuery dispatch(OpenTSDBQuery query) {
+        DispatchedQuery request = new DispatchedQuery(query);
+        try {
+            dispatcher.execute(request);
+        } catch (RejectedExecutionException e) {
+            log.debug("Dispatcher rejected a split query request, sending it from the calling thread.");
+        }
+        return request;
+    }
+
+    /**
+     * A request of a split query, sent by whichever of the dispatcher and the calling thread gets to
+     * it first, in the request it was made for.
+     */
+    private final class DispatchedQuery implements Runnable {
+        final OpenTSDBQuery query;
+        final QueryDeadline deadline = QueryDeadline.current();
+        final SettableFuture<OpenTSDBQueryReturn> response = SettableFuture.create();
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        DispatchedQuery(OpenTSDBQuery query) {
+            this.query = query;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true) || response.isDone()) {
+                return;
             }
-            results.add(result);
+            try (QueryDeadline.Scope scope = deadline.enter()) {
+                Futures.addCallback(transport.execute(query), new FutureCallback<OpenTSDBQueryReturn>() {
+                    @Override
+                    public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                        response.set(queryReturn);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        response.setException(t);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            } catch (RuntimeException e) {
+                response.setException(e);
+            }
+        }
+    }
+
+    /**
+     * Join the responses of the split rate requests (the first rateRequestCount responses) into one,
+     * then combine them with the responses of the remaining requests.
+     */
+    private OpenTSDBQueryReturn assemble(List<OpenTSDBQueryReturn> responses, int rateRequestCount) {
+        List<OpenTSDBQueryReturn> results = new ArrayList<>(responses.size());
+        if (rateRequestCount > 1) {
+            results.add(this.mergeResults(responses.subList(0, rateRequestCount)));
+        } else if (rateRequestCount == 1) {
+            results.add(responses.get(0));
         }
+        results.addAll(responses.subList(rateRequestCount, responses.size()));
         return this.combine(results);
     }
 
@@ -239,99 +453,113 @@ public class OpenTSDBClient {
         return new OpenTSDBQueryReturn(finalResults, new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, ""));
     }
 
-    private OpenTSDBQueryReturn mergeResults(OpenTSDBQueryReturn... result) {
-        //Join the results of one metric query that has been split,
-        // every query can return multiple results so make a key from the metricname and aggregated tags
-        Map<String, OpenTSDBQueryResult> results = new HashMap<>();
-//        OpenTSDBQueryReturn[] both = new OpenTSDBQueryReturn[]{preCutoff, postCutoff};
-        for (OpenTSDBQueryReturn input : result) {
-            for (OpenTSDBQueryResult x : input.getResults()) {
-                TreeMap<String, String> tags = new TreeMap<>(x.tags);
-                String key = x.metric + tags;
-                if (!results.containsKey(key)) {
-                    results.put(key, x);
-                } else {
-                    results.get(key).getDataPoints().putAll(x.getDataPoints());
-                }
-            }
+    private OpenTSDBQueryReturn mergeResults(List<OpenTSDBQueryReturn> responses) {
+        //Join the results of one metric query that has been split; every query can return multiple
+        // results, so the parts are matched up by metric name and tags
+        List<OpenTSDBQueryResult> parts = new ArrayList<>();
+        for (OpenTSDBQueryReturn input : responses) {
+            parts.addAll(input.getResults());
+        }
+        Map<SeriesMerger.Key, List<OpenTSDBQueryResult>> series = SeriesMerger.group(parts);
+        List<OpenTSDBQueryResult> merged = new ArrayList<>(series.size());
+        for (List<OpenTSDBQueryResult> seriesParts : series.values()) {
+            merged.add(SeriesMerger.merge(seriesParts));
         }
-        OpenTSDBQueryResult[] finalResults = results.values().toArray(new OpenTSDBQueryResult[results.size()]);
+        OpenTSDBQueryResult[] finalResults = merged.toArray(new OpenTSDBQueryResult[merged.size()]);
         return new OpenTSDBQueryReturn(finalResults, new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, ""));
     }
 
     private OpenTSDBQueryReturn query(OpenTSDBQuery query) {
         final BasicHttpContext context = new BasicHttpContext();
         final HttpPost httpPost = new HttpPost(providedURL);
+        httpPost.setEntity(createQueryEntity(query, compression));
+        compression.acceptCompressed(httpPost);
+
+        OpenTSDBQueryReturn result;
+        HttpResponse response = null;
+        try (QueryDeadline.Registration registration = QueryDeadline.current().track(httpPost)) {
+            response = httpClient.execute(httpPost, context);
+            result = readQueryResponse(response);
+        } catch (IOException e) {
+            result = queryFailure(e);
+        } finally {
+            if (null != response) {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+            log.debug("releasing connection.");
+            httpPost.releaseConnection();
+        }
+        return result;
+    }
 
+    static HttpEntity createQueryEntity(OpenTSDBQuery query, HttpCompression compression) {
         final String jsonQueryString = Utils.jsonStringFromObject(query);
         log.trace("query is {}", jsonQueryString);
-        StringEntity input;
-        try {
-            input = new StringEntity(jsonQueryString);
-        } catch (UnsupportedEncodingException e) {
-            log.error("UnsupportedEncodingException converting json string {} to StringEntity: {}", jsonQueryString, e.getMessage());
-            throw new IllegalArgumentException("Could not create StringEntity from query.", e);
-        }
-        input.setContentType("application/json");
-        httpPost.setEntity(input);
+        return compression.jsonEntity(jsonQueryString);
+    }
 
+    /**
+     * Convert an /api/query response into results and a status. The caller is responsible for
+     * consuming the response entity.
+     */
+    static OpenTSDBQueryReturn readQueryResponse(HttpResponse response) throws IOException {
         QueryStatus queryStatus = null;
-        HttpEntity entity = null;
         OpenTSDBQueryResult[] resultArray = new OpenTSDBQueryResult[]{};
-        try {
-            HttpResponse response = httpClient.execute(httpPost, context);
-            StatusLine status = response.getStatusLine();
-            if (status.getStatusCode() != Response.Status.OK.getStatusCode()) {
-                String message = status.getReasonPhrase();
-                entity = response.getEntity();
-                if (null != entity) {
-                    String content = EntityUtils.toString(response.getEntity());
-                    OpenTSDBErrorResponse tsdbResponse = Utils.getObjectMapper().readValue(content, OpenTSDBErrorResponse.class);
-                    log.info("Response code {}, message: {}", tsdbResponse.error.code, tsdbResponse.error.message);
-                    log.debug("Response object: {}", Utils.jsonStringFromObject(tsdbResponse));
-                    message = tsdbResponse.error.message;
-                } else {
-                    log.info("HTTP Execute returned status {}. Reason: {}", status.getStatusCode(), status.getReasonPhrase());
-                }
-                queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR, message);
+        StatusLine status = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        if (status.getStatusCode() != Response.Status.OK.getStatusCode()) {
+            String message = status.getReasonPhrase();
+            if (null != entity) {
+                OpenTSDBErrorResponse tsdbResponse = Utils.getObjectMapper().readValue(HttpCompression.content(entity), OpenTSDBErrorResponse.class);
+                log.info("Response code {}, message: {}", tsdbResponse.error.code, tsdbResponse.error.message);
+                log.debug("Response object: {}", Utils.jsonStringFromObject(tsdbResponse));
+                message = tsdbResponse.error.message;
             } else {
-                entity = response.getEntity();
-                String contentString = EntityUtils.toString(entity);
+                log.info("HTTP Execute returned status {}. Reason: {}", status.getStatusCode(), status.getReasonPhrase());
+            }
+            queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR, message);
+        } else {
+            if (null != entity) {
                 try {
-                    resultArray = Utils.getObjectMapper().readValue(contentString, OpenTSDBQueryResult[].class);
-                } catch (IOException e) {
-                    log.warn("Unable to parse HTTP response as OpenTSDBQueryResult.");
+                    resultArray = OpenTSDBQueryResultParser.parse(HttpCompression.content(entity));
+                } catch (JsonProcessingException e) {
+                    log.warn("Unable to parse HTTP response as OpenTSDBQueryResult: {}", e.getMessage());
                     queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.WARNING,
-                            String.format("Could not parse content as OpenTSDBQueryResult[]. Content: \"%s\"", contentString));
-                }
-                if (null != resultArray && resultArray.length > 0) {
-                    queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, "");
-                }
-                if (null == queryStatus) {
-                    queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.WARNING, "OpenTSDB query was successful, but no data was returned.");
+                            String.format("Could not parse content as OpenTSDBQueryResult[]: %s", e.getOriginalMessage()));
                 }
             }
-        } catch (ClientProtocolException e) {
-            log.error("ClientProtocolException executing and processing query: {}", e.getMessage());
-            if (log.isDebugEnabled()) {
-                log.debug("IOException stack trace: {}", e.getStackTrace());
+            if (null != resultArray && resultArray.length > 0) {
+                queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, "");
             }
-            queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR,
-                    String.format("%s executing and processing query: %s", e.getClass().getName(), e.getMessage()));
-        } catch (IOException e) {
-            log.error("IOException executing and processing query: {}", e.getMessage());
-            if (log.isDebugEnabled()) {
-                log.debug("IOException stack trace: {}", e.getStackTrace());
+            if (null == queryStatus) {
+                queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.WARNING, NO_DATA_MESSAGE);
             }
-            queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR,
-                    String.format("%s executing and processing query: %s", e.getClass().getName(), e.getMessage()));
-        } finally {
-            EntityUtils.consumeQuietly(entity);
-            log.debug("releasing connection.");
-            httpPost.releaseConnection();
         }
-
         return new OpenTSDBQueryReturn(resultArray, queryStatus);
     }
+
+    /**
+     * @return true if a query completed, with or without data
+     */
+    static boolean isSuccessOrNoData(QueryStatus status) {
+        switch (status.getStatus()) {
+            case SUCCESS:
+                return true;
+            case WARNING:
+                return NO_DATA_MESSAGE.equals(status.getMessage());
+            default:
+                return false;
+        }
+    }
+
+    static OpenTSDBQueryReturn queryFailure(Exception e) {
+        log.error("{} executing and processing query: {}", e.getClass().getSimpleName(), e.getMessage());
+        if (log.isDebugEnabled()) {
+            log.debug("{} stack trace: {}", e.getClass().getSimpleName(), e.getStackTrace());
+        }
+        QueryStatus queryStatus = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR,
+                String.format("%s executing and processing query: %s", e.getClass().getName(), e.getMessage()));
+        return new OpenTSDBQueryReturn(new OpenTSDBQueryResult[]{}, queryStatus, true);
+    }
 }
 
@@ -30,11 +30,21 @@
  */
 package org.zenoss.app.metricservice.api.impl;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.slf4j.Logger;
@@ -52,23 +62,32 @@ import org.zenoss.app.metricservice.api.model.v2.*;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 @API
@@ -82,67 +101,171 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
 
     private static final String SOURCE_ID = "OpenTSDB";
     private static final int RETRY_CT = 2; // Retry count
+    // how often a prefix rename checks whether the search for names has ended
+    private static final long RENAME_POLL_MS = 100;
 
-    private static ExecutorService executorServiceInstance = null;
+    private static ThreadPoolExecutor executorServiceInstance = null;
+    // decides the order in which query and rename tasks get to the executor, when enabled
+    private ExecutorService schedulingExecutor = null;
 
     static final String SPACE_REPLACEMENT = "//-";
     private DefaultHttpClient httpClient = null;
+    private CloseableHttpAsyncClient asyncHttpClient = null;
+    private OpenTSDBTransport queryTransport = null;
+    private ScheduledExecutorService hedgeScheduler = null;
+    private ScheduledExecutorService tenantRateTimer = null;
+    private ExecutorService shardExecutor = null;
+    // runs prefix renames apart from queries, when enabled
+    private ThreadPoolExecutor renameExecutor = null;
+    private AdaptiveConcurrencyLimit renameLimit = null;
+    private HttpCompression httpCompression = HttpCompression.NONE;
 
     @Override
     public void renamePrefix(RenameRequest renameRequest, Writer writer) {
+        RenameJournal journal;
+        try {
+            journal = openRenameJournal(renameRequest.getType(), renameRequest.getOldName(), renameRequest.getNewName());
+        } catch (RenameJournal.InUseException e) {
+            // the same rename would change the same names and write to the same journal
+            RenameLogMsg refused = new RenameLogMsg();
+            refused.setType(RenameLogMsg.TYPE_ERROR);
+            refused.setContent(e.getMessage());
+            log.warn(refused.getContent());
+            try {
+                writer.write(Utils.jsonStringFromObject(refused) + "\n");
+            } catch (IOException ioe) {
+                log.error("Error while writing the progress of renaming tasks: {}", ioe.getMessage());
+            }
+            return;
+        }
+        try {
+            renamePrefix(renameRequest, writer, journal);
+        } finally {
+            if (null != journal) {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    log.warn("Error while closing rename journal {}: {}", journal.getFile(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void renamePrefix(RenameRequest renameRequest, Writer writer, final RenameJournal journal) {
         OpenTSDBClient renameClient =
-                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiRenameUrl());
+                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiRenameUrl(), httpCompression);
         OpenTSDBClient suggestClient =
-                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiSuggestUrl());
-        OpenTSDBClient dropCacheClient =
-            new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiDropCacheUrl());
-        OpenTSDBClient dropWriterCacheClient =
-            new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiDropWriterCacheUrl());
+                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiSuggestUrl(), httpCompression);
 
 
         final String oldPrefix = renameRequest.getOldName();
         final String newPrefix = renameRequest.getNewName();
         final String type = renameRequest.getType();
 
-        ExecutorService executorService = getExecutorService();
-        CompletionService<RenameResult> renameCompletionService =
+        final ExecutorService executorService = getRenameExecutorService();
+        final CompletionService<RenameResult> renameCompletionService =
                 new ExecutorCompletionService<>(executorService);
+        final OpenTSDBClient client = renameClient;
+
+        // new names the old prefix also matches, so that renamed names found again are left alone
+        final Set<String> renamedTo = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger nTasks = new AtomicInteger();
+        SuggestEnumerator.Listener renamer = new SuggestEnumerator.Listener() {
+            @Override
+            public void found(String s) {
+                if (renamedTo.contains(s) || (null != journal && journal.isDone(s))) {
+                    return;
+                }
+                String replace = s.replaceFirst(oldPrefix, newPrefix);
+                if (replace.startsWith(oldPrefix)) {
+                    renamedTo.add(replace);
+                }
+                if (null != journal) {
+                    try {
+                        journal.plan(s);
+                    } catch (IOException e) {
+                        log.warn("Could not journal the plan to rename {}: {}", s, e.getMessage());
+                    }
+                }
+                final OpenTSDBRename renameReq = new OpenTSDBRename();
 
-        OpenTSDBSuggest otsdbSuggestRequest = new OpenTSDBSuggest();
+                if (type.equals(RenameRequest.TYPE_METRIC)) {
+                    renameReq.metric = s;
+                } else if (type.equals(RenameRequest.TYPE_TAGV)) {
+                    renameReq.tagv = s;
+                }
 
-        if (type.equals(RenameRequest.TYPE_METRIC)) {
-            otsdbSuggestRequest.type = OpenTSDBSuggest.TYPE_METRIC;
-        } else if (type.equals(RenameRequest.TYPE_TAGV)) {
-            otsdbSuggestRequest.type = OpenTSDBSuggest.TYPE_TAGV;
+                renameReq.name = replace;
+                renameCompletionService.submit(new RenameTask(client, renameReq, renameLimit, journal));
+                nTasks.incrementAndGet();
+            }
+        };
+
+        // Rename names as they are found, unless an interrupted attempt already found them all.
+        ListenableFuture<SuggestEnumerator.Result> enumeration;
+        if (null != journal && journal.getDoneCount() > 0) {
+            RenameLogMsg resumed = new RenameLogMsg();
+            resumed.setType(RenameLogMsg.TYPE_INFO);
+            resumed.setContent(
+                    String.format(
+                            "Resuming rename of %s prefix %s to %s: %d already renamed.",
+                            type,
+                            oldPrefix,
+                            newPrefix,
+                            journal.getDoneCount()
+                    )
+            );
+            log.info(resumed.getContent());
+            try {
+                writer.write(Utils.jsonStringFromObject(resumed) + "\n");
+            } catch (IOException e) {
+                log.error("Error while writing the progress of renaming tasks: {}", e.getMessage());
+            }
         }
-
-        otsdbSuggestRequest.q = oldPrefix;
-        SuggestResult suggestResult = suggestClient.suggest(otsdbSuggestRequest);
-        ArrayList<String> suggestions = suggestResult.suggestions;
-
-        for (String s : suggestions) {
-            String replace = s.replaceFirst(oldPrefix, newPrefix);
-            final OpenTSDBRename renameReq = new OpenTSDBRename();
-
+        if (null != journal && journal.isPlanComplete()) {
+            for (String s : journal.getPlanned()) {
+                renamer.found(s);
+            }
+            enumeration = Futures.immediateFuture(null);
+        } else {
+            if (null != journal) {
+                for (String s : journal.getDone()) {
+                    String replace = s.replaceFirst(oldPrefix, newPrefix);
+                    if (replace.startsWith(oldPrefix)) {
+                        renamedTo.add(replace);
+                    }
+                }
+            }
+            String suggestType = null;
             if (type.equals(RenameRequest.TYPE_METRIC)) {
-                renameReq.metric = s;
+                suggestType = OpenTSDBSuggest.TYPE_METRIC;
             } else if (type.equals(RenameRequest.TYPE_TAGV)) {
-                renameReq.tagv = s;
+                suggestType = OpenTSDBSuggest.TYPE_TAGV;
             }
-
-            renameReq.name = replace;
-            renameCompletionService.submit(new RenameTask(renameClient, renameReq));
+            SuggestEnumerator enumerator = new SuggestEnumerator(suggestClient, executorService,
+                    config.getMetricServiceConfig().getSuggestPageSize());
+            enumeration = enumerator.enumerate(suggestType, oldPrefix, renamer);
         }
 
-        // Process the result from each rename task.
-        int nTasks = suggestions.size();
+        // Process the result from each rename task, until every name found has been renamed.
         RenameLogMsg msg = new RenameLogMsg();
-        for (int i = 1; i < nTasks + 1; i++) {
+        int completed = 0;
+        while (true) {
             try {
-                final Future<RenameResult> result = renameCompletionService.take();
+                // check for the end of the search first, so that no task it started goes uncounted
+                boolean enumerated = enumeration.isDone();
+                if (enumerated && completed >= nTasks.get()) {
+                    break;
+                }
+                final Future<RenameResult> result = renameCompletionService.poll(RENAME_POLL_MS, TimeUnit.MILLISECONDS);
+                if (null == result) {
+                    continue;
+                }
+                completed++;
+                int total = nTasks.get();
 
                 // Write the progress.
-                int percent = (int) ((float) i / nTasks * 100);
+                int percent = (int) ((float) completed / total * 100);
 
                 msg.setType(RenameLogMsg.TYPE_PROGRESS);
                 msg.setContent(
@@ -151,8 +274,8 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
                                 type,
                                 oldPrefix,
                                 newPrefix,
-                                i,
-                                nTasks,
+                                completed,
+                                total,
                                 percent
                         )
                 );
@@ -208,6 +331,8 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
                         "Error while processing a renaming task result: {}",
                         e.getMessage()
                 );
+                Thread.currentThread().interrupt();
+                break;
             } catch (ExecutionException e) {
                 log.error(
                         "Error while processing a renaming task result: {}",
@@ -227,28 +352,47 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
                 oldPrefix,
                 newPrefix
         );
-
-        // No. of dropcache calls to make after renaming.
-        // Just in case there are multiple OpenTSDB servers, make several requests
-        // in order to hit all of them, although it does not gurantee that all of
-        // them will be hit.
-        for (int i = 0; i < config.getMetricServiceConfig().getDropCacheTries(); i++) {
-            log.info("Making a dropcaches request at {}: request {}", getOpenTSDBApiDropCacheUrl(), i+1);
-            dropCacheClient.dropCache(getOpenTSDBApiDropCacheUrl());
-            log.info("Making a dropcaches request at {}: request {}", getOpenTSDBApiDropWriterCacheUrl(), i+1);
-            dropWriterCacheClient.dropCache(getOpenTSDBApiDropWriterCacheUrl());
+        SuggestEnumerator.Result found = enumeration.isDone() ? Futures.getUnchecked(enumeration) : null;
+        if (null != found && !found.isComplete()) {
+            msg.setType(RenameLogMsg.TYPE_ERROR);
+            msg.setContent(
+                    String.format(
+                            "Couldn't look up every %s name under prefix %s: %d out of %d suggest requests failed.",
+                            type,
+                            oldPrefix,
+                            found.getFailedRequests(),
+                            found.getRequests()
+                    )
+            );
+            log.error(msg.getContent());
+            try {
+                writer.write(Utils.jsonStringFromObject(msg) + "\n");
+            } catch (IOException e) {
+                log.error("Error while writing the progress of renaming tasks: {}", e.getMessage());
+            }
+        }
+        if (null != journal) {
+            try {
+                if (null != found && found.isComplete()) {
+                    journal.planComplete();
+                }
+                if (!journal.finish()) {
+                    log.warn("Some {} names under prefix {} were not renamed; renaming it again retries them from {}",
+                            type, oldPrefix, journal.getFile());
+                }
+            } catch (IOException e) {
+                log.warn("Error while closing rename journal {}: {}", journal.getFile(), e.getMessage());
+            }
         }
+
+        dropCaches(writer);
     }
 
     @Override
     public void renameWhole(RenameRequest renameRequest, Writer writer) {
 
         OpenTSDBClient renameClient =
-                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiRenameUrl());
-        OpenTSDBClient dropCacheClient =
-            new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiDropCacheUrl());
-        OpenTSDBClient dropWriterCacheClient =
-            new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiDropWriterCacheUrl());
+                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiRenameUrl(), httpCompression);
 
         final String type = renameRequest.getType();
         final String oldName = renameRequest.getOldName();
@@ -327,36 +471,156 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
             }
         } 
 
-        for (int i = 0; i < config.getMetricServiceConfig().getDropCacheTries(); i++) {
-            log.info("Making a dropcaches request at {}: request {}", getOpenTSDBApiDropCacheUrl(), i+1);
-            dropCacheClient.dropCache(getOpenTSDBApiDropCacheUrl());
-            log.info("Making a dropcaches request at {}: request {}", getOpenTSDBApiDropWriterCacheUrl(), i+1);
-            dropWriterCacheClient.dropCache(getOpenTSDBApiDropWriterCacheUrl());
+        dropCaches(writer);
+    }
+
+    /*
+     * Make OpenTSDB forget the names it has cached after a rename. With dropCacheUrls listed, report on
+     * the rename stream which instances did and how long that took.
+     */
+    private void dropCaches(Writer writer) {
+        MetricServiceConfig conf = config.getMetricServiceConfig();
+        List<String> instances = conf.getDropCacheUrls();
+        List<RenameLogMsg> messages = new ArrayList<>();
+        long started = System.nanoTime();
+        if (instances.isEmpty()) {
+            OpenTSDBClient dropCacheClient =
+                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiDropCacheUrl(), httpCompression);
+            OpenTSDBClient dropWriterCacheClient =
+                new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiDropWriterCacheUrl(), httpCompression);
+
+            // No. of dropcache calls to make after renaming.
+            // Just in case there are multiple OpenTSDB servers, make several requests
+            // in order to hit all of them, although it does not gurantee that all of
+            // them will be hit.
+            for (int i = 0; i < conf.getDropCacheTries(); i++) {
+                log.info("Making a dropcaches request at {}: request {}", getOpenTSDBApiDropCacheUrl(), i+1);
+                dropCacheClient.dropCache(getOpenTSDBApiDropCacheUrl());
+                log.info("Making a dropcaches request at {}: request {}", getOpenTSDBApiDropWriterCacheUrl(), i+1);
+                dropWriterCacheClient.dropCache(getOpenTSDBApiDropWriterCacheUrl());
+            }
+            // the rename stream stays as it always was here; the timing only goes to the log
+            log.info("Made {} dropcaches requests in {} ms.", 2 * conf.getDropCacheTries(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        } else {
+            List<String> dropCacheUrls = new ArrayList<>(instances.size());
+            for (String instance : instances) {
+                dropCacheUrls.add(String.format("%s/api/dropcaches", instance));
+            }
+            CacheInvalidator invalidator = new CacheInvalidator(
+                    new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiDropCacheUrl(), httpCompression),
+                    getRenameExecutorService(), conf.getDropCacheTries(), conf.getDropCacheBackoffMs());
+            try {
+                CacheInvalidator.Result result = invalidator.invalidate(dropCacheUrls);
+                for (CacheInvalidator.Instance instance : result.getInstances()) {
+                    if (!instance.isDropped()) {
+                        messages.add(renameLogMsg(RenameLogMsg.TYPE_ERROR, String.format(
+                                "Couldn't drop the OpenTSDB caches at %s after %d attempts: %s",
+                                instance.getUrl(),
+                                instance.getAttempts(),
+                                instance.getReason())));
+                    }
+                }
+                messages.add(renameLogMsg(RenameLogMsg.TYPE_INFO, String.format(
+                        "Dropped OpenTSDB caches on %d out of %d instances in %d ms.",
+                        result.getDroppedCount(),
+                        dropCacheUrls.size(),
+                        result.getElapsedMs())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                messages.add(renameLogMsg(RenameLogMsg.TYPE_ERROR, "Interrupted while dropping OpenTSDB caches."));
+            }
+        }
+        for (RenameLogMsg msg : messages) {
+            log.info(msg.getContent());
+            try {
+                writer.write(Utils.jsonStringFromObject(msg) + "\n");
+            } catch (IOException e) {
+                log.error("Error while writing the progress of renaming tasks: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static RenameLogMsg renameLogMsg(String type, String content) {
+        RenameLogMsg msg = new RenameLogMsg();
+        msg.setType(type);
+        msg.setContent(content);
+        return msg;
+    }
+
+    private ExecutorService getRenameExecutorService() {
+        return null != renameExecutor ? renameExecutor : getExecutorService();
+    }
+
+    private RenameJournal openRenameJournal(String type, String oldPrefix, String newPrefix) throws RenameJournal.InUseException {
+        String journalDir = config.getMetricServiceConfig().getRenameJournalDir();
+        if (null == journalDir || journalDir.isEmpty()) {
+            return null;
+        }
+        try {
+            return RenameJournal.open(new File(journalDir), type, oldPrefix, newPrefix);
+        } catch (RenameJournal.InUseException e) {
+            throw e;
+        } catch (IOException e) {
+            log.warn("Not journaling the rename of {} prefix {}: {}", type, oldPrefix, e.getMessage());
+            return null;
         }
     }
 
     class RenameTask implements Callable<RenameResult> {
         private final OpenTSDBClient client;
         private final OpenTSDBRename renameReq;
-
-        public RenameTask(OpenTSDBClient client, OpenTSDBRename renameReq) {
+        private final AdaptiveConcurrencyLimit limit;
+        private final RenameJournal journal;
+
+        /**
+         * @param limit   throttles the rename requests by OpenTSDB latency; null not to throttle
+         * @param journal records the rename once done; null to keep no record
+         */
+        public RenameTask(OpenTSDBClient client, OpenTSDBRename renameReq, AdaptiveConcurrencyLimit limit, RenameJournal journal) {
             this.client = client;
             this.renameReq = renameReq;
+            this.limit = limit;
+            this.journal = journal;
         }
 
         @Override
-        public RenameResult call() {
+        public RenameResult call() throws InterruptedException {
             RenameResult renameResult = new RenameResult();
             for (int x = 0; x < RETRY_CT; x++) {
-                renameResult = client.rename(renameReq);
+                renameResult = rename();
                 if (renameResult.code == 200) {
                     break;
                 } else if (renameResult.code < 500) {
                     break; // shouldn't retry on 400-level statuses
                 }
             }
+            if (null != journal && ((renameResult.code >= 200 && renameResult.code <= 299)
+                    || (null != renameResult.reason && renameResult.reason.contains("does not exist")))) {
+                String oldName = null == renameReq.metric ? renameReq.tagv : renameReq.metric;
+                try {
+                    journal.done(oldName);
+                } catch (IOException e) {
+                    log.warn("Could not journal the rename of {}: {}", oldName, e.getMessage());
+                }
+            }
             return renameResult;
         }
+
+        private RenameResult rename() throws InterruptedException {
+            if (null == limit) {
+                return client.rename(renameReq);
+            }
+            limit.acquire();
+            long started = System.nanoTime();
+            RenameResult renameResult = null;
+            try {
+                renameResult = client.rename(renameReq);
+                return renameResult;
+            } finally {
+                limit.release(System.nanoTime() - started, null == renameResult || renameResult.code >= 500);
+            }
+        }
     }
 
     @Override
@@ -378,7 +642,7 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
             otsdbQuery.addSubQuery(createOTSDBQuery(mq));
         }
 
-        OpenTSDBClient client = new OpenTSDBClient(this.getHttpClient(), getOpenTSDBApiQueryUrl());
+        OpenTSDBClient client = getQueryClient();
         OpenTSDBQueryReturn result = client.query(otsdbQuery, this.config.getMetricServiceConfig().isIgnoreRateOption(), this.config.getMetricServiceConfig().getRateOptionCutoffTs());
         for (OpenTSDBQueryResult series : result.getResults()) {
             series.metric = series.metric.replace(SPACE_REPLACEMENT, " ");
@@ -402,6 +666,38 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
                                                  Map<String, List<String>> globalTags,
                                                  List<MetricSpecification> queries) throws IOException {
 
+        applyDownsample(downsample, downsampleMultiplier, queries);
+
+        List<OpenTSDBQueryResult> responses = runQueries(startTime, endTime, queries);
+        for (OpenTSDBQueryResult result : responses) {
+            result.metric = result.metric.replace(SPACE_REPLACEMENT, " ");
+        }
+        return responses;
+    }
+
+    @Override
+    public Iterable<OpenTSDBQueryResult> getResponseAsCompleted(MetricServiceAppConfiguration config,
+                                                                String id, String startTime, String endTime, ReturnSet returnset,
+                                                                String downsample, double downsampleMultiplier,
+                                                                Map<String, List<String>> globalTags,
+                                                                List<MetricSpecification> queries) throws IOException {
+
+        applyDownsample(downsample, downsampleMultiplier, queries);
+
+        List<MetricSpecBatch> batches = planBatches(startTime, endTime, queries);
+        ArrivingResults results = null != asyncHttpClient
+                ? ArrivingResults.issue(batches)
+                : ArrivingResults.submit(getExecutorService(), batches);
+        return Iterables.transform(results, new Function<OpenTSDBQueryResult, OpenTSDBQueryResult>() {
+            @Override
+            public OpenTSDBQueryResult apply(OpenTSDBQueryResult result) {
+                result.metric = result.metric.replace(SPACE_REPLACEMENT, " ");
+                return result;
+            }
+        });
+    }
+
+    private static void applyDownsample(String downsample, double downsampleMultiplier, List<MetricSpecification> queries) {
         String appliedDownsample = createModifiedDownsampleRequest(downsample, downsampleMultiplier);
         log.debug("Specified Downsample = {}, Specified Multiplier = {}, Applied Downsample = {}.", downsample, downsampleMultiplier, appliedDownsample);
 
@@ -412,12 +708,6 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
             }
             metricSpecification.setDownsample(appliedDownsample);
         }
-
-        List<OpenTSDBQueryResult> responses = runQueries(startTime, endTime, queries);
-        for (OpenTSDBQueryResult result : responses) {
-            result.metric = result.metric.replace(SPACE_REPLACEMENT, " ");
-        }
-        return responses;
     }
 
 
@@ -520,27 +810,57 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
         return String.format("%ds-%s", newDuration, aggregation);
     }
 
+    private List<MetricSpecBatch> planBatches(String start, String end, List<MetricSpecification> queries) {
+        MetricServiceConfig conf = this.config.getMetricServiceConfig();
+        List<MetricSpecBatch> batches = MetricSpecBatch.plan(getQueryClient(), start, end, queries,
+                conf.isIgnoreRateOption(), conf.getRateOptionCutoffTs(), Math.max(1, conf.getQueryBatchSize()));
+        log.debug("{} metric specifications grouped into {} queries.", queries.size(), batches.size());
+        return batches;
+    }
+
     private List<OpenTSDBQueryResult> runQueries(String start, String end, List<MetricSpecification> queries) {
-        List<Callable<OpenTSDBQueryResult>> callables = new ArrayList<>(queries.size());
-        DefaultHttpClient httpClient = getHttpClient();
-        for (MetricSpecification mSpec : queries) {
-            MetricSpecCallable callable = new MetricSpecCallable(httpClient, start, end, mSpec, getOpenTSDBApiQueryUrl(), this.config.getMetricServiceConfig().isIgnoreRateOption(), this.config.getMetricServiceConfig().getRateOptionCutoffTs());
-            callables.add(callable);
+        List<MetricSpecBatch> batches = planBatches(start, end, queries);
+        List<Future<List<OpenTSDBQueryResult>>> futures;
+        if (null != asyncHttpClient) {
+            // requests are in flight once issued; no executor threads are needed to wait on them
+            futures = new ArrayList<>(batches.size());
+            for (MetricSpecBatch batch : batches) {
+                futures.add(batch.callAsync());
+            }
+        } else if (QueryDeadline.current().hasLatencyBudget()) {
+            // submit rather than invokeAll, so that waiting can stop when the budget runs out
+            futures = new ArrayList<>(batches.size());
+            for (MetricSpecBatch batch : batches) {
+                futures.add(getExecutorService().submit(batch));
+            }
+        } else {
+            futures = invokeCallables(new ArrayList<Callable<List<OpenTSDBQueryResult>>>(batches));
         }
-        List<Future<OpenTSDBQueryResult>> futures = invokeCallables(callables);
         log.debug("{} futures returned.", futures.size());
         List<OpenTSDBQueryResult> results = new ArrayList<>();
-        getResultsFromFutures(results, futures);
+        getResultsFromFutures(results, batches, futures);
         log.debug("{} results returned.", results.size());
         return results;
     }
 
-    private List<Future<OpenTSDBQueryResult>> invokeCallables(List<Callable<OpenTSDBQueryResult>> callables) {
+    private List<Future<List<OpenTSDBQueryResult>>> invokeCallables(List<Callable<List<OpenTSDBQueryResult>>> callables) {
         ExecutorService executorService = getExecutorService();
-        List<Future<OpenTSDBQueryResult>> futures = new ArrayList<>();
+        List<Future<List<OpenTSDBQueryResult>>> futures = new ArrayList<>();
+        QueryDeadline deadline = QueryDeadline.current();
         try {
             log.debug("invoking {} callables...", callables.size());
-            futures = executorService.invokeAll(callables); // throws: InterruptedException (checked), NullPointerException/RejectedExecutionException (unchecked)
+            if (deadline.hasTimeLimit()) {
+                futures = executorService.invokeAll(callables, Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+                for (Future<List<OpenTSDBQueryResult>> future : futures) {
+                    if (future.isCancelled()) {
+                        // interrupting a task does not stop a blocking HTTP request; abort them
+                        deadline.expire();
+                        break;
+                    }
+                }
+            } else {
+                futures = executorService.invokeAll(callables); // throws: InterruptedException (checked), NullPointerException/RejectedExecutionException (unchecked)
+            }
         } catch (InterruptedException | NullPointerException | RejectedExecutionException e) {
             log.error("Query execution was unsuccessful: {}", e.getMessage());
         }
@@ -548,14 +868,26 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
     }
 
     private ExecutorService getExecutorService() {
-        return executorServiceInstance;
+        return null != schedulingExecutor ? schedulingExecutor : executorServiceInstance;
     }
 
-    private void getResultsFromFutures(List<OpenTSDBQueryResult> results, List<Future<OpenTSDBQueryResult>> futures) {
-        for (Future<OpenTSDBQueryResult> future : futures) {
+    /*
+     * The futures are in the same order as the batches. Batches still outstanding when the latency budget
+     * runs out are cancelled and answered with empty series whose status says they timed out.
+     */
+    private void getResultsFromFutures(List<OpenTSDBQueryResult> results, List<MetricSpecBatch> batches,
+                                       List<Future<List<OpenTSDBQueryResult>>> futures) {
+        QueryDeadline deadline = QueryDeadline.current();
+        for (int i = 0; i < futures.size(); i++) {
+            Future<List<OpenTSDBQueryResult>> future = futures.get(i);
             try {
-                OpenTSDBQueryResult result = future.get(); // Throws InterruptedException, ExecutionException (checked); CancellationException (unchecked)
-                results.add(result);
+                List<OpenTSDBQueryResult> batchResults = deadline.getWithinBudget(future); // Throws InterruptedException, ExecutionException, TimeoutException (checked); CancellationException (unchecked)
+                results.addAll(batchResults);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                MetricSpecBatch batch = batches.get(i);
+                log.debug("Giving up on {} metric specifications over the latency budget.", batch.getMetricSpecifications().size());
+                results.addAll(batch.overBudget(deadline));
             } catch (InterruptedException | ExecutionException | CancellationException e) {
                 // On exception, return an empty result, with the queryStatus set to indicate the problem.
                 OpenTSDBQueryResult result = new OpenTSDBQueryResult();
@@ -570,6 +902,12 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
         return httpClient;
     }
 
+    private OpenTSDBClient getQueryClient() {
+        // requests sent through a blocking transport only overlap if each gets a thread
+        Executor dispatcher = null == asyncHttpClient ? getExecutorService() : null;
+        return new OpenTSDBClient(getHttpClient(), getOpenTSDBApiQueryUrl(), queryTransport, dispatcher);
+    }
+
     @PostConstruct
     public void startup() {
         log.debug("**************** PostConstruct method called. ***********");
@@ -580,9 +918,134 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
             log.warn("executorThreadPool max size ({}) is less than core size ({}). Using specified max ({}) for both values.", executorThreadPoolMaxSize, executorThreadPoolCoreSize, executorThreadPoolMaxSize);
             executorThreadPoolCoreSize = executorThreadPoolMaxSize;
         }
-        log.info("Setting up executor pool with {}-{} threads.", executorThreadPoolCoreSize, executorThreadPoolMaxSize);
-        ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("TSDB-query-thread-%d").build();
-        executorServiceInstance = new ThreadPoolExecutor(executorThreadPoolCoreSize, executorThreadPoolMaxSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), namedThreadFactory);
+        MetricServiceConfig conf = config.getMetricServiceConfig();
+        // the most tasks the executor runs at once
+        int executorConcurrency;
+        if (conf.isPerTaskExecutor()) {
+            executorConcurrency = conf.getPerTaskMaxConcurrency() > 0 ? conf.getPerTaskMaxConcurrency() : conf.getMaxTotalPoolConnections();
+            log.info("Running query tasks on a thread each, at most {} at once.", executorConcurrency);
+            ThreadFactory taskThreadFactory = new ThreadFactoryBuilder().setNameFormat("TSDB-task-thread-%d").build();
+            // a thread for each task up to the cap, and none kept once they have been idle for a minute
+            executorServiceInstance = new ThreadPoolExecutor(executorConcurrency, executorConcurrency, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), taskThreadFactory);
+            executorServiceInstance.allowCoreThreadTimeOut(true);
+        } else {
+            // the pool only grows past its core size when its unbounded queue is full, which it never is
+            executorConcurrency = executorThreadPoolCoreSize;
+            log.info("Setting up executor pool with {}-{} threads.", executorThreadPoolCoreSize, executorThreadPoolMaxSize);
+            ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("TSDB-query-thread-%d").build();
+            executorServiceInstance = new ThreadPoolExecutor(executorThreadPoolCoreSize, executorThreadPoolMaxSize, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), namedThreadFactory);
+        }
+        // read through the field, so the gauges follow the executor of the latest startup
+        Metrics.newGauge(OpenTSDBMetricStorage.class, "executor-running-tasks", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executorServiceInstance.getActiveCount();
+            }
+        });
+        Metrics.newGauge(OpenTSDBMetricStorage.class, "executor-waiting-tasks", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return executorServiceInstance.getQueue().size();
+            }
+        });
+        if (conf.isRenameBulkhead()) {
+            int renameConcurrency = Math.max(1, conf.getRenameMaxConcurrency());
+            log.info("Running prefix renames on {} threads of their own.", renameConcurrency);
+            ThreadFactory renameThreadFactory = new ThreadFactoryBuilder().setNameFormat("TSDB-rename-thread-%d").build();
+            renameExecutor = new ThreadPoolExecutor(renameConcurrency, renameConcurrency, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), renameThreadFactory);
+            renameExecutor.allowCoreThreadTimeOut(true);
+            // start at the most and back off while OpenTSDB slows down under the renames
+            renameLimit = new AdaptiveConcurrencyLimit(renameConcurrency, 1, renameConcurrency);
+            final AdaptiveConcurrencyLimit limit = renameLimit;
+            Metrics.newGauge(OpenTSDBMetricStorage.class, "rename-concurrency-limit", new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return limit.getLimit();
+                }
+            });
+        }
+        if (conf.isPriorityScheduling()) {
+            schedulingExecutor = new PrioritySchedulingExecutor(executorServiceInstance, executorConcurrency,
+                    conf.getInteractiveReservedSlots(), conf.getExportMaxSlots());
+        }
+
+        httpCompression = new HttpCompression(conf.isAcceptCompressedResponses(),
+                conf.isCompressRequests() ? conf.getCompressRequestThresholdBytes() : -1);
+        if (conf.isAsyncHttpClient()) {
+            makeAsyncHttpClient();
+        }
+        OpenTSDBTransport transport;
+        List<String> readerUrls = conf.getOpenTsdbReaderUrls();
+        if (readerUrls.size() > 1) {
+            log.info("Balancing queries over OpenTSDB readers {}.", readerUrls);
+            List<LoadBalancingOpenTSDBTransport.Reader> readers = new ArrayList<>(readerUrls.size());
+            for (String readerUrl : readerUrls) {
+                readers.add(new LoadBalancingOpenTSDBTransport.Reader(readerUrl, makeQueryTransport(readerUrl + "/api/query")));
+            }
+            transport = new LoadBalancingOpenTSDBTransport(readers, conf.getReaderFailureThreshold(), conf.getReaderEjectSeconds());
+        } else {
+            transport = makeQueryTransport(getOpenTSDBApiQueryUrl());
+        }
+        if (conf.isAdaptiveConcurrencyLimit()) {
+            log.info("Limiting concurrent OpenTSDB queries adaptively, starting at {} ({}-{}).", conf.getConcurrencyLimitInitial(),
+                    conf.getConcurrencyLimitMin(), conf.getConcurrencyLimitMax());
+            transport = new ConcurrencyLimitingOpenTSDBTransport(transport, new AdaptiveConcurrencyLimit(
+                    conf.getConcurrencyLimitInitial(), conf.getConcurrencyLimitMin(), conf.getConcurrencyLimitMax()));
+        }
+        if (conf.isHedgeRequests()) {
+            if (null == asyncHttpClient) {
+                log.warn("hedgeRequests requires asyncHttpClient; queries will not be hedged.");
+            } else {
+                ThreadFactory hedgeThreadFactory = new ThreadFactoryBuilder().setNameFormat("TSDB-hedge-timer-%d").setDaemon(true).build();
+                hedgeScheduler = new ScheduledThreadPoolExecutor(1, hedgeThreadFactory);
+                transport = new HedgingOpenTSDBTransport(transport, hedgeScheduler, conf.getHedgePercentile(),
+                        conf.getHedgeBudgetPercent(), conf.getHedgeMinDelayMs());
+            }
+        }
+        if (conf.isTenantFairQueuing()) {
+            if (null == asyncHttpClient) {
+                // blocking queries reach the fair queue only once an executor thread takes them, first come first served
+                log.warn("tenantFairQueuing requires asyncHttpClient; queries will not be queued by tenant.");
+            } else {
+                log.info("Sharing OpenTSDB between tenants, {} queries at once.", conf.getMaxTotalPoolConnections());
+                ThreadFactory tenantThreadFactory = new ThreadFactoryBuilder().setNameFormat("TSDB-tenant-timer-%d").setDaemon(true).build();
+                tenantRateTimer = new ScheduledThreadPoolExecutor(1, tenantThreadFactory);
+                transport = new TenantFairOpenTSDBTransport(transport, tenantRateTimer, conf.getMaxTotalPoolConnections(),
+                        conf.getTenantQuota(), conf.getTenantQuotas());
+            }
+        }
+        if (conf.isCoalesceQueries()) {
+            transport = new CoalescingOpenTSDBTransport(transport);
+        }
+        if (conf.isShardQueries()) {
+            if (null == asyncHttpClient) {
+                // chunk requests block, so they get threads of their own rather than waiting
+                // behind the queries that issued them on the shared executor
+                ThreadFactory shardThreadFactory = new ThreadFactoryBuilder().setNameFormat("TSDB-shard-thread-%d").build();
+                shardExecutor = new ThreadPoolExecutor(executorThreadPoolCoreSize, executorThreadPoolCoreSize, 60L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), shardThreadFactory);
+            }
+            transport = new ShardingOpenTSDBTransport(transport, shardExecutor, conf.getShardChunkSeconds(), conf.getShardMaxParallelism());
+        }
+        if (conf.isSegmentCacheEnabled()) {
+            log.info("Caching query results in {}s segments, up to {} data points.", conf.getSegmentCacheSegmentSeconds(), conf.getSegmentCacheMaxDataPoints());
+            transport = new SegmentCachingOpenTSDBTransport(transport, conf.getSegmentCacheSegmentSeconds(),
+                    conf.getSegmentCacheMutableHorizonSeconds(), conf.getSegmentCacheMaxDataPoints());
+        }
+        if (conf.isTailRefreshEnabled()) {
+            transport = new TailRefreshingOpenTSDBTransport(transport, conf.getTailRefreshOverlapSeconds(),
+                    conf.getTailRefreshMaxWindows(), conf.getTailRefreshIdleSeconds());
+        }
+        queryTransport = transport;
+    }
+
+    private OpenTSDBTransport makeQueryTransport(String queryUrl) {
+        if (null != asyncHttpClient) {
+            return new AsyncOpenTSDBTransport(asyncHttpClient, queryUrl, executorServiceInstance, httpCompression);
+        }
+        return new OpenTSDBClient(getHttpClient(), queryUrl, httpCompression);
     }
 
     private void makeHttpClient() {
@@ -601,10 +1064,57 @@ public class OpenTSDBMetricStorage implements MetricStorageAPI {
         httpParams.setParameter(ClientPNames.CONN_MANAGER_TIMEOUT, new Long(conf.getConnectionManagerTimeoutMs()));
     }
 
+    private void makeAsyncHttpClient() {
+        log.info("Creating non-blocking HTTP client for OpenTSDB queries.");
+        MetricServiceConfig conf = config.getMetricServiceConfig();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setConnectTimeout(conf.getConnectionTimeoutMs())
+                .setSoTimeout(conf.getHttpSocketTimeoutMs())
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(conf.getConnectionTimeoutMs())
+                .setSocketTimeout(conf.getHttpSocketTimeoutMs())
+                .setConnectionRequestTimeout(conf.getConnectionManagerTimeoutMs())
+                .build();
+        asyncHttpClient = HttpAsyncClients.custom()
+                .setMaxConnTotal(conf.getMaxTotalPoolConnections())
+                .setMaxConnPerRoute(conf.getMaxPoolConnectionsPerRoute())
+                .setDefaultIOReactorConfig(ioReactorConfig)
+                .setDefaultRequestConfig(requestConfig)
+                .setThreadFactory(new ThreadFactoryBuilder().setNameFormat("TSDB-io-thread-%d").build())
+                .build();
+        asyncHttpClient.start();
+    }
+
     @PreDestroy
     public void shutdown() {
         log.debug("************* PreDestroy method called. ****************");
         httpClient.getConnectionManager().shutdown();
         httpClient = null;
+        if (null != asyncHttpClient) {
+            try {
+                asyncHttpClient.close();
+            } catch (IOException e) {
+                log.warn("Error closing non-blocking HTTP client: {}", e.getMessage());
+            }
+            asyncHttpClient = null;
+        }
+        if (null != hedgeScheduler) {
+            hedgeScheduler.shutdownNow();
+            hedgeScheduler = null;
+        }
+        if (null != tenantRateTimer) {
+            tenantRateTimer.shutdownNow();
+            tenantRateTimer = null;
+        }
+        if (null != renameExecutor) {
+            // renames cut short here resume from their journals
+            renameExecutor.shutdownNow();
+            renameExecutor = null;
+        }
+        if (null != shardExecutor) {
+            shardExecutor.shutdown();
+            shardExecutor = null;
+        }
     }
 }
@@ -32,6 +32,7 @@
 package org.zenoss.app.metricservice.api.impl;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -44,6 +45,9 @@ public class OpenTSDBQuery {
     public boolean globalAnnotations = false;
     public boolean msResolution = false;
     public boolean showTSUIDs = false;
+    // Echo each subquery (with its index) in the results; only sent when set
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean showQuery = false;
 
     public void addSubQuery(OpenTSDBSubQuery openTSDBSubQuery) {
         if (null == queries) {
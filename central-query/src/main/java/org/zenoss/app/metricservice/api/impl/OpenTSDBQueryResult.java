@@ -33,13 +33,13 @@ package org.zenoss.app.metricservice.api.impl;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.common.base.Objects;
+import org.zenoss.app.metricservice.api.model.DataPoints;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.TreeMap;
 
 public class OpenTSDBQueryResult {
     public String metricSpecName;
@@ -47,11 +47,15 @@ public class OpenTSDBQueryResult {
 
     public List<String> aggregateTags;
 
-    public SortedMap<Long,Double> dps = new TreeMap<>();
+    public DataPoints dps = new DataPoints();
     public String metric;
     public Map<String, String> tags;
     public List<String> tsuids = new ArrayList<>();
 
+    // Index of the subquery this result belongs to, if the query was sent with showQuery
+    @JsonIgnore
+    public int queryIndex = -1;
+
     public QueryStatus getStatus() {
         if (null == status) {
             status = new QueryStatus();
@@ -65,6 +69,34 @@ public class OpenTSDBQueryResult {
 
     private QueryStatus status;
 
+    /**
+     * @return a deep copy that can be modified without affecting this instance
+     */
+    public OpenTSDBQueryResult copy() {
+        OpenTSDBQueryResult copy = copyWithoutDataPoints();
+        copy.dps = (null == dps) ? null : DataPoints.copyOf(dps);
+        return copy;
+    }
+
+    /**
+     * @return a copy of everything but the data points, for a series whose points are about to be
+     * replaced
+     */
+    public OpenTSDBQueryResult copyWithoutDataPoints() {
+        OpenTSDBQueryResult copy = new OpenTSDBQueryResult();
+        copy.metricSpecName = metricSpecName;
+        copy.metricSpecId = metricSpecId;
+        copy.aggregateTags = (null == aggregateTags) ? null : new ArrayList<>(aggregateTags);
+        copy.metric = metric;
+        copy.tags = (null == tags) ? null : new HashMap<>(tags);
+        copy.tsuids = (null == tsuids) ? null : new ArrayList<>(tsuids);
+        copy.queryIndex = queryIndex;
+        if (null != status) {
+            copy.status = new QueryStatus(status.getStatus(), status.getMessage());
+        }
+        return copy;
+    }
+
     public String debugString() {
         return Objects.toStringHelper(getClass())
                 .add("aggregateTags", aggregateTags)
@@ -86,20 +118,32 @@ public class OpenTSDBQueryResult {
 
     public void addDataPoint(long i, double pointValue) {
         if (null == dps) {
-            dps = new TreeMap<>();
+            dps = new DataPoints();
         }
-        dps.put(i, pointValue);
+        dps.append(i, pointValue);
     }
 
     @JsonIgnore
-    public SortedMap<Long, Double> getDataPoints() {
+    public DataPoints getDataPoints() {
         if (null == dps) {
-            dps = new TreeMap<>();
+            dps = new DataPoints();
         }
         return dps;
     }
 
+    /**
+     * Replace the data points; a map other than DataPoints is copied.
+     */
     public void setDataPoints(SortedMap<Long, Double> dps) {
-        this.dps = dps;
+        this.dps = (null == dps || dps instanceof DataPoints) ? (DataPoints) dps : DataPoints.copyOf(dps);
+    }
+
+    /**
+     * Replace the data points with the first {@code count} entries of the
+     * given parallel timestamp/value arrays, which are kept rather than
+     * copied when they are in timestamp order.
+     */
+    public void setDataPoints(long[] timestamps, double[] values, int count) {
+        this.dps = DataPoints.wrap(timestamps, values, count);
     }
 }
@@ -0,0 +1,199 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the body of an OpenTSDB /api/query response directly from the
+ * response stream. Data points are read into primitive timestamp/value arrays
+ * without materializing the response as a String or building an intermediate
+ * tree; fields the query service does not use (tsuids, aggregateTags and any
+ * unknown field) are skipped without being decoded. Of the echoed subquery
+ * (showQuery) only the index is kept.
+ */
+public final class OpenTSDBQueryResultParser {
+    private static final JsonFactory jsonFactory = Utils.getObjectMapper().getFactory();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private OpenTSDBQueryResultParser() {
+    }
+
+    /**
+     * Parse an OpenTSDB query response.
+     *
+     * @param in the response body. The stream is closed once parsing completes.
+     * @return the decoded results, in response order
+     * @throws JsonParseException if the content is not a valid query response
+     * @throws IOException        if the stream cannot be read
+     */
+    public static OpenTSDBQueryResult[] parse(InputStream in) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            // OpenTSDB writes NaN unquoted when a fill policy of "nan" is used
+            parser.enable(JsonParser.Feature.ALLOW_NON_NUMERIC_NUMBERS);
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected an array of OpenTSDB query results");
+            }
+            List<OpenTSDBQueryResult> results = new ArrayList<>();
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                results.add(parseResult(parser));
+            }
+            if (token != JsonToken.END_ARRAY) {
+                throw new JsonParseException(parser, "Expected an OpenTSDB query result object, found " + token);
+            }
+            return results.toArray(new OpenTSDBQueryResult[results.size()]);
+        }
+    }
+
+    private static OpenTSDBQueryResult parseResult(JsonParser parser) throws IOException {
+        OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+                case "metric":
+                    result.metric = parser.getText();
+                    break;
+                case "tags":
+                    result.tags = parseTags(parser);
+                    break;
+                case "dps":
+                    parseDataPoints(parser, result);
+                    break;
+                case "query":
+                    result.queryIndex = parseQueryIndex(parser);
+                    break;
+                default:
+                    // tsuids, aggregateTags, annotations, ...
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, String> parseTags(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        Map<String, String> tags = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            tags.put(name, parser.getText());
+        }
+        return tags;
+    }
+
+    /*
+     * The subquery echoed back when showQuery is set; only its index is used.
+     */
+    private static int parseQueryIndex(JsonParser parser) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+        int index = -1;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if ("index".equals(name) && parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+                index = parser.getIntValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return index;
+    }
+
+    /*
+     * dps is normally an object keyed by timestamp, but OpenTSDB returns an
+     * array of [timestamp, value] pairs when arrays are requested. Accept both.
+     */
+    private static void parseDataPoints(JsonParser parser, OpenTSDBQueryResult result) throws IOException {
+        long[] timestamps = new long[INITIAL_CAPACITY];
+        double[] values = new double[INITIAL_CAPACITY];
+        int count = 0;
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (count == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, count << 1);
+                    values = Arrays.copyOf(values, count << 1);
+                }
+                timestamps[count] = parseTimestamp(parser, parser.getCurrentName());
+                parser.nextToken();
+                values[count] = readValue(parser);
+                count++;
+            }
+        } else {
+            expect(parser, JsonToken.START_ARRAY);
+            while (parser.nextToken() == JsonToken.START_ARRAY) {
+                if (count == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, count << 1);
+                    values = Arrays.copyOf(values, count << 1);
+                }
+                parser.nextToken();
+                timestamps[count] = parser.getLongValue();
+                parser.nextToken();
+                values[count] = readValue(parser);
+                expect(parser.nextToken(), parser, JsonToken.END_ARRAY);
+                count++;
+            }
+        }
+        result.setDataPoints(timestamps, values, count);
+    }
+
+    private static long parseTimestamp(JsonParser parser, String text) throws JsonParseException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new JsonParseException(parser, "Invalid data point timestamp: " + text);
+        }
+    }
+
+    private static double readValue(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_STRING:
+                try {
+                    return Double.parseDouble(parser.getText());
+                } catch (NumberFormatException e) {
+                    throw new JsonParseException(parser, "Invalid data point value: " + parser.getText());
+                }
+            case VALUE_NULL:
+                return Double.NaN;
+            default:
+                throw new JsonParseException(parser, "Unexpected data point value " + parser.getCurrentToken());
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken expected) throws JsonParseException {
+        expect(parser.getCurrentToken(), parser, expected);
+    }
+
+    private static void expect(JsonToken actual, JsonParser parser, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, String.format("Expected %s, found %s", expected, actual));
+        }
+    }
+}
@@ -22,8 +22,18 @@ public class OpenTSDBQueryReturn {
 
     final List<OpenTSDBQueryResult> results;
     final private QueryStatus status;
+    final private boolean queryFailure;
 
     public OpenTSDBQueryReturn(OpenTSDBQueryResult[] results, QueryStatus status) {
+        this(results, status, false);
+    }
+
+    /**
+     * @param queryFailure true if the query could not be sent or its response could not be read, as
+     *                     opposed to OpenTSDB answering
+     */
+    public OpenTSDBQueryReturn(OpenTSDBQueryResult[] results, QueryStatus status, boolean queryFailure) {
+        this.queryFailure = queryFailure;
         this.results = Collections.unmodifiableList(Arrays.asList(results));
         if (null == status) {
             log.warn("OpenTSDBQueryReturn constructor was called with null status. Defaulting to 'UNKNOWN'");
@@ -41,4 +51,23 @@ public class OpenTSDBQueryReturn {
         return status;
     }
 
+    /**
+     * @return true if the query never got an answer from OpenTSDB: it could not be sent, its response
+     * could not be read, or it was turned away before being sent
+     */
+    public boolean isQueryFailure() {
+        return queryFailure;
+    }
+
+    /**
+     * @return a deep copy that can be modified without affecting this instance
+     */
+    public OpenTSDBQueryReturn copy() {
+        OpenTSDBQueryResult[] copies = new OpenTSDBQueryResult[results.size()];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = results.get(i).copy();
+        }
+        return new OpenTSDBQueryReturn(copies, new QueryStatus(status.getStatus(), status.getMessage()), queryFailure);
+    }
+
 }
@@ -0,0 +1,24 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Sends a single request to the OpenTSDB /api/query endpoint.
+ * <p>
+ * Implementations never fail the returned future for HTTP or parsing errors;
+ * those are reported through the status of the returned
+ * {@link OpenTSDBQueryReturn}, the same way {@link OpenTSDBClient} always has.
+ */
+public interface OpenTSDBTransport {
+    ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query);
+}
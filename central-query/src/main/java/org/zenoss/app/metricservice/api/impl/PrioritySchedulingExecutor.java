@@ -0,0 +1,294 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sits in front of the OpenTSDB executor and decides which waiting task runs next, so that a large
+ * export does not starve interactive graph loads of threads.
+ * <p>
+ * Each task belongs to the {@link QueryPriority} class of the request that submitted it and is due by
+ * that request's deadline, or by the class's default deadline if the request has no time limit. At
+ * most maxConcurrency tasks are handed to the executor at once; when one finishes, the waiting task
+ * due soonest among the classes with room left runs next. Background and export work never hold the
+ * slots reserved for interactive work, and export work holds at most exportMaxConcurrency slots.
+ * Because every task is due at some point, work of a lower class that has waited long enough runs
+ * before interactive work that arrives later.
+ */
+public class PrioritySchedulingExecutor extends AbstractExecutorService {
+    private static final Logger log = LoggerFactory.getLogger(PrioritySchedulingExecutor.class);
+
+    private static final QueryPriority[] CLASSES = QueryPriority.values();
+
+    private final Executor executor;
+    private final int maxConcurrency;
+    // slots background and export work may hold between them
+    private final int sharedSlots;
+    private final int[] limits = new int[CLASSES.length];
+    private final int[] running = new int[CLASSES.length];
+    private final List<PriorityQueue<Task>> waiting = new ArrayList<>(CLASSES.length);
+    private final Timer[] queueTimes = new Timer[CLASSES.length];
+    private int totalRunning = 0;
+    private long sequence = 0;
+    private boolean shutdown = false;
+
+    /**
+     * @param executor               runs the tasks; it must be able to run maxConcurrency at once
+     * @param maxConcurrency         the most tasks handed to the executor at once
+     * @param interactiveReserved    slots only interactive work may use
+     * @param exportMaxConcurrency   the most slots export work may hold
+     */
+    public PrioritySchedulingExecutor(Executor executor, int maxConcurrency, int interactiveReserved, int exportMaxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.sharedSlots = Math.max(1, maxConcurrency - Math.max(0, interactiveReserved));
+        limits[QueryPriority.INTERACTIVE.ordinal()] = maxConcurrency;
+        limits[QueryPriority.BACKGROUND.ordinal()] = sharedSlots;
+        limits[QueryPriority.EXPORT.ordinal()] = exportMaxConcurrency > 0 ? Math.min(sharedSlots, exportMaxConcurrency) : sharedSlots;
+        for (final QueryPriority priority : CLASSES) {
+            final PriorityQueue<Task> queue = new PriorityQueue<>();
+            waiting.add(queue);
+            String name = priority.name().toLowerCase();
+            queueTimes[priority.ordinal()] = Metrics.newTimer(PrioritySchedulingExecutor.class, name + "-queue-time",
+                    TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+            Metrics.newGauge(PrioritySchedulingExecutor.class, name + "-waiting", new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return getWaitingCount(priority);
+                }
+            });
+        }
+        log.info("Scheduling OpenTSDB work in {} slots: interactive {}, background {}, export {}.", maxConcurrency,
+                limits[QueryPriority.INTERACTIVE.ordinal()], limits[QueryPriority.BACKGROUND.ordinal()],
+                limits[QueryPriority.EXPORT.ordinal()]);
+    }
+
+    /**
+     * Queue the task under the priority and deadline of the request being served by this thread.
+     */
+    @Override
+    public void execute(Runnable command) {
+        QueryDeadline deadline = QueryDeadline.current();
+        QueryPriority priority = deadline.getPriority();
+        long now = System.nanoTime();
+        long untilDue = TimeUnit.MILLISECONDS.toNanos(priority.getDefaultDeadlineMs());
+        if (deadline.hasTimeLimit()) {
+            untilDue = Math.min(untilDue, deadline.remainingNanos());
+        }
+        execute(command, priority, now + untilDue);
+    }
+
+    /**
+     * Queue the task in the given class, due at dueNanos on the {@link System#nanoTime()} clock.
+     */
+    public void execute(Runnable command, QueryPriority priority, long dueNanos) {
+        if (null == command) {
+            throw new NullPointerException();
+        }
+        synchronized (waiting) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            waiting.get(priority.ordinal()).add(new Task(command, priority, dueNanos, sequence++));
+        }
+        dispatch();
+    }
+
+    public int getRunningCount(QueryPriority priority) {
+        synchronized (waiting) {
+            return running[priority.ordinal()];
+        }
+    }
+
+    public int getWaitingCount(QueryPriority priority) {
+        synchronized (waiting) {
+            return waiting.get(priority.ordinal()).size();
+        }
+    }
+
+    /*
+     * Hand tasks to the executor while there are free slots and waiting tasks that may use them.
+     */
+    private void dispatch() {
+        while (true) {
+            Task next;
+            synchronized (waiting) {
+                next = takeNext();
+                if (null == next) {
+                    return;
+                }
+            }
+            queueTimes[next.priority.ordinal()].update(System.nanoTime() - next.queuedAtNanos, TimeUnit.NANOSECONDS);
+            try {
+                executor.execute(next);
+            } catch (RejectedExecutionException e) {
+                log.warn("OpenTSDB executor rejected a {} task: {}", next.priority, e.getMessage());
+                finished(next);
+                if (next.command instanceof Future) {
+                    ((Future<?>) next.command).cancel(false);
+                }
+            }
+        }
+    }
+
+    /*
+     * The waiting task due soonest among the classes below their limits, counted as running; called
+     * holding the lock.
+     */
+    private Task takeNext() {
+        if (totalRunning >= maxConcurrency) {
+            return null;
+        }
+        boolean sharedFull = totalRunning - running[QueryPriority.INTERACTIVE.ordinal()] >= sharedSlots;
+        PriorityQueue<Task> best = null;
+        for (QueryPriority priority : CLASSES) {
+            PriorityQueue<Task> queue = waiting.get(priority.ordinal());
+            if (queue.isEmpty() || running[priority.ordinal()] >= limits[priority.ordinal()]
+                    || (sharedFull && priority != QueryPriority.INTERACTIVE)) {
+                continue;
+            }
+            if (null == best || queue.peek().compareTo(best.peek()) < 0) {
+                best = queue;
+            }
+        }
+        if (null == best) {
+            return null;
+        }
+        Task next = best.poll();
+        running[next.priority.ordinal()]++;
+        totalRunning++;
+        return next;
+    }
+
+    private void finished(Task task) {
+        synchronized (waiting) {
+            running[task.priority.ordinal()]--;
+            totalRunning--;
+            waiting.notifyAll();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (waiting) {
+            shutdown = true;
+            waiting.notifyAll();
+        }
+    }
+
+    /**
+     * Stop taking tasks and hand back those that have not been started. Running tasks are left to the
+     * executor.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> unstarted = new ArrayList<>();
+        synchronized (waiting) {
+            shutdown = true;
+            for (PriorityQueue<Task> queue : waiting) {
+                for (Task task : queue) {
+                    unstarted.add(task.command);
+                }
+                queue.clear();
+            }
+            waiting.notifyAll();
+        }
+        return unstarted;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (waiting) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public boolean isTerminated() {
+        synchronized (waiting) {
+            if (!shutdown || totalRunning > 0) {
+                return false;
+            }
+            for (PriorityQueue<Task> queue : waiting) {
+                if (!queue.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (waiting) {
+            while (!isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(waiting, remaining);
+            }
+            return true;
+        }
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        final Runnable command;
+        final QueryPriority priority;
+        final long dueNanos;
+        final long order;
+        final long queuedAtNanos = System.nanoTime();
+
+        Task(Runnable command, QueryPriority priority, long dueNanos, long order) {
+            this.command = command;
+            this.priority = priority;
+            this.dueNanos = dueNanos;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+            try {
+                command.run();
+            } finally {
+                finished(this);
+                dispatch();
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            long byDue = dueNanos - other.dueNanos;
+            if (byDue != 0) {
+                return byDue < 0 ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
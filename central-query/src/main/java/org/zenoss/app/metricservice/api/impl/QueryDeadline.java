@@ -0,0 +1,438 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The point after which nobody is waiting for the answer to a request any more because its time is
+ * up. Work done on behalf of the request registers itself here while it is in flight; once the
+ * deadline passes (noticed by whoever waits on the request's results) or the request is cancelled,
+ * outstanding queries are cancelled and blocking HTTP requests to OpenTSDB are aborted, handing
+ * their threads and pooled connections back.
+ * <p>
+ * The deadline of the request being served is found with {@link #current()}; it is set by
+ * {@link #enter()} on the request thread and by the tasks that carry it to worker threads.
+ * <p>
+ * A request may also carry a latency budget, after which the caller would rather have the series that
+ * are ready than wait for the rest. Unlike the deadline, running out of budget cancels nothing by
+ * itself: whoever waits with {@link #getWithinBudget(Future)} gives up on the laggard and reports it
+ * with {@link #budgetExceededStatus(String)}.
+ */
+public class QueryDeadline {
+    private static final Logger log = LoggerFactory.getLogger(QueryDeadline.class);
+
+    /**
+     * Request header carrying the number of milliseconds the caller is prepared to wait.
+     */
+    public static final String TIMEOUT_HEADER = "X-Query-Timeout-Ms";
+
+    /**
+     * No deadline; it is never cancelled and tracks nothing.
+     */
+    public static final QueryDeadline NONE = new QueryDeadline(false);
+
+    private static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    private static final ThreadLocal<QueryDeadline> current = new ThreadLocal<>();
+
+    private static final Counter expired = Metrics.newCounter(QueryDeadline.class, "deadlines-exceeded");
+    private static final Counter aborted = Metrics.newCounter(QueryDeadline.class, "aborted-requests");
+    private static final Counter overBudget = Metrics.newCounter(QueryDeadline.class, "latency-budget-timeouts");
+
+    private final boolean cancellable;
+    private final Set<Object> inFlight = new LinkedHashSet<>();
+    private volatile long expiresAtNanos = NO_EXPIRY;
+    private volatile String cancelReason;
+    private volatile long latencyBudgetMs;
+    private volatile long budgetEndsAtNanos = NO_EXPIRY;
+    private volatile QueryPriority priority;
+
+    private QueryDeadline(boolean cancellable) {
+        this.cancellable = cancellable;
+    }
+
+    /**
+     * @param timeoutMs how long the request may take; null or not positive for no time limit
+     * @return a deadline for a new request
+     */
+    public static QueryDeadline start(Long timeoutMs) {
+        QueryDeadline deadline = new QueryDeadline(true);
+        if (null != timeoutMs && timeoutMs > 0) {
+            deadline.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+        return deadline;
+    }
+
+    /**
+     * @return the deadline of the request being served by this thread, or {@link #NONE}
+     */
+    public static QueryDeadline current() {
+        QueryDeadline deadline = current.get();
+        return null == deadline ? NONE : deadline;
+    }
+
+    /**
+     * Make this the current deadline until the returned scope is closed.
+     */
+    public Scope enter() {
+        Scope scope = new Scope(current.get());
+        current.set(this);
+        return scope;
+    }
+
+    /**
+     * @return a deadline with no time limit, in the same priority class, for work done on behalf of
+     * this request and others; it is cancelled with {@link #abandon()} once none of them waits for it
+     */
+    public QueryDeadline share() {
+        QueryDeadline shared = new QueryDeadline(true);
+        shared.priority = priority;
+        return shared;
+    }
+
+    /**
+     * Limit a request that did not ask for a time limit of its own to timeoutMs.
+     */
+    public void defaultTimeout(long timeoutMs) {
+        if (cancellable && expiresAtNanos == NO_EXPIRY && timeoutMs > 0) {
+            expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+    }
+
+    /**
+     * Give up on work still outstanding maxLatencyMs after now and answer with what is ready. Ignored
+     * for {@link #NONE}.
+     *
+     * @param maxLatencyMs the latency budget; null or not positive for none
+     * @return this deadline
+     */
+    public QueryDeadline withLatencyBudget(Long maxLatencyMs) {
+        if (cancellable && null != maxLatencyMs && maxLatencyMs > 0) {
+            latencyBudgetMs = maxLatencyMs;
+            budgetEndsAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLatencyMs);
+        }
+        return this;
+    }
+
+    /**
+     * Put the request in a priority class. Ignored for {@link #NONE}.
+     *
+     * @param priority the class; null to leave it to {@link #defaultPriority(QueryPriority)}
+     * @return this deadline
+     */
+    public QueryDeadline withPriority(QueryPriority priority) {
+        if (cancellable && null != priority) {
+            this.priority = priority;
+        }
+        return this;
+    }
+
+    /**
+     * Put a request that did not say which class it belongs to in the given one.
+     */
+    public void defaultPriority(QueryPriority priority) {
+        if (cancellable && null == this.priority) {
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * @return the priority class of the request; work done outside any request is background work
+     */
+    public QueryPriority getPriority() {
+        QueryPriority current = priority;
+        return null == current ? QueryPriority.BACKGROUND : current;
+    }
+
+    public boolean hasLatencyBudget() {
+        return budgetEndsAtNanos != NO_EXPIRY;
+    }
+
+    public boolean hasTimeLimit() {
+        return expiresAtNanos != NO_EXPIRY;
+    }
+
+    /**
+     * @return nanoseconds left before the deadline, Long.MAX_VALUE if there is no time limit
+     */
+    public long remainingNanos() {
+        long expiresAt = expiresAtNanos;
+        return expiresAt == NO_EXPIRY ? NO_EXPIRY : expiresAt - System.nanoTime();
+    }
+
+    public boolean isCancelled() {
+        return null != cancelReason;
+    }
+
+    /**
+     * @return why the request was cancelled, null if it was not
+     */
+    public String getCancelReason() {
+        return cancelReason;
+    }
+
+    /**
+     * Cancel the future when the request is cancelled, unless it has completed by then.
+     */
+    public void track(final ListenableFuture<?> future) {
+        if (!cancellable) {
+            return;
+        }
+        if (!add(future)) {
+            abort(future);
+            return;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                remove(future);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Abort the request when the request being served is cancelled, until the returned registration
+     * is closed.
+     */
+    public Registration track(HttpUriRequest request) {
+        Registration registration = new Registration(request);
+        if (cancellable && !add(registration)) {
+            abort(registration);
+        }
+        return registration;
+    }
+
+    /**
+     * Wait for a future, for no longer than the deadline allows. Once the deadline passes the request
+     * is cancelled.
+     *
+     * @throws CancellationException if the deadline passed or the request was cancelled
+     */
+    public <T> T get(Future<T> future) throws InterruptedException, ExecutionException {
+        if (!hasTimeLimit()) {
+            return future.get();
+        }
+        try {
+            return future.get(Math.max(0, remainingNanos()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            expire();
+            throw new CancellationException(cancelReason);
+        }
+    }
+
+    /**
+     * Wait for a future for no longer than the latency budget, or the deadline if that comes first. The
+     * future is left alone when the budget runs out; it is up to the caller to cancel it.
+     *
+     * @throws TimeoutException if the latency budget ran out first
+     * @throws CancellationException if the deadline passed or the request was cancelled
+     */
+    public <T> T getWithinBudget(Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+        long budgetEndsAt = budgetEndsAtNanos;
+        long expiresAt = expiresAtNanos;
+        if (budgetEndsAt == NO_EXPIRY || (expiresAt != NO_EXPIRY && expiresAt - budgetEndsAt <= 0)) {
+            return get(future);
+        }
+        try {
+            return future.get(Math.max(0, budgetEndsAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            overBudget.inc();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for the next future to complete for no longer than the latency budget, or the deadline if
+     * that comes first.
+     *
+     * @param completed futures in the order they complete
+     * @return the next future to complete, or null if the time ran out first
+     */
+    public <T> Future<T> pollWithinBudget(BlockingQueue<Future<T>> completed) throws InterruptedException {
+        long budgetEndsAt = budgetEndsAtNanos;
+        long expiresAt = expiresAtNanos;
+        long waitUntil = budgetEndsAt;
+        if (waitUntil == NO_EXPIRY || (expiresAt != NO_EXPIRY && expiresAt - waitUntil <= 0)) {
+            waitUntil = expiresAt;
+        }
+        if (waitUntil == NO_EXPIRY) {
+            return completed.take();
+        }
+        return completed.poll(Math.max(0, waitUntil - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return true once the latency budget has run out
+     */
+    public boolean isOverBudget() {
+        long budgetEndsAt = budgetEndsAtNanos;
+        return budgetEndsAt != NO_EXPIRY && budgetEndsAt - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @param what the series or metrics given up on
+     * @return the status of series given up on because the latency budget ran out
+     */
+    public QueryStatus budgetExceededStatus(String what) {
+        return new QueryStatus(QueryStatus.QueryStatusEnum.WARNING,
+                String.format("Query for %s timed out: no result within the %d ms latency budget", what, latencyBudgetMs));
+    }
+
+    /**
+     * Like {@link Futures#getUnchecked}, for no longer than the deadline allows.
+     *
+     * @throws CancellationException if the deadline passed or the request was cancelled
+     */
+    public <T> T getUnchecked(Future<T> future) {
+        if (!hasTimeLimit()) {
+            return Futures.getUnchecked(future);
+        }
+        try {
+            return get(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted waiting for query results");
+        } catch (ExecutionException e) {
+            // the future is done: let Guava unwrap the failure the way callers expect
+            return Futures.getUnchecked(future);
+        }
+    }
+
+    /**
+     * Cancel the request because its time is up.
+     */
+    public void expire() {
+        if (cancel("Query deadline exceeded")) {
+            expired.inc();
+        }
+    }
+
+    /**
+     * Cancel work shared between requests because none of them waits for it any more.
+     */
+    public void abandon() {
+        cancel("No request waits for the query any more");
+    }
+
+    public static long getDeadlinesExceeded() {
+        return expired.count();
+    }
+
+    public static long getAbortedRequests() {
+        return aborted.count();
+    }
+
+    public static long getLatencyBudgetTimeouts() {
+        return overBudget.count();
+    }
+
+    private boolean cancel(String reason) {
+        if (!cancellable) {
+            return false;
+        }
+        List<Object> outstanding;
+        synchronized (inFlight) {
+            if (null != cancelReason) {
+                return false;
+            }
+            cancelReason = reason;
+            outstanding = new ArrayList<>(inFlight);
+            inFlight.clear();
+        }
+        log.debug("{}, aborting {} outstanding requests.", reason, outstanding.size());
+        for (Object work : outstanding) {
+            abort(work);
+        }
+        return true;
+    }
+
+    /*
+     * @return false if the request has already been cancelled
+     */
+    private boolean add(Object work) {
+        synchronized (inFlight) {
+            return null == cancelReason && inFlight.add(work);
+        }
+    }
+
+    private void remove(Object work) {
+        synchronized (inFlight) {
+            inFlight.remove(work);
+        }
+    }
+
+    private static void abort(Object work) {
+        if (work instanceof Future) {
+            if (((Future<?>) work).cancel(true)) {
+                aborted.inc();
+            }
+        } else {
+            ((Registration) work).request.abort();
+            aborted.inc();
+        }
+    }
+
+    /**
+     * Restores the deadline that was current before {@link #enter()}.
+     */
+    public static final class Scope implements Closeable {
+        private final QueryDeadline previous;
+
+        private Scope(QueryDeadline previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (null == previous) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
+    }
+
+    /**
+     * An HTTP request that is aborted if the request being served is cancelled while it is open.
+     */
+    public final class Registration implements Closeable {
+        private final HttpUriRequest request;
+
+        private Registration(HttpUriRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void close() {
+            remove(this);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+/**
+ * The class of a request, which decides how much of the OpenTSDB executor its work may hold and how
+ * soon it is due when the request set no deadline of its own.
+ */
+public enum QueryPriority {
+    /**
+     * Someone is looking at a graph and waiting for it.
+     */
+    INTERACTIVE(10000),
+    /**
+     * Nobody is waiting on the answer right now, such as renames and maintenance.
+     */
+    BACKGROUND(60000),
+    /**
+     * Bulk reads, such as report exports pulling thousands of series.
+     */
+    EXPORT(300000);
+
+    /**
+     * Request header a caller can use to say which class a request belongs to.
+     */
+    public static final String HEADER = "X-Query-Priority";
+
+    private final long defaultDeadlineMs;
+
+    QueryPriority(long defaultDeadlineMs) {
+        this.defaultDeadlineMs = defaultDeadlineMs;
+    }
+
+    /**
+     * @return how soon work of this class is due when its request has no time limit
+     */
+    public long getDefaultDeadlineMs() {
+        return defaultDeadlineMs;
+    }
+
+    /**
+     * @return the class named by a header value, case insensitively, or null if it names none
+     */
+    public static QueryPriority fromHeader(String value) {
+        if (null == value) {
+            return null;
+        }
+        for (QueryPriority priority : values()) {
+            if (priority.name().equalsIgnoreCase(value.trim())) {
+                return priority;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Classify a query by its estimated size.
+     *
+     * @param seriesCount     the number of metrics queried
+     * @param exportThreshold the smallest number of metrics treated as an export; not positive to
+     *                        classify every query as interactive
+     */
+    public static QueryPriority bySize(int seriesCount, int exportThreshold) {
+        return exportThreshold > 0 && seriesCount >= exportThreshold ? EXPORT : INTERACTIVE;
+    }
+}
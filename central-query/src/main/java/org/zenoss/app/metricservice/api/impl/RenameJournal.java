@@ -0,0 +1,262 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the progress of a prefix rename in an append-only file, so that a rename cut short by a
+ * restart picks up where it stopped.
+ * <p>
+ * The journal lists each name the rename will change as it is found, notes when every name has
+ * been found, and lists each name as it is renamed. A rename that finds a journal with a complete
+ * plan renames the planned names not yet done, rather than asking OpenTSDB again: once some names
+ * have been renamed, a new prefix that starts with the old one would match them again. A rename
+ * that finds an incomplete plan looks for names again, skipping those already done and the names
+ * they were renamed to. The file is deleted when every planned name has been renamed.
+ * <p>
+ * Lines are tab separated: a header naming the rename, then a "plan" line per name found and a
+ * "done" line per name renamed, in any order, and a "planned" line with the count once all names
+ * have been found. A line left incomplete by a crash is ignored.
+ * <p>
+ * The file is named after a SHA-1 digest of the header, so every rename has a journal of its own.
+ * Only one journal of a rename is open at a time in this process; a second rename of the same
+ * prefix is refused with {@link InUseException} until the first is closed.
+ */
+public class RenameJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RenameJournal.class);
+
+    private static final String HEADER = "rename";
+    private static final String PLAN = "plan";
+    private static final String PLANNED = "planned";
+    private static final String DONE = "done";
+
+    // journals open in this process
+    private static final Set<File> open = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private final File file;
+    private final String header;
+    private final Set<String> planned = new LinkedHashSet<>();
+    private final Set<String> done = new HashSet<>();
+    private boolean planComplete = false;
+    private FileOutputStream stream = null;
+    private Writer out = null;
+    private boolean held = true;
+
+    private RenameJournal(File file, String header) {
+        this.file = file;
+        this.header = header;
+    }
+
+    /**
+     * Open the journal of a rename in the directory, reading the progress of an earlier attempt if
+     * there is one.
+     *
+     * @throws InUseException if the journal is already open, because the same rename is under way
+     */
+    public static RenameJournal open(File dir, String type, String oldPrefix, String newPrefix) throws IOException {
+        String header = HEADER + '\t' + type + '\t' + oldPrefix + '\t' + newPrefix;
+        String name = String.format("rename-%s-%s.journal", type,
+                Hashing.sha1().hashBytes(header.getBytes(Charsets.UTF_8)));
+        File file = new File(dir, name).getAbsoluteFile();
+        if (!open.add(file)) {
+            throw new InUseException(String.format("A rename of %s prefix %s to %s is already under way", type, oldPrefix, newPrefix));
+        }
+        RenameJournal journal = new RenameJournal(file, header);
+        try {
+            journal.read();
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * @return true if an earlier attempt found every name to rename
+     */
+    public synchronized boolean isPlanComplete() {
+        return planComplete;
+    }
+
+    /**
+     * @return the names found so far, in the order they were found
+     */
+    public synchronized List<String> getPlanned() {
+        return new ArrayList<>(planned);
+    }
+
+    public synchronized boolean isDone(String name) {
+        return done.contains(name);
+    }
+
+    /**
+     * @return the names renamed so far
+     */
+    public synchronized List<String> getDone() {
+        return new ArrayList<>(done);
+    }
+
+    public synchronized int getDoneCount() {
+        return done.size();
+    }
+
+    /**
+     * Record a name the rename will change, unless it is already recorded.
+     */
+    public synchronized void plan(String name) throws IOException {
+        if (planned.add(name)) {
+            write(PLAN + '\t' + name);
+        }
+    }
+
+    /**
+     * Record that every name the rename will change has been found.
+     */
+    public synchronized void planComplete() throws IOException {
+        write(PLANNED + '\t' + planned.size());
+        stream.getFD().sync();
+        planComplete = true;
+    }
+
+    /**
+     * Record that a name has been renamed.
+     */
+    public synchronized void done(String name) throws IOException {
+        if (done.add(name)) {
+            write(DONE + '\t' + name);
+        }
+    }
+
+    /**
+     * Close the journal and, if every name has been found and renamed, delete it.
+     *
+     * @return true if the rename was complete
+     */
+    public synchronized boolean finish() throws IOException {
+        close();
+        if (!planComplete || !done.containsAll(planned)) {
+            return false;
+        }
+        if (file.exists() && !file.delete()) {
+            log.warn("Could not delete finished rename journal {}", file);
+        }
+        return true;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (null != out) {
+                out.close();
+                out = null;
+                stream = null;
+            }
+        } finally {
+            if (held) {
+                held = false;
+                open.remove(file);
+            }
+        }
+    }
+
+    /*
+     * Called holding the lock.
+     */
+    private void write(String line) throws IOException {
+        if (null == out) {
+            start(false, false);
+        }
+        out.write(line + '\n');
+        out.flush();
+    }
+
+    /*
+     * Open the file for writing: appended to if it holds this rename, else started over.
+     */
+    private void start(boolean append, boolean endLine) throws IOException {
+        File dir = file.getParentFile();
+        if (null != dir && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create rename journal directory " + dir);
+        }
+        stream = new FileOutputStream(file, append);
+        out = new BufferedWriter(new OutputStreamWriter(stream, Charsets.UTF_8));
+        if (!append) {
+            out.write(header + '\n');
+        } else if (endLine) {
+            // end the line cut short, so the next one starts cleanly
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    private void read() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        String content = Files.toString(file, Charsets.UTF_8);
+        List<String> lines = new ArrayList<>();
+        Collections.addAll(lines, content.split("\n", -1));
+        // the last element is whatever follows the last newline: empty, or a line cut short
+        lines.remove(lines.size() - 1);
+        if (lines.isEmpty() || !header.equals(lines.get(0))) {
+            log.warn("Starting over rename journal {}, which was written for another rename", file);
+            return;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            int tab = line.indexOf('\t');
+            String kind = tab < 0 ? line : line.substring(0, tab);
+            String value = tab < 0 ? "" : line.substring(tab + 1);
+            if (PLAN.equals(kind)) {
+                planned.add(value);
+            } else if (PLANNED.equals(kind)) {
+                planComplete = Integer.toString(planned.size()).equals(value);
+            } else if (DONE.equals(kind)) {
+                done.add(value);
+            }
+        }
+        start(true, !content.endsWith("\n"));
+    }
+
+    /**
+     * Thrown when a rename is started while the same rename is still under way.
+     */
+    public static class InUseException extends IOException {
+        private static final long serialVersionUID = 4419835721934585316L;
+
+        public InUseException(String message) {
+            super(message);
+        }
+    }
+}
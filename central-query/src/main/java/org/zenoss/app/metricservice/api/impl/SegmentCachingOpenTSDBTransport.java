@@ -0,0 +1,510 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.metricservice.api.model.DataPoints;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Caches downsampled query results in fixed, aligned time segments so that overlapping queries
+ * (the same graph refreshed, panned or zoomed out) only fetch the parts of their range that have
+ * not been seen before.
+ * <p>
+ * Every subquery is cached on its own, keyed by its canonical JSON (metric, tags, filters,
+ * aggregator, downsample and rate options) and the start of the segment. Only segments that end
+ * before the mutable horizon, a configurable distance before now, are cached; anything later is
+ * always fetched from OpenTSDB, since late data may still arrive for it. Segments are evicted least
+ * recently used first once the total number of cached data points exceeds the limit.
+ * <p>
+ * A subquery is cacheable when it is downsampled with an interval that evenly divides the segment
+ * length and does not ask for a rate. OpenTSDB aligns downsampled buckets to multiples of the
+ * interval, so a bucket never straddles two segments. Other subqueries, and queries with
+ * millisecond resolution, are passed through unchanged.
+ */
+public class SegmentCachingOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(SegmentCachingOpenTSDBTransport.class);
+
+    private final OpenTSDBTransport delegate;
+    private final long segmentSeconds;
+    private final long mutableHorizonSeconds;
+    private final Cache<String, List<CachedSeries>> segments;
+    private final Counter hits = Metrics.newCounter(SegmentCachingOpenTSDBTransport.class, "segment-cache-hits");
+    private final Counter misses = Metrics.newCounter(SegmentCachingOpenTSDBTransport.class, "segment-cache-misses");
+
+    /**
+     * @param delegate              transport used for the parts of a query that are not cached
+     * @param segmentSeconds        length of a cached segment
+     * @param mutableHorizonSeconds data within this many seconds of now is never cached
+     * @param maxDataPoints         approximate number of data points kept before segments are evicted
+     */
+    public SegmentCachingOpenTSDBTransport(OpenTSDBTransport delegate, long segmentSeconds, long mutableHorizonSeconds,
+                                           long maxDataPoints) {
+        if (segmentSeconds <= 0) {
+            throw new IllegalArgumentException("Segment length must be positive: " + segmentSeconds);
+        }
+        this.delegate = delegate;
+        this.segmentSeconds = segmentSeconds;
+        this.mutableHorizonSeconds = Math.max(0, mutableHorizonSeconds);
+        this.segments = CacheBuilder.newBuilder()
+                .maximumWeight(maxDataPoints)
+                .weigher(new Weigher<String, List<CachedSeries>>() {
+                    @Override
+                    public int weigh(String key, List<CachedSeries> value) {
+                        int weight = 1;
+                        for (CachedSeries series : value) {
+                            weight += 1 + series.timestamps.length;
+                        }
+                        return weight;
+                    }
+                })
+                .recordStats()
+                .build();
+        Metrics.newGauge(SegmentCachingOpenTSDBTransport.class, "segment-cache-size", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return segments.size();
+            }
+        });
+        Metrics.newGauge(SegmentCachingOpenTSDBTransport.class, "segment-cache-evictions", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return segments.stats().evictionCount();
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(final OpenTSDBQuery query) {
+        final QueryPlan plan;
+        try {
+            plan = plan(query);
+        } catch (ParseException e) {
+            log.debug("Not caching query with unparsable range {} to {}", query.start, query.end);
+            return delegate.execute(query);
+        }
+        if (null == plan) {
+            return delegate.execute(query);
+        }
+        if (plan.requests.isEmpty()) {
+            return Futures.immediateFuture(plan.assemble(Collections.<Range, OpenTSDBQueryReturn>emptyMap()));
+        }
+
+        final List<Range> ranges = new ArrayList<>(plan.requests.keySet());
+        List<ListenableFuture<OpenTSDBQueryReturn>> responses = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            responses.add(delegate.execute(plan.request(range)));
+        }
+        final SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        Futures.addCallback(Futures.allAsList(responses), new FutureCallback<List<OpenTSDBQueryReturn>>() {
+            @Override
+            public void onSuccess(List<OpenTSDBQueryReturn> returns) {
+                Map<Range, OpenTSDBQueryReturn> byRange = new HashMap<>();
+                for (int i = 0; i < ranges.size(); i++) {
+                    OpenTSDBQueryReturn response = returns.get(i);
+                    if (!OpenTSDBClient.isSuccessOrNoData(response.getStatus())) {
+                        result.set(response);
+                        return;
+                    }
+                    byRange.put(ranges.get(i), response);
+                }
+                try {
+                    result.set(plan.assemble(byRange));
+                } catch (IllegalStateException e) {
+                    log.warn("Could not assemble cached query, querying OpenTSDB directly: {}", e.getMessage());
+                    forward(delegate.execute(query), result);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    private static void forward(ListenableFuture<OpenTSDBQueryReturn> from, final SettableFuture<OpenTSDBQueryReturn> to) {
+        Futures.addCallback(from, new FutureCallback<OpenTSDBQueryReturn>() {
+            @Override
+            public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                to.set(queryReturn);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                to.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    public long getHits() {
+        return hits.count();
+    }
+
+    public long getMisses() {
+        return misses.count();
+    }
+
+    /**
+     * @return the current time in seconds since the epoch
+     */
+    protected long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * @return the downsample interval of a subquery whose results can be cached in segments, or 0
+     */
+    long cacheableInterval(OpenTSDBSubQuery subQuery) {
+        if (subQuery.rate || null == subQuery.downsample) {
+            return 0;
+        }
+        long interval = Utils.parseDuration(subQuery.downsample);
+        if (interval <= 0 || segmentSeconds % interval != 0) {
+            return 0;
+        }
+        return interval;
+    }
+
+
+    /*
+     * Work out which segments are cached and which requests are needed for the rest, or null if
+     * nothing in the query can come from the cache.
+     */
+    private QueryPlan plan(OpenTSDBQuery query) throws ParseException {
+        if (query.msResolution || null == query.start || null == query.queries || query.queries.isEmpty()) {
+            return null;
+        }
+        long now = currentTimeSeconds();
+        long start = Utils.parseDate(query.start);
+        long end = null == query.end ? now : Utils.parseDate(query.end);
+        if (end < start) {
+            return null;
+        }
+        long firstSegment = floor(start, segmentSeconds);
+        long immutableEnd = floor(Math.min(end + 1, now - mutableHorizonSeconds), segmentSeconds);
+        if (immutableEnd <= firstSegment) {
+            return null;
+        }
+
+        QueryPlan plan = new QueryPlan(query, start, end);
+        Range live = new Range(query.start, query.end);
+        Range tail = immutableEnd <= end ? new Range(Long.toString(immutableEnd), query.end) : null;
+        boolean cacheable = false;
+        for (int i = 0; i < query.queries.size(); i++) {
+            OpenTSDBSubQuery subQuery = query.queries.get(i);
+            long interval = cacheableInterval(subQuery);
+            if (interval == 0) {
+                plan.add(live, i);
+                continue;
+            }
+            cacheable = true;
+            String key = CoalescingOpenTSDBTransport.canonicalKey(subQuery);
+            plan.keys[i] = key;
+            plan.intervals[i] = interval;
+            long runStart = -1;
+            for (long segment = firstSegment; segment < immutableEnd; segment += segmentSeconds) {
+                List<CachedSeries> cached = segments.getIfPresent(segmentKey(key, segment));
+                if (null != cached) {
+                    hits.inc();
+                    plan.cached.get(i).add(cached);
+                    if (runStart >= 0) {
+                        plan.add(new Range(runStart, segment), i);
+                        runStart = -1;
+                    }
+                } else {
+                    misses.inc();
+                    if (runStart < 0) {
+                        runStart = segment;
+                    }
+                }
+            }
+            if (runStart >= 0) {
+                plan.add(new Range(runStart, immutableEnd), i);
+            }
+            if (null != tail) {
+                plan.add(tail, i);
+            }
+        }
+        return cacheable ? plan : null;
+    }
+
+    private static String segmentKey(String subQueryKey, long segmentStart) {
+        return subQueryKey + '@' + segmentStart;
+    }
+
+    private static long floor(long value, long unit) {
+        return value - (((value % unit) + unit) % unit);
+    }
+
+    /**
+     * The time range of one request sent to OpenTSDB. Cached segment runs have a numeric range
+     * whose end is exclusive; live ranges keep the query's own start and end strings.
+     */
+    private static final class Range {
+        final String start;
+        final String end;
+        final long segmentStart;
+        final long segmentEnd;
+
+        Range(String start, String end) {
+            this.start = start;
+            this.end = end;
+            this.segmentStart = -1;
+            this.segmentEnd = -1;
+        }
+
+        Range(long segmentStart, long segmentEnd) {
+            // OpenTSDB treats the end of a query as inclusive
+            this.start = Long.toString(segmentStart);
+            this.end = Long.toString(segmentEnd - 1);
+            this.segmentStart = segmentStart;
+            this.segmentEnd = segmentEnd;
+        }
+
+        boolean isSegmentRun() {
+            return segmentStart >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Range)) {
+                return false;
+            }
+            Range other = (Range) o;
+            return segmentStart == other.segmentStart && start.equals(other.start)
+                    && (null == end ? null == other.end : end.equals(other.end));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * start.hashCode() + (null == end ? 0 : end.hashCode());
+        }
+    }
+
+    /**
+     * The data points of one series within one segment.
+     */
+    private static final class CachedSeries {
+        final String metric;
+        final Map<String, String> tags;
+        final long[] timestamps;
+        final double[] values;
+
+        CachedSeries(String metric, Map<String, String> tags, long[] timestamps, double[] values) {
+            this.metric = metric;
+            this.tags = tags;
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    /**
+     * The series of one subquery being put back together, keyed by metric and tags.
+     */
+    private static final class SeriesAssembly {
+        private final Map<String, OpenTSDBQueryResult> series = new LinkedHashMap<>();
+
+        OpenTSDBQueryResult get(String metric, Map<String, String> tags) {
+            Map<String, String> sortedTags = null == tags ? new TreeMap<String, String>() : new TreeMap<>(tags);
+            String key = metric + sortedTags;
+            OpenTSDBQueryResult result = series.get(key);
+            if (null == result) {
+                result = new OpenTSDBQueryResult();
+                result.metric = metric;
+                result.tags = null == tags ? new HashMap<String, String>() : new HashMap<>(tags);
+                series.put(key, result);
+            }
+            return result;
+        }
+
+        void add(CachedSeries cached, long from, long to) {
+            OpenTSDBQueryResult result = get(cached.metric, cached.tags);
+            for (int i = 0; i < cached.timestamps.length; i++) {
+                if (cached.timestamps[i] >= from && cached.timestamps[i] <= to) {
+                    result.addDataPoint(cached.timestamps[i], cached.values[i]);
+                }
+            }
+        }
+
+        void add(OpenTSDBQueryResult fetched, long from, long to) {
+            OpenTSDBQueryResult result = get(fetched.metric, fetched.tags);
+            DataPoints points = fetched.getDataPoints();
+            for (int i = points.ceilingIndex(from); i < points.size() && points.timestampAt(i) <= to; i++) {
+                result.addDataPoint(points.timestampAt(i), points.valueAt(i));
+            }
+        }
+    }
+
+    private final class QueryPlan {
+        final OpenTSDBQuery query;
+        final long start;
+        final long end;
+        final String[] keys;
+        final long[] intervals;
+        final List<List<List<CachedSeries>>> cached;
+        final Map<Range, List<Integer>> requests = new LinkedHashMap<>();
+
+        QueryPlan(OpenTSDBQuery query, long start, long end) {
+            this.query = query;
+            this.start = start;
+            this.end = end;
+            int size = query.queries.size();
+            this.keys = new String[size];
+            this.intervals = new long[size];
+            this.cached = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                cached.add(new ArrayList<List<CachedSeries>>());
+            }
+        }
+
+        void add(Range range, int subQueryIndex) {
+            List<Integer> indexes = requests.get(range);
+            if (null == indexes) {
+                indexes = new ArrayList<>();
+                requests.put(range, indexes);
+            }
+            indexes.add(subQueryIndex);
+        }
+
+        OpenTSDBQuery request(Range range) {
+            OpenTSDBQuery request = new OpenTSDBQuery();
+            request.start = range.start;
+            request.end = range.end;
+            request.noAnnotations = query.noAnnotations;
+            request.globalAnnotations = query.globalAnnotations;
+            request.showTSUIDs = query.showTSUIDs;
+            request.showQuery = true;
+            for (int index : requests.get(range)) {
+                request.addSubQuery(query.queries.get(index));
+            }
+            return request;
+        }
+
+        /*
+         * Store the segments fetched by the responses, then build the results of the original
+         * query from the cache contents and the responses.
+         */
+        OpenTSDBQueryReturn assemble(Map<Range, OpenTSDBQueryReturn> responses) {
+            int size = query.queries.size();
+            List<List<OpenTSDBQueryResult>> fetched = new ArrayList<>(size);
+            List<List<Range>> fetchedRanges = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                fetched.add(new ArrayList<OpenTSDBQueryResult>());
+                fetchedRanges.add(new ArrayList<Range>());
+            }
+            for (Map.Entry<Range, OpenTSDBQueryReturn> response : responses.entrySet()) {
+                Range range = response.getKey();
+                List<Integer> indexes = requests.get(range);
+                List<List<OpenTSDBQueryResult>> bySubQuery = new ArrayList<>(indexes.size());
+                for (int ignored : indexes) {
+                    bySubQuery.add(new ArrayList<OpenTSDBQueryResult>());
+                }
+                for (OpenTSDBQueryResult result : response.getValue().getResults()) {
+                    int position = result.queryIndex;
+                    if (position < 0 || position >= indexes.size()) {
+                        if (indexes.size() != 1) {
+                            throw new IllegalStateException("Result for " + result.metric + " has no usable query index");
+                        }
+                        position = 0;
+                    }
+                    bySubQuery.get(position).add(result);
+                }
+                for (int position = 0; position < indexes.size(); position++) {
+                    int index = indexes.get(position);
+                    if (range.isSegmentRun()) {
+                        store(keys[index], range, bySubQuery.get(position));
+                    }
+                    fetched.get(index).addAll(bySubQuery.get(position));
+                    fetchedRanges.get(index).add(range);
+                }
+            }
+
+            List<OpenTSDBQueryResult> results = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (intervals[i] == 0) {
+                    // passed through as returned
+                    for (OpenTSDBQueryResult result : fetched.get(i)) {
+                        result.queryIndex = query.showQuery ? i : -1;
+                        results.add(result);
+                    }
+                    continue;
+                }
+                long from = floor(start, intervals[i]);
+                SeriesAssembly assembly = new SeriesAssembly();
+                for (List<CachedSeries> segment : cached.get(i)) {
+                    for (CachedSeries series : segment) {
+                        assembly.add(series, from, end);
+                    }
+                }
+                for (OpenTSDBQueryResult result : fetched.get(i)) {
+                    assembly.add(result, from, end);
+                }
+                for (OpenTSDBQueryResult result : assembly.series.values()) {
+                    if (!result.getDataPoints().isEmpty()) {
+                        result.queryIndex = query.showQuery ? i : -1;
+                        results.add(result);
+                    }
+                }
+            }
+            QueryStatus status = results.isEmpty()
+                    ? new QueryStatus(QueryStatus.QueryStatusEnum.WARNING, OpenTSDBClient.NO_DATA_MESSAGE)
+                    : new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, "");
+            return new OpenTSDBQueryReturn(results.toArray(new OpenTSDBQueryResult[results.size()]), status);
+        }
+
+        /*
+         * Split the series fetched for a run of segments into one cache entry per segment. Empty
+         * segments are cached too, so gaps in the data are not fetched again.
+         */
+        private void store(String key, Range range, List<OpenTSDBQueryResult> results) {
+            for (long segment = range.segmentStart; segment < range.segmentEnd; segment += segmentSeconds) {
+                List<CachedSeries> entry = new ArrayList<>(results.size());
+                for (OpenTSDBQueryResult result : results) {
+                    DataPoints points = (DataPoints) result.getDataPoints().subMap(segment, segment + segmentSeconds);
+                    if (points.isEmpty()) {
+                        continue;
+                    }
+                    long[] timestamps = points.timestampArray();
+                    double[] values = points.valueArray();
+                    Map<String, String> tags = null == result.tags
+                            ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(new HashMap<>(result.tags));
+                    entry.add(new CachedSeries(result.metric, tags, timestamps, values));
+                }
+                segments.put(segmentKey(key, segment), Collections.unmodifiableList(entry));
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.zenoss.app.metricservice.api.model.DataPoints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Joins series that were fetched in parts, such as the chunks of a sharded query or the pre and post
+ * rate cutoff halves of a split one, back into one series ordered by timestamp.
+ */
+final class SeriesMerger {
+
+    private SeriesMerger() {
+    }
+
+    /**
+     * Identity of a series, its metric and tags, computed once so that grouping parts does not
+     * build and hash a string per result.
+     */
+    static final class Key {
+        private final String metric;
+        private final String[] tags;
+        private final int hash;
+
+        Key(OpenTSDBQueryResult result) {
+            metric = result.metric;
+            Map<String, String> resultTags = result.tags;
+            int size = null == resultTags ? 0 : resultTags.size();
+            tags = new String[2 * size];
+            if (size > 0) {
+                String[] names = resultTags.keySet().toArray(new String[size]);
+                Arrays.sort(names);
+                for (int i = 0; i < size; i++) {
+                    tags[2 * i] = names[i];
+                    tags[2 * i + 1] = resultTags.get(names[i]);
+                }
+            }
+            hash = 31 * (null == metric ? 0 : metric.hashCode()) + Arrays.hashCode(tags);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && (null == metric ? null == other.metric : metric.equals(other.metric))
+                    && Arrays.equals(tags, other.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Group results by series, keeping the order in which each series was first seen.
+     */
+    static Map<Key, List<OpenTSDBQueryResult>> group(Collection<OpenTSDBQueryResult> results) {
+        Map<Key, List<OpenTSDBQueryResult>> series = new LinkedHashMap<>();
+        for (OpenTSDBQueryResult result : results) {
+            add(series, result);
+        }
+        return series;
+    }
+
+    static void add(Map<Key, List<OpenTSDBQueryResult>> series, OpenTSDBQueryResult result) {
+        Key key = new Key(result);
+        List<OpenTSDBQueryResult> parts = series.get(key);
+        if (null == parts) {
+            parts = new ArrayList<>(2);
+            series.put(key, parts);
+        }
+        parts.add(result);
+    }
+
+    /**
+     * Merge the parts of one series into a single series ordered by timestamp. Where parts overlap,
+     * the value from the later part wins. A single part is returned as is.
+     */
+    static OpenTSDBQueryResult merge(List<OpenTSDBQueryResult> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(parts.size());
+        int total = 0;
+        for (int p = 0; p < parts.size(); p++) {
+            Cursor cursor = new Cursor(p, parts.get(p));
+            total += cursor.points.size();
+            if (cursor.hasNext()) {
+                heap.add(cursor);
+            }
+        }
+        long[] timestamps = new long[total];
+        double[] values = new double[total];
+        int count = 0;
+        while (!heap.isEmpty()) {
+            Cursor cursor = heap.poll();
+            long timestamp = cursor.timestamp();
+            if (count > 0 && timestamps[count - 1] == timestamp) {
+                // the heap hands out equal timestamps in part order
+                values[count - 1] = cursor.value();
+            } else {
+                timestamps[count] = timestamp;
+                values[count] = cursor.value();
+                count++;
+            }
+            cursor.position++;
+            if (cursor.hasNext()) {
+                heap.add(cursor);
+            }
+        }
+        OpenTSDBQueryResult merged = parts.get(0).copyWithoutDataPoints();
+        merged.setDataPoints(timestamps, values, count);
+        return merged;
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        final int part;
+        final DataPoints points;
+        int position;
+
+        Cursor(int part, OpenTSDBQueryResult result) {
+            this.part = part;
+            this.points = result.getDataPoints();
+        }
+
+        boolean hasNext() {
+            return position < points.size();
+        }
+
+        long timestamp() {
+            return points.timestampAt(position);
+        }
+
+        double value() {
+            return points.valueAt(position);
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int byTime = Long.compare(timestamp(), other.timestamp());
+            return byTime != 0 ? byTime : Integer.compare(part, other.part);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Splits queries over long time ranges into chunks that OpenTSDB can scan in parallel, then merges
+ * the partial series back into one ordered series per metric and tag set.
+ * <p>
+ * Chunk boundaries are multiples of the chunk length, and only subqueries whose downsample interval
+ * evenly divides it are split, so no downsampled bucket is shared by two chunks. Rate subqueries,
+ * subqueries without a downsample and millisecond resolution queries are sent over the full range
+ * in a request of their own. When a query would need more chunks than the maximum parallelism, the
+ * chunks are made longer instead.
+ */
+public class ShardingOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(ShardingOpenTSDBTransport.class);
+
+    private final OpenTSDBTransport delegate;
+    private final Executor dispatcher;
+    private final long chunkSeconds;
+    private final int maxParallelism;
+    private final Counter sharded = Metrics.newCounter(ShardingOpenTSDBTransport.class, "sharded-queries");
+    private final Counter chunks = Metrics.newCounter(ShardingOpenTSDBTransport.class, "query-chunks");
+
+    /**
+     * @param delegate       transport the chunks are sent through
+     * @param dispatcher     runs the chunk requests, so that chunks sent through a blocking
+     *                       transport still run concurrently; null sends them from the calling thread
+     * @param chunkSeconds   length of a chunk
+     * @param maxParallelism maximum number of chunks per query
+     */
+    public ShardingOpenTSDBTransport(OpenTSDBTransport delegate, Executor dispatcher, long chunkSeconds, int maxParallelism) {
+        if (chunkSeconds <= 0) {
+            throw new IllegalArgumentException("Chunk length must be positive: " + chunkSeconds);
+        }
+        this.delegate = delegate;
+        this.dispatcher = dispatcher;
+        this.chunkSeconds = chunkSeconds;
+        this.maxParallelism = Math.max(1, maxParallelism);
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(final OpenTSDBQuery query) {
+        final Plan plan;
+        try {
+            plan = plan(query);
+        } catch (ParseException e) {
+            log.debug("Not sharding query with unparsable range {} to {}", query.start, query.end);
+            return delegate.execute(query);
+        }
+        if (null == plan) {
+            return delegate.execute(query);
+        }
+        sharded.inc();
+        chunks.inc(plan.chunkStarts.size());
+
+        final List<OpenTSDBQuery> requests = plan.requests();
+        List<ListenableFuture<OpenTSDBQueryReturn>> responses = new ArrayList<>(requests.size());
+        for (OpenTSDBQuery request : requests) {
+            responses.add(dispatch(request));
+        }
+        final SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        Futures.addCallback(Futures.allAsList(responses), new FutureCallback<List<OpenTSDBQueryReturn>>() {
+            @Override
+            public void onSuccess(List<OpenTSDBQueryReturn> returns) {
+                for (OpenTSDBQueryReturn response : returns) {
+                    if (!OpenTSDBClient.isSuccessOrNoData(response.getStatus())) {
+                        result.set(response);
+                        return;
+                    }
+                }
+                try {
+                    result.set(plan.merge(returns));
+                } catch (IllegalStateException e) {
+                    log.warn("Could not merge query chunks, querying OpenTSDB directly: {}", e.getMessage());
+                    forward(delegate.execute(query), result);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    public long getShardedQueries() {
+        return sharded.count();
+    }
+
+    /**
+     * @return the current time in seconds since the epoch
+     */
+    protected long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    private ListenableFuture<OpenTSDBQueryReturn> dispatch(final OpenTSDBQuery request) {
+        if (null == dispatcher) {
+            return delegate.execute(request);
+        }
+        final SettableFuture<OpenTSDBQueryReturn> response = SettableFuture.create();
+        try {
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        forward(delegate.execute(request), response);
+                    } catch (RuntimeException e) {
+                        response.setException(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            forward(delegate.execute(request), response);
+        }
+        return response;
+    }
+
+    private static void forward(ListenableFuture<OpenTSDBQueryReturn> from, final SettableFuture<OpenTSDBQueryReturn> to) {
+        Futures.addCallback(from, new FutureCallback<OpenTSDBQueryReturn>() {
+            @Override
+            public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                to.set(queryReturn);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                to.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /*
+     * Split the range into chunks, or return null if the query is not worth splitting.
+     */
+    private Plan plan(OpenTSDBQuery query) throws ParseException {
+        if (query.msResolution || null == query.start || null == query.queries || query.queries.isEmpty()) {
+            return null;
+        }
+        long now = currentTimeSeconds();
+        long start = Utils.parseDate(query.start);
+        long end = null == query.end ? now : Utils.parseDate(query.end);
+        if (end - start < chunkSeconds) {
+            return null;
+        }
+        List<Integer> shardable = new ArrayList<>();
+        for (int i = 0; i < query.queries.size(); i++) {
+            OpenTSDBSubQuery subQuery = query.queries.get(i);
+            if (!subQuery.rate && null != subQuery.downsample) {
+                long interval = Utils.parseDuration(subQuery.downsample);
+                if (interval > 0 && chunkSeconds % interval == 0) {
+                    shardable.add(i);
+                }
+            }
+        }
+        if (shardable.isEmpty()) {
+            return null;
+        }
+
+        List<Long> chunkStarts = chunkStarts(start, end, chunkSeconds);
+        for (long length = 2 * chunkSeconds; chunkStarts.size() > maxParallelism; length += chunkSeconds) {
+            chunkStarts = chunkStarts(start, end, length);
+        }
+        if (chunkStarts.size() < 2) {
+            return null;
+        }
+        return new Plan(query, chunkStarts, end, shardable);
+    }
+
+    private static List<Long> chunkStarts(long start, long end, long length) {
+        List<Long> chunkStarts = new ArrayList<>();
+        chunkStarts.add(start);
+        long boundary = start - (((start % length) + length) % length) + length;
+        for (; boundary <= end; boundary += length) {
+            chunkStarts.add(boundary);
+        }
+        return chunkStarts;
+    }
+
+    private static final class Plan {
+        final OpenTSDBQuery query;
+        final List<Long> chunkStarts;
+        final long end;
+        final List<Integer> shardable;
+        final List<Integer> unshardable = new ArrayList<>();
+
+        Plan(OpenTSDBQuery query, List<Long> chunkStarts, long end, List<Integer> shardable) {
+            this.query = query;
+            this.chunkStarts = chunkStarts;
+            this.end = end;
+            this.shardable = shardable;
+            for (int i = 0; i < query.queries.size(); i++) {
+                if (!shardable.contains(i)) {
+                    unshardable.add(i);
+                }
+            }
+        }
+
+        /*
+         * One request per chunk, in time order, followed by the full range request for the
+         * subqueries that are not split.
+         */
+        List<OpenTSDBQuery> requests() {
+            List<OpenTSDBQuery> requests = new ArrayList<>(chunkStarts.size() + 1);
+            for (int c = 0; c < chunkStarts.size(); c++) {
+                boolean last = c == chunkStarts.size() - 1;
+                // OpenTSDB treats the end of a query as inclusive
+                requests.add(request(Long.toString(chunkStarts.get(c)),
+                        last ? query.end : Long.toString(chunkStarts.get(c + 1) - 1), shardable));
+            }
+            if (!unshardable.isEmpty()) {
+                requests.add(request(query.start, query.end, unshardable));
+            }
+            return requests;
+        }
+
+        private OpenTSDBQuery request(String start, String end, List<Integer> indexes) {
+            OpenTSDBQuery request = new OpenTSDBQuery();
+            request.start = start;
+            request.end = end;
+            request.noAnnotations = query.noAnnotations;
+            request.globalAnnotations = query.globalAnnotations;
+            request.showTSUIDs = query.showTSUIDs;
+            request.showQuery = true;
+            for (int index : indexes) {
+                request.addSubQuery(query.queries.get(index));
+            }
+            return request;
+        }
+
+        OpenTSDBQueryReturn merge(List<OpenTSDBQueryReturn> responses) {
+            int size = query.queries.size();
+            // subquery -> series -> one part per chunk
+            List<Map<SeriesMerger.Key, List<OpenTSDBQueryResult>>> parts = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                parts.add(new LinkedHashMap<SeriesMerger.Key, List<OpenTSDBQueryResult>>());
+            }
+            for (int r = 0; r < responses.size(); r++) {
+                List<Integer> indexes = r < chunkStarts.size() ? shardable : unshardable;
+                for (OpenTSDBQueryResult result : responses.get(r).getResults()) {
+                    int position = result.queryIndex;
+                    if (position < 0 || position >= indexes.size()) {
+                        if (indexes.size() != 1) {
+                            throw new IllegalStateException("Result for " + result.metric + " has no usable query index");
+                        }
+                        position = 0;
+                    }
+                    SeriesMerger.add(parts.get(indexes.get(position)), result);
+                }
+            }
+
+            List<OpenTSDBQueryResult> results = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                for (List<OpenTSDBQueryResult> seriesParts : parts.get(i).values()) {
+                    OpenTSDBQueryResult merged = SeriesMerger.merge(seriesParts);
+                    merged.queryIndex = query.showQuery ? i : -1;
+                    results.add(merged);
+                }
+            }
+            QueryStatus status = results.isEmpty()
+                    ? new QueryStatus(QueryStatus.QueryStatusEnum.WARNING, OpenTSDBClient.NO_DATA_MESSAGE)
+                    : new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, "");
+            return new OpenTSDBQueryReturn(results.toArray(new OpenTSDBQueryResult[results.size()]), status);
+        }
+    }
+}
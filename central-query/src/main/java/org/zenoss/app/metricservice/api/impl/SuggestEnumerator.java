@@ -0,0 +1,196 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds every metric name or tag value under a prefix with OpenTSDB's suggest endpoint, which has
+ * no paging: it returns at most max names and says nothing of the rest.
+ * <p>
+ * Each request asks for one more than a page of names. When more than a page comes back, the
+ * prefix is split into one prefix per character OpenTSDB allows in a name, and those are asked for
+ * in parallel, down to prefixes with no more than a page under them. Names are handed to the
+ * listener as they are found, from whichever thread found them. Names containing characters
+ * outside the UID alphabet can be missed under a split prefix; the count of those seen is logged.
+ */
+public class SuggestEnumerator {
+    private static final Logger log = LoggerFactory.getLogger(SuggestEnumerator.class);
+
+    /**
+     * The characters OpenTSDB allows in metric names and tag values, in the order it sorts them.
+     */
+    static final String ALPHABET = "-./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * Takes the names found.
+     */
+    public interface Listener {
+        void found(String name);
+    }
+
+    private final OpenTSDBClient client;
+    private final Executor executor;
+    private final int pageSize;
+
+    /**
+     * @param client   client of the suggest endpoint
+     * @param executor runs the suggest requests
+     * @param pageSize most names asked for at once; not positive to ask for all names in one request
+     */
+    public SuggestEnumerator(OpenTSDBClient client, Executor executor, int pageSize) {
+        this.client = client;
+        this.executor = executor;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Start finding the names under a prefix.
+     *
+     * @param type OpenTSDBSuggest.TYPE_METRIC or TYPE_TAGV
+     * @return the result of the search, once every name has been handed to the listener
+     */
+    public ListenableFuture<Result> enumerate(String type, String prefix, Listener listener) {
+        Search search = new Search(type, listener);
+        search.submit(prefix);
+        return search.result;
+    }
+
+    /**
+     * What a search found.
+     */
+    public static final class Result {
+        private final int found;
+        private final int requests;
+        private final int failedRequests;
+
+        Result(int found, int requests, int failedRequests) {
+            this.found = found;
+            this.requests = requests;
+            this.failedRequests = failedRequests;
+        }
+
+        public int getFound() {
+            return found;
+        }
+
+        public int getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return suggest requests that failed; names under their prefixes were not found
+         */
+        public int getFailedRequests() {
+            return failedRequests;
+        }
+
+        public boolean isComplete() {
+            return failedRequests == 0;
+        }
+    }
+
+    private final class Search {
+        final String type;
+        final Listener listener;
+        final SettableFuture<Result> result = SettableFuture.create();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicInteger found = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger unsplittable = new AtomicInteger();
+
+        Search(String type, Listener listener) {
+            this.type = type;
+            this.listener = listener;
+        }
+
+        void submit(final String prefix) {
+            pending.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            page(prefix);
+                        } catch (RuntimeException e) {
+                            log.warn("Error while looking up names under {}: {}", prefix, e.getMessage());
+                            failed.incrementAndGet();
+                        } finally {
+                            done();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("Could not look up names under {}: {}", prefix, e.getMessage());
+                failed.incrementAndGet();
+                done();
+            }
+        }
+
+        void page(String prefix) {
+            OpenTSDBSuggest suggest = new OpenTSDBSuggest();
+            suggest.type = type;
+            suggest.q = prefix;
+            if (pageSize > 0) {
+                suggest.max = pageSize + 1;
+            }
+            requests.incrementAndGet();
+            SuggestResult page = client.suggest(suggest);
+            if (page.statusCode != 200) {
+                log.warn("Suggest request for {} under {} failed: {} {}", type, prefix, page.statusCode, page.reasonPhrase);
+                failed.incrementAndGet();
+                return;
+            }
+            if (pageSize <= 0 || page.suggestions.size() <= pageSize) {
+                for (String name : page.suggestions) {
+                    found(name);
+                }
+                return;
+            }
+            // too many to list: the longer names are found under the split prefixes
+            for (String name : page.suggestions) {
+                if (name.length() == prefix.length()) {
+                    found(name);
+                } else if (ALPHABET.indexOf(name.charAt(prefix.length())) < 0) {
+                    unsplittable.incrementAndGet();
+                    found(name);
+                }
+            }
+            for (int i = 0; i < ALPHABET.length(); i++) {
+                submit(prefix + ALPHABET.charAt(i));
+            }
+        }
+
+        void found(String name) {
+            found.incrementAndGet();
+            listener.found(name);
+        }
+
+        void done() {
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+            if (unsplittable.get() > 0) {
+                log.warn("Found {} {} names with characters outside the UID alphabet; others like them may have been missed",
+                        unsplittable.get(), type);
+            }
+            result.set(new Result(found.get(), requests.get(), failed.get()));
+        }
+    }
+}
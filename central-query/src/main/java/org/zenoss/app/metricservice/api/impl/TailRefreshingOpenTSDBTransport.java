@@ -0,0 +1,381 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.metricservice.api.model.DataPoints;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes rolling "N-ago to now" queries incrementally. The series last returned for each
+ * downsampled subquery are kept; when the same subquery is polled again only the data since the
+ * previous poll, plus an overlap for points that arrived late, is fetched from OpenTSDB. The fresh
+ * points replace the retained ones from the start of the overlap, and points that have dropped out
+ * of the window are trimmed from the head.
+ * <p>
+ * A range given in epoch seconds at both ends, the end within {@value #ROLLING_END_SLACK_SECONDS} seconds
+ * of now is treated as rolling too, since that is how the v1 API sends "N-ago to now"; the result is
+ * trimmed to the requested end.
+ * <p>
+ * Retained windows are keyed by the canonical JSON of the subquery, so every caller polling the
+ * same subquery shares one window regardless of how long its own window is. Subqueries that are not
+ * downsampled or ask for a rate are always fetched in full, as are other absolute ranges.
+ */
+public class TailRefreshingOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(TailRefreshingOpenTSDBTransport.class);
+
+    private static final String AGO = "-ago";
+    static final long ROLLING_END_SLACK_SECONDS = 10;
+
+    private final OpenTSDBTransport delegate;
+    private final long overlapSeconds;
+    private final Cache<String, Window> windows;
+    private final Counter hits = Metrics.newCounter(TailRefreshingOpenTSDBTransport.class, "tail-refresh-hits");
+    private final Counter misses = Metrics.newCounter(TailRefreshingOpenTSDBTransport.class, "tail-refresh-misses");
+
+    /**
+     * @param delegate       transport used to fetch full windows and deltas
+     * @param overlapSeconds how far before the end of the previous poll a delta starts
+     * @param maxWindows     number of subqueries whose last window is retained
+     * @param idleSeconds    a window that has not been polled for this long is dropped
+     */
+    public TailRefreshingOpenTSDBTransport(OpenTSDBTransport delegate, long overlapSeconds, long maxWindows, long idleSeconds) {
+        this.delegate = delegate;
+        this.overlapSeconds = Math.max(0, overlapSeconds);
+        this.windows = CacheBuilder.newBuilder()
+                .maximumSize(maxWindows)
+                .expireAfterAccess(idleSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(final OpenTSDBQuery query) {
+        if (query.msResolution || null == query.start || null == query.queries || query.queries.isEmpty()) {
+            return delegate.execute(query);
+        }
+        long now = currentTimeSeconds();
+        String queryStart = query.start.trim();
+        String queryEnd = null == query.end ? Utils.NOW : query.end.trim();
+        long from;
+        long to;
+        if (queryStart.endsWith(AGO)) {
+            if (!Utils.NOW.equals(queryEnd)) {
+                return delegate.execute(query);
+            }
+            from = now - Utils.parseDuration(queryStart.substring(0, queryStart.length() - AGO.length()));
+            to = now;
+        } else {
+            from = epochSeconds(queryStart);
+            to = epochSeconds(queryEnd);
+            if (from < 0 || to < 0 || Math.abs(now - to) > ROLLING_END_SLACK_SECONDS) {
+                return delegate.execute(query);
+            }
+        }
+        if (to <= from) {
+            return delegate.execute(query);
+        }
+        final Refresh refresh = new Refresh(query, from, to);
+        for (int i = 0; i < query.queries.size(); i++) {
+            refresh.plan(i);
+        }
+        if (!refresh.isRefreshable()) {
+            return delegate.execute(query);
+        }
+
+        final List<String> starts = new ArrayList<>(refresh.requests.keySet());
+        List<ListenableFuture<OpenTSDBQueryReturn>> responses = new ArrayList<>(starts.size());
+        for (String start : starts) {
+            responses.add(delegate.execute(refresh.request(start)));
+        }
+        final SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        Futures.addCallback(Futures.allAsList(responses), new FutureCallback<List<OpenTSDBQueryReturn>>() {
+            @Override
+            public void onSuccess(List<OpenTSDBQueryReturn> returns) {
+                Map<String, OpenTSDBQueryReturn> byStart = new HashMap<>();
+                for (int i = 0; i < starts.size(); i++) {
+                    OpenTSDBQueryReturn response = returns.get(i);
+                    if (!OpenTSDBClient.isSuccessOrNoData(response.getStatus())) {
+                        result.set(response);
+                        return;
+                    }
+                    byStart.put(starts.get(i), response);
+                }
+                try {
+                    result.set(refresh.stitch(byStart));
+                } catch (IllegalStateException e) {
+                    log.warn("Could not stitch refreshed query, querying OpenTSDB directly: {}", e.getMessage());
+                    forward(delegate.execute(query), result);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    public long getHits() {
+        return hits.count();
+    }
+
+    public long getMisses() {
+        return misses.count();
+    }
+
+    /**
+     * @return the current time in seconds since the epoch
+     */
+    protected long currentTimeSeconds() {
+        return System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * @return the value as seconds since the epoch, or -1 if it is not a plain number of seconds
+     */
+    private static long epochSeconds(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long interval(OpenTSDBSubQuery subQuery) {
+        if (subQuery.rate || null == subQuery.downsample) {
+            return 0;
+        }
+        return Utils.parseDuration(subQuery.downsample);
+    }
+
+    private static long floor(long value, long unit) {
+        return value - (((value % unit) + unit) % unit);
+    }
+
+    private static String seriesKey(OpenTSDBQueryResult result) {
+        return result.metric + (null == result.tags ? new TreeMap<String, String>() : new TreeMap<>(result.tags));
+    }
+
+    private static void forward(ListenableFuture<OpenTSDBQueryReturn> from, final SettableFuture<OpenTSDBQueryReturn> to) {
+        Futures.addCallback(from, new FutureCallback<OpenTSDBQueryReturn>() {
+            @Override
+            public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                to.set(queryReturn);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                to.setException(t);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * The series of one subquery as of its last poll. Never modified once stored.
+     */
+    private static final class Window {
+        final long from;
+        final long fetchedAt;
+        final Map<String, OpenTSDBQueryResult> series;
+
+        Window(long from, long fetchedAt, Map<String, OpenTSDBQueryResult> series) {
+            this.from = from;
+            this.fetchedAt = fetchedAt;
+            this.series = series;
+        }
+    }
+
+    private final class Refresh {
+        final OpenTSDBQuery query;
+        final long start;
+        final long end;
+        final String[] keys;
+        final long[] intervals;
+        final Window[] retained;
+        final long[] deltaStarts;
+        final Map<String, List<Integer>> requests = new LinkedHashMap<>();
+
+        Refresh(OpenTSDBQuery query, long start, long end) {
+            this.query = query;
+            this.start = start;
+            this.end = end;
+            int size = query.queries.size();
+            keys = new String[size];
+            intervals = new long[size];
+            retained = new Window[size];
+            deltaStarts = new long[size];
+        }
+
+        /*
+         * Fetch only the delta for a subquery when its retained window covers the start of this
+         * one and the overlap does not reach back past it.
+         */
+        void plan(int index) {
+            OpenTSDBSubQuery subQuery = query.queries.get(index);
+            long interval = interval(subQuery);
+            if (interval <= 0) {
+                add(query.start, index);
+                return;
+            }
+            intervals[index] = interval;
+            keys[index] = CoalescingOpenTSDBTransport.canonicalKey(subQuery);
+            Window window = windows.getIfPresent(keys[index]);
+            long deltaStart = null == window ? 0 : floor(window.fetchedAt - overlapSeconds, interval);
+            if (null == window || window.from > floor(start, interval) || deltaStart <= floor(start, interval)) {
+                misses.inc();
+                add(query.start, index);
+                return;
+            }
+            hits.inc();
+            retained[index] = window;
+            deltaStarts[index] = deltaStart;
+            add(Long.toString(deltaStart), index);
+        }
+
+        boolean isRefreshable() {
+            for (String key : keys) {
+                if (null != key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void add(String requestStart, int index) {
+            List<Integer> indexes = requests.get(requestStart);
+            if (null == indexes) {
+                indexes = new ArrayList<>();
+                requests.put(requestStart, indexes);
+            }
+            indexes.add(index);
+        }
+
+        OpenTSDBQuery request(String requestStart) {
+            OpenTSDBQuery request = new OpenTSDBQuery();
+            request.start = requestStart;
+            request.end = query.end;
+            request.noAnnotations = query.noAnnotations;
+            request.globalAnnotations = query.globalAnnotations;
+            request.showTSUIDs = query.showTSUIDs;
+            request.showQuery = true;
+            for (int index : requests.get(requestStart)) {
+                request.addSubQuery(query.queries.get(index));
+            }
+            return request;
+        }
+
+        OpenTSDBQueryReturn stitch(Map<String, OpenTSDBQueryReturn> responses) {
+            int size = query.queries.size();
+            List<List<OpenTSDBQueryResult>> fetched = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                fetched.add(new ArrayList<OpenTSDBQueryResult>());
+            }
+            for (Map.Entry<String, OpenTSDBQueryReturn> response : responses.entrySet()) {
+                List<Integer> indexes = requests.get(response.getKey());
+                for (OpenTSDBQueryResult result : response.getValue().getResults()) {
+                    int position = result.queryIndex;
+                    if (position < 0 || position >= indexes.size()) {
+                        if (indexes.size() != 1) {
+                            throw new IllegalStateException("Result for " + result.metric + " has no usable query index");
+                        }
+                        position = 0;
+                    }
+                    fetched.get(indexes.get(position)).add(result);
+                }
+            }
+
+            List<OpenTSDBQueryResult> results = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (intervals[i] <= 0) {
+                    for (OpenTSDBQueryResult result : fetched.get(i)) {
+                        result.queryIndex = query.showQuery ? i : -1;
+                        results.add(result);
+                    }
+                    continue;
+                }
+                Window window = merge(i, fetched.get(i));
+                windows.put(keys[i], window);
+                long from = floor(start, intervals[i]);
+                for (OpenTSDBQueryResult series : window.series.values()) {
+                    OpenTSDBQueryResult result = series.copy();
+                    result.setDataPoints(DataPoints.copyOf(series.getDataPoints().subMap(from, end + 1)));
+                    if (!result.getDataPoints().isEmpty()) {
+                        result.queryIndex = query.showQuery ? i : -1;
+                        results.add(result);
+                    }
+                }
+            }
+            QueryStatus status = results.isEmpty()
+                    ? new QueryStatus(QueryStatus.QueryStatusEnum.WARNING, OpenTSDBClient.NO_DATA_MESSAGE)
+                    : new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, "");
+            return new OpenTSDBQueryReturn(results.toArray(new OpenTSDBQueryResult[results.size()]), status);
+        }
+
+        /*
+         * Replace the retained points from the start of the delta with the fetched ones and trim
+         * whatever no poller of this subquery still needs. A window retained for a longer poll
+         * keeps rolling forward at its own length.
+         */
+        private Window merge(int index, List<OpenTSDBQueryResult> fetched) {
+            long interval = intervals[index];
+            Window previous = retained[index];
+            long from = floor(start, interval);
+            if (null != previous) {
+                from = Math.min(from, floor(previous.from + (end - previous.fetchedAt), interval));
+            }
+            Map<String, OpenTSDBQueryResult> series = new LinkedHashMap<>();
+            if (null != previous) {
+                for (Map.Entry<String, OpenTSDBQueryResult> entry : previous.series.entrySet()) {
+                    SortedMap<Long, Double> kept = entry.getValue().getDataPoints().subMap(from, deltaStarts[index]);
+                    if (!kept.isEmpty()) {
+                        OpenTSDBQueryResult result = entry.getValue().copy();
+                        result.setDataPoints(DataPoints.copyOf(kept));
+                        series.put(entry.getKey(), result);
+                    }
+                }
+            }
+            for (OpenTSDBQueryResult result : fetched) {
+                String key = seriesKey(result);
+                OpenTSDBQueryResult merged = series.get(key);
+                if (null == merged) {
+                    merged = result.copy();
+                    merged.setDataPoints(new DataPoints());
+                    series.put(key, merged);
+                }
+                DataPoints points = result.getDataPoints();
+                for (int i = points.ceilingIndex(from); i < points.size(); i++) {
+                    merged.addDataPoint(points.timestampAt(i), points.valueAt(i));
+                }
+            }
+            return new Window(from, end, Collections.unmodifiableMap(series));
+        }
+    }
+}
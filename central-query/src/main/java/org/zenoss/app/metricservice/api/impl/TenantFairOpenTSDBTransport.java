@@ -0,0 +1,408 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zenoss.app.metricservice.api.configs.TenantQuota;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares OpenTSDB between tenants, so that one tenant sending a flood of queries does not hold up
+ * everyone else's.
+ * <p>
+ * Queries are sent on at most maxInFlight at a time. The rest wait in a queue per tenant, and the
+ * next query sent is picked by start-time fair queuing: each waiting query is tagged with the virtual
+ * time at which its tenant's share of OpenTSDB would let it start, and the query with the earliest
+ * tag among the tenants within their quotas goes first. A tenant with weight 2 gets twice the turns
+ * of a tenant with weight 1 while both have queries waiting, and a tenant that has been idle starts
+ * at the current virtual time rather than with credit for the time it was away. A tenant's quota may
+ * also limit how many of its queries are in flight at once and how many it may start per second.
+ * <p>
+ * The tenant of a query is the value of its {@link #TENANT_TAG} tag or filter; queries without one
+ * share the tenant {@link #NO_TENANT}.
+ * <p>
+ * The delegate must not block: a waiting query holds no thread, and queries are sent on from
+ * whichever thread makes room for them. With the blocking HTTP client the queries would also have
+ * to wait for the executor's threads, in arrival order, before they got here, so the storage only
+ * puts this in front of the asynchronous client.
+ */
+public class TenantFairOpenTSDBTransport implements OpenTSDBTransport {
+    private static final Logger log = LoggerFactory.getLogger(TenantFairOpenTSDBTransport.class);
+
+    /**
+     * Tag naming the tenant a query is made for.
+     */
+    public static final String TENANT_TAG = "zenoss_tenant_id";
+
+    /**
+     * Tenant of queries that have no tenant tag.
+     */
+    public static final String NO_TENANT = "none";
+
+    private final OpenTSDBTransport delegate;
+    private final ScheduledExecutorService timer;
+    private final int maxInFlight;
+    private final TenantQuota defaultQuota;
+    private final Map<String, TenantQuota> quotas;
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private int inFlight = 0;
+    private double virtualTime = 0;
+    private long sequence = 0;
+    private boolean dispatching = false;
+    private boolean wakeupScheduled = false;
+
+    /**
+     * @param delegate     transport the queries are sent through
+     * @param timer        starts queries held back by a rate limit once the limit allows
+     * @param maxInFlight  most queries sent on at once
+     * @param defaultQuota quota of tenants not listed in quotas
+     * @param quotas       quotas by tenant
+     */
+    public TenantFairOpenTSDBTransport(OpenTSDBTransport delegate, ScheduledExecutorService timer, int maxInFlight,
+                                       TenantQuota defaultQuota, Map<String, TenantQuota> quotas) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.delegate = delegate;
+        this.timer = timer;
+        this.maxInFlight = maxInFlight;
+        this.defaultQuota = defaultQuota;
+        this.quotas = null == quotas ? Collections.<String, TenantQuota>emptyMap() : quotas;
+        Metrics.newGauge(TenantFairOpenTSDBTransport.class, "in-flight", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                synchronized (tenants) {
+                    return inFlight;
+                }
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+        final Waiter waiter;
+        synchronized (tenants) {
+            Tenant tenant = tenant(tenantOf(query));
+            waiter = new Waiter(query, tenant, QueryDeadline.current(), Math.max(virtualTime, tenant.lastFinish), sequence++);
+            tenant.lastFinish = waiter.startTag + 1.0 / tenant.weight;
+            tenant.waiting.add(waiter);
+        }
+        waiter.result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (waiter.result.isCancelled()) {
+                    waiter.cancel();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        dispatch();
+        return waiter.result;
+    }
+
+    /**
+     * @return the tenant a query is made for
+     */
+    public static String tenantOf(OpenTSDBQuery query) {
+        if (null != query.queries) {
+            for (OpenTSDBSubQuery subQuery : query.queries) {
+                if (null != subQuery.tags && subQuery.tags.containsKey(TENANT_TAG)) {
+                    return subQuery.tags.get(TENANT_TAG);
+                }
+                if (null != subQuery.filters) {
+                    for (OpenTSDBFilter filter : subQuery.filters) {
+                        if (TENANT_TAG.equals(filter.getTagk())) {
+                            return filter.getFilter();
+                        }
+                    }
+                }
+            }
+        }
+        return NO_TENANT;
+    }
+
+    public int getWaitingCount(String tenantId) {
+        synchronized (tenants) {
+            Tenant tenant = tenants.get(tenantId);
+            return null == tenant ? 0 : tenant.waiting.size();
+        }
+    }
+
+    public int getInFlight(String tenantId) {
+        synchronized (tenants) {
+            Tenant tenant = tenants.get(tenantId);
+            return null == tenant ? 0 : tenant.inFlight;
+        }
+    }
+
+    /*
+     * Called holding the lock.
+     */
+    private Tenant tenant(String id) {
+        Tenant tenant = tenants.get(id);
+        if (null == tenant) {
+            TenantQuota quota = quotas.get(id);
+            tenant = new Tenant(id, null == quota ? defaultQuota : quota);
+            tenants.put(id, tenant);
+            final String tenantId = id;
+            Metrics.newGauge(TenantFairOpenTSDBTransport.class, "queue-depth", tenantId, new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return getWaitingCount(tenantId);
+                }
+            });
+            Metrics.newGauge(TenantFairOpenTSDBTransport.class, "tenant-in-flight", tenantId, new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return getInFlight(tenantId);
+                }
+            });
+        }
+        return tenant;
+    }
+
+    /*
+     * Send queries on while there is room for them. Only one thread dispatches at a time: a thread
+     * that finds another at it leaves the work to that thread, which takes each query under the lock
+     * and so sees any room made in the meantime.
+     */
+    private void dispatch() {
+        synchronized (tenants) {
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+        while (true) {
+            Waiter next;
+            synchronized (tenants) {
+                next = takeNext();
+                if (null == next) {
+                    dispatching = false;
+                    return;
+                }
+            }
+            next.tenant.waitTime.update(System.nanoTime() - next.queuedAtNanos, TimeUnit.NANOSECONDS);
+            next.launch();
+        }
+    }
+
+    /*
+     * The waiting query with the earliest start tag among the tenants within their quotas, counted
+     * as in flight; called holding the lock.
+     */
+    private Waiter takeNext() {
+        if (inFlight >= maxInFlight) {
+            return null;
+        }
+        long now = System.nanoTime();
+        long wakeIn = Long.MAX_VALUE;
+        Waiter best = null;
+        for (Tenant tenant : tenants.values()) {
+            Waiter head = tenant.waiting.peek();
+            if (null == head || (tenant.maxInFlight > 0 && tenant.inFlight >= tenant.maxInFlight)) {
+                continue;
+            }
+            long untilAllowed = tenant.nanosUntilAllowed(now);
+            if (untilAllowed > 0) {
+                wakeIn = Math.min(wakeIn, untilAllowed);
+                continue;
+            }
+            if (null == best || head.compareTo(best) < 0) {
+                best = head;
+            }
+        }
+        if (null == best) {
+            if (wakeIn != Long.MAX_VALUE) {
+                scheduleWakeup(wakeIn);
+            }
+            return null;
+        }
+        Tenant tenant = best.tenant;
+        tenant.waiting.poll();
+        tenant.started();
+        inFlight++;
+        virtualTime = best.startTag;
+        return best;
+    }
+
+    /*
+     * Called holding the lock.
+     */
+    private void scheduleWakeup(long delayNanos) {
+        if (wakeupScheduled) {
+            return;
+        }
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (tenants) {
+                        wakeupScheduled = false;
+                    }
+                    dispatch();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            wakeupScheduled = true;
+        } catch (RejectedExecutionException e) {
+            log.debug("Not waiting for rate limits to allow queries: {}", e.getMessage());
+        }
+    }
+
+    /*
+     * Take a query that has not been sent out of its queue; false if it has been sent.
+     */
+    private boolean withdraw(Waiter waiter) {
+        synchronized (tenants) {
+            return waiter.tenant.waiting.remove(waiter);
+        }
+    }
+
+    private void finished(Tenant tenant) {
+        synchronized (tenants) {
+            tenant.inFlight--;
+            inFlight--;
+        }
+        dispatch();
+    }
+
+    /*
+     * A tenant's queue and quota; guarded by the lock.
+     */
+    private static final class Tenant {
+        final double weight;
+        final int maxInFlight;
+        final double maxQueriesPerSecond;
+        final double burst;
+        final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+        final Timer waitTime;
+        int inFlight = 0;
+        double lastFinish = 0;
+        double tokens;
+        long refilledAt = System.nanoTime();
+
+        Tenant(String id, TenantQuota quota) {
+            this.weight = Math.max(1, quota.getWeight());
+            this.maxInFlight = quota.getMaxInFlight();
+            this.maxQueriesPerSecond = quota.getMaxQueriesPerSecond();
+            this.burst = Math.max(1, maxQueriesPerSecond);
+            this.tokens = burst;
+            this.waitTime = Metrics.newTimer(TenantFairOpenTSDBTransport.class, "queue-wait", id,
+                    TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        }
+
+        /*
+         * Nanoseconds until the rate limit lets the tenant start a query, 0 if it may now.
+         */
+        long nanosUntilAllowed(long now) {
+            if (maxQueriesPerSecond <= 0) {
+                return 0;
+            }
+            tokens = Math.min(burst, tokens + (now - refilledAt) * maxQueriesPerSecond / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+            if (tokens >= 1) {
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / maxQueriesPerSecond);
+        }
+
+        void started() {
+            inFlight++;
+            if (maxQueriesPerSecond > 0) {
+                tokens -= 1;
+            }
+        }
+    }
+
+    private final class Waiter implements Comparable<Waiter> {
+        final OpenTSDBQuery query;
+        final Tenant tenant;
+        final QueryDeadline deadline;
+        final double startTag;
+        final long order;
+        final long queuedAtNanos = System.nanoTime();
+        final SettableFuture<OpenTSDBQueryReturn> result = SettableFuture.create();
+        volatile ListenableFuture<OpenTSDBQueryReturn> response = null;
+
+        Waiter(OpenTSDBQuery query, Tenant tenant, QueryDeadline deadline, double startTag, long order) {
+            this.query = query;
+            this.tenant = tenant;
+            this.deadline = deadline;
+            this.startTag = startTag;
+            this.order = order;
+        }
+
+        /*
+         * Send the query on, in the request it was made for, and free its place once answered.
+         */
+        void launch() {
+            ListenableFuture<OpenTSDBQueryReturn> sent;
+            try (QueryDeadline.Scope scope = deadline.enter()) {
+                sent = delegate.execute(query);
+            } catch (RuntimeException e) {
+                result.setException(e);
+                finished(tenant);
+                return;
+            }
+            response = sent;
+            if (result.isCancelled()) {
+                sent.cancel(true);
+            }
+            Futures.addCallback(sent, new FutureCallback<OpenTSDBQueryReturn>() {
+                @Override
+                public void onSuccess(OpenTSDBQueryReturn queryReturn) {
+                    result.set(queryReturn);
+                    finished(tenant);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    result.setException(t);
+                    finished(tenant);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        /*
+         * The caller gave up on the query: drop it if it is still waiting, else cancel it.
+         */
+        void cancel() {
+            if (withdraw(this)) {
+                return;
+            }
+            ListenableFuture<OpenTSDBQueryReturn> sent = response;
+            if (null != sent) {
+                sent.cancel(true);
+            }
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int byTag = Double.compare(startTag, other.startTag);
+            return byTag != 0 ? byTag : Long.compare(order, other.order);
+        }
+    }
+}
@@ -194,6 +194,19 @@ public class MockMetricStorage implements MetricStorageAPI {
                 downsample, tags, queries);
     }
 
+    @Override
+    public Iterable<OpenTSDBQueryResult> getResponseAsCompleted(MetricServiceAppConfiguration config,
+                                                                String id,
+                                                                String startTime,
+                                                                String endTime,
+                                                                ReturnSet returnset,
+                                                                String downsample,
+                                                                double downsampleMultiplier,
+                                                                Map<String, List<String>> tags,
+                                                                List<MetricSpecification> queries) throws IOException {
+        return getResponse(config, id, startTime, endTime, returnset, downsample, downsampleMultiplier, tags, queries);
+    }
+
     /*
      * (non-Javadoc)
      * 
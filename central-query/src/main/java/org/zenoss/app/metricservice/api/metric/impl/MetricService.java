@@ -34,8 +34,10 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -59,8 +61,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 
 
 @API
@@ -78,6 +79,8 @@ public class MetricService implements MetricServiceAPI {
     @Autowired
     MetricStorageAPI api;
     private String corsHeaders;
+    private OffHeapPool offHeapPool;
+    private ForkJoinPool bucketingPool;
 
     public MetricService() {
         objectMapper = Utils.getObjectMapper();
@@ -143,6 +146,10 @@ public class MetricService implements MetricServiceAPI {
             UnsupportedOperationException e = new UnsupportedOperationException("Series is no longer supported.");
             throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
         }
+        QueryDeadline deadline = QueryDeadline.current();
+        deadline.defaultTimeout(config.getMetricServiceConfig().getDefaultQueryTimeoutMs());
+        deadline.defaultPriority(QueryPriority.bySize(null == metrics ? 0 : metrics.size(),
+                config.getMetricServiceConfig().getExportMetricThreshold()));
         MetricServiceWorker worker = new MetricServiceWorker(id.or(NOT_SPECIFIED),
                         start.or(config.getMetricServiceConfig().getDefaultStartTime()),
                         end.or(config.getMetricServiceConfig().getDefaultEndTime()),
@@ -169,6 +176,21 @@ public class MetricService implements MetricServiceAPI {
         return makeCORS(Response.ok(), request);
     }
 
+    private synchronized OffHeapPool getOffHeapPool() {
+        if (null == offHeapPool) {
+            offHeapPool = new OffHeapPool(config.getMetricServiceConfig().getOffHeapPoolMaxBytes());
+        }
+        return offHeapPool;
+    }
+
+    private synchronized ForkJoinPool getBucketingPool() {
+        if (null == bucketingPool) {
+            int threads = config.getMetricServiceConfig().getParallelBucketingThreads();
+            bucketingPool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        }
+        return bucketingPool;
+    }
+
     private class MetricServiceWorker{
         private final String id;
         private final String startTime;
@@ -203,6 +225,24 @@ public class MetricService implements MetricServiceAPI {
         }
 
         public SeriesQueryResult run() {
+            if (!config.getMetricServiceConfig().isOffHeapStorage()) {
+                return run(null);
+            }
+            // the series and buckets in direct memory are handed back as soon as the result has been made
+            try (OffHeapPool.Arena arena = getOffHeapPool().newArena(config.getMetricServiceConfig().getOffHeapMaxBytesPerQuery())) {
+                return run(arena);
+            } catch (OffHeapPool.BudgetExceededException e) {
+                log.warn("Query {} ran out of off-heap memory: {}", id, e.getMessage());
+                // the server is short of memory, not the request at fault
+                throw new WebApplicationException(
+                        Utils.getErrorResponse(id,
+                                Response.Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                                String.format("Unable to write results: %s", e.getMessage()),
+                                e.getMessage()));
+            }
+        }
+
+        private SeriesQueryResult run(OffHeapPool.Arena arena) {
             validateParameters();
             // Validate the input parameters. Throw exception if any are bad.
 
@@ -212,13 +252,27 @@ public class MetricService implements MetricServiceAPI {
             Iterable<OpenTSDBQueryResult> otsdbResponse = null;
             try {
                 // The getReader call queries the datastore (e.g. openTSDB) and returns a otsdbResponse for streaming the results.
-                otsdbResponse = api.getResponse(config, id, convertedStartTime, convertedEndTime, returnset,
-                        downsample, downsampleMultiplier, tags, metricFilter(queries));
+                boolean pipelined = config.getMetricServiceConfig().isPipelinedResults();
+                if (pipelined) {
+                    otsdbResponse = api.getResponseAsCompleted(config, id, convertedStartTime, convertedEndTime, returnset,
+                            downsample, downsampleMultiplier, tags, metricFilter(queries));
+                } else {
+                    otsdbResponse = api.getResponse(config, id, convertedStartTime, convertedEndTime, returnset,
+                            downsample, downsampleMultiplier, tags, metricFilter(queries));
+                }
                 if (null == otsdbResponse) {
                     throw new IOException("Unable to get otsdbResponse from api.");
                 }
+                if (pipelined) {
+                    // the series are still coming back; each is made ready on its way into the buckets
+                    otsdbResponse = Iterables.transform(otsdbResponse, prepareSeries(arena));
+                } else if (null != arena) {
+                    for (OpenTSDBQueryResult series : otsdbResponse) {
+                        series.setDataPoints(arena.copyOf(series.getDataPoints()));
+                    }
+                }
 
-                if (returnset == ReturnSet.LAST) {
+                if (returnset == ReturnSet.LAST && !pipelined) {
                     log.debug("Applying last filter.");
                     otsdbResponse = translateOpenTsdbInputToLastInput(otsdbResponse, start, end); //new LastFilter(otsdbResponse, start, end);
                 }
@@ -254,7 +308,7 @@ public class MetricService implements MetricServiceAPI {
             }
             SeriesQueryResult result;
             try {
-                result = makeResults(otsdbResponse, bucketSize);
+                result = makeResults(otsdbResponse, bucketSize, arena);
             } catch (ClassNotFoundException e) {
                 throw new WebApplicationException(
                         Utils.getErrorResponse(id,
@@ -300,29 +354,35 @@ public class MetricService implements MetricServiceAPI {
 
         }
 
-        private void replaceSeriesDataPointsWithLastInRangeDataPoint(OpenTSDBQueryResult series, long startTimeStamp, long endTimeStamp) {
-            long currentPointTimeStamp;
-            SortedMap<Long, Double> dataPointSingleton = new TreeMap<>();
-            Map.Entry<Long, Double> lastDataPoint = null;
-            for (Map.Entry<Long, Double> dataPoint : series.getDataPoints().entrySet()) {
-                currentPointTimeStamp = dataPoint.getKey();
-                if (currentPointTimeStamp < startTimeStamp || currentPointTimeStamp > endTimeStamp) {
-                    continue;
-                }
-                if (null == lastDataPoint || currentPointTimeStamp > lastDataPoint.getKey()) {
-                    lastDataPoint = dataPoint;
+        /**
+         * What is done to every series before it is bucketed, for series bucketed as they come back.
+         */
+        private Function<OpenTSDBQueryResult, OpenTSDBQueryResult> prepareSeries(final OffHeapPool.Arena arena) {
+            return new Function<OpenTSDBQueryResult, OpenTSDBQueryResult>() {
+                @Override
+                public OpenTSDBQueryResult apply(OpenTSDBQueryResult series) {
+                    if (null != arena) {
+                        series.setDataPoints(arena.copyOf(series.getDataPoints()));
+                    }
+                    if (returnset == ReturnSet.LAST) {
+                        replaceSeriesDataPointsWithLastInRangeDataPoint(series, start, end);
+                    }
+                    return series;
                 }
-            }
-            if (null != lastDataPoint) {
-                dataPointSingleton.put(lastDataPoint.getKey(), lastDataPoint.getValue());
-            }
-            series.setDataPoints(dataPointSingleton);
+            };
+        }
+
+        private void replaceSeriesDataPointsWithLastInRangeDataPoint(OpenTSDBQueryResult series, long startTimeStamp, long endTimeStamp) {
+            series.setDataPoints(series.getDataPoints().lastIn(startTimeStamp, endTimeStamp));
         }
 
-        private SeriesQueryResult makeResults(Iterable<OpenTSDBQueryResult> results, long bucketSize)
+        private SeriesQueryResult makeResults(Iterable<OpenTSDBQueryResult> results, long bucketSize, OffHeapPool.Arena arena)
                 throws ClassNotFoundException, BadExpressionException {
             log.debug("processing results");
-            ResultProcessor processor = new DefaultResultProcessor(results, queries, bucketSize);
+            DefaultResultProcessor processor = new DefaultResultProcessor(results, queries, bucketSize, arena);
+            if (config.getMetricServiceConfig().isParallelBucketing()) {
+                processor.withParallelism(getBucketingPool(), config.getMetricServiceConfig().getParallelBucketingMinDataPoints());
+            }
             Buckets<IHasShortcut> buckets;
             try {
                 buckets = processor.processResults();
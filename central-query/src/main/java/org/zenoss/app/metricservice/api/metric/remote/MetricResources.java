@@ -41,6 +41,9 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.zenoss.app.AppConfiguration;
 import org.zenoss.app.metricservice.api.MetricServiceAPI;
+import org.zenoss.app.metricservice.api.impl.QueryDeadline;
+import org.zenoss.app.metricservice.api.impl.QueryPriority;
+import org.zenoss.app.metricservice.api.impl.TenantFairOpenTSDBTransport;
 import org.zenoss.app.metricservice.api.impl.Utils;
 import org.zenoss.app.metricservice.api.model.PerformanceQuery;
 import org.zenoss.app.metricservice.api.model.ReturnSet;
@@ -91,7 +94,8 @@ public class MetricResources {
     @POST
     @Timed
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response query(PerformanceQuery query) {
+    public Response query(PerformanceQuery query, @HeaderParam(QueryDeadline.TIMEOUT_HEADER) Long timeoutMs,
+                          @HeaderParam(QueryPriority.HEADER) String priority) {
         log.debug("Thread {}: Entered NewMetricResources.query with single param (POST). REQUEST: {}", Thread.currentThread().getId(), Utils.jsonStringFromObject(query));
         if (query == null) {
             return Utils.getErrorResponse(null, Response.Status.BAD_REQUEST.getStatusCode(),
@@ -105,7 +109,12 @@ public class MetricResources {
         Optional<String> downsample = Optional.fromNullable(query.getDownsample());
         double downsampleMultiplier = query.getDownsampleMultiplier();
         Optional<Map<String, List<String>>> tags = getTags( query.getTags());
-        return api.query(id, start, end, returnset, series, downsample, downsampleMultiplier, tags, query.getMetrics());
+        QueryDeadline deadline = QueryDeadline.start(timeoutMs)
+                .withLatencyBudget(query.getMaxLatencyMs())
+                .withPriority(QueryPriority.fromHeader(priority));
+        try (QueryDeadline.Scope scope = deadline.enter()) {
+            return api.query(id, start, end, returnset, series, downsample, downsampleMultiplier, tags, query.getMetrics());
+        }
     }
 
     @OPTIONS
@@ -126,7 +135,7 @@ public class MetricResources {
                 tags = Maps.newHashMap();
             }
             String tenantId = getTenantId();
-            tags.put("zenoss_tenant_id", Lists.newArrayList(tenantId));
+            tags.put(TenantFairOpenTSDBTransport.TENANT_TAG, Lists.newArrayList(tenantId));
         }
 
         return Optional.fromNullable(tags);
@@ -29,20 +29,36 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
+
 package org.zenoss.app.metricservice.buckets;
 
-import com.fasterxml.jackson.annotation.JsonProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zenoss.app.metricservice.api.impl.IHasShortcut;
+import org.zenoss.app.metricservice.api.impl.OffHeapPool;
 import org.zenoss.app.metricservice.api.impl.QueryStatus;
 
 import java.io.PrintStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
 
 /**
  * Provides a utility to bucket metrics into defined sized chunks, averaging the
  * values when multiple values fall in a single bucket.
+ * <p>
+ * The buckets are stored by column: each series keeps a sum and a count per
+ * bucket in primitive buffers, indexed by the bucket's distance from the
+ * earliest bucket, and all series share one range of buckets that grows in
+ * either direction as values arrive. The buffers are on the heap unless the
+ * buckets are given an {@link OffHeapPool.Arena} to take them from. Use {@link #getColumn(IHasShortcut)} and
+ * {@link #getBucketTimestamps()} to read values without creating an object per
+ * bucket; {@link Bucket} and {@link Value} remain as views for callers that
+ * want them.
+ * <p>
+ * Buckets are not thread-safe. Series can be bucketed on several threads at
+ * once into buckets of their own, which are then combined with
+ * {@link #addAll(Buckets)}.
  * 
  * @author Zenoss
  * 
@@ -58,20 +74,54 @@ public class Buckets<P extends IHasShortcut> {
     public static final long DEFAULT_BUCKET_SIZE = 5l * 60; // 5 Minutes
 
     /**
-     * Set of buckets indexed by time in seconds
+     * Buckets allocated when the first value is added
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Most buckets the columns can span
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    /**
+     * Columns indexed by primary key
+     */
+    private final Map<P, Column> columns = new LinkedHashMap<>();
+
+    /**
+     * Columns indexed by shortcut key
+     */
+    private final Map<String, Column> columnsByName = new HashMap<>();
+
+    /**
+     * Bucket number (time in seconds divided by secondsPerBucket) at index 0
+     * of the columns
+     */
+    private long firstBucket = 0;
+
+    /**
+     * Number of buckets the columns have room for
      */
-    private final Map<Long, Buckets<P>.Bucket> bucketList = new TreeMap<>();
+    private int capacity = 0;
+
+    /**
+     * Whether anything was added at each index, which makes the bucket exist
+     */
+    private boolean[] present = new boolean[0];
+
+    private int bucketCount = 0;
 
     /**
      * Specifies the size of each bucket in seconds
      */
     private long secondsPerBucket = DEFAULT_BUCKET_SIZE;
 
-    private Map<String, QueryStatus> queryStatuses = new HashMap<>();
+    /**
+     * Where the columns are allocated; null for the heap
+     */
+    private final OffHeapPool.Arena arena;
 
-    public Map<Long, Bucket> getBucketList() {
-        return bucketList;
-    }
+    private Map<String, QueryStatus> queryStatuses = new HashMap<>();
 
     public void addQueryStatus(P key, QueryStatus status) {
         log.debug(String.format("Adding QueryStatus: [%s, (hashcode:%d), \"%s\"]", key.getShortcut(), key.hashCode(), status.getMessage()));
@@ -85,42 +135,129 @@ public class Buckets<P extends IHasShortcut> {
     }
 
     /**
-     * Each bucket maintains a summary of the values that fall within that
-     * bucket. This includes the sum of all the values added for a given metric
-     * and the number of values per metric. This minimal information allows for
-     * the calculation of the average as well as implements easy addition and
-     * removal of values.
-     * 
+     * The values of one series in every bucket. Each bucket holds the sum of
+     * the values added to it and their number, which allows for the calculation
+     * of the average, and the interpolated value, if any, used when no value
+     * was added.
+     *
      * @author Zenoss
      */
-    public final class Bucket {
+    public final class Column {
+
+        private final P key;
+
+        private DoubleBuffer sums;
+
+        private IntBuffer counts;
 
         /**
-         * Map from the primary key to the values within a bucket
+         * Interpolated value per bucket, NaN where there is none; allocated
+         * when the first one is added
          */
-        @JsonProperty("values")
-        private final Map<P, Value> values = new HashMap<>();
+        private DoubleBuffer interpolated = null;
+
+        private Column(P key) {
+            this.key = key;
+            this.sums = newDoubles(capacity);
+            this.counts = newInts(capacity);
+        }
+
+        public P getKey() {
+            return key;
+        }
 
         /**
-         * Map from the shortcut key to the values within a bucket
+         * Add a value to the bucket of a timestamp
+         *
+         * @param timestamp
+         *            timestamp of the value (will be rounded based on
+         *            secondsPerBucket size)
+         * @param value
+         *            value to add
          */
-        @JsonProperty("valuesByName")
-        private Map<String, Value> valuesByName = new HashMap<>();
+        public void add(long timestamp, double value) {
+            int index = slot(timestamp / secondsPerBucket);
+            sums.put(index, sums.get(index) + value);
+            counts.put(index, counts.get(index) + 1);
+        }
 
         /**
-         * Add a value to a bucket
-         * 
-         * @param primaryKey
-         *            primary key for the value
+         * Set the interpolated value of the bucket of a timestamp
+         *
+         * @param timestamp
+         *            timestamp of the value (will be rounded based on
+         *            secondsPerBucket size)
          * @param value
-         *            value to add
+         *            the interpolated value
+         */
+        public void addInterpolated(long timestamp, double value) {
+            int index = slot(timestamp / secondsPerBucket);
+            if (null == interpolated) {
+                interpolated = newInterpolated(capacity);
+            }
+            interpolated.put(index, value);
+        }
+
+        /**
+         * The average of the values added to the bucket of a timestamp
+         *
+         * @return average of the values; if none were added, the interpolated
+         *         value, or NaN if there is none.
+         */
+        public double getValue(long timestamp) {
+            int index = indexOf(timestamp);
+            return index < 0 ? Double.NaN : valueAt(index);
+        }
+
+        /**
+         * @return true if a value, rather than only an interpolated one, was
+         *         added to the bucket of a timestamp
          */
-        private final void add(final P primaryKey,final double value) {
+        public boolean hasValue(long timestamp) {
+            int index = indexOf(timestamp);
+            return index >= 0 && counts.get(index) > 0;
+        }
+
+        private double valueAt(int index) {
+            int count = counts.get(index);
+            if (count != 0) {
+                return sums.get(index) / count;
+            }
+            if (null != interpolated) {
+                return interpolated.get(index);
+            }
+            return Double.NaN;
+        }
+
+        private Value toValue(int index) {
+            boolean hasInterpolated = null != interpolated && !Double.isNaN(interpolated.get(index));
+            return new Value(sums.get(index), counts.get(index), hasInterpolated ? interpolated.get(index) : 0.0, hasInterpolated);
+        }
+
+        private boolean isEmptyAt(int index) {
+            return counts.get(index) == 0 && (null == interpolated || Double.isNaN(interpolated.get(index)));
+        }
+
+        private void resize(int offset, int newCapacity) {
+            sums = copy(sums, newDoubles(newCapacity), offset);
+            counts = copy(counts, newInts(newCapacity), offset);
+            if (null != interpolated) {
+                interpolated = copy(interpolated, newInterpolated(newCapacity), offset);
+            }
+        }
+    }
+
+    /**
+     * A view of one bucket across every series.
+     * 
+     * @author Zenoss
+     */
+    public final class Bucket {
 
-            Value holder = getOrCreateValue(primaryKey);
+        private final int index;
 
-            // Add the value
-            holder.add(value);
+        private Bucket(int index) {
+            this.index = index;
         }
 
         /**
@@ -128,30 +265,15 @@ public class Buckets<P extends IHasShortcut> {
          * 
          * @param key
          *            primary key
-         * @return the value associated with the primary key or null
+         * @return a copy of the value associated with the primary key, which
+         *         is empty if there is none
          */
         public final Value getValue(final P key) {
-            return getOrCreateValue(key);
-        }
-
-        private final Value getOrCreateValue(final P primaryKey) {
-            if (null == primaryKey) {
+            if (null == key) {
                 throw new IllegalArgumentException("primary Key cannot be null.");
             }
-            if (null == primaryKey.getShortcut()) {
-                throw new IllegalArgumentException("shortcut cannot be null.");
-            }
-
-            // Fetch existing value, if it exists
-            Value value = values.get(primaryKey);
-
-            // If value does not exists, create and add
-            if (value == null) {
-                value = new Value();
-                values.put(primaryKey, value);
-                valuesByName.put(primaryKey.getShortcut(), value);
-            }
-            return value;
+            Column column = columns.get(key);
+            return null == column ? new Value() : column.toValue(index);
         }
 
         /**
@@ -159,29 +281,20 @@ public class Buckets<P extends IHasShortcut> {
          * 
          * @param shortcut
          *            shortcut key
-         * @return the value associated with the shortcut key or null
+         * @return a copy of the value associated with the shortcut key, which
+         *         is empty if there is none
          */
         public final Value getValueByShortcut(String shortcut) {
             if (null == shortcut) {
                 throw new IllegalArgumentException("shortcut cannot be null.");
             }
-            Value result = valuesByName.get(shortcut);
-            if (null == result) {
-                result = new Value();
-            }
-            return result;
+            Column column = columnsByName.get(shortcut);
+            return null == column ? new Value() : column.toValue(index);
         }
 
         public boolean hasValue(P key) {
-            Value value = values.get(key);
-            return (value != null && value.getCount() > 0l);
-        }
-
-        private void addInterpolated(P primaryKey, double value) {
-            Value holder = getOrCreateValue(primaryKey);
-
-            // Add the value
-            holder.addInterpolated(value);
+            Column column = columns.get(key);
+            return (column != null && column.counts.get(index) > 0);
         }
     }
 
@@ -190,6 +303,7 @@ public class Buckets<P extends IHasShortcut> {
      * default bucket size.
      */
     public Buckets() {
+        this.arena = null;
     }
 
     /**
@@ -199,6 +313,23 @@ public class Buckets<P extends IHasShortcut> {
      *            the number of seconds per each bucket
      */
     public Buckets(final long secondsPerBucket) {
+        this(secondsPerBucket, null);
+    }
+
+    /**
+     * Constructs an instance of buckets with a specified bucket size, keeping
+     * the columns in direct memory taken from an arena.
+     *
+     * @param secondsPerBucket
+     *            the number of seconds per each bucket
+     * @param arena
+     *            where the columns are allocated; null for the heap
+     * @throws OffHeapPool.BudgetExceededException
+     *            from the methods adding values, if the columns outgrow the
+     *            budget of the arena
+     */
+    public Buckets(final long secondsPerBucket, final OffHeapPool.Arena arena) {
+        this.arena = arena;
         if (secondsPerBucket > 0l) {
             this.secondsPerBucket = secondsPerBucket;
         } else {
@@ -206,6 +337,58 @@ public class Buckets<P extends IHasShortcut> {
         }
     }
 
+    /**
+     * Returns the column of a series, creating it if it does not exist.
+     * Adding through the column saves looking the series up for every value.
+     *
+     * @param primaryKey
+     *            primary key of the series
+     * @return the column of the series
+     */
+    public final Column getOrCreateColumn(final P primaryKey) {
+        if (null == primaryKey) {
+            throw new IllegalArgumentException("primary Key cannot be null.");
+        }
+        if (null == primaryKey.getShortcut()) {
+            throw new IllegalArgumentException("shortcut cannot be null.");
+        }
+        Column column = columns.get(primaryKey);
+        if (column == null) {
+            column = new Column(primaryKey);
+            columns.put(primaryKey, column);
+            columnsByName.put(primaryKey.getShortcut(), column);
+        }
+        return column;
+    }
+
+    /**
+     * Returns the column of a series based on primary key lookup
+     *
+     * @param primaryKey
+     *            primary key of the series
+     * @return the column of the series or null
+     */
+    public final Column getColumn(final P primaryKey) {
+        if (null == primaryKey) {
+            throw new IllegalArgumentException("primary Key cannot be null.");
+        }
+        return columns.get(primaryKey);
+    }
+
+    /**
+     * Returns the column of a series based on the shortcut key lookup
+     *
+     * @param shortcut
+     *            shortcut key
+     * @return the column of the series or null
+     */
+    public final Column getColumnByShortcut(final String shortcut) {
+        if (null == shortcut) {
+            throw new IllegalArgumentException("shortcut cannot be null.");
+        }
+        return columnsByName.get(shortcut);
+    }
+
     /**
      * Add a value to the buckets
      * 
@@ -218,16 +401,7 @@ public class Buckets<P extends IHasShortcut> {
      *            value to add
      */
     public final void add(final P primaryKey, final long timestamp, final double value) {
-        long ts = getBucketTimestamp(timestamp);
-        // Get existing or create new bucket for this timestamp
-        Bucket b = bucketList.get(ts);
-        if (b == null) {
-            b = new Bucket();
-            bucketList.put(ts, b);
-        }
-
-        // Add the value
-        b.add(primaryKey, value);
+        getOrCreateColumn(primaryKey).add(timestamp, value);
     }
 
     /**
@@ -242,16 +416,72 @@ public class Buckets<P extends IHasShortcut> {
      *            value to add
      */
     public final void addInterpolated(final P primaryKey, final long timestamp, final double value) {
-        long ts = getBucketTimestamp(timestamp);
+        getOrCreateColumn(primaryKey).addInterpolated(timestamp, value);
+    }
+
+    /**
+     * Add the values and statuses of other buckets of the same size, as if
+     * they had been added to these buckets instead. Sums and counts of a
+     * series in both are added together; an interpolated value replaces the
+     * one here.
+     *
+     * @param other
+     *            buckets of the same size, which are left as they are
+     */
+    public final void addAll(final Buckets<P> other) {
+        if (other.secondsPerBucket != secondsPerBucket) {
+            throw new IllegalArgumentException(String.format(
+                    "Buckets of %d seconds cannot be added to buckets of %d seconds.", other.secondsPerBucket, secondsPerBucket));
+        }
+        queryStatuses.putAll(other.queryStatuses);
+        if (other.bucketCount > 0) {
+            // grow once to take in the whole range of the other buckets
+            int first = 0;
+            while (!other.present[first]) {
+                first++;
+            }
+            int last = other.capacity - 1;
+            while (!other.present[last]) {
+                last--;
+            }
+            reserve(other.firstBucket + first);
+            reserve(other.firstBucket + last);
+        }
+        for (Map.Entry<P, Column> entry : other.columns.entrySet()) {
+            Column from = entry.getValue();
+            Column to = getOrCreateColumn(entry.getKey());
+            for (int i = 0; i < other.capacity; i++) {
+                if (!other.present[i]) {
+                    continue;
+                }
+                int index = slot(other.firstBucket + i);
+                to.sums.put(index, to.sums.get(index) + from.sums.get(i));
+                to.counts.put(index, to.counts.get(index) + from.counts.get(i));
+                if (null != from.interpolated && !Double.isNaN(from.interpolated.get(i))) {
+                    if (null == to.interpolated) {
+                        to.interpolated = newInterpolated(capacity);
+                    }
+                    to.interpolated.put(index, from.interpolated.get(i));
+                }
+            }
+        }
+    }
 
-        // Get existing or create new bucket for this timestamp
-        Bucket b = bucketList.get(ts);
-        if (b == null) {
-            b = new Bucket();
-            bucketList.put(ts, b);
+    /**
+     * Hand the columns back to the arena they were taken from, if any. The
+     * buckets must not be used afterwards.
+     */
+    public final void release() {
+        if (null == arena) {
+            return;
+        }
+        for (Column column : columns.values()) {
+            arena.release(column.sums);
+            arena.release(column.counts);
+            if (null != column.interpolated) {
+                arena.release(column.interpolated);
+            }
         }
-        // Add the value
-        b.addInterpolated(primaryKey, value);
     }
 
     /**
@@ -261,12 +491,8 @@ public class Buckets<P extends IHasShortcut> {
      * @return bucket of the given timestamp (that will be downsampled) or null
      */
     public final Buckets<P>.Bucket getBucket(long timestamp) {
-        long bucketTimestamp = getBucketTimestamp(timestamp);
-        return bucketList.get(bucketTimestamp);
-    }
-
-    private long getBucketTimestamp(long timestamp) {
-        return (timestamp / secondsPerBucket) * secondsPerBucket;
+        int index = indexOf(timestamp);
+        return index < 0 ? null : new Bucket(index);
     }
 
     /**
@@ -277,7 +503,28 @@ public class Buckets<P extends IHasShortcut> {
      * @return sorted list of downsampled time values
      */
     public final SortedSet<Long> getTimestamps() {
-        SortedSet<Long> result = new TreeSet<>(bucketList.keySet());
+        SortedSet<Long> result = new TreeSet<>();
+        for (long timestamp : getBucketTimestamps()) {
+            result.add(timestamp);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the timestamps of the buckets in ascending order, without boxing
+     * them.
+     *
+     * @return downsampled time values
+     * @see #getTimestamps()
+     */
+    public final long[] getBucketTimestamps() {
+        long[] result = new long[bucketCount];
+        int n = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (present[i]) {
+                result[n++] = (firstBucket + i) * secondsPerBucket;
+            }
+        }
         return result;
     }
 
@@ -290,6 +537,110 @@ public class Buckets<P extends IHasShortcut> {
         return secondsPerBucket;
     }
 
+    /**
+     * Index of the bucket of a timestamp, or -1 if the bucket does not exist
+     */
+    private int indexOf(long timestamp) {
+        long index = timestamp / secondsPerBucket - firstBucket;
+        if (index < 0 || index >= capacity || !present[(int) index]) {
+            return -1;
+        }
+        return (int) index;
+    }
+
+    /**
+     * Index of a bucket, growing the columns to include it if needed
+     */
+    private int slot(long bucket) {
+        reserve(bucket);
+        int index = (int) (bucket - firstBucket);
+        if (!present[index]) {
+            present[index] = true;
+            bucketCount++;
+        }
+        return index;
+    }
+
+    /**
+     * Grow the columns to include a bucket, without making it exist
+     */
+    private void reserve(long bucket) {
+        if (0 == capacity) {
+            resize(bucket, INITIAL_CAPACITY);
+        } else if (bucket < firstBucket) {
+            int newCapacity = grownCapacity(firstBucket + capacity - bucket);
+            resize(firstBucket + capacity - newCapacity, newCapacity);
+        } else if (bucket - firstBucket >= capacity) {
+            resize(firstBucket, grownCapacity(bucket - firstBucket + 1));
+        }
+    }
+
+    private int grownCapacity(long needed) {
+        if (needed > MAX_CAPACITY) {
+            throw new IllegalArgumentException(String.format(
+                    "Values %d buckets of %d seconds apart cannot be bucketed together.", needed, secondsPerBucket));
+        }
+        return (int) Math.min(Math.max(needed, 2l * capacity), MAX_CAPACITY);
+    }
+
+    private void resize(long newFirstBucket, int newCapacity) {
+        int offset = (int) (firstBucket - newFirstBucket);
+        if (0 == capacity) {
+            offset = 0;
+        }
+        present = copy(present, new boolean[newCapacity], offset);
+        for (Column column : columns.values()) {
+            column.resize(offset, newCapacity);
+        }
+        firstBucket = newFirstBucket;
+        capacity = newCapacity;
+    }
+
+    private DoubleBuffer newDoubles(int count) {
+        return null == arena ? DoubleBuffer.allocate(count) : arena.allocateDoubles(count);
+    }
+
+    private IntBuffer newInts(int count) {
+        return null == arena ? IntBuffer.allocate(count) : arena.allocateInts(count);
+    }
+
+    private DoubleBuffer newInterpolated(int count) {
+        DoubleBuffer buffer = newDoubles(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put(i, Double.NaN);
+        }
+        return buffer;
+    }
+
+    private DoubleBuffer copy(DoubleBuffer from, DoubleBuffer to, int offset) {
+        DoubleBuffer source = from.duplicate();
+        source.clear();
+        DoubleBuffer target = to.duplicate();
+        target.position(offset);
+        target.put(source);
+        if (null != arena) {
+            arena.release(from);
+        }
+        return to;
+    }
+
+    private IntBuffer copy(IntBuffer from, IntBuffer to, int offset) {
+        IntBuffer source = from.duplicate();
+        source.clear();
+        IntBuffer target = to.duplicate();
+        target.position(offset);
+        target.put(source);
+        if (null != arena) {
+            arena.release(from);
+        }
+        return to;
+    }
+
+    private static boolean[] copy(boolean[] from, boolean[] to, int offset) {
+        System.arraycopy(from, 0, to, offset, from.length);
+        return to;
+    }
+
     /**
      * Dumps the contents of the buckets to the given print stream. This can be
      * useful for debugging
@@ -297,17 +648,20 @@ public class Buckets<P extends IHasShortcut> {
      * @param ps: printstream instance to use for the dump
      */
     public final void dump(PrintStream ps) {
-        List<Long> keys = new ArrayList<>(bucketList.keySet());
-        Collections.sort(keys);
-
-        for (long k : keys) {
+        for (int i = 0; i < capacity; i++) {
+            if (!present[i]) {
+                continue;
+            }
+            long k = firstBucket + i;
             ps.format("BUCKET: %d (%d) (%s)%n", k, k * secondsPerBucket, new Date(k * secondsPerBucket * 1000));
-            for (P key : bucketList.get(k).values.keySet()) {
-                Value value = bucketList.get(k).values.get(key);
-                ps.format("    %-40s : %10.2f (%10.2f / %d)%n", key.toString(),
-                        value.getValue(),
-                        value.getSum(),
-                        value.getCount());
+            for (Column column : columns.values()) {
+                if (column.isEmptyAt(i)) {
+                    continue;
+                }
+                ps.format("    %-40s : %10.2f (%10.2f / %d)%n", column.getKey().toString(),
+                        column.valueAt(i),
+                        column.sums.get(i),
+                        column.counts.get(i));
             }
         }
     }
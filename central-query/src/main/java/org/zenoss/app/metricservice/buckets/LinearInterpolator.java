@@ -34,104 +34,79 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zenoss.app.metricservice.api.impl.IHasShortcut;
 
-import java.util.*;
+import java.util.Collection;
 
 public class LinearInterpolator implements Interpolator {
     private static final Logger log = LoggerFactory.getLogger(LinearInterpolator.class);
-    private final List<SeriesInterpolatingAccumulator> accumulators = new ArrayList<>();
 
     @Override
     public void interpolate(Buckets<IHasShortcut> buckets, Collection<IHasShortcut> keys) {
-        //TODO: Fix this comment.
-        /* Make two passes.
-         *  First pass: gather the following information:
-         *  * list of series in buckets
-         *  * for each series: first timestamp, last timestamp, timestamps of missing values, points bracketing missing
-         *
-         *  Second pass: use data gathered in first pass to calculate and fill in missing values
-         */
-        /* Go through keys and create an accumulator for each.
-         * The accumulator will keep track of the current state of each series (have we seen data points, etc) and
-         * perform interpolation as new points are encountered.
+        /* Go through the buckets (in timestamp order) once for each series, with an accumulator that
+         * keeps track of the last bucket with a value. When the next one with a value is found, the
+         * buckets in between are filled in from the two values.
          */
-
+        long[] timestamps = buckets.getBucketTimestamps();
         for (IHasShortcut key : keys) {
-            accumulators.add(new SeriesInterpolatingAccumulator(buckets, key));
-        }
-
-        //Go through the buckets (which should be in timestamp order) and look at each one
-        Map<Long, Buckets<IHasShortcut>.Bucket> bucketList = buckets.getBucketList();
-        for (Map.Entry<Long, Buckets<IHasShortcut>.Bucket> bucketEntry : bucketList.entrySet()) {
-            Buckets<IHasShortcut>.Bucket bucket = bucketEntry.getValue();
-            Long timestamp = bucketEntry.getKey();
-            // for each series we're interpolating, let the accumulator decide what needs to be done for this point
-            for (SeriesInterpolatingAccumulator accumulator : accumulators) {
-                accumulator.accumulate(timestamp, bucket);
+            Buckets<IHasShortcut>.Column column = buckets.getColumn(key);
+            if (null == column) {
+                log.debug("No values to interpolate for series [{}].", key.getShortcut());
+                continue;
+            }
+            SeriesInterpolatingAccumulator accumulator = new SeriesInterpolatingAccumulator(column, timestamps);
+            for (int i = 0; i < timestamps.length; i++) {
+                accumulator.accumulate(i);
             }
         }
     }
 
     /**
      * This class keeps track of what we've seen for a particular series.
-     * The accumulate method is designed to be called on datapoints in order.
+     * The accumulate method is designed to be called on buckets in order.
      */
     static class SeriesInterpolatingAccumulator {
-        private final IHasShortcut key;
-        private final Buckets<IHasShortcut> buckets;
-        private Long timestampForLastBucketWithValue = null;
-        private Buckets<IHasShortcut>.Bucket lastBucketWithValue = null;
-        private final List<Long> timestampsNeedingInterpolation = new ArrayList<>();
+        private final Buckets<IHasShortcut>.Column column;
+        private final long[] timestamps;
+        private int lastIndexWithValue = -1;
 
-        private SeriesInterpolatingAccumulator(Buckets<IHasShortcut> buckets, IHasShortcut key) {
-            this.key = key;
-            this.buckets = buckets;
+        private SeriesInterpolatingAccumulator(Buckets<IHasShortcut>.Column column, long[] timestamps) {
+            this.column = column;
+            this.timestamps = timestamps;
         }
 
         /**
+         * Buckets without a value for the series are passed over. When a bucket with a value is
+         * encountered, the buckets passed over since the last one with a value (if a value has
+         * been encountered for the series) are interpolated, and the new one becomes the last.
          *
-         * As each point is encountered, it tracks whether a point has been encountered yet for this series,
-         * and whether points have been encountered since that one that need interpolation. When a datapoint is encountered,
-         * any pending interpolation is done (if a point has previously been encountered for the series), and the
-         * 'last endountered' point is updated to the new one.
-         *
-         * @param timestamp  The timestamp associated with the bucket being passed in
-         * @param bucket The bucket that goes with the timestamp. It may or may not have a value for the series.
+         * @param index The index in timestamps of the bucket. It may or may not have a value for the series.
          */
-        public void accumulate(Long timestamp, Buckets<IHasShortcut>.Bucket bucket) {
-            if (!bucket.hasValue(key)) {
-                // no value - if we haven't seen any values yet, keep going.
-                if (null != lastBucketWithValue) {
-                    // we have seen a value before, so add this one to the list of pending values.
-                    timestampsNeedingInterpolation.add(timestamp);
-                }
-            } else {
-                // Found a value. Interpolate if we can
-                if (null != lastBucketWithValue && timestampsNeedingInterpolation.size() > 0) {
-                    // there are pending values, so interpolate
-                    interpolateValues(timestamp, bucket);
-                }
-                // update last values
-                lastBucketWithValue = bucket;
-                timestampForLastBucketWithValue = timestamp;
+        public void accumulate(int index) {
+            if (!column.hasValue(timestamps[index])) {
+                return;
+            }
+            if (lastIndexWithValue >= 0 && index - lastIndexWithValue > 1) {
+                // there are pending values, so interpolate
+                interpolateValues(index);
             }
+            lastIndexWithValue = index;
         }
 
-        private void interpolateValues(Long timestamp, Buckets<IHasShortcut>.Bucket bucket) {
+        private void interpolateValues(int index) {
             // if (x0, y0) is first point and (x1, y1) is last, and interpolated point is (x,y)
             // the formula looks like this:
             // y = y0 + ((x-x0) (y1-y0) / (x1 - x0)) , or y = y0 + (x-x0) * deltaY / deltaX
-            long x0 = timestampForLastBucketWithValue;
-            long x1 = timestamp;
-            double y0 = lastBucketWithValue.getValue(key).getValue();
-            double y1 = bucket.getValue(key).getValue();
+            long x0 = timestamps[lastIndexWithValue];
+            long x1 = timestamps[index];
+            double y0 = column.getValue(x0);
+            double y1 = column.getValue(x1);
             long deltaX = x1 - x0;
             double deltaY = y1 - y0;
 
-            for (long x : timestampsNeedingInterpolation) {
+            for (int i = lastIndexWithValue + 1; i < index; i++) {
+                long x = timestamps[i];
                 double y = y0 + ((x - x0) * deltaY / deltaX);
-                buckets.addInterpolated(key, x, y);
+                column.addInterpolated(x, y);
             }
-            timestampsNeedingInterpolation.clear();
         }
     }
 }
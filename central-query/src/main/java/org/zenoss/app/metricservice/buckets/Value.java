@@ -52,6 +52,19 @@ public final class Value {
 
     private boolean hasInterpolated = false;
 
+    public Value() {
+    }
+
+    /**
+     * A copy of the value held in a bucket column.
+     */
+    Value(final double sum, final long count, final double interpolated, final boolean hasInterpolated) {
+        this.sum = sum;
+        this.count = count;
+        this.interpolated = interpolated;
+        this.hasInterpolated = hasInterpolated;
+    }
+
     /**
      * The average of the values added into the value
      * 
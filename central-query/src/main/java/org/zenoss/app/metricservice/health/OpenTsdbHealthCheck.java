@@ -43,6 +43,8 @@ import org.apache.http.util.EntityUtils;
 
 import javax.ws.rs.core.Response;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 @Configuration
@@ -59,6 +61,26 @@ public class OpenTsdbHealthCheck extends com.yammer.metrics.core.HealthCheck {
 
     @Override
     protected Result check() throws Exception {
+        List<String> readerUrls = config.getMetricServiceConfig().getOpenTsdbReaderUrls();
+        if (readerUrls.size() == 1) {
+            return check(readerUrls.get(0));
+        }
+
+        // With several readers, queries are routed around an unhealthy one; report which
+        List<String> unhealthy = new ArrayList<>();
+        for (String readerUrl : readerUrls) {
+            Result result = check(readerUrl);
+            if (!result.isHealthy()) {
+                unhealthy.add(readerUrl + ": " + result.getMessage());
+            }
+        }
+        if (unhealthy.isEmpty()) {
+            return Result.healthy();
+        }
+        return Result.unhealthy(String.format("%d of %d OpenTSDB Readers unhealthy: %s", unhealthy.size(), readerUrls.size(), unhealthy));
+    }
+
+    private Result check(String readerUrl) throws Exception {
 
         HttpGet httpGet = null;
         InputStream instream = null;
@@ -66,7 +88,7 @@ public class OpenTsdbHealthCheck extends com.yammer.metrics.core.HealthCheck {
 
         try {
 
-            HttpGet httpget = new HttpGet(config.getMetricServiceConfig().getOpenTsdbUrl() + "/api/stats");
+            HttpGet httpget = new HttpGet(readerUrl + "/api/stats");
             HttpResponse response = httpclient.execute(httpget);
 
             entity = response.getEntity();
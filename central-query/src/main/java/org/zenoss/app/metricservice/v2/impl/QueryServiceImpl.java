@@ -27,6 +27,7 @@ import org.zenoss.app.annotations.API;
 import org.zenoss.app.metricservice.MetricServiceAppConfiguration;
 import org.zenoss.app.metricservice.api.impl.*;
 import org.zenoss.app.metricservice.api.impl.QueryStatus.QueryStatusEnum;
+import org.zenoss.app.metricservice.api.model.DataPoints;
 import org.zenoss.app.metricservice.api.model.ReturnSet;
 import org.zenoss.app.metricservice.api.model.v2.*;
 import org.zenoss.app.metricservice.api.model.v2.QueryResult;
@@ -41,12 +42,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.io.Writer;
 import java.io.IOException;
 
@@ -77,10 +74,21 @@ public class QueryServiceImpl implements QueryService {
                 expressionQueries.add(metricQuery);
             }
         }
+        QueryDeadline deadline = QueryDeadline.current();
+        deadline.defaultTimeout(config.getMetricServiceConfig().getDefaultQueryTimeoutMs());
+        deadline.defaultPriority(QueryPriority.bySize(query.getQueries().size(),
+                config.getMetricServiceConfig().getExportMetricThreshold()));
         QueryResultBuilder qrb = new QueryResultBuilder();
         Iterable<OpenTSDBQueryResult> metrics = null;
         if (!simpleQueries.isEmpty()) {
             for (MetricQuery mq : simpleQueries) {
+                if (cancelled(deadline, qrb)) {
+                    break;
+                }
+                if (deadline.isOverBudget()) {
+                    qrb.setStatus(deadline.budgetExceededStatus(mq.getMetric()));
+                    continue;
+                }
                 OpenTSDBQueryReturn otsdbResults = getOpenTSDBQueryResults(Collections.singletonList(mq), query);
                 qrb.setStatus(otsdbResults.getStatus());
                 for (OpenTSDBQueryResult m : otsdbResults.getResults()) {
@@ -99,6 +107,13 @@ public class QueryServiceImpl implements QueryService {
             }).asMap();
 
             for (Entry<String, Collection<MetricQuery>> specs : grouped.entrySet()) {
+                if (cancelled(deadline, qrb)) {
+                    break;
+                }
+                if (deadline.isOverBudget()) {
+                    qrb.setStatus(deadline.budgetExceededStatus(specs.getKey()));
+                    continue;
+                }
                 OpenTSDBQueryReturn otsdbResults = getOpenTSDBQueryResults(specs.getValue(), query);
                 //TODO: check result and throw exception?
                 //APPLY RPN here
@@ -119,6 +134,17 @@ public class QueryServiceImpl implements QueryService {
         return qrb.build();
     }
 
+    /*
+     * Stop sending queries for a request nobody is waiting for any more.
+     */
+    private static boolean cancelled(QueryDeadline deadline, QueryResultBuilder qrb) {
+        if (!deadline.isCancelled()) {
+            return false;
+        }
+        qrb.setStatus(new QueryStatus(QueryStatusEnum.ERROR, deadline.getCancelReason()));
+        return true;
+    }
+
     @Override
     public void rename(RenameRequest renameRequest, Writer writer) {
         String patternType = renameRequest.getPatternType();
@@ -193,11 +219,14 @@ public class QueryServiceImpl implements QueryService {
             } catch (ClassNotFoundException e) {
                 throw new WebApplicationException(new Exception("calculator not found for " + specs.getKey()));
             }
-            for (final Entry<Long, Double> dp : r.getDataPoints().entrySet()) {
+            DataPoints points = r.getDataPoints();
+            for (int i = 0; i < points.size(); i++) {
+                final long timestamp = points.timestampAt(i);
+                final double value = points.valueAt(i);
                 double newVal = calc.evaluate(new Closure() {
                     @Override
                     public long getTimeStamp() {
-                        return dp.getKey();
+                        return timestamp;
                     }
 
                     @Override
@@ -206,12 +235,12 @@ public class QueryServiceImpl implements QueryService {
                             return null;
                         }
                         Value val = new Value();
-                        val.add(dp.getValue());
+                        val.add(value);
                         return val;
                     }
                 });
-                log.debug("metric {}, tags {}, timestamp {}, original {} new val {}", r.metric, r.tags, dp.getKey(), dp.getValue(), newVal);
-                r.getDataPoints().put(dp.getKey(), newVal);
+                log.debug("metric {}, tags {}, timestamp {}, original {} new val {}", r.metric, r.tags, timestamp, value, newVal);
+                points.setValueAt(i, newVal);
             }
         }
     }
@@ -230,17 +259,7 @@ public class QueryServiceImpl implements QueryService {
 
     private void filterExactReturnSet(long startTimestamp, long endTimestamp, OpenTSDBQueryResult series) {
         log.debug("Applying exact filter. start {}; end {}", startTimestamp, endTimestamp);
-        long currentPointTimeStamp;
-        SortedMap<Long, Double> filteredDataPoints = new TreeMap<>();
-        Iterator<Entry<Long, Double>> iter = series.getDataPoints().entrySet().iterator();
-        while(iter.hasNext()){
-            Entry<Long, Double> datapoint = iter.next();
-            currentPointTimeStamp = datapoint.getKey();
-            if (currentPointTimeStamp < startTimestamp || currentPointTimeStamp > endTimestamp) {
-                log.debug("filtering datapoint {}: start{}, end{}", datapoint, startTimestamp, endTimestamp);
-                iter.remove();
-            }
-        }
+        series.getDataPoints().trimTo(startTimestamp, endTimestamp);
     }
 
     private void filterLastReturnSet(long startTimestamp, long endTimestamp, OpenTSDBQueryResult series) {
@@ -249,22 +268,7 @@ public class QueryServiceImpl implements QueryService {
             return;
         }
         log.debug("Applying last filter.");
-        long currentPointTimeStamp;
-        SortedMap<Long, Double> dataPointSingleton = new TreeMap<>();
-        Map.Entry<Long, Double> lastDataPoint = null;
-        for (Map.Entry<Long, Double> dataPoint : series.getDataPoints().entrySet()) {
-            currentPointTimeStamp = dataPoint.getKey();
-            if (currentPointTimeStamp < startTimestamp || currentPointTimeStamp > endTimestamp) {
-                continue;
-            }
-            if (null == lastDataPoint || currentPointTimeStamp > lastDataPoint.getKey()) {
-                lastDataPoint = dataPoint;
-            }
-        }
-        if (null != lastDataPoint) {
-            dataPointSingleton.put(lastDataPoint.getKey(), lastDataPoint.getValue());
-        }
-        series.setDataPoints(dataPointSingleton);
+        series.setDataPoints(series.getDataPoints().lastIn(startTimestamp, endTimestamp));
     }
 
 }
@@ -21,7 +21,10 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import org.zenoss.app.AppConfiguration;
+import org.zenoss.app.metricservice.api.impl.QueryDeadline;
+import org.zenoss.app.metricservice.api.impl.QueryPriority;
 import org.zenoss.app.metricservice.api.impl.QueryStatus;
+import org.zenoss.app.metricservice.api.impl.TenantFairOpenTSDBTransport;
 import org.zenoss.app.metricservice.api.impl.Utils;
 import org.zenoss.app.metricservice.api.model.v2.*;
 import org.zenoss.app.metricservice.v2.QueryService;
@@ -67,7 +70,9 @@ public class Resources {
     @Timed
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public QueryResult query(@Valid MetricRequest metricRequest) {
+    public QueryResult query(@Valid MetricRequest metricRequest,
+                             @HeaderParam(QueryDeadline.TIMEOUT_HEADER) Long timeoutMs,
+                             @HeaderParam(QueryPriority.HEADER) String priority) {
 
         for (MetricQuery mq : metricRequest.getQueries()) {
             Map<String, List<String>> tags = addTenantId(mq.getTags());
@@ -76,7 +81,10 @@ public class Resources {
         QueryResult result = null;
 //        result = api.query(metricRequest);
 
-        try {
+        QueryDeadline deadline = QueryDeadline.start(timeoutMs)
+                .withLatencyBudget(metricRequest.getMaxLatencyMs())
+                .withPriority(QueryPriority.fromHeader(priority));
+        try (QueryDeadline.Scope scope = deadline.enter()) {
             result = api.query(metricRequest);
         } catch (java.lang.RuntimeException e) {
             if (result == null) {
@@ -136,7 +144,7 @@ public class Resources {
         }
         if (configuration.isAuthEnabled()) {
             String tenantId = getTenantId();
-            tags.put("zenoss_tenant_id", Lists.newArrayList(tenantId));
+            tags.put(TenantFairOpenTSDBTransport.TENANT_TAG, Lists.newArrayList(tenantId));
         }
 
         return tags;
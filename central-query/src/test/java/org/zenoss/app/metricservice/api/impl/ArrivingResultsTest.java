@@ -0,0 +1,146 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.model.MetricSpecification;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ArrivingResultsTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A batch of one specification answered when the test says so.
+     */
+    private static class PendingBatch extends MetricSpecBatch {
+        final SettableFuture<List<OpenTSDBQueryResult>> response = SettableFuture.create();
+
+        PendingBatch(String metric) {
+            super(null, "1000", "3000", Collections.singletonList(spec(metric)), false, 0);
+        }
+
+        @Override
+        public ListenableFuture<List<OpenTSDBQueryResult>> callAsync() {
+            return response;
+        }
+
+        @Override
+        public List<OpenTSDBQueryResult> call() {
+            return QueryDeadline.current().getUnchecked(response);
+        }
+
+        void answer() {
+            response.set(Collections.singletonList(series(getMetricSpecifications().get(0).getMetric())));
+        }
+    }
+
+    private static MetricSpecification spec(String metric) {
+        MetricSpecification spec = new MetricSpecification();
+        spec.setId(metric + "-id");
+        spec.setMetric(metric);
+        return spec;
+    }
+
+    private static OpenTSDBQueryResult series(String metric) {
+        OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+        result.metric = metric;
+        result.addDataPoint(1500L, 1.0);
+        return result;
+    }
+
+    @Test
+    public void testSeriesComeOutAsTheyComeBack() {
+        PendingBatch first = new PendingBatch("first");
+        PendingBatch second = new PendingBatch("second");
+        ArrivingResults results = ArrivingResults.issue(Arrays.<MetricSpecBatch>asList(first, second));
+        Iterator<OpenTSDBQueryResult> iter = results.iterator();
+
+        second.answer();
+        assertEquals("read before the first batch is back", "second", iter.next().metric);
+        first.answer();
+        assertEquals("first", iter.next().metric);
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testBatchesRunOnTheExecutor() throws Exception {
+        final PendingBatch slow = new PendingBatch("slow");
+        PendingBatch fast = new PendingBatch("fast");
+        ArrivingResults results = ArrivingResults.submit(executor, Arrays.<MetricSpecBatch>asList(slow, fast));
+        fast.answer();
+
+        final CountDownLatch read = new CountDownLatch(1);
+        List<String> metrics = new ArrayList<>();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                slow.answer();
+            }
+        });
+        for (OpenTSDBQueryResult series : results) {
+            metrics.add(series.metric);
+            read.countDown();
+        }
+        assertEquals(Arrays.asList("fast", "slow"), metrics);
+    }
+
+    @Test
+    public void testBatchesOverTheLatencyBudgetAreStoodInFor() throws Exception {
+        QueryDeadline deadline = QueryDeadline.start(null).withLatencyBudget(50L);
+        PendingBatch answered = new PendingBatch("answered");
+        PendingBatch laggard = new PendingBatch("laggard");
+        ArrivingResults results;
+        try (QueryDeadline.Scope scope = deadline.enter()) {
+            results = ArrivingResults.issue(Arrays.<MetricSpecBatch>asList(laggard, answered));
+        }
+        answered.answer();
+        long timeouts = QueryDeadline.getLatencyBudgetTimeouts();
+
+        List<OpenTSDBQueryResult> read = new ArrayList<>();
+        for (OpenTSDBQueryResult series : results) {
+            read.add(series);
+        }
+        assertEquals(2, read.size());
+        assertEquals("answered", read.get(0).metric);
+        assertEquals("laggard", read.get(1).metric);
+        assertEquals(QueryStatus.QueryStatusEnum.WARNING, read.get(1).getStatus().getStatus());
+        assertTrue(read.get(1).getDataPoints().isEmpty());
+        assertTrue("the laggard is not waited for any more", laggard.response.isCancelled());
+        assertEquals(timeouts + 1, QueryDeadline.getLatencyBudgetTimeouts());
+    }
+}
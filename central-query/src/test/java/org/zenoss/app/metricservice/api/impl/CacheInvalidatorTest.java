@@ -0,0 +1,119 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheInvalidatorTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answers each instance with its queued status codes, then with 200.
+     */
+    private static class ScriptedClient extends OpenTSDBClient {
+        final Map<String, int[]> script = new HashMap<>();
+        final Map<String, Integer> calls = Collections.synchronizedMap(new HashMap<String, Integer>());
+        CountDownLatch allCalled = new CountDownLatch(0);
+
+        ScriptedClient() {
+            super(null, null, (OpenTSDBTransport) null);
+        }
+
+        @Override
+        public DropResult dropCache(String dropCacheUrl) {
+            int call;
+            synchronized (calls) {
+                call = calls.containsKey(dropCacheUrl) ? calls.get(dropCacheUrl) : 0;
+                calls.put(dropCacheUrl, call + 1);
+            }
+            allCalled.countDown();
+            try {
+                // hold every first request until each instance has been asked
+                allCalled.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int[] codes = script.get(dropCacheUrl);
+            DropResult result = new DropResult();
+            result.statusCode = null != codes && call < codes.length ? codes[call] : 200;
+            result.reasonPhrase = result.statusCode == 200 ? "OK" : "Unavailable";
+            return result;
+        }
+
+        int calls(String url) {
+            Integer n = calls.get(url);
+            return null == n ? 0 : n;
+        }
+    }
+
+    @Test
+    public void testInstancesAreAskedInParallel() throws Exception {
+        ScriptedClient client = new ScriptedClient();
+        client.allCalled = new CountDownLatch(3);
+        CacheInvalidator invalidator = new CacheInvalidator(client, executor, 3, 10);
+        CacheInvalidator.Result result = invalidator.invalidate(Arrays.asList("http://r1", "http://r2", "http://w1"));
+        assertEquals("no request waited for another to finish", 0, client.allCalled.getCount());
+        assertEquals(3, result.getDroppedCount());
+        for (CacheInvalidator.Instance instance : result.getInstances()) {
+            assertEquals(1, instance.getAttempts());
+            assertNull(instance.getReason());
+        }
+    }
+
+    @Test
+    public void testOnlyFailedInstanceIsRetried() throws Exception {
+        ScriptedClient client = new ScriptedClient();
+        client.script.put("http://r2", new int[]{503, 503});
+        CacheInvalidator invalidator = new CacheInvalidator(client, executor, 5, 20);
+        CacheInvalidator.Result result = invalidator.invalidate(Arrays.asList("http://r1", "http://r2"));
+        assertEquals(2, result.getDroppedCount());
+        assertEquals(1, client.calls("http://r1"));
+        assertEquals(3, client.calls("http://r2"));
+        assertEquals(3, result.getInstances().get(1).getAttempts());
+        assertTrue("backs off 20 ms, then 40 ms", result.getElapsedMs() >= 60);
+    }
+
+    @Test
+    public void testInstanceOutOfAttemptsIsReported() throws Exception {
+        ScriptedClient client = new ScriptedClient();
+        client.script.put("http://w1", new int[]{500, 500, 500});
+        CacheInvalidator invalidator = new CacheInvalidator(client, executor, 2, 0);
+        CacheInvalidator.Result result = invalidator.invalidate(Arrays.asList("http://r1", "http://w1"));
+        assertEquals(1, result.getDroppedCount());
+        assertEquals(2, client.calls("http://w1"));
+        CacheInvalidator.Instance failed = result.getInstances().get(1);
+        assertEquals("http://w1", failed.getUrl());
+        assertFalse(failed.isDropped());
+        assertEquals(2, failed.getAttempts());
+        assertEquals("500 Unavailable", failed.getReason());
+    }
+}
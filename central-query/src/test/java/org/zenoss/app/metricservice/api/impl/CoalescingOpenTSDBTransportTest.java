@@ -0,0 +1,178 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.PendingTransport;
+import org.zenoss.app.metricservice.api.model.Aggregator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CoalescingOpenTSDBTransportTest {
+
+    private static OpenTSDBQuery query(String metric, String... tagPairs) {
+        OpenTSDBSubQuery subQuery = new OpenTSDBSubQuery();
+        subQuery.metric = metric;
+        subQuery.aggregator = Aggregator.avg;
+        for (int i = 0; i < tagPairs.length; i += 2) {
+            subQuery.addTag(tagPairs[i], tagPairs[i + 1]);
+        }
+        OpenTSDBQuery query = new OpenTSDBQuery();
+        query.start = "1h-ago";
+        query.addSubQuery(subQuery);
+        return query;
+    }
+
+    private static OpenTSDBQueryReturn response(String metric) {
+        OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+        result.metric = metric;
+        result.tags = new HashMap<>();
+        result.addDataPoint(10L, 1.0);
+        return new OpenTSDBQueryReturn(new OpenTSDBQueryResult[]{result}, new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, ""));
+    }
+
+    @Test
+    public void testConcurrentIdenticalQueriesShareOneRequest() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        CoalescingOpenTSDBTransport subject = new CoalescingOpenTSDBTransport(backend);
+        long hits = subject.getHits();
+        long misses = subject.getMisses();
+
+        ListenableFuture<OpenTSDBQueryReturn> first = subject.execute(query("cpu", "device", "a", "component", "b"));
+        ListenableFuture<OpenTSDBQueryReturn> second = subject.execute(query("cpu", "component", "b", "device", "a"));
+        assertEquals(1, backend.responses.size());
+        assertEquals(hits + 1, subject.getHits());
+        assertEquals(misses + 1, subject.getMisses());
+
+        backend.responses.get(0).set(response("cpu"));
+        OpenTSDBQueryResult firstResult = first.get().getResults().get(0);
+        OpenTSDBQueryResult secondResult = second.get().getResults().get(0);
+        assertNotSame("each caller gets its own copy", firstResult, secondResult);
+        assertEquals(firstResult.getDataPoints(), secondResult.getDataPoints());
+
+        firstResult.addDataPoint(20L, 2.0);
+        assertEquals(1, secondResult.getDataPoints().size());
+    }
+
+    @Test
+    public void testCompletedQueriesAreNotReused() {
+        PendingTransport backend = new PendingTransport();
+        CoalescingOpenTSDBTransport subject = new CoalescingOpenTSDBTransport(backend);
+
+        subject.execute(query("cpu"));
+        backend.responses.get(0).set(response("cpu"));
+        subject.execute(query("cpu"));
+        assertEquals(2, backend.responses.size());
+    }
+
+    @Test
+    public void testDifferentQueriesAreNotCoalesced() {
+        PendingTransport backend = new PendingTransport();
+        CoalescingOpenTSDBTransport subject = new CoalescingOpenTSDBTransport(backend);
+
+        subject.execute(query("cpu", "device", "a"));
+        subject.execute(query("cpu", "device", "b"));
+        subject.execute(query("mem", "device", "a"));
+        assertEquals(3, backend.responses.size());
+    }
+
+    @Test
+    public void testFailureIsSharedWithFollowers() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        CoalescingOpenTSDBTransport subject = new CoalescingOpenTSDBTransport(backend);
+
+        ListenableFuture<OpenTSDBQueryReturn> first = subject.execute(query("cpu"));
+        ListenableFuture<OpenTSDBQueryReturn> second = subject.execute(query("cpu"));
+        backend.responses.get(0).setException(new IllegalStateException("boom"));
+        List<ListenableFuture<OpenTSDBQueryReturn>> futures = new ArrayList<>();
+        futures.add(first);
+        futures.add(second);
+        for (ListenableFuture<OpenTSDBQueryReturn> future : futures) {
+            try {
+                future.get();
+                fail("expected failure");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        subject.execute(query("cpu"));
+        assertEquals("failed query is not left in flight", 2, backend.responses.size());
+    }
+
+    @Test
+    public void testIssuerGivingUpLeavesTheRequestToFollowers() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        CoalescingOpenTSDBTransport subject = new CoalescingOpenTSDBTransport(backend);
+
+        ListenableFuture<OpenTSDBQueryReturn> first = subject.execute(query("cpu"));
+        ListenableFuture<OpenTSDBQueryReturn> second = subject.execute(query("cpu"));
+        first.cancel(true);
+        assertFalse(backend.responses.get(0).isCancelled());
+
+        backend.responses.get(0).set(response("cpu"));
+        assertEquals("cpu", second.get().getResults().get(0).metric);
+    }
+
+    @Test
+    public void testRequestIsCancelledOnceEveryCallerGivesUp() {
+        PendingTransport backend = new PendingTransport();
+        CoalescingOpenTSDBTransport subject = new CoalescingOpenTSDBTransport(backend);
+
+        ListenableFuture<OpenTSDBQueryReturn> first = subject.execute(query("cpu"));
+        ListenableFuture<OpenTSDBQueryReturn> second = subject.execute(query("cpu"));
+        second.cancel(true);
+        assertFalse(backend.responses.get(0).isCancelled());
+        first.cancel(true);
+        assertTrue(backend.responses.get(0).isCancelled());
+
+        subject.execute(query("cpu"));
+        assertEquals("abandoned query is not joined", 2, backend.responses.size());
+    }
+
+    @Test
+    public void testIssuersDeadlineDoesNotAbortTheSharedRequest() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        CoalescingOpenTSDBTransport subject = new CoalescingOpenTSDBTransport(backend);
+        QueryDeadline issuer = QueryDeadline.start(null);
+        QueryDeadline joiner = QueryDeadline.start(null);
+
+        ListenableFuture<OpenTSDBQueryReturn> first;
+        ListenableFuture<OpenTSDBQueryReturn> second;
+        try (QueryDeadline.Scope scope = issuer.enter()) {
+            first = subject.execute(query("cpu"));
+        }
+        try (QueryDeadline.Scope scope = joiner.enter()) {
+            second = subject.execute(query("cpu"));
+        }
+        QueryDeadline shared = backend.deadlines.get(0);
+        assertNotSame("the request is not made under the issuer's deadline", issuer, shared);
+
+        issuer.expire();
+        assertTrue(first.isCancelled());
+        assertFalse(shared.isCancelled());
+        assertFalse(second.isDone());
+
+        joiner.expire();
+        assertTrue(second.isCancelled());
+        assertTrue("blocking requests made for the query are aborted", shared.isCancelled());
+        assertTrue(backend.responses.get(0).isCancelled());
+    }
+}
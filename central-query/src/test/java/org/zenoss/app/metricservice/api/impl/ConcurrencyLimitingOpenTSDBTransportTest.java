@@ -0,0 +1,157 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.PendingTransport;
+import org.zenoss.app.metricservice.api.model.MetricSpecification;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.success;
+
+public class ConcurrencyLimitingOpenTSDBTransportTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testQueriesOverLimitFailFast() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        ConcurrencyLimitingOpenTSDBTransport subject = new ConcurrencyLimitingOpenTSDBTransport(backend,
+                new AdaptiveConcurrencyLimit(2, 1, 10));
+        long rejected = subject.getRejected();
+
+        subject.execute(new OpenTSDBQuery());
+        subject.execute(new OpenTSDBQuery());
+        ListenableFuture<OpenTSDBQueryReturn> third = subject.execute(new OpenTSDBQuery());
+        assertEquals(2, backend.responses.size());
+        assertTrue(third.isDone());
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, third.get().getStatus().getStatus());
+        assertTrue(third.get().isQueryFailure());
+        assertEquals(rejected + 1, subject.getRejected());
+
+        backend.responses.get(0).set(success());
+        subject.execute(new OpenTSDBQuery());
+        assertEquals("completed query frees its slot", 3, backend.responses.size());
+    }
+
+    @Test
+    public void testCancelledQueryFreesItsSlot() {
+        PendingTransport backend = new PendingTransport();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1, 10);
+        ConcurrencyLimitingOpenTSDBTransport subject = new ConcurrencyLimitingOpenTSDBTransport(backend, limit);
+
+        subject.execute(new OpenTSDBQuery()).cancel(true);
+        assertEquals(0, limit.getInFlight());
+        subject.execute(new OpenTSDBQuery());
+        assertEquals(2, backend.responses.size());
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsFlat() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 1, 100);
+        for (int i = 0; i < 200; i++) {
+            saturate(limit, 10 * MILLIS);
+        }
+        assertEquals(100, limit.getLimit());
+    }
+
+    @Test
+    public void testLimitShrinksWhenLatencyRises() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(50, 1, 100);
+        for (int i = 0; i < 20; i++) {
+            saturate(limit, 10 * MILLIS);
+        }
+        int before = limit.getLimit();
+        for (int i = 0; i < 20; i++) {
+            saturate(limit, 100 * MILLIS);
+        }
+        assertTrue(limit.getLimit() < before / 2);
+        assertTrue(limit.getLimit() >= 1);
+    }
+
+    @Test
+    public void testLimitIsNotGrownWhenMostlyIdle() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 100);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(10 * MILLIS, false);
+        }
+        assertEquals(20, limit.getLimit());
+    }
+
+    @Test
+    public void testFailuresBackOff() {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 5, 100);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limit.tryAcquire());
+            limit.release(0, true);
+        }
+        assertEquals(5, limit.getLimit());
+        assertFalse(limit.getInFlight() > 0);
+    }
+
+    @Test
+    public void testFailedQueriesShrinkLimit() {
+        PendingTransport backend = new PendingTransport();
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 100);
+        ConcurrencyLimitingOpenTSDBTransport subject = new ConcurrencyLimitingOpenTSDBTransport(backend, limit);
+
+        subject.execute(new OpenTSDBQuery());
+        backend.responses.get(0).set(OpenTSDBClient.queryFailure(new IOException("Read timed out")));
+        assertEquals(18, limit.getLimit());
+    }
+
+    /*
+     * Fill the limit, then complete every request with the given round trip time.
+     */
+    private static void saturate(AdaptiveConcurrencyLimit limit, long rttNanos) {
+        int acquired = 0;
+        while (limit.tryAcquire()) {
+            acquired++;
+        }
+        for (int i = 0; i < acquired; i++) {
+            limit.release(rttNanos, false);
+        }
+    }
+
+    @Test
+    public void testRejectedBatchIsNotResentAsSingleQueries() {
+        PendingTransport backend = new PendingTransport();
+        ConcurrencyLimitingOpenTSDBTransport subject = new ConcurrencyLimitingOpenTSDBTransport(backend,
+                new AdaptiveConcurrencyLimit(1, 1, 10));
+        long rejected = subject.getRejected();
+        subject.execute(new OpenTSDBQuery());
+
+        List<MetricSpecification> specs = new ArrayList<>();
+        for (String metric : new String[]{"a", "b", "c"}) {
+            MetricSpecification spec = new MetricSpecification();
+            spec.setMetric(metric);
+            specs.add(spec);
+        }
+        OpenTSDBClient client = new OpenTSDBClient(null, null, subject);
+        List<OpenTSDBQueryResult> results = new MetricSpecBatch(client, "1000", "3000", specs, false, -1).call();
+
+        assertEquals("the rejected batch is not sent again", rejected + 1, subject.getRejected());
+        assertEquals(1, backend.responses.size());
+        assertEquals(3, results.size());
+        for (OpenTSDBQueryResult result : results) {
+            assertEquals(QueryStatus.QueryStatusEnum.ERROR, result.getStatus().getStatus());
+        }
+    }
+}
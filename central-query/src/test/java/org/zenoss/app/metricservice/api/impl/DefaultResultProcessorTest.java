@@ -45,7 +45,9 @@ import org.zenoss.app.metricservice.testutil.YEqualsXSeriesGenerator;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.mock;
@@ -132,6 +134,47 @@ public class DefaultResultProcessorTest {
         }
     }
 
+    @Test
+    public void testParallelProcessingMatchesSequential() throws Exception {
+        List<MetricSpecification> queries = makeQueries();
+        Buckets<IHasShortcut> expected = new DefaultResultProcessor(makeLargeResults(), queries, BUCKET_SIZE).processResults();
+        // all of the series on the pool, then those after the first on the pool and the first on this thread
+        long firstSeriesPoints = makeLargeResults().iterator().next().getDataPoints().size();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (long minDataPoints : new long[]{1, firstSeriesPoints + 1}) {
+                Buckets<IHasShortcut> results = new DefaultResultProcessor(makeLargeResults(), queries, BUCKET_SIZE)
+                        .withParallelism(pool, minDataPoints)
+                        .processResults();
+                assertArrayEquals(expected.getBucketTimestamps(), results.getBucketTimestamps());
+                for (MetricSpecification query : queries) {
+                    String nameOrMetric = query.getNameOrMetric();
+                    Buckets<IHasShortcut>.Column expectedColumn = expected.getColumnByShortcut(nameOrMetric);
+                    Buckets<IHasShortcut>.Column column = results.getColumnByShortcut(nameOrMetric);
+                    for (long timestamp : expected.getBucketTimestamps()) {
+                        assertEquals(String.format("Value of %s at %d", nameOrMetric, timestamp),
+                                expectedColumn.getValue(timestamp), column.getValue(timestamp), EPSILON);
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*
+     * Enough points to be split across tasks, with several series of one metric to be added together.
+     */
+    private Collection<OpenTSDBQueryResult> makeLargeResults() {
+        DataReaderGenerator generator = new DataReaderGenerator();
+        SeriesGenerator dataGen = new YEqualsXSeriesGenerator();
+        for (int i = 0; i < 3; i++) {
+            generator.addSeries(MetricSpecification.fromString("hourlyMetric"), dataGen, START_TIME, END_TIME, 10);
+        }
+        generator.addSeries(MetricSpecification.fromString("dailyMetric"), dataGen, START_TIME, END_TIME, DAILY_STEP);
+        return generator.getResults();
+    }
+
     private Collection<OpenTSDBQueryResult> makeResults() {
         DataReaderGenerator generator = new DataReaderGenerator();
         SeriesGenerator dataGen = new ConstantSeriesGenerator(CONST_VALUE);
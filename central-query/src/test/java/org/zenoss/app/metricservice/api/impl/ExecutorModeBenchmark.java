@@ -0,0 +1,172 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.zenoss.app.metricservice.api.impl.QueryStatus.QueryStatusEnum;
+import org.zenoss.app.metricservice.api.model.MetricSpecification;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the executor thread pool with the per-task executor for the fan-out of metric
+ * specification batches against a stub OpenTSDB that answers every query after a fixed latency.
+ * Not a unit test; run it by hand:
+ * <pre>
+ * java -cp ... org.zenoss.app.metricservice.api.impl.ExecutorModeBenchmark [requests] [batches] [latencyMs]
+ * </pre>
+ * The pool is set up as OpenTSDBMetricStorage does with the default configuration (20-250 threads
+ * over an unbounded queue, so at most 20 run) and the per-task executor is capped at the default
+ * maxTotalPoolConnections.
+ */
+public final class ExecutorModeBenchmark {
+
+    private static final int POOL_CORE_SIZE = 20;
+    private static final int POOL_MAX_SIZE = 250;
+    private static final int PER_TASK_MAX_CONCURRENCY = 50;
+
+    /**
+     * Blocks for the latency, as the blocking client does while the request is out, and counts the
+     * queries in flight.
+     */
+    private static class StubTSDB implements OpenTSDBTransport {
+        private final long latencyMs;
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger mostInFlight = new AtomicInteger();
+
+        StubTSDB(long latencyMs) {
+            this.latencyMs = latencyMs;
+        }
+
+        @Override
+        public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+            int now = inFlight.incrementAndGet();
+            synchronized (mostInFlight) {
+                mostInFlight.set(Math.max(mostInFlight.get(), now));
+            }
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            OpenTSDBQueryResult series = new OpenTSDBQueryResult();
+            series.metric = query.queries.get(0).metric;
+            series.addDataPoint(1000L, 1.0);
+            return Futures.immediateFuture(new OpenTSDBQueryReturn(new OpenTSDBQueryResult[]{series},
+                    new QueryStatus(QueryStatusEnum.SUCCESS, "")));
+        }
+    }
+
+    private ExecutorModeBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int batches = args.length > 1 ? Integer.parseInt(args[1]) : 25;
+        long latencyMs = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        System.out.printf("%d concurrent requests of %d batches, %d ms per query%n", requests, batches, latencyMs);
+
+        // warm up both before measuring either
+        run("pool", pool(), 4, 4, 1);
+        run("per-task", perTask(), 4, 4, 1);
+
+        report("pool", run("pool", pool(), requests, batches, latencyMs));
+        report("per-task", run("per-task", perTask(), requests, batches, latencyMs));
+    }
+
+    private static ExecutorService pool() {
+        return new ThreadPoolExecutor(POOL_CORE_SIZE, POOL_MAX_SIZE, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("bench-pool-%d").build());
+    }
+
+    private static ExecutorService perTask() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(PER_TASK_MAX_CONCURRENCY, PER_TASK_MAX_CONCURRENCY, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat("bench-task-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class Result {
+        long wallMs;
+        long[] requestMs;
+        int mostInFlight;
+    }
+
+    /*
+     * Each request plans its batches and waits for all of them, as OpenTSDBMetricStorage.runQueries does.
+     */
+    private static Result run(String name, final ExecutorService executor, int requests, final int batches, long latencyMs) throws Exception {
+        StubTSDB tsdb = new StubTSDB(latencyMs);
+        final OpenTSDBClient client = new OpenTSDBClient(null, null, tsdb);
+        ExecutorService callers = Executors.newFixedThreadPool(requests, new ThreadFactoryBuilder().setNameFormat("bench-" + name + "-request-%d").build());
+        List<Callable<Long>> calls = new ArrayList<>(requests);
+        for (int r = 0; r < requests; r++) {
+            calls.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    List<MetricSpecification> specs = new ArrayList<>(batches);
+                    for (int b = 0; b < batches; b++) {
+                        MetricSpecification spec = new MetricSpecification();
+                        spec.setId("m" + b);
+                        spec.setMetric("metric" + b);
+                        specs.add(spec);
+                    }
+                    long start = System.nanoTime();
+                    List<MetricSpecBatch> planned = MetricSpecBatch.plan(client, "1000", "2000", specs, false, -1, 1);
+                    List<Future<List<OpenTSDBQueryResult>>> futures = executor.invokeAll(new ArrayList<Callable<List<OpenTSDBQueryResult>>>(planned));
+                    for (Future<List<OpenTSDBQueryResult>> future : futures) {
+                        future.get();
+                    }
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                }
+            });
+        }
+        Result result = new Result();
+        long start = System.nanoTime();
+        List<Future<Long>> timings = callers.invokeAll(calls);
+        result.wallMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        result.requestMs = new long[timings.size()];
+        for (int i = 0; i < timings.size(); i++) {
+            result.requestMs[i] = timings.get(i).get();
+        }
+        result.mostInFlight = tsdb.mostInFlight.get();
+        callers.shutdown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        return result;
+    }
+
+    private static void report(String name, Result result) {
+        long[] sorted = Arrays.copyOf(result.requestMs, result.requestMs.length);
+        Arrays.sort(sorted);
+        System.out.printf("%-9s wall %6d ms  request p50 %6d ms  p95 %6d ms  max %6d ms  most queries in flight %d%n",
+                name, result.wallMs, percentile(sorted, 50), percentile(sorted, 95), sorted[sorted.length - 1], result.mostInFlight);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
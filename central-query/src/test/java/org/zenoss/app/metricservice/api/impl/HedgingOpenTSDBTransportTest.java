@@ -0,0 +1,127 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.PendingTransport;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.success;
+
+public class HedgingOpenTSDBTransportTest {
+
+    private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private HedgingOpenTSDBTransport hedging(PendingTransport backend, double budgetPercent, long latencyMillis) {
+        HedgingOpenTSDBTransport subject = new HedgingOpenTSDBTransport(backend, scheduler, 95, budgetPercent, 0);
+        for (int i = 0; i < 50; i++) {
+            subject.record(latencyMillis);
+        }
+        return subject;
+    }
+
+    @Test
+    public void testNoHedgeWithoutLatencyHistory() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        HedgingOpenTSDBTransport subject = new HedgingOpenTSDBTransport(backend, scheduler, 95, 100, 0);
+        assertEquals(-1, subject.hedgeDelay());
+        subject.execute(new OpenTSDBQuery());
+        Thread.sleep(50);
+        assertEquals(1, backend.responses.size());
+    }
+
+    @Test
+    public void testSlowQueryIsHedgedAndHedgeWins() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        HedgingOpenTSDBTransport subject = hedging(backend, 100, 10);
+        long sent = subject.getHedgesSent();
+        long won = subject.getHedgesWon();
+
+        ListenableFuture<OpenTSDBQueryReturn> result = subject.execute(new OpenTSDBQuery());
+        backend.awaitRequests(2);
+        OpenTSDBQueryReturn hedged = success();
+        backend.responses.get(1).set(hedged);
+        assertSame(hedged, result.get(1, TimeUnit.SECONDS));
+        assertTrue("slower request is abandoned", backend.responses.get(0).isCancelled());
+        assertEquals(sent + 1, subject.getHedgesSent());
+        assertEquals(won + 1, subject.getHedgesWon());
+    }
+
+    @Test
+    public void testFastQueryIsNotHedged() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        HedgingOpenTSDBTransport subject = hedging(backend, 100, 100);
+
+        ListenableFuture<OpenTSDBQueryReturn> result = subject.execute(new OpenTSDBQuery());
+        backend.responses.get(0).set(success());
+        assertTrue(result.isDone());
+        Thread.sleep(200);
+        assertEquals(1, backend.responses.size());
+    }
+
+    @Test
+    public void testHedgesAreLimitedByBudget() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        HedgingOpenTSDBTransport subject = hedging(backend, 50, 10);
+
+        subject.execute(new OpenTSDBQuery());
+        subject.execute(new OpenTSDBQuery());
+        backend.awaitRequests(3);
+        Thread.sleep(50);
+        assertEquals("only one of two queries is hedged", 3, backend.responses.size());
+    }
+
+    @Test
+    public void testFailedRequestWaitsForTheOther() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        HedgingOpenTSDBTransport subject = hedging(backend, 100, 10);
+
+        ListenableFuture<OpenTSDBQueryReturn> result = subject.execute(new OpenTSDBQuery());
+        backend.awaitRequests(2);
+        backend.responses.get(0).set(OpenTSDBClient.queryFailure(new IOException("Connection reset")));
+        assertFalse(result.isDone());
+        OpenTSDBQueryReturn hedged = success();
+        backend.responses.get(1).set(hedged);
+        assertSame(hedged, result.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancellingResultCancelsRequests() throws Exception {
+        PendingTransport backend = new PendingTransport();
+        HedgingOpenTSDBTransport subject = hedging(backend, 100, 10);
+
+        ListenableFuture<OpenTSDBQueryReturn> result = subject.execute(new OpenTSDBQuery());
+        backend.awaitRequests(2);
+        result.cancel(true);
+        assertTrue(backend.responses.get(0).isCancelled());
+        // the hedge is sent before the timer hands it to the race, which cancels it on arrival
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!backend.responses.get(1).isCancelled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(backend.responses.get(1).isCancelled());
+    }
+}
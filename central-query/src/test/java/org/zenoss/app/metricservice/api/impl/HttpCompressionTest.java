@@ -0,0 +1,145 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpCompressionTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String RESPONSE = "[{\"metric\":\"cpu\",\"tags\":{\"device\":\"a\"},\"aggregateTags\":[],"
+            + "\"dps\":{\"1000\":1.0,\"1060\":2.0,\"1120\":3.0}}]";
+
+    private static String json(int length) {
+        StringBuilder json = new StringBuilder("{\"q\":\"");
+        while (json.length() < length - 2) {
+            json.append('x');
+        }
+        return json.append("\"}").toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    private static HttpEntity encoded(byte[] content, String encoding) {
+        ByteArrayEntity entity = new ByteArrayEntity(content);
+        entity.setContentEncoding(encoding);
+        return entity;
+    }
+
+    private static byte[] deflate(byte[] plain, boolean nowrap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap))) {
+            out.write(plain);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testSmallRequestsAreSentPlain() throws Exception {
+        HttpEntity entity = new HttpCompression(true, 1024).jsonEntity(json(100));
+        assertNull(entity.getContentEncoding());
+        assertEquals("application/json", entity.getContentType().getValue());
+        assertEquals(json(100), EntityUtils.toString(entity));
+    }
+
+    @Test
+    public void testLargeRequestsAreGzipped() throws Exception {
+        long saved = HttpCompression.getRequestBytesSaved();
+        HttpEntity entity = new HttpCompression(true, 1024).jsonEntity(json(5000));
+        assertEquals("gzip", entity.getContentEncoding().getValue());
+        assertEquals("application/json", entity.getContentType().getValue());
+        assertTrue(entity.getContentLength() < 5000);
+        assertEquals(json(5000), read(new GZIPInputStream(entity.getContent())));
+        assertEquals(saved + 5000 - entity.getContentLength(), HttpCompression.getRequestBytesSaved());
+    }
+
+    @Test
+    public void testDisabledCompressionSendsPlainAndAcceptsIdentity() throws Exception {
+        HttpEntity entity = HttpCompression.NONE.jsonEntity(json(50000));
+        assertNull(entity.getContentEncoding());
+        HttpPost post = new HttpPost("http://localhost");
+        HttpCompression.NONE.acceptCompressed(post);
+        assertFalse(post.containsHeader(HttpHeaders.ACCEPT_ENCODING));
+
+        new HttpCompression(true, -1).acceptCompressed(post);
+        assertEquals("gzip, deflate", post.getFirstHeader(HttpHeaders.ACCEPT_ENCODING).getValue());
+    }
+
+    @Test
+    public void testResponsesAreDecoded() throws Exception {
+        byte[] plain = json(3000).getBytes(UTF_8);
+        long saved = HttpCompression.getResponseBytesSaved();
+
+        byte[] gzipped = HttpCompression.gzip(plain);
+        assertEquals(json(3000), read(HttpCompression.content(encoded(gzipped, "gzip"))));
+        assertEquals(saved + plain.length - gzipped.length, HttpCompression.getResponseBytesSaved());
+
+        assertEquals(json(3000), read(HttpCompression.content(encoded(deflate(plain, false), "deflate"))));
+        assertEquals("bare deflate stream", json(3000), read(HttpCompression.content(encoded(deflate(plain, true), "Deflate"))));
+        assertEquals(json(3000), read(HttpCompression.content(encoded(plain, null))));
+    }
+
+    @Test
+    public void testCompressedQueryResponseIsParsed() throws Exception {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(encoded(HttpCompression.gzip(RESPONSE.getBytes(UTF_8)), "gzip"));
+        OpenTSDBQueryReturn result = OpenTSDBClient.readQueryResponse(response);
+        assertEquals(QueryStatus.QueryStatusEnum.SUCCESS, result.getStatus().getStatus());
+        assertEquals(1, result.getResults().size());
+        assertEquals(3, result.getResults().get(0).getDataPoints().size());
+    }
+
+    @Test
+    public void testCompressedErrorResponseIsRead() throws Exception {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 400, "Bad Request");
+        String error = "{\"error\":{\"code\":400,\"message\":\"No such name for 'metrics': 'nope'\"}}";
+        response.setEntity(encoded(HttpCompression.gzip(error.getBytes(UTF_8)), "gzip"));
+        OpenTSDBQueryReturn result = OpenTSDBClient.readQueryResponse(response);
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, result.getStatus().getStatus());
+        assertEquals("No such name for 'metrics': 'nope'", result.getStatus().getMessage());
+    }
+
+    @Test
+    public void testEmptyResponses() throws Exception {
+        assertEquals("", read(HttpCompression.content(encoded(new byte[0], "identity"))));
+        assertEquals("", read(HttpCompression.content(encoded(deflate(new byte[0], false), "deflate"))));
+    }
+}
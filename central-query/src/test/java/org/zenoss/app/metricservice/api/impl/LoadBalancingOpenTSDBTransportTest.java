@@ -0,0 +1,143 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.PendingTransport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.success;
+
+public class LoadBalancingOpenTSDBTransportTest {
+
+    private static class Subject extends LoadBalancingOpenTSDBTransport {
+        long now = 0;
+
+        Subject(PendingTransport... transports) {
+            super(readers(transports), 2, 30);
+        }
+
+        private static List<Reader> readers(PendingTransport... transports) {
+            List<Reader> readers = new ArrayList<>();
+            for (int i = 0; i < transports.length; i++) {
+                readers.add(new Reader("http://reader" + i + ":4242", transports[i]));
+            }
+            return readers;
+        }
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+    }
+
+    @Test
+    public void testLeastOutstandingReaderIsChosen() {
+        PendingTransport a = new PendingTransport();
+        PendingTransport b = new PendingTransport();
+        Subject subject = new Subject(a, b);
+
+        subject.execute(new OpenTSDBQuery());
+        subject.execute(new OpenTSDBQuery());
+        subject.execute(new OpenTSDBQuery());
+        assertEquals(2, a.responses.size());
+        assertEquals(1, b.responses.size());
+
+        a.complete(0, success());
+        a.complete(1, success());
+        subject.execute(new OpenTSDBQuery());
+        assertEquals(3, a.responses.size());
+        assertEquals(Arrays.asList(1, 1), Arrays.asList(subject.getReaders().get(0).getOutstanding(),
+                subject.getReaders().get(1).getOutstanding()));
+    }
+
+    @Test
+    public void testTiesGoToLowerLatencyReader() {
+        PendingTransport a = new PendingTransport();
+        PendingTransport b = new PendingTransport();
+        Subject subject = new Subject(a, b);
+
+        subject.execute(new OpenTSDBQuery());
+        subject.execute(new OpenTSDBQuery());
+        subject.now += TimeUnit.MILLISECONDS.toNanos(10);
+        b.complete(0, success());
+        subject.now += TimeUnit.MILLISECONDS.toNanos(500);
+        a.complete(0, success());
+
+        subject.execute(new OpenTSDBQuery());
+        assertEquals(2, b.responses.size());
+    }
+
+    @Test
+    public void testFailingReaderIsEjectedAndRetried() {
+        PendingTransport a = new PendingTransport();
+        PendingTransport b = new PendingTransport();
+        Subject subject = new Subject(a, b);
+        OpenTSDBQueryReturn failure = OpenTSDBClient.queryFailure(new IOException("Connection refused"));
+
+        subject.execute(new OpenTSDBQuery());
+        a.complete(0, failure);
+        subject.execute(new OpenTSDBQuery());
+        a.complete(1, failure);
+        assertEquals(1, subject.healthyReaders());
+
+        for (int i = 0; i < 3; i++) {
+            subject.execute(new OpenTSDBQuery());
+        }
+        assertEquals(2, a.responses.size());
+        assertEquals(3, b.responses.size());
+
+        subject.now += TimeUnit.SECONDS.toNanos(31);
+        assertEquals(2, subject.healthyReaders());
+        subject.execute(new OpenTSDBQuery());
+        assertEquals(3, a.responses.size());
+    }
+
+    @Test
+    public void testOpenTSDBErrorsDoNotEjectReader() {
+        PendingTransport a = new PendingTransport();
+        Subject subject = new Subject(a, new PendingTransport());
+        OpenTSDBQueryReturn badQuery = new OpenTSDBQueryReturn(new OpenTSDBQueryResult[0],
+                new QueryStatus(QueryStatus.QueryStatusEnum.ERROR, "No such name for 'metrics': 'nope'"));
+
+        for (int i = 0; i < 3; i++) {
+            subject.execute(new OpenTSDBQuery());
+            a.complete(i, badQuery);
+        }
+        assertEquals(2, subject.healthyReaders());
+    }
+
+    @Test
+    public void testAllEjectedUsesReaderDueBackFirst() {
+        PendingTransport a = new PendingTransport();
+        PendingTransport b = new PendingTransport();
+        Subject subject = new Subject(a, b);
+
+        for (int i = 0; i < 2; i++) {
+            subject.execute(new OpenTSDBQuery());
+            a.responses.get(i).setException(new IllegalStateException("closed"));
+        }
+        subject.now += TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 2; i++) {
+            subject.execute(new OpenTSDBQuery());
+            b.responses.get(i).setException(new IllegalStateException("closed"));
+        }
+        assertEquals(0, subject.healthyReaders());
+        assertSame(subject.getReaders().get(0), subject.choose());
+    }
+}
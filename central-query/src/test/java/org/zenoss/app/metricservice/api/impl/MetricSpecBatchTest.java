@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2016, Zenoss and/or its affiliates. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ *   - Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *
+ *   - Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *
+ *   - Neither the name of Zenoss or the names of its
+ *     contributors may be used to endorse or promote products derived
+ *     from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.QueryStatus.QueryStatusEnum;
+import org.zenoss.app.metricservice.api.model.MetricSpecification;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricSpecBatchTest {
+    private static final String START = "1000";
+    private static final String END = "3000";
+
+    /**
+     * Answers each request with the next canned response, echoing back the subquery index of every
+     * series the way OpenTSDB does with showQuery.
+     */
+    private static class CannedTransport implements OpenTSDBTransport {
+        final List<OpenTSDBQuery> requests = new ArrayList<>();
+        final LinkedList<OpenTSDBQueryReturn> responses = new LinkedList<>();
+
+        @Override
+        public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+            requests.add(query);
+            return Futures.immediateFuture(responses.removeFirst());
+        }
+    }
+
+    private static MetricSpecification spec(String metric, boolean rate) {
+        MetricSpecification spec = new MetricSpecification();
+        spec.setId(metric + "-id");
+        spec.setMetric(metric);
+        spec.setRate(rate);
+        return spec;
+    }
+
+    private static OpenTSDBQueryResult series(String metric, int queryIndex) {
+        OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+        result.metric = metric;
+        result.tags = new HashMap<>();
+        result.queryIndex = queryIndex;
+        result.addDataPoint(1500L, 1.0);
+        return result;
+    }
+
+    private static OpenTSDBQueryReturn success(OpenTSDBQueryResult... results) {
+        return new OpenTSDBQueryReturn(results, new QueryStatus(QueryStatusEnum.SUCCESS, ""));
+    }
+
+    private static OpenTSDBQueryReturn status(QueryStatusEnum status) {
+        return new OpenTSDBQueryReturn(new OpenTSDBQueryResult[]{}, new QueryStatus(status, "message"));
+    }
+
+    private static List<MetricSpecification> specs(MetricSpecification... specs) {
+        List<MetricSpecification> list = new ArrayList<>();
+        for (MetricSpecification spec : specs) {
+            list.add(spec);
+        }
+        return list;
+    }
+
+    @Test
+    public void testPlanHonoursBatchSize() {
+        List<MetricSpecification> specs = specs(spec("a", false), spec("b", false), spec("c", false), spec("d", false), spec("e", false));
+        List<MetricSpecBatch> batches = MetricSpecBatch.plan(null, START, END, specs, false, -1, 2);
+        assertEquals(3, batches.size());
+        assertEquals(2, batches.get(0).getMetricSpecifications().size());
+        assertEquals(1, batches.get(2).getMetricSpecifications().size());
+        assertEquals("e", batches.get(2).getMetricSpecifications().get(0).getMetric());
+    }
+
+    @Test
+    public void testPlanSendsSplitRateQueriesAlone() {
+        List<MetricSpecification> specs = specs(spec("a", false), spec("rate", true), spec("b", false));
+        List<MetricSpecBatch> batches = MetricSpecBatch.plan(null, START, END, specs, true, 2000L, 10);
+        assertEquals(2, batches.size());
+        assertEquals("rate", batches.get(0).getMetricSpecifications().get(0).getMetric());
+        assertEquals(2, batches.get(1).getMetricSpecifications().size());
+
+        // entirely after the cutoff: the rate option is simply dropped, so it can share the request
+        batches = MetricSpecBatch.plan(null, START, END, specs, true, 500L, 10);
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testResultsAreSplitBySubqueryIndex() {
+        CannedTransport transport = new CannedTransport();
+        transport.responses.add(success(series("b", 1), series("a", 0), series("a", 0)));
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        MetricSpecBatch batch = new MetricSpecBatch(client, START, END, specs(spec("a", false), spec("b", false), spec("c", false)), false, -1);
+
+        List<OpenTSDBQueryResult> results = batch.call();
+        assertEquals("one request for the whole batch", 1, transport.requests.size());
+        assertEquals(3, transport.requests.get(0).queries.size());
+        assertTrue(transport.requests.get(0).showQuery);
+
+        assertEquals(3, results.size());
+        assertEquals("a", results.get(0).metric);
+        assertEquals("a-id", results.get(0).metricSpecId);
+        assertEquals("b", results.get(1).metric);
+        assertEquals("b-id", results.get(1).metricSpecId);
+        assertEquals("c-id", results.get(2).metricSpecId);
+        assertEquals("spec without series gets a no data warning", QueryStatusEnum.WARNING, results.get(2).getStatus().getStatus());
+        assertTrue(results.get(2).getDataPoints().isEmpty());
+    }
+
+    @Test
+    public void testFailedBatchFallsBackToSingleQueries() {
+        CannedTransport transport = new CannedTransport();
+        transport.responses.add(status(QueryStatusEnum.ERROR));
+        transport.responses.add(success(series("a", -1)));
+        transport.responses.add(status(QueryStatusEnum.ERROR));
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        MetricSpecBatch batch = new MetricSpecBatch(client, START, END, specs(spec("a", false), spec("missing", false)), false, -1);
+
+        List<OpenTSDBQueryResult> results = batch.call();
+        assertEquals(3, transport.requests.size());
+        assertEquals(1, transport.requests.get(1).queries.size());
+        assertEquals(2, results.size());
+        assertEquals("a-id", results.get(0).metricSpecId);
+        assertEquals(1, results.get(0).getDataPoints().size());
+        assertEquals("missing-id", results.get(1).metricSpecId);
+        assertEquals(QueryStatusEnum.ERROR, results.get(1).getStatus().getStatus());
+    }
+
+    @Test
+    public void testBatchThatFailedToQueryIsNotResent() {
+        CannedTransport transport = new CannedTransport();
+        transport.responses.add(OpenTSDBClient.queryFailure(new IOException("Read timed out")));
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        MetricSpecBatch batch = new MetricSpecBatch(client, START, END, specs(spec("a", false), spec("b", false), spec("c", false)), false, -1);
+
+        List<OpenTSDBQueryResult> results = batch.call();
+        assertEquals("no single queries are sent", 1, transport.requests.size());
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(QueryStatusEnum.ERROR, results.get(i).getStatus().getStatus());
+            assertTrue(results.get(i).getDataPoints().isEmpty());
+        }
+        assertEquals("b-id", results.get(1).metricSpecId);
+        assertEquals("b", results.get(1).metric);
+    }
+
+    @Test
+    public void testMissingSubqueryIndexFallsBackToSingleQueries() {
+        CannedTransport transport = new CannedTransport();
+        transport.responses.add(success(series("a", -1), series("b", -1)));
+        transport.responses.add(success(series("a", -1)));
+        transport.responses.add(success(series("b", -1)));
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        MetricSpecBatch batch = new MetricSpecBatch(client, START, END, specs(spec("a", false), spec("b", false)), false, -1);
+
+        List<OpenTSDBQueryResult> results = batch.call();
+        assertEquals(3, transport.requests.size());
+        assertEquals("b-id", results.get(1).metricSpecId);
+        assertEquals("b", results.get(1).metric);
+    }
+
+    @Test
+    public void testNoDataWarningAppliesToEverySpec() {
+        CannedTransport transport = new CannedTransport();
+        transport.responses.add(status(QueryStatusEnum.WARNING));
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        MetricSpecBatch batch = new MetricSpecBatch(client, START, END, specs(spec("a", false), spec("b", false)), false, -1);
+
+        List<OpenTSDBQueryResult> results = batch.call();
+        assertEquals(1, transport.requests.size());
+        for (OpenTSDBQueryResult result : results) {
+            assertEquals(QueryStatusEnum.WARNING, result.getStatus().getStatus());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.model.DataPoints;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OffHeapPoolTest {
+
+    @Test
+    public void testBuffersAreReusedZeroed() {
+        OffHeapPool pool = new OffHeapPool(1 << 20);
+        OffHeapPool.Arena arena = pool.newArena(0);
+        DoubleBuffer first = arena.allocateDoubles(100);
+        assertEquals(100, first.capacity());
+        assertTrue(first.isDirect());
+        first.put(5, 1.5);
+        assertEquals(4096, pool.getBytesInUse());
+        arena.close();
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(4096, pool.getPooledBytes());
+
+        arena = pool.newArena(0);
+        DoubleBuffer second = arena.allocateDoubles(200);
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0.0, second.get(5), 0.0);
+        arena.close();
+    }
+
+    @Test
+    public void testBudgetIsEnforced() {
+        OffHeapPool pool = new OffHeapPool(1 << 20);
+        try (OffHeapPool.Arena arena = pool.newArena(10000)) {
+            LongBuffer longs = arena.allocateLongs(512);
+            arena.allocateInts(1024);
+            assertEquals(8192, arena.getHeldBytes());
+            try {
+                arena.allocateDoubles(1);
+                fail("a third buffer is over budget");
+            } catch (OffHeapPool.BudgetExceededException expected) {
+                // expected
+            }
+            arena.release(longs);
+            assertEquals(4096, arena.getHeldBytes());
+            arena.allocateDoubles(1);
+        }
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    public void testPoolKeepsAtMostMaxPooledBytes() {
+        OffHeapPool pool = new OffHeapPool(8192);
+        OffHeapPool.Arena arena = pool.newArena(0);
+        IntBuffer large = arena.allocateInts(4096);
+        for (int i = 0; i < 3; i++) {
+            arena.allocateInts(1);
+        }
+        assertEquals(16384 + 3 * 4096, pool.getBytesInUse());
+        arena.release(large);
+        arena.close();
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(8192, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testSeriesCopiedIntoArena() {
+        OffHeapPool pool = new OffHeapPool(0);
+        DataPoints points = DataPoints.wrap(new long[]{10, 20, 30}, new double[]{1, 2, 3}, 3);
+        OffHeapPool.Arena arena = pool.newArena(0);
+        DataPoints copy = arena.copyOf(points);
+        assertTrue(copy.isDirect());
+        assertEquals(points, copy);
+        arena.close();
+        try {
+            arena.allocateLongs(1);
+            fail("the arena has been closed");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+}
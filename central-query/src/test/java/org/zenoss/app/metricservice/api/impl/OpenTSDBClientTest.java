@@ -0,0 +1,251 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.model.Aggregator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OpenTSDBClientTest {
+    private static final long CUTOFF = 2000L;
+
+    /**
+     * Records every request and answers each one with a future the test completes.
+     */
+    private static class RecordingTransport implements OpenTSDBTransport {
+        final List<OpenTSDBQuery> requests = new ArrayList<>();
+        final List<SettableFuture<OpenTSDBQueryReturn>> responses = new ArrayList<>();
+
+        @Override
+        public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+            SettableFuture<OpenTSDBQueryReturn> response = SettableFuture.create();
+            requests.add(query);
+            responses.add(response);
+            return response;
+        }
+
+        void complete(int index, QueryStatus.QueryStatusEnum status, long timestamp) {
+            responses.get(index).set(answer(requests.get(index), status, timestamp));
+        }
+    }
+
+    /**
+     * Answers each request once every expected request is being sent at the same time.
+     */
+    private static class BlockingTransport implements OpenTSDBTransport {
+        final CountDownLatch together;
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        BlockingTransport(int requests) {
+            together = new CountDownLatch(requests);
+        }
+
+        @Override
+        public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+            threads.add(Thread.currentThread().getName());
+            together.countDown();
+            try {
+                if (!together.await(5, TimeUnit.SECONDS)) {
+                    return Futures.immediateFuture(OpenTSDBClient.queryFailure(new TimeoutException("requests sent one at a time")));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Futures.immediateFuture(answer(query, QueryStatus.QueryStatusEnum.SUCCESS, 1500L));
+        }
+    }
+
+    private static OpenTSDBQueryReturn answer(OpenTSDBQuery request, QueryStatus.QueryStatusEnum status, long timestamp) {
+        List<OpenTSDBQueryResult> results = new ArrayList<>();
+        for (OpenTSDBSubQuery subQuery : request.queries) {
+            OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+            result.metric = subQuery.metric;
+            result.tags = new HashMap<>();
+            result.addDataPoint(timestamp, 1.0);
+            results.add(result);
+        }
+        return new OpenTSDBQueryReturn(results.toArray(new OpenTSDBQueryResult[results.size()]), new QueryStatus(status, ""));
+    }
+
+    private static OpenTSDBSubQuery subQuery(String metric, boolean rate) {
+        OpenTSDBSubQuery subQuery = new OpenTSDBSubQuery();
+        subQuery.metric = metric;
+        subQuery.aggregator = Aggregator.sum;
+        subQuery.rate = rate;
+        return subQuery;
+    }
+
+    private static OpenTSDBQuery query(OpenTSDBSubQuery... subQueries) {
+        OpenTSDBQuery query = new OpenTSDBQuery();
+        query.start = "1000";
+        query.end = "3000";
+        for (OpenTSDBSubQuery subQuery : subQueries) {
+            query.addSubQuery(subQuery);
+        }
+        return query;
+    }
+
+    @Test
+    public void testSingleRequestWithoutRateCutoff() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        ListenableFuture<OpenTSDBQueryReturn> result = client.queryAsync(query(subQuery("rateMetric", true)), false, CUTOFF);
+
+        assertEquals(1, transport.requests.size());
+        assertTrue("rate option is sent unchanged", transport.requests.get(0).queries.get(0).rate);
+        assertFalse(result.isDone());
+        transport.complete(0, QueryStatus.QueryStatusEnum.SUCCESS, 1500L);
+        assertEquals(QueryStatus.QueryStatusEnum.SUCCESS, result.get().getStatus().getStatus());
+        assertEquals(1, result.get().getResults().size());
+    }
+
+    @Test
+    public void testSplitRequestsAreIssuedTogetherAndMerged() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        ListenableFuture<OpenTSDBQueryReturn> result = client.queryAsync(
+                query(subQuery("rateMetric", true), subQuery("gauge", false)), true, CUTOFF);
+
+        assertEquals("all requests are issued without waiting", 3, transport.requests.size());
+        OpenTSDBQuery pre = transport.requests.get(0);
+        assertEquals("1000", pre.start);
+        assertEquals(String.valueOf(CUTOFF), pre.end);
+        assertTrue(pre.queries.get(0).rate);
+        OpenTSDBQuery post = transport.requests.get(1);
+        assertEquals(String.valueOf(CUTOFF), post.start);
+        assertEquals("3000", post.end);
+        assertFalse("post cutoff values are stored as rates", post.queries.get(0).rate);
+        assertEquals("gauge", transport.requests.get(2).queries.get(0).metric);
+
+        transport.complete(2, QueryStatus.QueryStatusEnum.SUCCESS, 1500L);
+        transport.complete(1, QueryStatus.QueryStatusEnum.SUCCESS, 2500L);
+        assertFalse(result.isDone());
+        transport.complete(0, QueryStatus.QueryStatusEnum.SUCCESS, 1500L);
+
+        OpenTSDBQueryReturn queryReturn = result.get();
+        assertEquals(QueryStatus.QueryStatusEnum.SUCCESS, queryReturn.getStatus().getStatus());
+        assertEquals(2, queryReturn.getResults().size());
+        OpenTSDBQueryResult rateResult = queryReturn.getResults().get(0);
+        assertEquals("results keep request order, not completion order", "rateMetric", rateResult.metric);
+        assertEquals("pre and post cutoff points are merged", 2, rateResult.getDataPoints().size());
+        assertEquals(Long.valueOf(1500L), rateResult.getDataPoints().firstKey());
+        assertEquals("gauge", queryReturn.getResults().get(1).metric);
+    }
+
+    @Test
+    public void testSplitRequestsOverlapOnABlockingTransport() throws Exception {
+        BlockingTransport transport = new BlockingTransport(3);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            OpenTSDBClient client = new OpenTSDBClient(null, null, transport, executor);
+            OpenTSDBQueryReturn result = client.query(query(subQuery("rateMetric", true), subQuery("gauge", false)), true, CUTOFF);
+
+            assertEquals(result.getStatus().getMessage(), QueryStatus.QueryStatusEnum.SUCCESS, result.getStatus().getStatus());
+            assertEquals(2, result.getResults().size());
+            assertEquals(3, transport.threads.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSplitRequestsTheDispatcherDoesNotRunAreSentByTheCaller() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        Executor idle = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                // never gets round to it
+            }
+        };
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport, idle);
+        ListenableFuture<OpenTSDBQueryReturn> result = client.queryAsync(
+                query(subQuery("rateMetric", true), subQuery("gauge", false)), true, CUTOFF);
+
+        assertEquals(3, transport.requests.size());
+        for (int i = 0; i < 3; i++) {
+            transport.complete(i, QueryStatus.QueryStatusEnum.SUCCESS, 1500L);
+        }
+        assertEquals(QueryStatus.QueryStatusEnum.SUCCESS, result.get().getStatus().getStatus());
+    }
+
+    @Test
+    public void testErrorShortCircuitsRemainingRequests() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        ListenableFuture<OpenTSDBQueryReturn> result = client.queryAsync(
+                query(subQuery("rateMetric", true), subQuery("gauge", false)), true, CUTOFF);
+
+        transport.complete(1, QueryStatus.QueryStatusEnum.ERROR, 2500L);
+        assertTrue(result.isDone());
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, result.get().getStatus().getStatus());
+        assertTrue("outstanding requests are cancelled", transport.responses.get(0).isCancelled());
+        assertTrue(transport.responses.get(2).isCancelled());
+    }
+
+    @Test
+    public void testRequestsAreNotIssuedAfterImmediateError() throws Exception {
+        RecordingTransport transport = new RecordingTransport() {
+            @Override
+            public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+                ListenableFuture<OpenTSDBQueryReturn> response = super.execute(query);
+                complete(requests.size() - 1, QueryStatus.QueryStatusEnum.ERROR, 1500L);
+                return response;
+            }
+        };
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        ListenableFuture<OpenTSDBQueryReturn> result = client.queryAsync(
+                query(subQuery("rateMetric", true), subQuery("gauge", false)), true, CUTOFF);
+
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, result.get().getStatus().getStatus());
+        assertEquals("no further requests are issued", 1, transport.requests.size());
+    }
+
+    @Test
+    public void testRateQueriesAfterCutoffAreNotSplit() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        client.queryAsync(query(subQuery("rateMetric", true)), true, 500L);
+
+        assertEquals(1, transport.requests.size());
+        assertFalse("rate option is dropped", transport.requests.get(0).queries.get(0).rate);
+    }
+
+    @Test
+    public void testQueryFailuresAreFlaggedRatherThanRecognisedByTheirMessage() {
+        OpenTSDBQueryReturn failure = OpenTSDBClient.queryFailure(new IOException("Connection refused"));
+        assertTrue(failure.isQueryFailure());
+        assertTrue("the flag survives a copy", failure.copy().isQueryFailure());
+
+        OpenTSDBQueryReturn answered = new OpenTSDBQueryReturn(new OpenTSDBQueryResult[0],
+                new QueryStatus(QueryStatus.QueryStatusEnum.ERROR, failure.getStatus().getMessage()));
+        assertFalse("an error from OpenTSDB is not a query failure, whatever it says", answered.isQueryFailure());
+    }
+}
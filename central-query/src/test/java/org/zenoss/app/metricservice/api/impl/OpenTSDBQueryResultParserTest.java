@@ -0,0 +1,117 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OpenTSDBQueryResultParserTest {
+
+    private static OpenTSDBQueryResult[] parse(String json) throws IOException {
+        return OpenTSDBQueryResultParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testParsesMetricTagsAndDataPoints() throws IOException {
+        OpenTSDBQueryResult[] results = parse("[{\"metric\":\"laLoadInt1\",\"tags\":{\"key\":\"Devices/10.87.209.6\"}," +
+                "\"aggregateTags\":[\"host\"],\"dps\":{\"1416258000\":0.3,\"1416258060\":2,\"1416258120\":\"NaN\"}," +
+                "\"tsuids\":[\"000001000001000001\"]}]");
+        assertEquals(1, results.length);
+        OpenTSDBQueryResult result = results[0];
+        assertEquals("laLoadInt1", result.metric);
+        assertEquals("Devices/10.87.209.6", result.tags.get("key"));
+        assertNull("aggregateTags are not decoded", result.aggregateTags);
+        assertTrue("tsuids are not decoded", result.tsuids.isEmpty());
+
+        SortedMap<Long, Double> expected = new TreeMap<>();
+        expected.put(1416258000L, 0.3);
+        expected.put(1416258060L, 2.0);
+        expected.put(1416258120L, Double.NaN);
+        assertEquals(expected, result.getDataPoints());
+    }
+
+    @Test
+    public void testParsesMultipleResultsAndSkipsUnknownFields() throws IOException {
+        OpenTSDBQueryResult[] results = parse("[{\"metric\":\"a\",\"tags\":{},\"status\":{\"status\":\"UNKNOWN\",\"message\":\"\"}," +
+                "\"annotations\":[{\"description\":\"x\",\"custom\":{\"k\":[1,2]}}],\"dps\":{\"1\":1.0}}," +
+                "{\"metric\":\"b\",\"tags\":{\"t\":\"v\"},\"dps\":{}}]");
+        assertEquals(2, results.length);
+        assertEquals("a", results[0].metric);
+        assertEquals(1, results[0].getDataPoints().size());
+        assertEquals("b", results[1].metric);
+        assertTrue(results[1].getDataPoints().isEmpty());
+    }
+
+    @Test
+    public void testParsesNullAndUnquotedNaNValues() throws IOException {
+        OpenTSDBQueryResult[] results = parse("[{\"metric\":\"m\",\"dps\":{\"10\":null,\"20\":NaN,\"30\":1.5}}]");
+        SortedMap<Long, Double> dps = results[0].getDataPoints();
+        assertTrue(Double.isNaN(dps.get(10L)));
+        assertTrue(Double.isNaN(dps.get(20L)));
+        assertEquals(1.5, dps.get(30L), 0.0);
+    }
+
+    @Test
+    public void testParsesArrayDataPoints() throws IOException {
+        OpenTSDBQueryResult[] results = parse("[{\"metric\":\"m\",\"dps\":[[10,1],[20,2.5]]}]");
+        assertEquals(Arrays.asList(10L, 20L), Arrays.asList(results[0].getDataPoints().keySet().toArray()));
+        assertEquals(2.5, results[0].getDataPoints().get(20L), 0.0);
+    }
+
+    @Test
+    public void testGrowsBeyondInitialCapacity() throws IOException {
+        StringBuilder json = new StringBuilder("[{\"metric\":\"m\",\"dps\":{");
+        for (int i = 0; i < 1000; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(i * 60).append("\":").append(i);
+        }
+        json.append("}}]");
+        SortedMap<Long, Double> dps = parse(json.toString())[0].getDataPoints();
+        assertEquals(1000, dps.size());
+        assertEquals(999.0, dps.get(999L * 60), 0.0);
+    }
+
+    @Test
+    public void testKeepsOnlyTheIndexOfTheEchoedQuery() throws IOException {
+        OpenTSDBQueryResult[] results = parse("[{\"metric\":\"a\",\"query\":{\"aggregator\":\"sum\",\"metric\":\"a\"," +
+                "\"tags\":{\"k\":\"v\"},\"filters\":[],\"index\":3},\"dps\":{}},{\"metric\":\"b\",\"dps\":{}}]");
+        assertEquals(3, results[0].queryIndex);
+        assertEquals("no query echoed", -1, results[1].queryIndex);
+    }
+
+    @Test
+    public void testEmptyResponse() throws IOException {
+        assertEquals(0, parse("[]").length);
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testRejectsNonArrayContent() throws IOException {
+        parse("{\"error\":{\"code\":400}}");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testRejectsInvalidTimestamp() throws IOException {
+        parse("[{\"metric\":\"m\",\"dps\":{\"abc\":1}}]");
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.zenoss.app.metricservice.api.model.InterpolatorType;
+import org.zenoss.app.metricservice.api.model.MetricSpecification;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares bucketing the results of a large query on the request thread with bucketing them on a
+ * fork/join pool, as DefaultResultProcessor does with parallelBucketing set. Every series is
+ * linearly interpolated; one in four is sampled more coarsely than the buckets, so that there are
+ * gaps to fill in. Not a unit test; run it by hand:
+ * <pre>
+ * java -cp ... org.zenoss.app.metricservice.api.impl.ParallelBucketingBenchmark [series] [pointsPerSeries] [threads]
+ * </pre>
+ */
+public final class ParallelBucketingBenchmark {
+
+    private static final long START_TIME = 1388534400;
+    private static final long STEP = 300;
+    private static final long BUCKET_SIZE = 3600;
+    private static final int WARM_UP_RUNS = 3;
+    private static final int RUNS = 7;
+
+    private ParallelBucketingBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seriesCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int pointsPerSeries = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d series of %d points in %d s buckets, %d threads%n", seriesCount, pointsPerSeries, BUCKET_SIZE, threads);
+
+        List<MetricSpecification> queries = new ArrayList<>(seriesCount);
+        List<OpenTSDBQueryResult> results = new ArrayList<>(seriesCount);
+        for (int s = 0; s < seriesCount; s++) {
+            MetricSpecification query = MetricSpecification.fromString("series" + s);
+            query.setInterpolator(InterpolatorType.linear);
+            queries.add(query);
+            results.add(makeSeries(query, s, pointsPerSeries));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long[] sequential = run(results, queries, null);
+            long[] parallel = run(results, queries, pool);
+            report("sequential", sequential);
+            report("parallel", parallel);
+            System.out.printf("speedup %.2fx (median)%n", (double) median(sequential) / Math.max(1, median(parallel)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static OpenTSDBQueryResult makeSeries(MetricSpecification query, int index, int points) {
+        long step = index % 4 == 0 ? 3 * BUCKET_SIZE : STEP;
+        long[] timestamps = new long[points];
+        double[] values = new double[points];
+        for (int i = 0; i < points; i++) {
+            timestamps[i] = START_TIME + i * step;
+            values[i] = (index + i) % 100;
+        }
+        OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+        result.metric = query.getNameOrMetric();
+        result.metricSpecName = query.getNameOrMetric();
+        result.addTags(query.getTags());
+        result.setDataPoints(timestamps, values, points);
+        return result;
+    }
+
+    private static long[] run(List<OpenTSDBQueryResult> results, List<MetricSpecification> queries, ForkJoinPool pool) throws Exception {
+        long[] elapsedMs = new long[RUNS];
+        for (int r = -WARM_UP_RUNS; r < RUNS; r++) {
+            DefaultResultProcessor processor = new DefaultResultProcessor(results, queries, BUCKET_SIZE);
+            if (null != pool) {
+                processor.withParallelism(pool, 1);
+            }
+            long start = System.nanoTime();
+            processor.processResults();
+            if (r >= 0) {
+                elapsedMs[r] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }
+        return elapsedMs;
+    }
+
+    private static void report(String name, long[] elapsedMs) {
+        long[] sorted = Arrays.copyOf(elapsedMs, elapsedMs.length);
+        Arrays.sort(sorted);
+        System.out.printf("%-10s min %6d ms  median %6d ms  max %6d ms%n", name, sorted[0], median(elapsedMs), sorted[sorted.length - 1]);
+    }
+
+    private static long median(long[] elapsedMs) {
+        long[] sorted = Arrays.copyOf(elapsedMs, elapsedMs.length);
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
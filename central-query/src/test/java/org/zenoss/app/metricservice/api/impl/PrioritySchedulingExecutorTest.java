@@ -0,0 +1,141 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PrioritySchedulingExecutorTest {
+
+    private final ExecutorService threads = Executors.newCachedThreadPool();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        threads.shutdownNow();
+    }
+
+    private Runnable blocked() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testBulkWorkLeavesInteractiveSlotsFree() {
+        PrioritySchedulingExecutor scheduler = new PrioritySchedulingExecutor(threads, 4, 1, 1);
+        long due = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            scheduler.execute(blocked(), QueryPriority.EXPORT, due);
+            scheduler.execute(blocked(), QueryPriority.BACKGROUND, due);
+        }
+        assertEquals(1, scheduler.getRunningCount(QueryPriority.EXPORT));
+        assertEquals("background takes the shared slots export may not", 2, scheduler.getRunningCount(QueryPriority.BACKGROUND));
+        assertEquals(2, scheduler.getWaitingCount(QueryPriority.EXPORT));
+        assertEquals(1, scheduler.getWaitingCount(QueryPriority.BACKGROUND));
+
+        scheduler.execute(blocked(), QueryPriority.INTERACTIVE, due + TimeUnit.HOURS.toNanos(1));
+        assertEquals("the reserved slot goes to interactive work, though it is due last", 1,
+                scheduler.getRunningCount(QueryPriority.INTERACTIVE));
+        scheduler.execute(blocked(), QueryPriority.INTERACTIVE, due);
+        assertEquals(1, scheduler.getWaitingCount(QueryPriority.INTERACTIVE));
+    }
+
+    @Test
+    public void testWaitingWorkRunsInDeadlineOrder() throws Exception {
+        PrioritySchedulingExecutor scheduler = new PrioritySchedulingExecutor(threads, 1, 0, 0);
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                first.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, QueryPriority.INTERACTIVE, 0);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(4);
+        long now = System.nanoTime();
+        scheduler.execute(record(order, "interactive late", done), QueryPriority.INTERACTIVE, now + 3000);
+        scheduler.execute(record(order, "export overdue", done), QueryPriority.EXPORT, now - 1000);
+        scheduler.execute(record(order, "background", done), QueryPriority.BACKGROUND, now + 2000);
+        scheduler.execute(record(order, "interactive soon", done), QueryPriority.INTERACTIVE, now + 1000);
+        proceed.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("export overdue", "interactive soon", "background", "interactive late"), order);
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTasksTakeTheClassOfTheirRequest() {
+        PrioritySchedulingExecutor scheduler = new PrioritySchedulingExecutor(threads, 2, 1, 1);
+        scheduler.execute(blocked());
+        assertEquals("work outside a request is background work", 1, scheduler.getRunningCount(QueryPriority.BACKGROUND));
+
+        QueryDeadline export = QueryDeadline.start(null).withPriority(QueryPriority.EXPORT);
+        try (QueryDeadline.Scope scope = export.enter()) {
+            scheduler.submit(blocked());
+        }
+        assertEquals(1, scheduler.getWaitingCount(QueryPriority.EXPORT));
+
+        QueryDeadline interactive = QueryDeadline.start(null);
+        interactive.defaultPriority(QueryPriority.bySize(10, 200));
+        interactive.defaultPriority(QueryPriority.EXPORT);
+        try (QueryDeadline.Scope scope = interactive.enter()) {
+            scheduler.submit(blocked());
+        }
+        assertEquals(1, scheduler.getRunningCount(QueryPriority.INTERACTIVE));
+
+        assertEquals(QueryPriority.EXPORT, QueryPriority.bySize(200, 200));
+        assertEquals(QueryPriority.INTERACTIVE, QueryPriority.bySize(5000, 0));
+        assertEquals(QueryPriority.BACKGROUND, QueryPriority.fromHeader(" Background "));
+        assertNull(QueryPriority.fromHeader("urgent"));
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.http.client.methods.HttpPost;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.PendingTransport;
+import org.zenoss.app.metricservice.api.model.Aggregator;
+import org.zenoss.app.metricservice.api.model.MetricSpecification;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QueryDeadlineTest {
+
+    private static OpenTSDBQuery query() {
+        OpenTSDBSubQuery subQuery = new OpenTSDBSubQuery();
+        subQuery.metric = "cpu";
+        subQuery.aggregator = Aggregator.avg;
+        OpenTSDBQuery query = new OpenTSDBQuery();
+        query.start = "1000";
+        query.addSubQuery(subQuery);
+        return query;
+    }
+
+    @Test
+    public void testTrackedWorkIsCancelledOnce() {
+        QueryDeadline deadline = QueryDeadline.start(null);
+        SettableFuture<String> pending = SettableFuture.create();
+        SettableFuture<String> done = SettableFuture.create();
+        HttpPost post = new HttpPost("http://localhost/api/query");
+        deadline.track(pending);
+        deadline.track(done);
+        deadline.track(post);
+        done.set("finished");
+        long aborted = QueryDeadline.getAbortedRequests();
+        long expired = QueryDeadline.getDeadlinesExceeded();
+
+        deadline.expire();
+        deadline.expire();
+        assertTrue(deadline.isCancelled());
+        assertEquals("Query deadline exceeded", deadline.getCancelReason());
+        assertTrue(pending.isCancelled());
+        assertFalse(done.isCancelled());
+        assertTrue(post.isAborted());
+        assertEquals(aborted + 2, QueryDeadline.getAbortedRequests());
+        assertEquals(expired + 1, QueryDeadline.getDeadlinesExceeded());
+    }
+
+    @Test
+    public void testClosedRegistrationIsNotAborted() throws Exception {
+        QueryDeadline deadline = QueryDeadline.start(null);
+        HttpPost post = new HttpPost("http://localhost/api/query");
+        deadline.track(post).close();
+        deadline.expire();
+        assertFalse(post.isAborted());
+
+        SettableFuture<String> late = SettableFuture.create();
+        deadline.track(late);
+        assertTrue("work tracked after cancellation is cancelled straight away", late.isCancelled());
+    }
+
+    @Test
+    public void testGetExpiresTheDeadline() throws Exception {
+        QueryDeadline deadline = QueryDeadline.start(20L);
+        assertTrue(deadline.hasTimeLimit());
+        SettableFuture<String> other = SettableFuture.create();
+        deadline.track(other);
+        long exceeded = QueryDeadline.getDeadlinesExceeded();
+        try {
+            deadline.get(SettableFuture.<String>create());
+            fail("deadline should have passed");
+        } catch (CancellationException e) {
+            assertEquals("Query deadline exceeded", e.getMessage());
+        }
+        assertTrue(other.isCancelled());
+        assertEquals(exceeded + 1, QueryDeadline.getDeadlinesExceeded());
+    }
+
+    @Test
+    public void testDefaultTimeoutOnlyAppliesWithoutOne() {
+        QueryDeadline requested = QueryDeadline.start(60000L);
+        long remaining = requested.remainingNanos();
+        requested.defaultTimeout(1);
+        assertTrue(requested.remainingNanos() > 1000000L && requested.remainingNanos() <= remaining);
+
+        QueryDeadline unlimited = QueryDeadline.start(0L);
+        assertFalse(unlimited.hasTimeLimit());
+        unlimited.defaultTimeout(60000L);
+        assertTrue(unlimited.hasTimeLimit());
+
+        QueryDeadline.NONE.defaultTimeout(1);
+        assertFalse(QueryDeadline.NONE.hasTimeLimit());
+        QueryDeadline.NONE.expire();
+        assertFalse(QueryDeadline.NONE.isCancelled());
+    }
+
+    @Test
+    public void testScopeRestoresPreviousDeadline() {
+        QueryDeadline outer = QueryDeadline.start(null);
+        QueryDeadline inner = QueryDeadline.start(null);
+        assertSame(QueryDeadline.NONE, QueryDeadline.current());
+        try (QueryDeadline.Scope outerScope = outer.enter()) {
+            try (QueryDeadline.Scope innerScope = inner.enter()) {
+                assertSame(inner, QueryDeadline.current());
+            }
+            assertSame(outer, QueryDeadline.current());
+        }
+        assertSame(QueryDeadline.NONE, QueryDeadline.current());
+    }
+
+    @Test
+    public void testQueryIsCancelledWhenDeadlinePasses() {
+        PendingTransport transport = new PendingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        QueryDeadline deadline = QueryDeadline.start(20L);
+        OpenTSDBQueryReturn result;
+        try (QueryDeadline.Scope scope = deadline.enter()) {
+            result = client.query(query(), false, 0L);
+        }
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, result.getStatus().getStatus());
+        assertTrue(result.isQueryFailure());
+        assertTrue("the request to OpenTSDB is cancelled", transport.responses.get(0).isCancelled());
+    }
+
+    @Test
+    public void testNoQueryIsSentAfterCancellation() throws Exception {
+        PendingTransport transport = new PendingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        QueryDeadline deadline = QueryDeadline.start(null);
+        deadline.expire();
+        try (QueryDeadline.Scope scope = deadline.enter()) {
+            OpenTSDBQueryReturn result = client.queryAsync(query(), false, 0L).get();
+            assertEquals(QueryStatus.QueryStatusEnum.ERROR, result.getStatus().getStatus());
+        }
+        assertEquals(0, transport.responses.size());
+    }
+
+    @Test
+    public void testLatencyBudgetLeavesTheRequestRunning() throws Exception {
+        QueryDeadline deadline = QueryDeadline.start(null).withLatencyBudget(20L);
+        assertTrue(deadline.hasLatencyBudget());
+        SettableFuture<String> laggard = SettableFuture.create();
+        long timeouts = QueryDeadline.getLatencyBudgetTimeouts();
+        try {
+            deadline.getWithinBudget(laggard);
+            fail("budget should have run out");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertTrue(deadline.isOverBudget());
+        assertFalse(deadline.isCancelled());
+        assertFalse(laggard.isCancelled());
+        assertEquals(timeouts + 1, QueryDeadline.getLatencyBudgetTimeouts());
+        SettableFuture<String> done = SettableFuture.create();
+        done.set("ready");
+        assertEquals("ready", deadline.getWithinBudget(done));
+
+        QueryDeadline.NONE.withLatencyBudget(20L);
+        assertFalse(QueryDeadline.NONE.hasLatencyBudget());
+        QueryDeadline earlier = QueryDeadline.start(20L).withLatencyBudget(60000L);
+        try {
+            earlier.getWithinBudget(SettableFuture.<String>create());
+            fail("deadline should have passed");
+        } catch (CancellationException e) {
+            assertTrue("a deadline before the budget still cancels the request", earlier.isCancelled());
+        }
+    }
+
+    @Test
+    public void testQueryOverBudgetIsAWarning() {
+        PendingTransport transport = new PendingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        QueryDeadline deadline = QueryDeadline.start(null).withLatencyBudget(20L);
+        OpenTSDBQueryReturn result;
+        try (QueryDeadline.Scope scope = deadline.enter()) {
+            result = client.query(query(), false, 0L);
+        }
+        assertEquals(QueryStatus.QueryStatusEnum.WARNING, result.getStatus().getStatus());
+        assertEquals("Query for cpu timed out: no result within the 20 ms latency budget", result.getStatus().getMessage());
+        assertTrue(result.getResults().isEmpty());
+        assertTrue("the laggard is cancelled", transport.responses.get(0).isCancelled());
+        assertFalse(deadline.isCancelled());
+    }
+
+    @Test
+    public void testBatchOverBudgetIsCancelledAndStoodIn() {
+        PendingTransport transport = new PendingTransport();
+        OpenTSDBClient client = new OpenTSDBClient(null, null, transport);
+        MetricSpecification cpu = new MetricSpecification();
+        cpu.setId("cpu-id");
+        cpu.setMetric("cpu");
+        MetricSpecification mem = new MetricSpecification();
+        mem.setId("mem-id");
+        mem.setMetric("mem");
+        QueryDeadline deadline = QueryDeadline.start(null).withLatencyBudget(20L);
+        MetricSpecBatch batch = new MetricSpecBatch(client, "1000", "3000", Arrays.asList(cpu, mem), false, 0L);
+
+        batch.callAsync().cancel(true);
+        assertTrue("the query behind the batch is cancelled", transport.responses.get(0).isCancelled());
+
+        List<OpenTSDBQueryResult> stoodIn = batch.overBudget(deadline);
+        assertEquals(2, stoodIn.size());
+        assertEquals("mem", stoodIn.get(1).metric);
+        assertEquals("mem-id", stoodIn.get(1).metricSpecId);
+        assertTrue(stoodIn.get(1).getDataPoints().isEmpty());
+        assertEquals(QueryStatus.QueryStatusEnum.WARNING, stoodIn.get(1).getStatus().getStatus());
+        assertTrue(stoodIn.get(1).getStatus().getMessage().startsWith("Query for mem timed out"));
+    }
+}
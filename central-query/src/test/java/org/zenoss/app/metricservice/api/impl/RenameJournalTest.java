@@ -0,0 +1,154 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RenameJournalTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void plan(RenameJournal journal, String... names) throws Exception {
+        for (String name : names) {
+            journal.plan(name);
+        }
+        journal.planComplete();
+    }
+
+    @Test
+    public void testInterruptedRenameResumes() throws Exception {
+        RenameJournal journal = RenameJournal.open(dir, "metric", "foo", "foobar");
+        assertTrue(journal.getPlanned().isEmpty());
+        plan(journal, "foo.a", "foo.b", "foo.c");
+        journal.done("foo.b");
+        journal.close();
+
+        journal = RenameJournal.open(dir, "metric", "foo", "foobar");
+        assertTrue(journal.isPlanComplete());
+        assertEquals(Arrays.asList("foo.a", "foo.b", "foo.c"), journal.getPlanned());
+        assertEquals(1, journal.getDoneCount());
+        assertTrue(journal.isDone("foo.b"));
+        assertFalse(journal.isDone("foo.a"));
+        journal.done("foo.a");
+        assertFalse("foo.c has not been renamed", journal.finish());
+        assertTrue(journal.getFile().exists());
+
+        journal = RenameJournal.open(dir, "metric", "foo", "foobar");
+        journal.done("foo.c");
+        assertTrue(journal.finish());
+        assertFalse(journal.getFile().exists());
+    }
+
+    @Test
+    public void testLineCutShortIsIgnored() throws Exception {
+        RenameJournal journal = RenameJournal.open(dir, "tagv", "dev1", "dev2");
+        plan(journal, "dev1/a", "dev1/b");
+        journal.done("dev1/a");
+        journal.close();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(journal.getFile(), true), Charsets.UTF_8)) {
+            out.write("done\tdev1/");
+        }
+
+        journal = RenameJournal.open(dir, "tagv", "dev1", "dev2");
+        assertEquals(1, journal.getDoneCount());
+        journal.done("dev1/b");
+        journal.close();
+
+        journal = RenameJournal.open(dir, "tagv", "dev1", "dev2");
+        assertTrue(journal.isDone("dev1/b"));
+        assertTrue(journal.finish());
+    }
+
+    @Test
+    public void testIncompletePlanKeepsWhatWasDone() throws Exception {
+        RenameJournal journal = RenameJournal.open(dir, "metric", "foo", "bar");
+        journal.plan("foo.a");
+        journal.done("foo.a");
+        journal.plan("foo.b");
+        journal.close();
+
+        journal = RenameJournal.open(dir, "metric", "foo", "bar");
+        assertFalse(journal.isPlanComplete());
+        assertEquals(Arrays.asList("foo.a"), journal.getDone());
+        journal.plan("foo.b");
+        journal.plan("foo.c");
+        journal.done("foo.b");
+        journal.done("foo.c");
+        assertFalse("not every name has been found", journal.finish());
+
+        journal = RenameJournal.open(dir, "metric", "foo", "bar");
+        assertEquals(Arrays.asList("foo.a", "foo.b", "foo.c"), journal.getPlanned());
+        journal.planComplete();
+        assertTrue(journal.finish());
+
+        RenameJournal other = RenameJournal.open(dir, "metric", "foo", "baz");
+        assertTrue(other.getPlanned().isEmpty());
+        assertFalse(journal.getFile().equals(other.getFile()));
+        other.close();
+    }
+
+    @Test
+    public void testJournalIsNamedAfterADigestOfTheRename() throws Exception {
+        RenameJournal journal = RenameJournal.open(dir, "metric", "foo", "bar");
+        assertTrue(journal.getFile().getName().matches("rename-metric-[0-9a-f]{40}\\.journal"));
+        journal.close();
+    }
+
+    @Test
+    public void testSameRenameCannotBeJournaledTwiceAtOnce() throws Exception {
+        RenameJournal journal = RenameJournal.open(dir, "metric", "foo", "bar");
+        journal.plan("foo.a");
+        try {
+            RenameJournal.open(dir, "metric", "foo", "bar");
+            fail("the journal is in use");
+        } catch (RenameJournal.InUseException expected) {
+            // refused
+        }
+        RenameJournal other = RenameJournal.open(dir, "metric", "foo", "baz");
+        other.close();
+        journal.close();
+
+        journal = RenameJournal.open(dir, "metric", "foo", "bar");
+        assertEquals("the progress of the first rename is kept", Arrays.asList("foo.a"), journal.getPlanned());
+        journal.close();
+    }
+}
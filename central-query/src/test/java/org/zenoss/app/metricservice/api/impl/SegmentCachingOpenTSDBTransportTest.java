@@ -0,0 +1,135 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.FakeTSDB;
+
+import java.util.SortedMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.query;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.subQuery;
+
+public class SegmentCachingOpenTSDBTransportTest {
+
+    private static final long NOW = 100 * 3600;
+
+    private static SegmentCachingOpenTSDBTransport cache(FakeTSDB backend, long maxDataPoints) {
+        return new SegmentCachingOpenTSDBTransport(backend, 3600, 300, maxDataPoints) {
+            @Override
+            protected long currentTimeSeconds() {
+                return NOW;
+            }
+        };
+    }
+
+    private static SortedMap<Long, Double> points(OpenTSDBQueryReturn queryReturn, int index) {
+        return queryReturn.getResults().get(index).getDataPoints();
+    }
+
+    @Test
+    public void testRepeatedQueryOnlyFetchesMutableTail() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 60, "d1");
+        SegmentCachingOpenTSDBTransport subject = cache(backend, 1000000);
+        OpenTSDBQuery query = query(NOW - 6 * 3600 + 30, null, subQuery("cpu", "1m-avg"));
+
+        OpenTSDBQueryReturn expected = new FakeTSDB(NOW, 60, "d1").execute(query(NOW - 6 * 3600, null, subQuery("cpu", "1m-avg"))).get();
+        OpenTSDBQueryReturn first = subject.execute(query).get();
+        assertEquals(QueryStatus.QueryStatusEnum.SUCCESS, first.getStatus().getStatus());
+        assertEquals("first bucket is aligned to the interval", points(expected, 0), points(first, 0));
+
+        backend.requests.clear();
+        long hits = subject.getHits();
+        OpenTSDBQueryReturn second = subject.execute(query).get();
+        assertEquals(points(expected, 0), points(second, 0));
+        assertEquals(hits + 5, subject.getHits());
+        assertEquals(1, backend.requests.size());
+        assertEquals(Long.toString(NOW - 3600), backend.requests.get(0).start);
+    }
+
+    @Test
+    public void testOverlappingQueryFetchesOnlyMissingSegments() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 60, "d1");
+        SegmentCachingOpenTSDBTransport subject = cache(backend, 1000000);
+        subject.execute(query(NOW - 10 * 3600, NOW - 8 * 3600 - 1, subQuery("cpu", "5m-avg"))).get();
+
+        backend.requests.clear();
+        OpenTSDBQueryReturn result = subject.execute(query(NOW - 12 * 3600, NOW - 6 * 3600 - 1, subQuery("cpu", "5m-avg"))).get();
+        assertEquals(2, backend.requests.size());
+        assertEquals(Long.toString(NOW - 12 * 3600), backend.requests.get(0).start);
+        assertEquals(Long.toString(NOW - 10 * 3600 - 1), backend.requests.get(0).end);
+        assertEquals(Long.toString(NOW - 8 * 3600), backend.requests.get(1).start);
+        assertEquals(Long.toString(NOW - 6 * 3600 - 1), backend.requests.get(1).end);
+        SortedMap<Long, Double> dps = points(result, 0);
+        assertEquals(6 * 60, dps.size());
+        assertEquals(Long.valueOf(NOW - 12 * 3600), dps.firstKey());
+        assertEquals(Long.valueOf(NOW - 6 * 3600 - 60), dps.lastKey());
+    }
+
+    @Test
+    public void testUncacheableSubQueriesArePassedThrough() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 60, "d1");
+        SegmentCachingOpenTSDBTransport subject = cache(backend, 1000000);
+        OpenTSDBSubQuery rate = subQuery("ifInOctets", "1m-avg");
+        rate.rate = true;
+        OpenTSDBQuery query = query(NOW - 3 * 3600, null, rate, subQuery("raw", null), subQuery("odd", "7m-avg"));
+
+        OpenTSDBQueryReturn result = subject.execute(query).get();
+        assertEquals(1, backend.requests.size());
+        assertSame(query, backend.requests.get(0));
+        assertEquals(3, result.getResults().size());
+    }
+
+    @Test
+    public void testMixedQueryKeepsSubQueryOrder() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 60, "d1");
+        SegmentCachingOpenTSDBTransport subject = cache(backend, 1000000);
+        OpenTSDBQuery query = query(NOW - 3 * 3600, null, subQuery("raw", null), subQuery("cpu", "1m-avg"));
+        query.showQuery = true;
+
+        OpenTSDBQueryReturn result = subject.execute(query).get();
+        assertEquals(2, result.getResults().size());
+        assertEquals("raw", result.getResults().get(0).metric);
+        assertEquals(0, result.getResults().get(0).queryIndex);
+        assertEquals("cpu", result.getResults().get(1).metric);
+        assertEquals(1, result.getResults().get(1).queryIndex);
+    }
+
+    @Test
+    public void testErrorsAreReturnedAndNotCached() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 60, "d1");
+        SegmentCachingOpenTSDBTransport subject = cache(backend, 1000000);
+        OpenTSDBQuery query = query(NOW - 3 * 3600, NOW - 3600 - 1, subQuery("cpu", "1m-avg"));
+        backend.failWith = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR, "boom");
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, subject.execute(query).get().getStatus().getStatus());
+
+        backend.failWith = null;
+        backend.requests.clear();
+        assertEquals(2 * 60, points(subject.execute(query).get(), 0).size());
+        assertEquals(1, backend.requests.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSegmentsAreEvicted() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 60, "d1");
+        // room for roughly two one-minute segments
+        SegmentCachingOpenTSDBTransport subject = cache(backend, 130);
+        OpenTSDBQuery query = query(NOW - 6 * 3600, NOW - 3600 - 1, subQuery("cpu", "1m-avg"));
+        subject.execute(query).get();
+
+        backend.requests.clear();
+        subject.execute(query).get();
+        assertTrue("evicted segments are fetched again", backend.requests.size() > 0);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class SeriesMergerTest {
+
+    private static OpenTSDBQueryResult series(String metric, Map<String, String> tags, long... timestamps) {
+        OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+        result.metric = metric;
+        result.tags = tags;
+        for (long timestamp : timestamps) {
+            result.addDataPoint(timestamp, timestamp);
+        }
+        return result;
+    }
+
+    private static Map<String, String> tags(String... pairs) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            tags.put(pairs[i], pairs[i + 1]);
+        }
+        return tags;
+    }
+
+    @Test
+    public void testKeyIgnoresTagOrder() {
+        SeriesMerger.Key key = new SeriesMerger.Key(series("cpu", tags("device", "a", "component", "eth0")));
+        assertEquals(key, new SeriesMerger.Key(series("cpu", tags("component", "eth0", "device", "a"))));
+        assertEquals(key.hashCode(), new SeriesMerger.Key(series("cpu", tags("component", "eth0", "device", "a"))).hashCode());
+        assertFalse(key.equals(new SeriesMerger.Key(series("cpu", tags("device", "a", "component", "eth1")))));
+        assertFalse(key.equals(new SeriesMerger.Key(series("mem", tags("device", "a", "component", "eth0")))));
+        assertFalse("tag names and values are not interchangeable",
+                new SeriesMerger.Key(series("cpu", tags("a", "b"))).equals(new SeriesMerger.Key(series("cpu", tags("b", "a")))));
+        assertEquals(new SeriesMerger.Key(series("cpu", null)), new SeriesMerger.Key(series("cpu", new HashMap<String, String>())));
+    }
+
+    @Test
+    public void testGroupKeepsFirstSeenOrder() {
+        OpenTSDBQueryResult b1 = series("cpu", tags("device", "b"), 10);
+        OpenTSDBQueryResult a1 = series("cpu", tags("device", "a"), 10);
+        OpenTSDBQueryResult b2 = series("cpu", tags("device", "b"), 20);
+        Map<SeriesMerger.Key, List<OpenTSDBQueryResult>> groups = SeriesMerger.group(Arrays.asList(b1, a1, b2));
+
+        List<List<OpenTSDBQueryResult>> parts = new ArrayList<>(groups.values());
+        assertEquals(2, parts.size());
+        assertEquals(Arrays.asList(b1, b2), parts.get(0));
+        assertEquals(Arrays.asList(a1), parts.get(1));
+    }
+
+    @Test
+    public void testMergeOrdersPointsAndLaterPartWins() {
+        OpenTSDBQueryResult pre = series("cpu", tags("device", "a"), 10, 20, 30);
+        OpenTSDBQueryResult post = series("cpu", tags("device", "a"), 30, 40);
+        post.getDataPoints().put(30L, -1.0);
+
+        OpenTSDBQueryResult merged = SeriesMerger.merge(Arrays.asList(pre, post));
+        assertEquals(Arrays.asList(10L, 20L, 30L, 40L), new ArrayList<>(merged.getDataPoints().keySet()));
+        assertEquals(-1.0, merged.getDataPoints().get(30L), 0.0);
+        assertEquals("cpu", merged.metric);
+        assertEquals(pre.tags, merged.tags);
+        assertEquals("parts are left untouched", 3, pre.getDataPoints().size());
+        assertSame(pre, SeriesMerger.merge(Arrays.asList(pre)));
+    }
+}
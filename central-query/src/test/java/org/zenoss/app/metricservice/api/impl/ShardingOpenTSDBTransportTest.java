@@ -0,0 +1,138 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.FakeTSDB;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.query;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.subQuery;
+
+public class ShardingOpenTSDBTransportTest {
+
+    private static final long DAY = 86400;
+    private static final long NOW = 1000 * DAY;
+
+    private static ShardingOpenTSDBTransport sharding(FakeTSDB backend, ExecutorService executor, int maxParallelism) {
+        return new ShardingOpenTSDBTransport(backend, executor, DAY, maxParallelism) {
+            @Override
+            protected long currentTimeSeconds() {
+                return NOW;
+            }
+        };
+    }
+
+    @Test
+    public void testLongQueryIsSplitAndMerged() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 3600, "a", "b");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            OpenTSDBQuery query = query(NOW - 5 * DAY + 1800, null, subQuery("cpu", "1h-avg"));
+            OpenTSDBQueryReturn expected = new FakeTSDB(NOW, 3600, "a", "b").execute(query).get();
+            OpenTSDBQueryReturn result = sharding(backend, executor, 10).execute(query).get();
+
+            assertEquals(6, backend.requests.size());
+            // the chunks are sent from the pool, so they are not necessarily recorded in order
+            OpenTSDBQuery first = backend.requests.get(0);
+            for (OpenTSDBQuery request : backend.requests) {
+                if (Long.parseLong(request.start) < Long.parseLong(first.start)) {
+                    first = request;
+                }
+            }
+            assertEquals(Long.toString(NOW - 5 * DAY + 1800), first.start);
+            assertEquals(Long.toString(NOW - 4 * DAY - 1), first.end);
+            assertEquals(2, result.getResults().size());
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expected.getResults().get(i).tags, result.getResults().get(i).tags);
+                assertEquals(expected.getResults().get(i).getDataPoints(), result.getResults().get(i).getDataPoints());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParallelismIsCapped() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 3600, "a", "b");
+        OpenTSDBQuery query = query(NOW - 30 * DAY, null, subQuery("cpu", "5m-avg"));
+        OpenTSDBQueryReturn result = sharding(backend, null, 4).execute(query).get();
+
+        assertEquals(4, backend.requests.size());
+        assertEquals(30 * 24 + 1, result.getResults().get(0).getDataPoints().size());
+    }
+
+    @Test
+    public void testShortAndUnshardableQueriesArePassedThrough() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 3600, "a", "b");
+        ShardingOpenTSDBTransport subject = sharding(backend, null, 8);
+
+        OpenTSDBQuery shortQuery = query(NOW - DAY / 2, null, subQuery("cpu", "1h-avg"));
+        subject.execute(shortQuery).get();
+        assertSame(shortQuery, backend.requests.get(0));
+
+        OpenTSDBSubQuery rate = subQuery("ifInOctets", "1h-avg");
+        rate.rate = true;
+        OpenTSDBQuery rateQuery = query(NOW - 5 * DAY, null, rate, subQuery("raw", null), subQuery("odd", "7h-avg"));
+        subject.execute(rateQuery).get();
+        assertSame(rateQuery, backend.requests.get(1));
+    }
+
+    @Test
+    public void testMixedQueryKeepsSubQueryOrder() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 3600, "a", "b");
+        OpenTSDBQuery query = query(NOW - 3 * DAY, null, subQuery("raw", null), subQuery("cpu", "1h-avg"));
+        query.showQuery = true;
+        OpenTSDBQueryReturn result = sharding(backend, null, 8).execute(query).get();
+
+        assertEquals(5, backend.requests.size());
+        assertEquals(Arrays.asList("raw", "raw", "cpu", "cpu"), Arrays.asList(result.getResults().get(0).metric,
+                result.getResults().get(1).metric, result.getResults().get(2).metric, result.getResults().get(3).metric));
+        assertEquals(0, result.getResults().get(0).queryIndex);
+        assertEquals(1, result.getResults().get(2).queryIndex);
+        assertEquals(3 * 24 + 1, result.getResults().get(2).getDataPoints().size());
+    }
+
+    @Test
+    public void testChunkErrorIsReturned() throws Exception {
+        FakeTSDB backend = new FakeTSDB(NOW, 3600, "a", "b");
+        backend.failWith = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR, "boom");
+        backend.failRequest = 2;
+        OpenTSDBQueryReturn result = sharding(backend, null, 8).execute(query(NOW - 3 * DAY, null, subQuery("cpu", "1h-avg"))).get();
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, result.getStatus().getStatus());
+        assertEquals("boom", result.getStatus().getMessage());
+    }
+
+    @Test
+    public void testMergeSeriesOrdersAndOverridesOverlaps() {
+        OpenTSDBQueryResult first = new OpenTSDBQueryResult();
+        first.metric = "m";
+        first.addDataPoint(10, 1);
+        first.addDataPoint(30, 3);
+        OpenTSDBQueryResult second = new OpenTSDBQueryResult();
+        second.addDataPoint(20, 2);
+        second.addDataPoint(30, 33);
+        second.addDataPoint(40, 4);
+
+        OpenTSDBQueryResult merged = SeriesMerger.merge(Arrays.asList(first, second));
+        assertEquals("m", merged.metric);
+        SortedMap<Long, Double> dps = merged.getDataPoints();
+        assertEquals(Arrays.asList(10L, 20L, 30L, 40L), new ArrayList<>(dps.keySet()));
+        assertEquals(33.0, dps.get(30L), 0.0);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SuggestEnumeratorTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answers suggest requests from a sorted set of names, as OpenTSDB does: the first max names
+     * starting with the query.
+     */
+    private static class StubSuggest extends OpenTSDBClient {
+        final TreeSet<String> names = new TreeSet<>();
+        final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+        String failing = null;
+
+        StubSuggest(String... names) {
+            super(null, null, (OpenTSDBTransport) null);
+            this.names.addAll(Arrays.asList(names));
+        }
+
+        @Override
+        public SuggestResult suggest(OpenTSDBSuggest suggest) {
+            queries.add(suggest.q);
+            SuggestResult result = new SuggestResult();
+            if (suggest.q.equals(failing)) {
+                result.statusCode = 500;
+                return result;
+            }
+            result.statusCode = 200;
+            for (String name : names.tailSet(suggest.q)) {
+                if (!name.startsWith(suggest.q) || result.suggestions.size() >= suggest.max) {
+                    break;
+                }
+                result.suggestions.add(name);
+            }
+            return result;
+        }
+    }
+
+    private static class Collector implements SuggestEnumerator.Listener {
+        final List<String> found = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void found(String name) {
+            found.add(name);
+        }
+
+        List<String> sorted() {
+            List<String> sorted = new ArrayList<>(found);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+
+    @Test
+    public void testFindsMoreNamesThanAPage() throws Exception {
+        StubSuggest client = new StubSuggest("dev", "dev.a1", "dev.a2", "dev.a3", "dev.b1", "dev.b2", "dev/x", "other");
+        Collector collector = new Collector();
+        SuggestEnumerator.Result result = new SuggestEnumerator(client, executor, 2)
+                .enumerate(OpenTSDBSuggest.TYPE_METRIC, "dev", collector).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("dev", "dev.a1", "dev.a2", "dev.a3", "dev.b1", "dev.b2", "dev/x"), collector.sorted());
+        assertEquals(7, result.getFound());
+        assertTrue(result.isComplete());
+        assertTrue("the prefix is split where there are too many names", client.queries.contains("dev.a"));
+        assertFalse("but not where there are few", client.queries.contains("dev/x"));
+    }
+
+    @Test
+    public void testOnePageAsksOnce() throws Exception {
+        StubSuggest client = new StubSuggest("dev.a", "dev.b");
+        Collector collector = new Collector();
+        SuggestEnumerator.Result result = new SuggestEnumerator(client, executor, 0)
+                .enumerate(OpenTSDBSuggest.TYPE_METRIC, "dev", collector).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("dev.a", "dev.b"), collector.sorted());
+        assertEquals(1, result.getRequests());
+    }
+
+    @Test
+    public void testFailedRequestIsReported() throws Exception {
+        StubSuggest client = new StubSuggest("dev.a1", "dev.a2", "dev.b1", "dev.b2");
+        client.failing = "dev.b";
+        Collector collector = new Collector();
+        SuggestEnumerator.Result result = new SuggestEnumerator(client, executor, 3)
+                .enumerate(OpenTSDBSuggest.TYPE_METRIC, "dev", collector).get(5, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("dev.a1", "dev.a2"), collector.sorted());
+        assertFalse(result.isComplete());
+        assertEquals(1, result.getFailedRequests());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.FakeTSDB;
+
+import java.util.SortedMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.query;
+import static org.zenoss.app.metricservice.api.impl.TransportFixtures.subQuery;
+
+public class TailRefreshingOpenTSDBTransportTest {
+
+    private static TailRefreshingOpenTSDBTransport refresher(final FakeTSDB backend) {
+        return new TailRefreshingOpenTSDBTransport(backend, 120, 100, 600) {
+            @Override
+            protected long currentTimeSeconds() {
+                return backend.now;
+            }
+        };
+    }
+
+    @Test
+    public void testPollFetchesOnlyDeltaWithOverlap() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        long misses = subject.getMisses();
+        subject.execute(query("1h-ago", subQuery("cpu", "1m-avg"))).get();
+        assertEquals(misses + 1, subject.getMisses());
+
+        backend.now += 60;
+        backend.version = 0.5;
+        backend.requests.clear();
+        long hits = subject.getHits();
+        OpenTSDBQueryReturn refreshed = subject.execute(query("1h-ago", subQuery("cpu", "1m-avg"))).get();
+        assertEquals(hits + 1, subject.getHits());
+        assertEquals(1, backend.requests.size());
+        assertEquals(Long.toString(backend.now - 60 - 120), backend.requests.get(0).start);
+
+        backend.requests.clear();
+        OpenTSDBQueryReturn full = backend.execute(query("1h-ago", subQuery("cpu", "1m-avg"))).get();
+        SortedMap<Long, Double> dps = refreshed.getResults().get(0).getDataPoints();
+        assertEquals("head is trimmed and tail appended", full.getResults().get(0).getDataPoints().keySet(), dps.keySet());
+        assertEquals("retained point", backend.now - 3600, dps.get(backend.now - 3600), 0.0);
+        assertEquals("re-read point", backend.now - 180 + 0.5, dps.get(backend.now - 180), 0.0);
+        assertEquals("new point", backend.now + 0.5, dps.get(backend.now), 0.0);
+    }
+
+    @Test
+    public void testLongerWindowIsNotServedFromShorterOne() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        subject.execute(query("1h-ago", subQuery("cpu", "1m-avg"))).get();
+
+        backend.now += 60;
+        backend.requests.clear();
+        OpenTSDBQueryReturn day = subject.execute(query("1d-ago", subQuery("cpu", "1m-avg"))).get();
+        assertEquals("1d-ago", backend.requests.get(0).start);
+        assertEquals(24 * 60 + 1, day.getResults().get(0).getDataPoints().size());
+
+        // the day window now serves the hour
+        backend.now += 60;
+        backend.requests.clear();
+        OpenTSDBQueryReturn hour = subject.execute(query("1h-ago", subQuery("cpu", "1m-avg"))).get();
+        assertEquals(Long.toString(backend.now - 60 - 120), backend.requests.get(0).start);
+        assertEquals(61, hour.getResults().get(0).getDataPoints().size());
+    }
+
+    @Test
+    public void testAbsoluteAndRateQueriesArePassedThrough() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        OpenTSDBQuery absolute = query(Long.toString(backend.now - 3600), subQuery("cpu", "1m-avg"));
+        subject.execute(absolute).get();
+        assertSame(absolute, backend.requests.get(0));
+
+        OpenTSDBSubQuery rate = subQuery("ifInOctets", "1m-avg");
+        rate.rate = true;
+        OpenTSDBQuery rateQuery = query("1h-ago", rate);
+        subject.execute(rateQuery).get();
+        subject.execute(rateQuery).get();
+        assertSame(rateQuery, backend.requests.get(1));
+        assertSame(rateQuery, backend.requests.get(2));
+    }
+
+    @Test
+    public void testV1RangeEndingNowIsRefreshedAndTrimmedToItsEnd() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        OpenTSDBQuery first = query(Long.toString(backend.now - 3600), subQuery("cpu", "1m-avg"));
+        first.end = Long.toString(backend.now);
+        subject.execute(first).get();
+
+        backend.now += 60;
+        backend.requests.clear();
+        long hits = subject.getHits();
+        OpenTSDBQuery poll = query(Long.toString(backend.now - 3600), subQuery("cpu", "1m-avg"));
+        poll.end = Long.toString(backend.now - 2);
+        OpenTSDBQueryReturn result = subject.execute(poll).get();
+        assertEquals(hits + 1, subject.getHits());
+        assertEquals(Long.toString(backend.now - 60 - 120), backend.requests.get(0).start);
+        assertEquals(poll.end, backend.requests.get(0).end);
+        SortedMap<Long, Double> dps = result.getResults().get(0).getDataPoints();
+        assertEquals(backend.now - 3600, (long) dps.firstKey());
+        assertEquals("nothing after the requested end", backend.now - 60, (long) dps.lastKey());
+    }
+
+    @Test
+    public void testV1RangeEndingInThePastIsPassedThrough() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        OpenTSDBQuery past = query(Long.toString(backend.now - 7200), subQuery("cpu", "1m-avg"));
+        past.end = Long.toString(backend.now - 3600);
+        subject.execute(past).get();
+        subject.execute(past).get();
+        assertSame(past, backend.requests.get(0));
+        assertSame(past, backend.requests.get(1));
+    }
+
+    @Test
+    public void testMixedQueryRefreshesOnlyEligibleSubQueries() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        OpenTSDBQuery query = query("1h-ago", subQuery("raw", null), subQuery("cpu", "1m-avg"));
+        query.showQuery = true;
+        subject.execute(query).get();
+
+        backend.now += 60;
+        backend.requests.clear();
+        OpenTSDBQueryReturn result = subject.execute(query).get();
+        assertEquals(2, backend.requests.size());
+        assertEquals("1h-ago", backend.requests.get(0).start);
+        assertEquals("raw", backend.requests.get(0).queries.get(0).metric);
+        assertEquals("cpu", backend.requests.get(1).queries.get(0).metric);
+        assertEquals("raw", result.getResults().get(0).metric);
+        assertEquals(0, result.getResults().get(0).queryIndex);
+        assertEquals("cpu", result.getResults().get(1).metric);
+        assertEquals(1, result.getResults().get(1).queryIndex);
+    }
+
+    @Test
+    public void testErrorsAreReturnedAndWindowIsKept() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        OpenTSDBQuery query = query("1h-ago", subQuery("cpu", "1m-avg"));
+        subject.execute(query).get();
+
+        backend.now += 60;
+        backend.failWith = new QueryStatus(QueryStatus.QueryStatusEnum.ERROR, "boom");
+        assertEquals(QueryStatus.QueryStatusEnum.ERROR, subject.execute(query).get().getStatus().getStatus());
+
+        backend.now += 60;
+        backend.failWith = null;
+        backend.requests.clear();
+        OpenTSDBQueryReturn result = subject.execute(query).get();
+        assertEquals(Long.toString(backend.now - 120 - 120), backend.requests.get(0).start);
+        assertEquals(61, result.getResults().get(0).getDataPoints().size());
+    }
+
+    @Test
+    public void testCallersGetTheirOwnCopies() throws Exception {
+        FakeTSDB backend = new FakeTSDB(1000 * 3600, 60);
+        TailRefreshingOpenTSDBTransport subject = refresher(backend);
+        OpenTSDBQuery query = query("1h-ago", subQuery("cpu", "1m-avg"));
+        subject.execute(query).get().getResults().get(0).getDataPoints().clear();
+
+        backend.now += 60;
+        OpenTSDBQueryReturn result = subject.execute(query).get();
+        assertEquals(61, result.getResults().get(0).getDataPoints().size());
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.configs.TenantQuota;
+import org.zenoss.app.metricservice.api.impl.QueryStatus.QueryStatusEnum;
+import org.zenoss.app.metricservice.api.impl.TransportFixtures.PendingTransport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TenantFairOpenTSDBTransportTest {
+
+    private final ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1);
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    private static OpenTSDBQuery query(String tenant, String metric) {
+        OpenTSDBSubQuery subQuery = new OpenTSDBSubQuery();
+        subQuery.metric = metric;
+        if (null != tenant) {
+            subQuery.addTag(TenantFairOpenTSDBTransport.TENANT_TAG, tenant);
+        }
+        OpenTSDBQuery query = new OpenTSDBQuery();
+        query.addSubQuery(subQuery);
+        return query;
+    }
+
+    private TenantFairOpenTSDBTransport transport(PendingTransport delegate, int maxInFlight, Map<String, TenantQuota> quotas) {
+        return new TenantFairOpenTSDBTransport(delegate, timer, maxInFlight, new TenantQuota(), quotas);
+    }
+
+    /*
+     * Answers the queries one at a time, returning the metrics in the order they were sent.
+     */
+    private static List<String> drain(PendingTransport delegate, int count) {
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, delegate.queries.size());
+            order.add(delegate.metric(i));
+            delegate.answer(i);
+        }
+        return order;
+    }
+
+    @Test
+    public void testQuietTenantIsNotStuckBehindNoisyOne() {
+        PendingTransport delegate = new PendingTransport();
+        TenantFairOpenTSDBTransport transport = transport(delegate, 1, null);
+        for (int i = 1; i <= 4; i++) {
+            transport.execute(query("noisy", "n" + i));
+        }
+        transport.execute(query("quiet", "q1"));
+        transport.execute(query("quiet", "q2"));
+        assertEquals(3, transport.getWaitingCount("noisy"));
+        assertEquals(2, transport.getWaitingCount("quiet"));
+
+        assertEquals(Arrays.asList("n1", "q1", "n2", "q2", "n3", "n4"), drain(delegate, 6));
+        assertEquals(0, transport.getInFlight("noisy"));
+    }
+
+    @Test
+    public void testWaitingQueriesHoldNoCallerThreads() throws Exception {
+        PendingTransport delegate = new PendingTransport();
+        final TenantFairOpenTSDBTransport transport = transport(delegate, 1, null);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        List<String> tenants = new ArrayList<>(Collections.nCopies(10, "noisy"));
+        tenants.add("quiet");
+        for (int i = 0; i < tenants.size(); i++) {
+            final OpenTSDBQuery query = query(tenants.get(i), tenants.get(i).charAt(0) + Integer.toString(i));
+            callers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    transport.execute(query);
+                }
+            });
+        }
+        callers.shutdown();
+        assertTrue("every caller returned while its query waits", callers.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, delegate.queries.size());
+        assertEquals(9, transport.getWaitingCount("noisy"));
+        assertEquals(1, transport.getWaitingCount("quiet"));
+
+        List<String> order = drain(delegate, 11);
+        assertEquals("the quiet tenant goes next, ahead of the noisy backlog", "q10", order.get(1));
+    }
+
+    @Test
+    public void testWeightsSetTheShareOfTurns() {
+        PendingTransport delegate = new PendingTransport();
+        Map<String, TenantQuota> quotas = new HashMap<>();
+        quotas.put("gold", new TenantQuota(2, 0, 0));
+        TenantFairOpenTSDBTransport transport = transport(delegate, 1, quotas);
+        transport.execute(query(null, "first"));
+        for (int i = 1; i <= 4; i++) {
+            transport.execute(query("gold", "g" + i));
+            transport.execute(query("plain", "p" + i));
+        }
+        assertEquals(Arrays.asList("first", "g1", "p1", "g2", "p2", "g3", "g4", "p3", "p4"), drain(delegate, 9));
+    }
+
+    @Test
+    public void testInFlightLimitHoldsBackOnlyItsTenant() {
+        PendingTransport delegate = new PendingTransport();
+        Map<String, TenantQuota> quotas = new HashMap<>();
+        quotas.put("capped", new TenantQuota(1, 2, 0));
+        TenantFairOpenTSDBTransport transport = transport(delegate, 10, quotas);
+        for (int i = 0; i < 5; i++) {
+            transport.execute(query("capped", "c" + i));
+        }
+        transport.execute(query("other", "o"));
+        assertEquals(3, delegate.queries.size());
+        assertEquals(2, transport.getInFlight("capped"));
+        assertEquals(3, transport.getWaitingCount("capped"));
+
+        delegate.answer(0);
+        assertEquals(4, delegate.queries.size());
+        assertEquals("c2", delegate.metric(3));
+    }
+
+    @Test
+    public void testRateLimitReleasesQueriesOverTime() throws Exception {
+        PendingTransport delegate = new PendingTransport();
+        Map<String, TenantQuota> quotas = new HashMap<>();
+        quotas.put("slow", new TenantQuota(1, 0, 10));
+        TenantFairOpenTSDBTransport transport = transport(delegate, 100, quotas);
+        List<ListenableFuture<OpenTSDBQueryReturn>> results = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            results.add(transport.execute(query("slow", "s" + i)));
+        }
+        assertTrue("no more than a second's worth goes at once", delegate.queries.size() <= 11);
+        for (int i = 0; i < 12; i++) {
+            long waitUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (delegate.queries.size() <= i && System.nanoTime() < waitUntil) {
+                Thread.sleep(10);
+            }
+            delegate.answer(i);
+            assertEquals(QueryStatusEnum.SUCCESS, results.get(i).get(5, TimeUnit.SECONDS).getStatus().getStatus());
+        }
+    }
+
+    @Test
+    public void testCancelledQueryLeavesTheQueue() {
+        PendingTransport delegate = new PendingTransport();
+        TenantFairOpenTSDBTransport transport = transport(delegate, 1, null);
+        ListenableFuture<OpenTSDBQueryReturn> running = transport.execute(query("t", "running"));
+        ListenableFuture<OpenTSDBQueryReturn> waiting = transport.execute(query("t", "waiting"));
+        transport.execute(query("t", "next"));
+        assertTrue(waiting.cancel(false));
+        assertEquals(1, transport.getWaitingCount("t"));
+
+        assertTrue(running.cancel(true));
+        assertTrue("cancelling a sent query cancels it downstream", delegate.responses.get(0).isCancelled());
+        assertEquals(2, delegate.queries.size());
+        assertEquals("next", delegate.metric(1));
+        assertFalse(delegate.responses.get(1).isDone());
+    }
+
+    @Test
+    public void testTenantComesFromTagsOrFilters() {
+        assertEquals("acme", TenantFairOpenTSDBTransport.tenantOf(query("acme", "m")));
+        assertEquals(TenantFairOpenTSDBTransport.NO_TENANT, TenantFairOpenTSDBTransport.tenantOf(query(null, "m")));
+
+        OpenTSDBQuery filtered = query(null, "m");
+        filtered.queries.get(0).addFilter(new OpenTSDBFilter("literal_or", TenantFairOpenTSDBTransport.TENANT_TAG, "acme", false));
+        assertEquals("acme", TenantFairOpenTSDBTransport.tenantOf(filtered));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.api.impl;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.zenoss.app.metricservice.api.model.Aggregator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stand-ins for OpenTSDB and the queries sent to it, shared by the transport tests.
+ */
+final class TransportFixtures {
+
+    private TransportFixtures() {
+    }
+
+    /**
+     * Answers every subquery with a series per device, or one without tags if there are no devices,
+     * holding a point every step seconds from the start of the range, aligned to the step, up to its
+     * end. A point's value is its timestamp plus the current version, so re-read points can be told
+     * apart.
+     */
+    static class FakeTSDB implements OpenTSDBTransport {
+        final List<OpenTSDBQuery> requests = new CopyOnWriteArrayList<>();
+        private final long step;
+        private final List<String> devices;
+        long now;
+        double version = 0;
+        // answers requests with this status instead of data while set
+        QueryStatus failWith = null;
+        // the only request, counting from 1, that fails; 0 for all of them
+        int failRequest = 0;
+
+        FakeTSDB(long now, long step, String... devices) {
+            this.now = now;
+            this.step = step;
+            this.devices = 0 == devices.length ? Collections.<String>singletonList(null) : Arrays.asList(devices);
+        }
+
+        @Override
+        public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+            requests.add(query);
+            if (null != failWith && (0 == failRequest || requests.size() == failRequest)) {
+                return Futures.immediateFuture(new OpenTSDBQueryReturn(new OpenTSDBQueryResult[0], failWith));
+            }
+            long start = query.start.endsWith("-ago")
+                    ? now - Utils.parseDuration(query.start.substring(0, query.start.length() - 4))
+                    : Long.parseLong(query.start);
+            long end = null == query.end || Utils.NOW.equals(query.end) ? now : Long.parseLong(query.end);
+            List<OpenTSDBQueryResult> results = new ArrayList<>();
+            for (int i = 0; i < query.queries.size(); i++) {
+                for (String device : devices) {
+                    OpenTSDBQueryResult result = new OpenTSDBQueryResult();
+                    result.metric = query.queries.get(i).metric;
+                    result.tags = new HashMap<>();
+                    if (null != device) {
+                        result.tags.put("device", device);
+                    }
+                    for (long ts = start - start % step; ts <= end; ts += step) {
+                        result.addDataPoint(ts, ts + version);
+                    }
+                    result.queryIndex = query.showQuery ? i : -1;
+                    results.add(result);
+                }
+            }
+            return Futures.immediateFuture(new OpenTSDBQueryReturn(results.toArray(new OpenTSDBQueryResult[results.size()]),
+                    new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, "")));
+        }
+    }
+
+    /**
+     * Holds every query until the test answers it, recording each query and the deadline it was
+     * sent under.
+     */
+    static class PendingTransport implements OpenTSDBTransport {
+        final List<OpenTSDBQuery> queries = new CopyOnWriteArrayList<>();
+        final List<QueryDeadline> deadlines = new CopyOnWriteArrayList<>();
+        final List<SettableFuture<OpenTSDBQueryReturn>> responses = new CopyOnWriteArrayList<>();
+
+        @Override
+        public ListenableFuture<OpenTSDBQueryReturn> execute(OpenTSDBQuery query) {
+            queries.add(query);
+            deadlines.add(QueryDeadline.current());
+            SettableFuture<OpenTSDBQueryReturn> response = SettableFuture.create();
+            responses.add(response);
+            return response;
+        }
+
+        String metric(int index) {
+            return queries.get(index).queries.get(0).metric;
+        }
+
+        void complete(int index, OpenTSDBQueryReturn queryReturn) {
+            responses.get(index).set(queryReturn);
+        }
+
+        void answer(int index) {
+            complete(index, success());
+        }
+
+        /*
+         * Waits for queries sent from other threads.
+         */
+        void awaitRequests(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (responses.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(count, responses.size());
+        }
+    }
+
+    static OpenTSDBSubQuery subQuery(String metric, String downsample) {
+        OpenTSDBSubQuery subQuery = new OpenTSDBSubQuery();
+        subQuery.metric = metric;
+        subQuery.aggregator = Aggregator.avg;
+        subQuery.downsample = downsample;
+        return subQuery;
+    }
+
+    static OpenTSDBQuery query(String start, OpenTSDBSubQuery... subQueries) {
+        OpenTSDBQuery query = new OpenTSDBQuery();
+        query.start = start;
+        for (OpenTSDBSubQuery subQuery : subQueries) {
+            query.addSubQuery(subQuery);
+        }
+        return query;
+    }
+
+    /**
+     * @param end null to leave the end open
+     */
+    static OpenTSDBQuery query(long start, Long end, OpenTSDBSubQuery... subQueries) {
+        OpenTSDBQuery query = query(Long.toString(start), subQueries);
+        query.end = null == end ? null : end.toString();
+        return query;
+    }
+
+    static OpenTSDBQueryReturn success() {
+        return new OpenTSDBQueryReturn(new OpenTSDBQueryResult[0], new QueryStatus(QueryStatus.QueryStatusEnum.SUCCESS, ""));
+    }
+}
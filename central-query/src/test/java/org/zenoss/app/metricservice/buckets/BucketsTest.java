@@ -34,6 +34,7 @@ package org.zenoss.app.metricservice.buckets;
 import org.junit.Test;
 import org.zenoss.app.metricservice.api.impl.IHasShortcut;
 import org.zenoss.app.metricservice.api.impl.MetricKey;
+import org.zenoss.app.metricservice.api.impl.OffHeapPool;
 
 import static org.junit.Assert.*;
 
@@ -95,6 +96,44 @@ public class BucketsTest {
         assertTrue("GetTimestamps", null != testSubject.getTimestamps());
     }
 
+    @Test
+    public void testColumnsGrowInBothDirections() {
+        Buckets<IHasShortcut> testSubject = new Buckets<>(60);
+        MetricKey key = MetricKey.fromValue("Metric1", "M1", "");
+        Buckets<IHasShortcut>.Column column = testSubject.getOrCreateColumn(key);
+        column.add(100000, 2.0);
+        column.add(100010, 4.0);
+        // far enough either way to reallocate the columns
+        column.add(100000 + 500 * 60, 7.0);
+        column.add(100000 - 700 * 60, 9.0);
+        testSubject.add(MetricKey.fromValue("Metric2", "M2", ""), 100000 - 701 * 60, 1.0);
+
+        assertArrayEquals(new long[]{57900, 57960, 99960, 129960}, testSubject.getBucketTimestamps());
+        assertEquals(4, testSubject.getTimestamps().size());
+        assertEquals(3.0, column.getValue(99960), EPSILON);
+        assertEquals(7.0, column.getValue(100000 + 500 * 60), EPSILON);
+        assertEquals(9.0, column.getValue(100000 - 700 * 60), EPSILON);
+        assertEquals(2, testSubject.getBucket(100000).getValue(key).getCount());
+        assertTrue(Double.isNaN(column.getValue(57900)));
+        assertFalse(column.hasValue(57900));
+        assertNull("no bucket between values", testSubject.getBucket(100000 + 60));
+        assertNull(testSubject.getColumnByShortcut("Metric3"));
+    }
+
+    @Test
+    public void testInterpolatedValueOnlyShowsWithoutRealValues() {
+        Buckets<IHasShortcut> testSubject = new Buckets<>(10);
+        MetricKey key = MetricKey.fromValue("Metric1", "M1", "");
+        testSubject.add(key, 10, 1.0);
+        testSubject.addInterpolated(key, 10, 5.0);
+        testSubject.addInterpolated(key, 20, 6.0);
+        Buckets<IHasShortcut>.Bucket bucket = testSubject.getBucket(20);
+        assertTrue(bucket.getValue(key).valueIsInterpolated());
+        assertFalse(bucket.hasValue(key));
+        assertEquals(6.0, bucket.getValueByShortcut("Metric1").getValue(), EPSILON);
+        assertEquals(1.0, testSubject.getColumn(key).getValue(10), EPSILON);
+    }
+
     @Test
     public void testGetSecondsPerBucket() throws Exception {
         Buckets<IHasShortcut> testSubject = makeTestBuckets();
@@ -153,4 +192,28 @@ public class BucketsTest {
         bucket.getValueByShortcut(null);
     }
 
+    @Test
+    public void testOffHeapColumnsMatchHeapColumns() {
+        OffHeapPool pool = new OffHeapPool(1 << 20);
+        MetricKey key = MetricKey.fromValue("My.Metric.Formal.Name", "MyMetric", "Foo=Bar");
+        Buckets<IHasShortcut> heap = new Buckets<>(60);
+        try (OffHeapPool.Arena arena = pool.newArena(1 << 20)) {
+            Buckets<IHasShortcut> offHeap = new Buckets<>(60, arena);
+            // the columns grow both ways
+            for (long ts : new long[]{100000, 99000, 100020, 110000, 60000}) {
+                heap.add(key, ts, ts / 1000.0);
+                offHeap.add(key, ts, ts / 1000.0);
+            }
+            heap.addInterpolated(key, 90000, 9.5);
+            offHeap.addInterpolated(key, 90000, 9.5);
+
+            assertArrayEquals(heap.getBucketTimestamps(), offHeap.getBucketTimestamps());
+            for (long ts : heap.getBucketTimestamps()) {
+                assertEquals(heap.getColumn(key).getValue(ts), offHeap.getColumn(key).getValue(ts), EPSILON);
+            }
+            assertTrue(arena.getHeldBytes() > 0);
+        }
+        assertEquals(0, pool.getBytesInUse());
+    }
+
 }
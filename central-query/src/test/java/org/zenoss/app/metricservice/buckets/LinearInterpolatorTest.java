@@ -0,0 +1,63 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2015, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.app.metricservice.buckets;
+
+import org.junit.Test;
+import org.zenoss.app.metricservice.api.impl.IHasShortcut;
+import org.zenoss.app.metricservice.api.impl.MetricKey;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LinearInterpolatorTest {
+    private static final double EPSILON = 0.001;
+
+    @Test
+    public void testGapsBetweenValuesAreFilledIn() {
+        Buckets<IHasShortcut> buckets = new Buckets<>(10);
+        MetricKey sparse = MetricKey.fromValue("Sparse", "S", "");
+        MetricKey dense = MetricKey.fromValue("Dense", "D", "");
+        for (long ts = 0; ts <= 50; ts += 10) {
+            buckets.add(dense, ts, ts);
+        }
+        buckets.add(sparse, 10, 1.0);
+        buckets.add(sparse, 40, 4.0);
+
+        new LinearInterpolator().interpolate(buckets, Arrays.<IHasShortcut>asList(sparse, dense));
+
+        Buckets<IHasShortcut>.Column column = buckets.getColumn(sparse);
+        assertTrue("nothing before the first value", Double.isNaN(column.getValue(0)));
+        assertEquals(2.0, column.getValue(20), EPSILON);
+        assertEquals(3.0, column.getValue(30), EPSILON);
+        assertFalse(column.hasValue(30));
+        assertTrue("nothing after the last value", Double.isNaN(column.getValue(50)));
+        assertEquals(30.0, buckets.getColumn(dense).getValue(30), EPSILON);
+    }
+
+    @Test
+    public void testSeriesWithoutValuesIsLeftAlone() {
+        Buckets<IHasShortcut> buckets = new Buckets<>(10);
+        MetricKey present = MetricKey.fromValue("Present", "P", "");
+        MetricKey missing = MetricKey.fromValue("Missing", "M", "");
+        buckets.add(present, 10, 1.0);
+        buckets.add(present, 30, 3.0);
+
+        new LinearInterpolator().interpolate(buckets, Collections.<IHasShortcut>singletonList(missing));
+
+        assertNull(buckets.getColumn(missing));
+        assertEquals(2, buckets.getBucketTimestamps().length);
+    }
+}